@@ -6,10 +6,12 @@ import e.util.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.nio.*;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.List;
 import java.util.regex.*;
 import javax.swing.*;
@@ -21,6 +23,10 @@ import javax.swing.Timer;
 public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTextListener {
     // Used to update the watermark without creating and destroying an excessive number of threads.
     private static final ExecutorService WATERMARK_UPDATE_EXECUTOR = ThreadUtilities.newSingleThreadExecutor("Watermark Updater");
+    // Reading, decoding, and guessing about a file's content happen here rather than on the EDT.
+    private static final ExecutorService FILE_LOADER_EXECUTOR = ThreadUtilities.newFixedThreadPool(2, "File Loader");
+    // Files bigger than this get a quick look at their first screenful while the rest is decoded.
+    private static final int PREVIEW_BYTE_COUNT = 64 * 1024;
     
     // This is the 'prettified' version of filename (eg, it might start with "~/").
     // It should generally begin with the official workspace directory.
@@ -36,6 +42,11 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     
     private FileTime lastModifiedTime;
     
+    // False until our content has been loaded (from another thread; see startLoading). Only written on the EDT.
+    private volatile boolean isLoaded = false;
+    private boolean isClosed = false;
+    private final ArrayList<Runnable> runWhenLoaded = new ArrayList<>();
+    
     // Each text window has its own current regular expression for finds, which may be null if there's no currently active search in that window.
     private String currentRegularExpression;
     
@@ -65,6 +76,8 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         this.filename = filename;
         this.path = FileUtilities.pathFrom(filename);
         this.textArea = new PTextArea();
+        // This is how we're identified in the debug menu's breakdown of memory use.
+        textArea.setName(filename);
         initTextArea();
         initTextAreaPopupMenu();
         
@@ -84,9 +97,8 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         add(birdView, BorderLayout.EAST);
         
         this.tagsUpdater = new TagsUpdater(this);
-        fillWithContent();
-        initUserConfigurableDefaults();
         initFindResultsUpdater();
+        startLoading();
     }
     
     private void initTextArea() {
@@ -108,9 +120,16 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         textArea.getActionMap().remove(PActionFactory.makeFindAction().getValue(Action.NAME));
         
         textArea.getTextBuffer().addTextListener(this);
+        
+        // The status line tells the user when we've had to turn features off for a large file.
+        textArea.getGovernor().addChangeListener((e) -> {
+            if (textArea.isFocusOwner()) {
+                updateStatusLine();
+            }
+        });
     }
     
-    private void initUserConfigurableDefaults() {
+    private void initUserConfigurableDefaults(String guessedIndentation) {
         // Since the user can modify these settings, we should only set them
         // from the constructor to avoid reverting the user's configuration.
         // I don't think that even reverting to the saved content should revert
@@ -120,8 +139,13 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         // TSV files, and I've been repeatedly bitten by a file I want to see
         // in a fixed font reverting to a proportional font each time I save.
         preferencesChanged();
-        CharSequence content = textArea.getTextBuffer();
-        
+        textArea.getTextBuffer().putProperty(PTextBuffer.INDENTATION_PROPERTY, guessedIndentation);
+    }
+    
+    /**
+     * Returns the indentation to use for 'content'. This can be slow for a large file, so it's called from the file loader.
+     */
+    private String guessIndentation(CharSequence content) {
         String defaultIndentation = Evergreen.getInstance().getPreferences().getString(EvergreenPreferences.DEFAULT_INDENTATION);
         String indentation = defaultIndentation;
         // IndentationGuesser assumes an environment where everyone's doing
@@ -133,7 +157,7 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         if (Parameters.getBoolean("indentation.allowGuessing", true)) {
             indentation = IndentationGuesser.guessIndentationFromFile(filename, content, defaultIndentation);
         }
-        textArea.getTextBuffer().putProperty(PTextBuffer.INDENTATION_PROPERTY, indentation);
+        return indentation;
     }
     
     public void preferencesChanged() {
@@ -200,6 +224,12 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
             message += "; " + StringUtilities.pluralize(matchCount, "match", "matches") + " for \"" + currentRegularExpression + "\"";
         }
         
+        // Explain why the editor might not be behaving as usual.
+        final String governorDescription = textArea.getGovernor().getDescription();
+        if (governorDescription != null) {
+            message += " (" + governorDescription + ")";
+        }
+        
         Evergreen.getInstance().showStatus(message);
     }
     
@@ -301,15 +331,17 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         textBecameDirty();
     }
     
-    private void highlightMergeConflicts() {
+    private static boolean hasMergeConflicts(CharSequence content) {
         // All merge conflict indications I've ever seen (and I've seen a few) contain this substring:
         final String MERGE_CONFLICT_INDICATOR = "<<<<<<<";
-        // And once we're convinced we're looking at a file with merge conflicts, we can accept a more lenient set of dividers.
+        return Pattern.compile(MERGE_CONFLICT_INDICATOR, Pattern.LITERAL).matcher(content).find();
+    }
+    
+    private void highlightMergeConflicts() {
+        // Once we're convinced we're looking at a file with merge conflicts, we can accept a more lenient set of dividers.
         // We also match anything after the divider until end of line, because some systems add commentary such as revision numbers and filenames.
         final String ALL_MERGE_CONFLICT_DIVIDERS_REGULAR_EXPRESSION = "(?m)^([<>|=]{7}( .*)?)";
-        if (Pattern.compile(MERGE_CONFLICT_INDICATOR).matcher(textArea.getTextBuffer()).find()) {
-            FindAction.INSTANCE.findInText(this, ALL_MERGE_CONFLICT_DIVIDERS_REGULAR_EXPRESSION);
-        }
+        FindAction.INSTANCE.findInText(this, ALL_MERGE_CONFLICT_DIVIDERS_REGULAR_EXPRESSION);
     }
     
     public void updateWatermarkAndTitleBar() {
@@ -331,6 +363,11 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
             }
             
             private void updateFileState() {
+                if (isLoaded == false) {
+                    // We can't compare our content with what's on disk yet.
+                    nonSeriousMessage = "(loading)";
+                    return;
+                }
                 if (Files.exists(path)) {
                     if (Files.isWritable(path) == false) {
                         nonSeriousMessage = "(read-only)";
@@ -347,17 +384,103 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         });
     }
     
+    /**
+     * Everything about a file's content that's expensive to work out, so we work it out away from the EDT.
+     */
+    private static class LoadedContent {
+        private FileTime lastModifiedTime;
+        private PTextBuffer.DecodedText text;
+        private FileType fileType;
+        private String indentation;
+        private boolean hasMergeConflicts;
+    }
+    
+    /**
+     * Reads and examines our file. Safe to call on any thread.
+     * If 'preview' is non-null, it's given a decoding of the start of a large file as soon as that's available.
+     */
+    private LoadedContent loadContent(boolean shouldGuessIndentation, Consumer<PTextBuffer.DecodedText> preview) throws IOException {
+        final LoadedContent result = new LoadedContent();
+        result.lastModifiedTime = Files.getLastModifiedTime(path);
+        final ByteBuffer byteBuffer = ByteBufferUtilities.readFile(path.toFile());
+        if (preview != null && byteBuffer.capacity() > PREVIEW_BYTE_COUNT) {
+            preview.accept(PTextBuffer.decode(byteBuffer, PREVIEW_BYTE_COUNT));
+        }
+        result.text = PTextBuffer.decode(byteBuffer, byteBuffer.capacity());
+        final CharSequence content = result.text.getCharSequence();
+        result.fileType = FileType.guessFileType(filename, content);
+        if (shouldGuessIndentation) {
+            result.indentation = guessIndentation(content);
+        }
+        result.hasMergeConflicts = hasMergeConflicts(content);
+        return result;
+    }
+    
+    /**
+     * Shows an empty, uneditable window straight away, and fills it in when the
+     * file loader has read the file. Anyone wanting to do something with the
+     * content should use 'whenLoaded'.
+     */
+    private void startLoading() {
+        textArea.setEditable(false);
+        updateWatermarkAndTitleBar();
+        FILE_LOADER_EXECUTOR.execute(() -> {
+            try {
+                final LoadedContent content = loadContent(true, (previewText) -> {
+                    GuiUtilities.invokeLater(() -> { showPreview(previewText); });
+                });
+                GuiUtilities.invokeLater(() -> { finishLoading(content); });
+            } catch (Throwable th) {
+                GuiUtilities.invokeLater(() -> { loadingFailed(th); });
+            }
+        });
+    }
+    
+    private void showPreview(PTextBuffer.DecodedText previewText) {
+        if (isLoaded || isClosed) {
+            return;
+        }
+        textArea.getTextBuffer().setDecodedText(previewText);
+    }
+    
+    private void finishLoading(LoadedContent content) {
+        if (isClosed) {
+            return;
+        }
+        applyContent(content);
+        textArea.setEditable(true);
+        initUserConfigurableDefaults(content.indentation);
+        isLoaded = true;
+        updateWatermarkAndTitleBar();
+        for (Runnable runnable : runWhenLoaded) {
+            runnable.run();
+        }
+        runWhenLoaded.clear();
+    }
+    
+    private void loadingFailed(Throwable th) {
+        Log.warn("Failed to load \"" + filename + "\"", th);
+        Evergreen.getInstance().showAlert("Couldn't open file \"" + FileUtilities.getUserFriendlyName(path) + "\"", th.getMessage());
+        if (isClosed == false) {
+            closeWindow();
+        }
+    }
+    
+    /**
+     * Runs 'runnable' on the EDT once our content has been loaded; immediately if it already has.
+     * Use this for anything that depends on the file's content, such as moving the caret or finding.
+     */
+    public void whenLoaded(Runnable runnable) {
+        if (isLoaded) {
+            runnable.run();
+        } else {
+            runWhenLoaded.add(runnable);
+        }
+    }
+    
     private void fillWithContent() {
         try {
-            lastModifiedTime = Files.getLastModifiedTime(path);
-            textArea.getTextBuffer().readFromFile(path.toFile());
-            
-            configureForGuessedFileType();
-            updateWatermarkAndTitleBar();
-            highlightMergeConflicts();
-            textArea.getTextBuffer().getUndoBuffer().resetUndoBuffer();
-            textArea.getTextBuffer().getUndoBuffer().setCurrentStateClean();
-            getTitleBar().repaint();
+            applyContent(loadContent(false, null));
         } catch (Throwable th) {
             Log.warn("in ContentLoader exception handler", th);
             Evergreen.getInstance().showAlert("Couldn't open file \"" + FileUtilities.getUserFriendlyName(path) + "\"", th.getMessage());
@@ -365,6 +488,20 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         }
     }
     
+    private void applyContent(LoadedContent content) {
+        lastModifiedTime = content.lastModifiedTime;
+        textArea.getTextBuffer().setDecodedText(content.text);
+        
+        configureForFileType(content.fileType);
+        updateWatermarkAndTitleBar();
+        if (content.hasMergeConflicts) {
+            highlightMergeConflicts();
+        }
+        textArea.getTextBuffer().getUndoBuffer().resetUndoBuffer();
+        textArea.getTextBuffer().getUndoBuffer().setCurrentStateClean();
+        getTitleBar().repaint();
+    }
+    
     private void configureForGuessedFileType() {
         configureForFileType(FileType.guessFileType(filename, textArea.getTextBuffer()));
     }
@@ -428,7 +565,7 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     }
     
     public boolean canRevertToSaved() {
-        return Files.exists(path) && (isDirty() || isOutOfDateWithRespectToDisk());
+        return isLoaded && Files.exists(path) && (isDirty() || isOutOfDateWithRespectToDisk());
     }
     
     public void revertToSaved() {
@@ -451,6 +588,8 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     
     @Override
     public void windowWillClose() {
+        isClosed = true;
+        runWhenLoaded.clear();
         if (findResultsUpdateTimer != null) {
             findResultsUpdateTimer.stop();
             findResultsUpdateTimer = null;
@@ -590,7 +729,8 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     }
     
     public void textBecameDirty() {
-        if (findResultsUpdateTimer != null) {
+        // For huge files, the find results are brought up to date when the user next finds instead (see findResultsUpdater).
+        if (findResultsUpdateTimer != null && textArea.getGovernor().shouldDeferFind() == false) {
             findResultsUpdateTimer.restart();
         }
         getTitleBar().repaint();
@@ -632,6 +772,10 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     }
     
     public void jumpToAddress(String address) {
+        if (isLoaded == false) {
+            whenLoaded(() -> { jumpToAddress(address); });
+            return;
+        }
         CharSequence chars = textArea.getTextBuffer();
         StringTokenizer st = new StringTokenizer(address, ":");
         if (st.hasMoreTokens() == false) {
@@ -703,6 +847,12 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     public boolean save() {
         Evergreen editor = Evergreen.getInstance();
         
+        if (isLoaded == false) {
+            // Saving now would replace the file with however much of it we've shown so far.
+            editor.showAlert("Can't save \"" + filename + "\"", "The file hasn't finished loading yet.");
+            return false;
+        }
+        
         PTextBuffer buffer = textArea.getTextBuffer();
         String charsetName = (String) buffer.getProperty(PTextBuffer.CHARSET_PROPERTY);
         if (buffer.attemptEncoding(charsetName) == false) {
@@ -0,0 +1,68 @@
+package e.edit;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for Evergreen's long-running background work.
+ * 
+ * See e.ptextarea.PFlightRecorderEvents for how to use these without cost when
+ * no recording is running.
+ */
+final class EvergreenFlightRecorderEvents {
+    private EvergreenFlightRecorderEvents() {
+    }
+    
+    @Name("e.edit.FindInFiles")
+    @Label("Find in Files")
+    @Description("A find-in-files search, from start to finish")
+    @Category({ "Evergreen" })
+    static final class FindInFiles extends Event {
+        @Label("Workspace")
+        String workspaceName;
+        
+        @Label("Pattern")
+        String regex;
+        
+        @Label("Filename Pattern")
+        String fileRegex;
+        
+        @Label("Files Searched")
+        int fileCount;
+        
+        @Label("Matching Files")
+        int matchingFileCount;
+    }
+    
+    @Name("e.edit.WorkspaceScan")
+    @Label("Workspace Scan")
+    @Description("A rescan of a workspace's files for Open Quickly and Find in Files")
+    @Category({ "Evergreen" })
+    static final class WorkspaceScan extends Event {
+        @Label("Workspace")
+        String workspaceName;
+        
+        @Label("Files")
+        int fileCount;
+    }
+    
+    @Name("e.edit.TagsUpdate")
+    @Label("Tags Update")
+    @Description("Rebuilding the tags tree for a file, from starting ctags to updating the tree on the EDT")
+    @Category({ "Evergreen" })
+    static final class TagsUpdate extends Event {
+        @Label("File")
+        String filename;
+        
+        @Label("File Type")
+        String fileType;
+        
+        @Label("Characters")
+        int charCount;
+        
+        @Label("Tags")
+        int tagCount;
+        
+        @Label("Successful")
+        boolean successful;
+    }
+}
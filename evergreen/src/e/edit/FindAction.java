@@ -72,10 +72,17 @@ public class FindAction extends ETextAction implements MinibufferUser {
     }
     
     public void valueChangedTo(String value) {
+        if (currentTextWindow.getTextArea().getGovernor().shouldDeferFind()) {
+            // Searching a huge file on every keystroke would make typing the pattern painful; wait for return.
+            return;
+        }
         findAllMatches(value);
     }
     
     public boolean wasAccepted(String value) {
+        if (currentTextWindow.getTextArea().getGovernor().shouldDeferFind()) {
+            findAllMatches(value);
+        }
         return true;
     }
     
@@ -70,9 +70,11 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             EWindow window = Evergreen.getInstance().openFile(file.toString());
             if (window instanceof ETextWindow) {
                 ETextWindow textWindow = (ETextWindow) window;
-                FindAction.INSTANCE.findInText(textWindow, PatternUtilities.toString(pattern));
                 final int lineNumber = Integer.parseInt(line.substring(1, line.indexOf(':', 1)));
-                textWindow.getTextArea().goToLine(lineNumber);
+                textWindow.whenLoaded(() -> {
+                    FindAction.INSTANCE.findInText(textWindow, PatternUtilities.toString(pattern));
+                    textWindow.getTextArea().goToLine(lineNumber);
+                });
             }
             
             // Now we've opened a new file or switched to an already-open one, that's where focus should go when we're dismissed.
@@ -146,8 +148,10 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             EWindow window = Evergreen.getInstance().openFile(workspace.prependRootDirectory(name));
             if (window instanceof ETextWindow && pattern != null) {
                 ETextWindow textWindow = (ETextWindow) window;
-                FindAction.INSTANCE.findInText(textWindow, PatternUtilities.toString(pattern));
-                textWindow.getTextArea().findNext();
+                textWindow.whenLoaded(() -> {
+                    FindAction.INSTANCE.findInText(textWindow, PatternUtilities.toString(pattern));
+                    textWindow.getTextArea().findNext();
+                });
             }
         }
         
@@ -215,6 +219,8 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             
             startTimeNs = System.nanoTime();
             endTimeNs = 0;
+            final EvergreenFlightRecorderEvents.FindInFiles event = new EvergreenFlightRecorderEvents.FindInFiles();
+            event.begin();
             
             try {
                 Pattern pattern = PatternUtilities.smartCaseCompile(regex);
@@ -232,6 +238,15 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
                 }
                 
                 endTimeNs = System.nanoTime();
+                event.end();
+                if (event.shouldCommit()) {
+                    event.workspaceName = workspace.getWorkspaceName();
+                    event.regex = regex;
+                    event.fileRegex = fileRegex;
+                    event.fileCount = totalFileCount;
+                    event.matchingFileCount = matchingFileCount.get();
+                    event.commit();
+                }
                 Log.warn("Search for \"" + regex + "\" in files matching \"" + fileRegex + "\" took " + TimeUtilities.nsToString(endTimeNs - startTimeNs) + ".");
             } catch (PatternSyntaxException ex) {
                 errorMessage = ex.getDescription();
@@ -59,7 +59,7 @@ public class HtmlTagger {
         };
         
         // FIXME: write CharSequenceReader? file a Sun bug?
-        final CharSequence buffer = textArea.getTextBuffer();
+        final CharSequence buffer = textArea.getTextBuffer().snapshot();
         final Reader reader = new StringReader(buffer.toString());
         try {
             KIT.read(reader, document, 0);
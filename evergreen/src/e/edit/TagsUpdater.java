@@ -149,6 +149,10 @@ public class TagsUpdater {
             // No point updating tags if we've never been shown yet.
             return;
         }
+        if (getTextArea().getGovernor().shouldScanTags() == false) {
+            // The file's too big for the tags to be worth the wait.
+            return;
+        }
         int serialNumber = ++latestSerialNumber;
         executorService.execute(new TreeModelBuilder(serialNumber));
     }
@@ -211,6 +215,9 @@ public class TagsUpdater {
         private MessageDigest md5;
         private boolean successful = true;
         private Stopwatch.Timer stopwatchTimer;
+        private EvergreenFlightRecorderEvents.TagsUpdate flightRecorderEvent;
+        private int tagCount;
+        private int charCount;
         private Timer progressTimer;
 
         private DefaultMutableTreeNode root;
@@ -235,6 +242,8 @@ public class TagsUpdater {
             }
 
             stopwatchTimer = tagsUpdaterStopwatch.start();
+            flightRecorderEvent = new EvergreenFlightRecorderEvents.TagsUpdate();
+            flightRecorderEvent.begin();
             root = new BranchNode("root");
             treeModel = new DefaultTreeModel(root);
             branches.clear();
@@ -252,6 +261,7 @@ public class TagsUpdater {
 
         public void tagFound(TagReader.Tag tag) {
             DefaultMutableTreeNode leaf = new DefaultMutableTreeNode(tag);
+            ++tagCount;
 
             if (tag.type.isContainer()) {
                 leaf = new BranchNode(tag);
@@ -311,20 +321,27 @@ public class TagsUpdater {
                     return;
                 }
 
-                if (textWindow.isDirty() || hasGTests()) {
+                // We're not on the EDT, so work from a snapshot rather than racing the user's typing.
+                final PTextBuffer buffer = getTextArea().getTextBuffer();
+                final PTextBuffer.Snapshot snapshot = buffer.snapshot();
+                charCount = snapshot.length();
+                final String charsetName = (String) buffer.getProperty(PTextBuffer.CHARSET_PROPERTY);
+                final boolean hasGTests = hasGTests(snapshot);
+                if (textWindow.isDirty() || hasGTests) {
                     temporaryFile = Files.createTempFile("e.edit.TagsUpdater-", "");
-                    if (hasGTests()) {
+                    if (hasGTests) {
                         // Rewrite gtests in a way that ctags can understand, corresponding to
                         // the actual symbols the macros expand to.
-                        String content = getTextArea().getTextBuffer().toString();
+                        String content = snapshot.toString();
                         content = content.replaceAll("TEST_F\\((.*),\\s*(.*)\\)", "void $1::$2()");
                         content = content.replaceAll("TEST\\((.*),\\s*(.*)\\)", "void $1_$2_Test()");
                         Files.write(temporaryFile, StandardCharsets.UTF_8.encode(content).array());
                     } else {
-                    getTextArea().getTextBuffer().writeTo(temporaryFile);
-                }
+                        try (Writer writer = Files.newBufferedWriter(temporaryFile, Charset.forName(charsetName))) {
+                            snapshot.writeTo(writer);
+                        }
+                    }
                 }
-                String charsetName = (String) getTextArea().getTextBuffer().getProperty(PTextBuffer.CHARSET_PROPERTY);
                 final Path inputFile = (temporaryFile != null) ? temporaryFile : FileUtilities.pathFrom(textWindow.getFilename());
                 TagReader tagReader = new TagReader(inputFile, fileType, charsetName, this);
             } catch (Exception ex) {
@@ -359,14 +376,25 @@ public class TagsUpdater {
             if (stopwatchTimer != null) {
                 stopwatchTimer.stop();
             }
+            if (flightRecorderEvent != null) {
+                flightRecorderEvent.end();
+                if (flightRecorderEvent.shouldCommit()) {
+                    flightRecorderEvent.filename = getTextWindow().getFilename();
+                    flightRecorderEvent.fileType = getTextWindow().getFileType().getName();
+                    flightRecorderEvent.charCount = charCount;
+                    flightRecorderEvent.tagCount = tagCount;
+                    flightRecorderEvent.successful = successful;
+                    flightRecorderEvent.commit();
+                }
+            }
         }
 
-        private boolean hasGTests() {
+        private boolean hasGTests(CharSequence content) {
             if (getTextWindow().getFileType() != FileType.C_PLUS_PLUS) {
                 return false;
             }
             // Match TEST(a, b) or TEST_F(a, b), but only at the start of a line.
-            return Pattern.matches("(?ms).*^TEST(_F)?\\(.*", getTextArea().getTextBuffer());
+            return Pattern.matches("(?ms).*^TEST(_F)?\\(.*", content);
         }
     }
 
@@ -27,6 +27,7 @@ public class WorkspaceFileList {
     
     public WorkspaceFileList(Workspace workspace) {
         this.workspace = workspace;
+        MemoryAccountant.register(this, "Workspace file list", (fileList) -> fileList.workspace.getWorkspaceName(), WorkspaceFileList::estimateMemoryUse);
         try (Stream<String> stream = Files.lines(workspace.getFileListCachePath())) {
             ArrayList<String> result = new ArrayList<>();
             stream.forEach(v -> result.add(v));
@@ -71,6 +72,18 @@ public class WorkspaceFileList {
         fileIgnorer = new FileIgnorer(workspace.getRootPath());
     }
     
+    private long estimateMemoryUse() {
+        final ArrayList<String> currentFileList = fileList;
+        if (currentFileList == null) {
+            return 0;
+        }
+        long result = MemoryAccountant.arrayBytes(currentFileList.size(), 4);
+        for (String filename : currentFileList) {
+            result += MemoryAccountant.stringBytes(filename.length());
+        }
+        return result;
+    }
+    
     public void ensureInFileList(String pathWithinWorkspace) {
         List<String> list = fileList;
         if (list != null && list.contains(pathWithinWorkspace) == false) {
@@ -225,6 +238,8 @@ public class WorkspaceFileList {
          */
         private ArrayList<String> scanWorkspaceForFiles() {
             final long t0 = System.nanoTime();
+            final EvergreenFlightRecorderEvents.WorkspaceScan event = new EvergreenFlightRecorderEvents.WorkspaceScan();
+            event.begin();
             
             // We should reload the file ignorer's configuration when we rescan.
             updateFileIgnorer();
@@ -259,6 +274,12 @@ public class WorkspaceFileList {
                 Evergreen.getInstance().showStatus("Scan of workspace \"" + workspace.getWorkspaceName() + "\" complete (" + result.size() + " files)");
                 
                 final long t1 = System.nanoTime();
+                event.end();
+                if (event.shouldCommit()) {
+                    event.workspaceName = workspace.getWorkspaceName();
+                    event.fileCount = result.size();
+                    event.commit();
+                }
                 Files.write(workspace.getFileListCachePath(), result, StandardCharsets.UTF_8);
                 final long t2 = System.nanoTime();
                 
@@ -23,16 +23,45 @@ import javax.swing.*;
  * This is useful in determining what code is causing your Java application's
  * GUI to be unresponsive.
  * 
+ * Hangs are rare, though, and what users actually notice is jank: events that
+ * take tens or hundreds of milliseconds. So we also record every dispatch's
+ * duration in a Metrics histogram, grouped by event class (or, for events
+ * posted by GuiUtilities.invokeLater, by the class of the Runnable). Any
+ * dispatch that takes longer than the frame budget may have its stack sampled
+ * by the checking thread, and the slowest few are kept, with their stacks,
+ * for the debug menu. The budget (in milliseconds) and the number of slow
+ * dispatches kept can be set with the system properties
+ * "e.debug.EventDispatchThreadHangMonitor.budgetMs" and
+ * "e.debug.EventDispatchThreadHangMonitor.worstCount".
+ * 
  * @author Elliott Hughes <enh@jessies.org>
  * 
  * Advice, bug fixes, and test cases from Alexander Potochkin and
  * Oleg Sukhodolsky.
  */
 public final class EventDispatchThreadHangMonitor extends EventQueue {
-    private static final EventQueue INSTANCE = new EventDispatchThreadHangMonitor();
+    // Dispatches longer than this are janky: they'll have caused the user to see dropped frames.
+    private static final long BUDGET_MS = Long.getLong("e.debug.EventDispatchThreadHangMonitor.budgetMs", 50);
+    private static final long BUDGET_NS = BUDGET_MS * 1000 * 1000;
+    
+    // How many of the slowest dispatches we keep.
+    private static final int WORST_COUNT = Integer.getInteger("e.debug.EventDispatchThreadHangMonitor.worstCount", 20);
     
     // Time to wait between checks that the event dispatch thread isn't hung.
-    private static final long CHECK_INTERVAL_MS = 100;
+    // Checking at the budget means we'll catch the stack of anything that takes twice as long.
+    private static final long CHECK_INTERVAL_MS = Math.max(1, Math.min(100, BUDGET_MS));
+    
+    private static final Metrics.Histogram ALL_DISPATCHES_HISTOGRAM = Metrics.histogram("EDT.dispatch");
+    
+    // Caches the histogram for each group of dispatches, so we don't build a name for every event.
+    private static final ClassValue<Metrics.Histogram> GROUP_HISTOGRAMS = new ClassValue<Metrics.Histogram>() {
+        @Override protected Metrics.Histogram computeValue(Class<?> groupClass) {
+            return Metrics.histogram("EDT.dispatch." + groupName(groupClass));
+        }
+    };
+    
+    // This has to come after the constants the constructor uses.
+    private static final EventQueue INSTANCE = new EventDispatchThreadHangMonitor();
     
     // Maximum time we won't warn about. This used to be 500 ms, but 1.5 on
     // late-2004 hardware isn't really up to it; there are too many parts of
@@ -52,6 +81,28 @@ public final class EventDispatchThreadHangMonitor extends EventQueue {
     // modal dialogs is a common cause for multiple outstanding dispatches.
     private LinkedList<DispatchInfo> dispatches = new LinkedList<>();
     
+    // The slowest dispatches since the last call to clearSlowDispatches, slowest first.
+    private static final ArrayList<SlowDispatch> slowDispatches = new ArrayList<>();
+    
+    private static class SlowDispatch {
+        private final String groupName;
+        private final long durationNs;
+        private final long timestampMs = System.currentTimeMillis();
+        private final StackTraceElement[] stack;
+        
+        private SlowDispatch(String groupName, long durationNs, StackTraceElement[] stack) {
+            this.groupName = groupName;
+            this.durationNs = durationNs;
+            this.stack = stack;
+        }
+        
+        @Override public String toString() {
+            final String when = TimeUtilities.toIsoString(new Date(timestampMs));
+            final String where = (stack != null) ? stackTraceToString(stack) : "\n    (finished before its stack could be sampled)";
+            return TimeUtilities.nsToString(durationNs) + " in " + groupName + " at " + when + ":" + where;
+        }
+    }
+    
     private static class DispatchInfo {
         // The last-dumped hung stack trace for this dispatch.
         private StackTraceElement[] lastReportedStack;
@@ -69,12 +120,25 @@ public final class EventDispatchThreadHangMonitor extends EventQueue {
         // The last time in nanoseconds at which we saw a dispatch on the above thread.
         private long lastDispatchTimeNs = System.nanoTime();
         
-        public DispatchInfo() {
-            // All initialization is done by the field initializers.
+        // The class whose histogram this dispatch is recorded in.
+        private final Class<?> groupClass;
+        
+        // A sample of the stack, taken once we've exceeded our budget.
+        private StackTraceElement[] sampledStack;
+        
+        public DispatchInfo(AWTEvent event) {
+            this.groupClass = groupClassOf(event);
         }
         
         public void checkForHang() {
-            if (TimeUtilities.nsToS(timeSoFar()) > UNREASONABLE_DISPATCH_DURATION_S) {
+            final long ns = timeSoFar();
+            if (sampledStack == null && ns > BUDGET_NS) {
+                final StackTraceElement[] currentStack = eventDispatchThread.getStackTrace();
+                if (isWaitingForNextEvent(currentStack) == false) {
+                    sampledStack = currentStack;
+                }
+            }
+            if (TimeUtilities.nsToS(ns) > UNREASONABLE_DISPATCH_DURATION_S) {
                 examineHang();
             }
         }
@@ -89,6 +153,9 @@ public final class EventDispatchThreadHangMonitor extends EventQueue {
         // This relies on JDK implementation details, so we might have to support a few possibilities.
         // If you're seeing spurious warnings whenever you have a dialog up, check that this hasn't changed.
         private boolean isWaitingForNextEvent(StackTraceElement[] currentStack) {
+            if (currentStack.length < 4) {
+                return false;
+            }
             return /* Java 10 */ (stackTraceElementIs(currentStack[0], "jdk.internal.misc.Unsafe", "park", true) && stackTraceElementIs(currentStack[3], "java.awt.EventQueue", "getNextEvent", false)) ||
                    /* Java 5 */ (stackTraceElementIs(currentStack[0], "java.lang.Object", "wait", true) && stackTraceElementIs(currentStack[1], "java.lang.Object", "wait", false) && stackTraceElementIs(currentStack[2], "java.awt.EventQueue", "getNextEvent", false));
         }
@@ -136,13 +203,85 @@ public final class EventDispatchThreadHangMonitor extends EventQueue {
             return (System.nanoTime() - lastDispatchTimeNs);
         }
         
-        public void dispose() {
+        public void dispose(boolean shouldReportSlowness) {
+            final long ns = timeSoFar();
+            ALL_DISPATCHES_HISTOGRAM.record(ns);
+            GROUP_HISTOGRAMS.get(groupClass).record(ns);
+            if (shouldReportSlowness && ns > BUDGET_NS) {
+                noteSlowDispatch(new SlowDispatch(groupName(groupClass), ns, sampledStack));
+            }
             if (lastReportedStack != null) {
-                Log.warn("(hang #" + hangNumber + ") event dispatch thread unstuck after " + TimeUtilities.nsToString(timeSoFar()) + ".");
+                Log.warn("(hang #" + hangNumber + ") event dispatch thread unstuck after " + TimeUtilities.nsToString(ns) + ".");
             }
         }
     }
     
+    /**
+     * Returns the class we group the given event's dispatches under. That's
+     * the event's class, unless it's an InvocationEvent whose source is the
+     * Runnable, as it is for GuiUtilities.invokeLater, in which case grouping
+     * by the Runnable's class is far more useful.
+     */
+    private static Class<?> groupClassOf(AWTEvent event) {
+        final Object source = event.getSource();
+        if (event instanceof InvocationEvent && source instanceof Runnable) {
+            return source.getClass();
+        }
+        return event.getClass();
+    }
+    
+    // Turns "e.edit.ETextWindow$$Lambda$412/0x0000000800c3b440" into "ETextWindow$$Lambda", say.
+    private static String groupName(Class<?> groupClass) {
+        String name = groupClass.getName();
+        final int lambdaIndex = name.indexOf("$$Lambda");
+        if (lambdaIndex != -1) {
+            name = name.substring(0, lambdaIndex + "$$Lambda".length());
+        }
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+    
+    private static void noteSlowDispatch(SlowDispatch slowDispatch) {
+        synchronized (slowDispatches) {
+            int index = 0;
+            while (index < slowDispatches.size() && slowDispatches.get(index).durationNs >= slowDispatch.durationNs) {
+                ++index;
+            }
+            if (index < WORST_COUNT) {
+                slowDispatches.add(index, slowDispatch);
+                if (slowDispatches.size() > WORST_COUNT) {
+                    slowDispatches.remove(slowDispatches.size() - 1);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns a description of the slowest dispatches (those over budget) since
+     * the last call to clearSlowDispatches, slowest first, with a sample of
+     * what the event dispatch thread was doing during each one.
+     */
+    public static String getSlowDispatchesAsString() {
+        final StringBuilder result = new StringBuilder();
+        result.append("Slowest dispatches over " + BUDGET_MS + " ms:\n");
+        synchronized (slowDispatches) {
+            for (SlowDispatch slowDispatch : slowDispatches) {
+                result.append("\n");
+                result.append(slowDispatch);
+                result.append("\n");
+            }
+            if (slowDispatches.isEmpty()) {
+                result.append("\n(None.)\n");
+            }
+        }
+        return result.toString();
+    }
+    
+    public static void clearSlowDispatches() {
+        synchronized (slowDispatches) {
+            slowDispatches.clear();
+        }
+    }
+    
     private EventDispatchThreadHangMonitor() {
         initTimer();
     }
@@ -189,7 +328,7 @@ public final class EventDispatchThreadHangMonitor extends EventQueue {
     @Override
     protected void dispatchEvent(AWTEvent event) {
         try {
-            preDispatchEvent();
+            preDispatchEvent(event);
             super.dispatchEvent(event);
         } catch (Error er) {
             // Make sure OutOfMemoryError in particular gets logged.
@@ -219,10 +358,10 @@ public final class EventDispatchThreadHangMonitor extends EventQueue {
     /**
      * Starts tracking a dispatch.
      */
-    private synchronized void preDispatchEvent() {
+    private synchronized void preDispatchEvent(AWTEvent event) {
         debug("pre");
         synchronized (dispatches) {
-            dispatches.addLast(new DispatchInfo());
+            dispatches.addLast(new DispatchInfo(event));
         }
     }
     
@@ -233,7 +372,8 @@ public final class EventDispatchThreadHangMonitor extends EventQueue {
         synchronized (dispatches) {
             // We've finished the most nested dispatch, and don't need it any longer.
             DispatchInfo justFinishedDispatch = dispatches.removeLast();
-            justFinishedDispatch.dispose();
+            // Start-up is slow, and probably the JVM vendor's fault, so we only record the slowest dispatches after that.
+            justFinishedDispatch.dispose(haveShownSomeComponent);
             
             // The other dispatches, which have been waiting, need to be credited extra time.
             // We do this rather simplistically by pretending they've just been redispatched.
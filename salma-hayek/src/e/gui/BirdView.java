@@ -207,6 +207,17 @@ public class BirdView extends JComponent {
         maybeRepaint();
     }
     
+    /**
+     * Forgets any matches in the first 'count' lines, and moves the rest up, for when the oldest lines have been discarded.
+     */
+    public synchronized void removeFirstLines(int count) {
+        if (matchingLines.isEmpty()) {
+            return;
+        }
+        matchingLines = matchingLines.get(count, Math.max(count, matchingLines.length()));
+        maybeRepaint();
+    }
+    
     public boolean getValueIsAdjusting() {
         return isAdjusting;
     }
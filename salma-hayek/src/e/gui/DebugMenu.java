@@ -1,5 +1,6 @@
 package e.gui;
 
+import e.debug.*;
 import e.ptextarea.*;
 import e.util.*;
 import java.awt.*;
@@ -25,7 +26,8 @@ public class DebugMenu {
         menu.addSeparator();
         menu.add(new ShowFramesAction());
         menu.add(new ShowSwingTimersAction());
-        menu.add(new ShowStopwatchesAction());
+        menu.add(new ShowMetricsAction());
+        menu.add(new ShowSlowEventsAction());
         menu.addSeparator();
         menu.add(new KeyEventTester());
         menu.add(new MouseEventTester());
@@ -235,14 +237,61 @@ public class DebugMenu {
         }
     }
 
-    private static class ShowStopwatchesAction extends AbstractAction {
-        public ShowStopwatchesAction() {
-            GuiUtilities.configureAction(this, "Show Stop_watches", null);
+    private static class ShowMetricsAction extends AbstractAction {
+        public ShowMetricsAction() {
+            GuiUtilities.configureAction(this, "Show _Metrics", null);
         }
 
         public void actionPerformed(ActionEvent e) {
-            // FIXME: really, we want a table. It would be good to be able to reset a stopwatch too.
-            JFrameUtilities.showTextWindow(null, Log.getApplicationName() + " Stopwatches", Stopwatch.toStringAll());
+            // FIXME: really, we want a table.
+            final PTextArea textArea = JFrameUtilities.makeTextArea("");
+
+            JButton refreshButton = new JButton("Refresh");
+            refreshButton.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    textArea.setText(Metrics.toStringAll(null));
+                }
+            });
+            refreshButton.doClick(0);
+
+            // Resetting lets the user measure just the thing they're about to do.
+            JButton resetButton = new JButton("Reset");
+            resetButton.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    Metrics.resetAll();
+                    textArea.setText(Metrics.toStringAll(null));
+                }
+            });
+
+            showFrameWithButtonPanel(Log.getApplicationName() + " Metrics", makeButtonPanel(resetButton, refreshButton), new JScrollPane(textArea), new Dimension(900, 400));
+        }
+    }
+
+    private static class ShowSlowEventsAction extends AbstractAction {
+        public ShowSlowEventsAction() {
+            GuiUtilities.configureAction(this, "Show S_low Events", null);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            final PTextArea textArea = JFrameUtilities.makeTextArea("");
+
+            JButton refreshButton = new JButton("Refresh");
+            refreshButton.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    textArea.setText(EventDispatchThreadHangMonitor.getSlowDispatchesAsString());
+                }
+            });
+            refreshButton.doClick(0);
+
+            JButton clearButton = new JButton("Clear");
+            clearButton.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    EventDispatchThreadHangMonitor.clearSlowDispatches();
+                    textArea.setText(EventDispatchThreadHangMonitor.getSlowDispatchesAsString());
+                }
+            });
+
+            showFrameWithButtonPanel(Log.getApplicationName() + " Slow Events", makeButtonPanel(clearButton, refreshButton), new JScrollPane(textArea), new Dimension(900, 400));
         }
     }
 
@@ -272,6 +321,9 @@ public class DebugMenu {
     }
 
     private static class HeapViewAction extends AbstractAction {
+        // The breakdown walks every line of every file and terminal, so we don't update it as often as the graph.
+        private static final int BREAKDOWN_INTERVAL_MS = 5000;
+
         public HeapViewAction() {
             GuiUtilities.configureAction(this, "Show _Heap Usage", null);
         }
@@ -306,8 +358,25 @@ public class DebugMenu {
             ELabel currentHeapUsageLabel = new ELabel();
             JPanel buttonPanel = makeButtonPanel(gcButton, histogramButton, Box.createHorizontalStrut(10), currentHeapUsageLabel);
 
-            JFrame frame = showFrameWithButtonPanel(Log.getApplicationName() + " Heap Usage", buttonPanel, new HeapView(currentHeapUsageLabel), GuiUtilities.scaleDimensionForText(400, 200));
-            frame.setResizable(false);
+            // Below the graph, show which of our data structures the memory's going on.
+            final PTextArea breakdownTextArea = JFrameUtilities.makeTextArea(MemoryAccountant.toStringAll());
+            HeapView heapView = new HeapView(currentHeapUsageLabel);
+            heapView.setPreferredSize(GuiUtilities.scaleDimensionForText(400, 100));
+            JPanel content = new JPanel(new BorderLayout());
+            content.add(heapView, BorderLayout.NORTH);
+            content.add(new JScrollPane(breakdownTextArea), BorderLayout.CENTER);
+
+            final JFrame frame = showFrameWithButtonPanel(Log.getApplicationName() + " Heap Usage", buttonPanel, content, GuiUtilities.scaleDimensionForText(500, 400));
+            final Timer breakdownTimer = new Timer(BREAKDOWN_INTERVAL_MS, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    if (frame.isDisplayable() == false) {
+                        ((Timer) e.getSource()).stop();
+                        return;
+                    }
+                    breakdownTextArea.setText(MemoryAccountant.toStringAll());
+                }
+            });
+            breakdownTimer.start();
         }
 
         public String getHeapHistogram() {
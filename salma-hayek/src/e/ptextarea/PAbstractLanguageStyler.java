@@ -2,6 +2,7 @@ package e.ptextarea;
 
 import java.util.*;
 import e.util.*;
+import org.jessies.test.*;
 
 /**
  * A PAbstractLanguageStyler does the main work for most of the various
@@ -300,11 +301,51 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         }
         
         if (hasNewline(event.getCharacters()) || startsOrEndsMultiLineComment) {
-            lastGoodLine = Math.min(lastGoodLine, textArea.getLineList().getLineIndex(event.getOffset()));
+            final int lineIndex = textArea.getLineList().getLineIndex(event.getOffset());
+            if (updateCommentCacheIfLaterLinesAreUnaffected(lineIndex, StringUtilities.count(event.getCharacters(), '\n'), event.isInsert())) {
+                // The text area repaints the lines that changed, and the lines after them look just as they did.
+                return;
+            }
+            lastGoodLine = Math.min(lastGoodLine, lineIndex);
             textArea.repaintFromLine(textArea.getSplitLineIndex(lastGoodLine));
         }
     }
     
+    /**
+     * Checks whether an edit starting on line 'lineIndex' that inserted or
+     * removed 'newlineCount' newlines left the line after it starting in the same
+     * comment state as before. If so, nothing after the edit needs restyling, so
+     * we just move our cached comment states to the lines' new indexes and
+     * return true. Otherwise we return false, having changed nothing.
+     */
+    private boolean updateCommentCacheIfLaterLinesAreUnaffected(int lineIndex, int newlineCount, boolean isInsert) {
+        final int oldLineCount = isInsert ? 1 : 1 + newlineCount;
+        final int newLineCount = isInsert ? 1 + newlineCount : 1;
+        if (lastGoodLine < lineIndex + oldLineCount) {
+            // We never knew how the following line started, so there's nothing to compare against.
+            return false;
+        }
+        
+        PLineList lineList = textArea.getLineList();
+        BitSet newCommentCache = commentCache.get(0, lineIndex + 1);
+        boolean comment = commentCache.get(lineIndex);
+        for (int i = lineIndex; i < lineIndex + newLineCount; ++i) {
+            comment = lineEndsCommented(lineList.getLineContents(i).toString(), comment);
+            newCommentCache.set(i + 1, comment);
+        }
+        if (comment != commentCache.get(lineIndex + oldLineCount)) {
+            return false;
+        }
+        
+        final int lineCountChange = newLineCount - oldLineCount;
+        for (int i = commentCache.nextSetBit(lineIndex + oldLineCount + 1); i != -1 && i <= lastGoodLine; i = commentCache.nextSetBit(i + 1)) {
+            newCommentCache.set(i + lineCountChange);
+        }
+        commentCache = newCommentCache;
+        lastGoodLine += lineCountChange;
+        return true;
+    }
+    
     private boolean hasNewline(CharSequence text) {
         return StringUtilities.contains(text, '\n');
     }
@@ -312,4 +353,21 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
     private boolean hasCommentMarker(String text) {
         return text.contains(multiLineCommentStart()) || text.contains(multiLineCommentEnd());
     }
+    
+    // Each iteration styles one line of C-like source, without the help of the text area's segment cache or any style applicators.
+    // We forget our comment cache every time we've been through the whole file, so the cost of rebuilding it is included.
+    @Benchmark private static Object benchmarkCStyling(int iterationCount) {
+        final PTextArea textArea = PTextArea.makeBenchmarkTextArea(5000);
+        final PAbstractLanguageStyler styler = new PCTextStyler(textArea);
+        final int lineCount = textArea.getLineCount();
+        int total = 0;
+        for (int i = 0; i < iterationCount; ++i) {
+            final int lineIndex = i % lineCount;
+            if (lineIndex == 0) {
+                styler.initCommentCache();
+            }
+            total += styler.getTextSegments(lineIndex).size();
+        }
+        return total;
+    }
 }
@@ -2,6 +2,7 @@ package e.ptextarea;
 
 import e.util.*;
 import java.util.*;
+import org.jessies.test.*;
 
 /**
  * Contains all the PAnchor instances related to a given text buffer.
@@ -138,6 +139,20 @@ class PAnchorSet implements PTextListener {
         }
     }
     
+    // Each iteration inserts a character in front of 10,000 anchors (which is a lot of find matches, but not unreasonably many).
+    @Benchmark private static Object benchmarkAnchorShifting(int iterationCount) {
+        final PTextBuffer buffer = new PTextBuffer();
+        buffer.replace(() -> {}, 0, 0, PTextBuffer.makeSampleSource(10000), () -> {});
+        final int step = buffer.length() / 10000;
+        for (int i = 1; i <= 10000; ++i) {
+            buffer.getAnchorSet().add(new UnownedAnchor(i * step));
+        }
+        for (int i = 0; i < iterationCount; ++i) {
+            buffer.replace(() -> {}, 0, 0, "x", () -> {});
+        }
+        return buffer;
+    }
+    
     public synchronized void textCompletelyReplaced(PTextEvent event) {
         ArrayList<PAnchor> oldAnchors = anchors;
         anchors = new ArrayList<PAnchor>();
@@ -65,17 +65,19 @@ public class PBracketUtilities {
      * Returns the offset of the matching bracket, or -1 if there's no match.
      * We look for a match if 'offset' is after an opening bracket, or before a
      * closing bracket. An exception is thrown if we're not next to a bracket.
+     * We give up (returning -1) if the text area's governor says we've looked far enough.
      */
     public static int findMatchingBracketInSameStyle(PTextArea textArea, int offset) {
+        final int limit = textArea.getGovernor().getBracketSearchLimit();
         if (afterOpenBracket(textArea.getTextBuffer(), offset)) {
             Iterator<PLineSegment> segments = textArea.getLogicalSegmentIterator(offset - 1);
             segments = new PSameStyleSegmentIterator(segments);
-            return findMatchingBracket(new PSegmentCharIterator(segments, offset - 1, true), true);
+            return findMatchingBracket(new PSegmentCharIterator(segments, offset - 1, true), true, limit);
             
         } else if (beforeCloseBracket(textArea.getTextBuffer(), offset)) {
             Iterator<PLineSegment> segments = new PReverseSegmentIterator(textArea, offset);
             segments = new PSameStyleSegmentIterator(segments);
-            return findMatchingBracket(new PSegmentCharIterator(segments, offset, false), false);
+            return findMatchingBracket(new PSegmentCharIterator(segments, offset, false), false, limit);
             
         } else {
             throw new IllegalArgumentException("No bracket at offset " + offset);
@@ -91,17 +93,18 @@ public class PBracketUtilities {
     }
     
     /**
-     * Returns the offset of the matching bracket, scanning in the given
-     * direction, or -1.
+     * Returns the offset of the matching bracket, scanning at most 'limit'
+     * characters in the given direction, or -1.
      */
-    private static int findMatchingBracket(PCharIterator chars, boolean isForward) {
+    private static int findMatchingBracket(PCharIterator chars, boolean isForward, int limit) {
         char bracket = chars.next();
         if (isBracket(bracket) == false) {
             return -1;
         }
         Stack<Character> bracketStack = new Stack<>();
         bracketStack.push(bracket);
-        while (chars.hasNext()) {
+        int scannedCount = 0;
+        while (chars.hasNext() && ++scannedCount <= limit) {
             char ch = chars.next();
             if (isAllowedCharInBracket(ch, bracket)) {
                 if (isNestableBracketInBracket(ch, bracket)) {
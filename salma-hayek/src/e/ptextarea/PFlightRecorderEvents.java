@@ -0,0 +1,105 @@
+package e.ptextarea;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for PTextArea and PTextBuffer's expensive operations.
+ * 
+ * Use them like this, so that nothing but the (escape-analyzed) allocation
+ * happens when no recording is running:
+ * 
+ *   final PFlightRecorderEvents.Paint event = new PFlightRecorderEvents.Paint();
+ *   event.begin();
+ *   // Paint...
+ *   event.end();
+ *   if (event.shouldCommit()) {
+ *       event.lineCount = ...;
+ *       event.commit();
+ *   }
+ * 
+ * Per-line events have a default threshold, so a recording with the default
+ * settings only shows the lines that were slow.
+ */
+final class PFlightRecorderEvents {
+    private PFlightRecorderEvents() {
+    }
+    
+    @Name("e.ptextarea.Paint")
+    @Label("Text Area Paint")
+    @Category({ "salma-hayek", "Text Area" })
+    static final class Paint extends Event {
+        @Label("File Type")
+        String fileType;
+        
+        @Label("First Line")
+        int firstLine;
+        
+        @Label("Line Count")
+        int lineCount;
+    }
+    
+    @Name("e.ptextarea.Styling")
+    @Label("Text Area Line Styling")
+    @Description("Styling of a single line, including style applicators such as URL highlighting")
+    @Category({ "salma-hayek", "Text Area" })
+    @Threshold("1 ms")
+    static final class Styling extends Event {
+        @Label("File Type")
+        String fileType;
+        
+        @Label("Line")
+        int lineIndex;
+        
+        @Label("Line Length")
+        int lineLength;
+        
+        @Label("Segment Count")
+        int segmentCount;
+    }
+    
+    @Name("e.ptextarea.Edit")
+    @Label("Text Buffer Edit")
+    @Description("A replacement in a text buffer, including notifying its listeners")
+    @Category({ "salma-hayek", "Text Buffer" })
+    static final class Edit extends Event {
+        @Label("Offset")
+        int offset;
+        
+        @Label("Removed Characters")
+        int removedCharCount;
+        
+        @Label("Inserted Characters")
+        int insertedCharCount;
+        
+        @Label("Buffer Length")
+        int bufferLength;
+    }
+    
+    @Name("e.ptextarea.Decode")
+    @Label("Text Buffer Decode")
+    @Description("Decoding a file's bytes, usually off the EDT")
+    @Category({ "salma-hayek", "Text Buffer" })
+    static final class Decode extends Event {
+        @Label("Bytes")
+        @DataAmount
+        long byteCount;
+        
+        @Label("Characters")
+        int charCount;
+        
+        @Label("Charset")
+        String charsetName;
+    }
+    
+    @Name("e.ptextarea.Load")
+    @Label("Text Buffer Load")
+    @Description("Replacing a text buffer's contents with decoded text, including notifying its listeners")
+    @Category({ "salma-hayek", "Text Buffer" })
+    static final class Load extends Event {
+        @Label("Characters")
+        int charCount;
+        
+        @Label("Lines")
+        int lineCount;
+    }
+}
@@ -1,5 +1,6 @@
 package e.ptextarea;
 
+import e.util.*;
 import java.util.*;
 
 public abstract class PGenericTextStyler implements PTextStyler {
@@ -24,11 +25,11 @@ public abstract class PGenericTextStyler implements PTextStyler {
         while ((lastGoodLine + 1) < line) {
             // Need to bring the lineEndContexts up to the current line.
             TextSegmentListBuilder builder = new TextSegmentListBuilder(line);  // We will discard this.
-            lineEndContexts.put(lastGoodLine + 1, processLine(lastGoodLine + 1, builder));
+            lineEndContexts.put(lastGoodLine + 1, processLine(lastGoodLine + 1, lineEndContexts.get(lastGoodLine), builder));
             lastGoodLine++;
         }
         TextSegmentListBuilder builder = new TextSegmentListBuilder(line);
-        lineEndContexts.put(line, processLine(line, builder));
+        lineEndContexts.put(line, processLine(line, lineEndContexts.get(line - 1), builder));
         lastGoodLine = Math.max(lastGoodLine, line);
         return builder.getSegmentList();
     }
@@ -79,19 +80,21 @@ public abstract class PGenericTextStyler implements PTextStyler {
         if (line >= lastGoodLine) {
             return;
         }
-        // If any newlines were added or removed, then just invalidate anything after here.
-        // It's easier, and is costly only in less-common cases.
-        if (containsNewline(event.getCharacters())) {
-            setLastGoodLine(line - 1);
-            // If newlines were added or removed, then the text area will be repainting everything
-            // from this point on anyway, so there's no point at all in triggering a repaint from here.
+        final int newlineCount = StringUtilities.count(event.getCharacters(), '\n');
+        if (newlineCount > 0) {
+            // The text area repaints the lines that changed, and moves the lines after them.
+            // They only need restyling if the edit changed the context they start in.
+            if (updateLineEndContextsIfLaterLinesAreUnaffected(line, newlineCount, event.isInsert()) == false) {
+                setLastGoodLine(line - 1);
+                textArea.repaintFromLine(textArea.getSplitLineIndex(line - 1));
+            }
             return;
         }
         // The insert or remove was purely within this line. Check whether the end style
         // has changed or not. If it has, then invalidate everything from this point and
         // force a repaint.
         TextSegmentListBuilder builder = new TextSegmentListBuilder(line);
-        PSequenceMatcher.RegionEnd regionEnd = processLine(line, builder);
+        PSequenceMatcher.RegionEnd regionEnd = processLine(line, lineEndContexts.get(line - 1), builder);
         if (areEqual(regionEnd, lineEndContexts.get(line))) {
             return; // Nothing to do - all is as it was.
         }
@@ -99,6 +102,45 @@ public abstract class PGenericTextStyler implements PTextStyler {
         textArea.repaintFromLine(textArea.getSplitLineIndex(line - 1));
     }
     
+    /**
+     * Checks whether an edit starting on line 'line' that inserted or removed
+     * 'newlineCount' newlines left the line after it starting in the same
+     * context as before. If so, nothing after the edit needs restyling, so we
+     * just move our cached contexts to the lines' new indexes and return true.
+     * Otherwise we return false, having changed nothing.
+     */
+    private boolean updateLineEndContextsIfLaterLinesAreUnaffected(int line, int newlineCount, boolean isInsert) {
+        final int oldLineCount = isInsert ? 1 : 1 + newlineCount;
+        final int newLineCount = isInsert ? 1 + newlineCount : 1;
+        final int oldLastLine = line + oldLineCount - 1;
+        if (oldLastLine > lastGoodLine || lineEndContexts.containsKey(oldLastLine) == false) {
+            // We never knew how the following line started, so there's nothing to compare against.
+            return false;
+        }
+        
+        PSequenceMatcher.RegionEnd[] newContexts = new PSequenceMatcher.RegionEnd[newLineCount];
+        PSequenceMatcher.RegionEnd regionEnd = lineEndContexts.get(line - 1);
+        for (int i = 0; i < newLineCount; ++i) {
+            regionEnd = processLine(line + i, regionEnd, new TextSegmentListBuilder(line + i));
+            newContexts[i] = regionEnd;
+        }
+        if (areEqual(regionEnd, lineEndContexts.get(oldLastLine)) == false) {
+            return false;
+        }
+        
+        final int lineCountChange = newLineCount - oldLineCount;
+        SortedMap<Integer, PSequenceMatcher.RegionEnd> laterContexts = new TreeMap<>(lineEndContexts.tailMap(oldLastLine + 1));
+        lineEndContexts.tailMap(line).clear();
+        for (int i = 0; i < newLineCount; ++i) {
+            lineEndContexts.put(line + i, newContexts[i]);
+        }
+        for (Map.Entry<Integer, PSequenceMatcher.RegionEnd> entry : laterContexts.entrySet()) {
+            lineEndContexts.put(entry.getKey() + lineCountChange, entry.getValue());
+        }
+        lastGoodLine += lineCountChange;
+        return true;
+    }
+    
     private void setLastGoodLine(int lastGoodLine) {
         this.lastGoodLine = lastGoodLine;
         while (!lineEndContexts.isEmpty()) {
@@ -110,15 +152,6 @@ public abstract class PGenericTextStyler implements PTextStyler {
         }
     }
     
-    private boolean containsNewline(CharSequence seq) {
-        for (int i = 0; i < seq.length(); i++) {
-            if (seq.charAt(i) == '\n') {
-                return true;
-            }
-        }
-        return false;
-    }
-    
     /**
      * This is parameterized so that we can recognize the GNU Make keyword "filter-out", and various strange GNU Assembler directives.
      * The value of the first capturing group will be tested to ensure that it's a member of the styler's keyword set.
@@ -127,9 +160,12 @@ public abstract class PGenericTextStyler implements PTextStyler {
         return "\\b(\\w+)\\b";
     }
     
-    private PSequenceMatcher.RegionEnd processLine(int line, TextSegmentListBuilder builder) {
+    /**
+     * Styles line 'line', which starts in the context 'endFinder' left by the line before.
+     * Returns the context the line ends in.
+     */
+    private PSequenceMatcher.RegionEnd processLine(int line, PSequenceMatcher.RegionEnd endFinder, TextSegmentListBuilder builder) {
         String str = textArea.getLineList().getLineContents(line).toString();
-        PSequenceMatcher.RegionEnd endFinder = lineEndContexts.get(line - 1);
         int index = 0;
         if (endFinder != null) {
             index = endFinder.getEndIndexForLine(str);
@@ -2,6 +2,7 @@ package e.ptextarea;
 
 import java.util.*;
 import e.util.*;
+import org.jessies.test.*;
 
 /**
  * A PLineList is an abstraction on top of a PTextBuffer.
@@ -95,6 +96,14 @@ public class PLineList implements PTextListener {
         return minLine;
     }
     
+    /**
+     * Returns an estimate of the memory used by our line records, for MemoryAccountant.
+     */
+    public long estimateMemoryUse() {
+        final int lineCount = lines.size();
+        return MemoryAccountant.arrayBytes(lineCount, 4) + lineCount * MemoryAccountant.objectBytes(3);
+    }
+    
     /**
      * Returns the number of lines within this model.
      */
@@ -255,6 +264,32 @@ public class PLineList implements PTextListener {
         return getLine(lineIndex).width;
     }
     
+    // Each iteration finds the line containing a random character of a 100,000-line file.
+    @Benchmark private static Object benchmarkLineLookup(int iterationCount) {
+        final PLineList lines = new PLineList(new PTextBuffer());
+        lines.getTextBuffer().replace(() -> {}, 0, 0, PTextBuffer.makeSampleSource(100000), () -> {});
+        final int length = lines.getTextBuffer().length();
+        final Random random = new Random(0);
+        int total = 0;
+        for (int i = 0; i < iterationCount; ++i) {
+            total += lines.getLineIndex(random.nextInt(length));
+        }
+        return total;
+    }
+    
+    // Each iteration edits the first line and then asks about the last, so all the start offsets need fixing up.
+    @Benchmark private static Object benchmarkLineLookupAfterEdit(int iterationCount) {
+        final PLineList lines = new PLineList(new PTextBuffer());
+        final PTextBuffer buffer = lines.getTextBuffer();
+        buffer.replace(() -> {}, 0, 0, PTextBuffer.makeSampleSource(100000), () -> {});
+        int total = 0;
+        for (int i = 0; i < iterationCount; ++i) {
+            buffer.replace(() -> {}, 0, 0, "x", () -> {});
+            total += lines.getLine(lines.size() - 1).getStart();
+        }
+        return total;
+    }
+    
     /**
      * A PLineList.Line holds information about the location and length of a particular line of
      * text.  It also contains information about how wide this line is when its text is rendered.
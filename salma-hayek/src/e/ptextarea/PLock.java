@@ -2,6 +2,7 @@ package e.ptextarea;
 
 import java.util.*;
 import e.util.*;
+import org.jessies.test.*;
 
 /**
  * A PLock manages the locking for a PTextArea, although it could likely be used for any
@@ -25,7 +26,7 @@ import e.util.*;
  *         area.getLock().relinquishReadLock();
  *     }
  * }
- *
+ * 
  * Locks are reference counted, so it is safe to get and relinquish a lock in a nested fashion.
  * 
  * FIXME: switch to java.util.concurrent.ReentrantReadWriteLock?
@@ -34,6 +35,10 @@ import e.util.*;
  */
 
 public class PLock {
+    // Every wait, however short, so we can see how often readers and writers get in each other's way. Only waits of 0.1s or more are logged.
+    private static final Metrics.Histogram readWaitHistogram = Metrics.histogram("PLock.readWait");
+    private static final Metrics.Histogram writeWaitHistogram = Metrics.histogram("PLock.writeWait");
+    
     private Map<Thread, Integer> readLocks = new HashMap<>();
     private Thread writeLock = null;
     private int writeLockCount = 0;
@@ -50,7 +55,7 @@ public class PLock {
                 Log.warn("Interrupted while attempting to get read lock.", ex);
             }
         }
-        report(gotStuck, startTimeNs, "read");
+        report(gotStuck, startTimeNs, "read", readWaitHistogram);
         if (readLocks.containsKey(currentThread)) {
             readLocks.put(currentThread, 1 + readLocks.get(currentThread));
         } else {
@@ -90,7 +95,7 @@ public class PLock {
                 Log.warn("Interrupted while attempting to get write lock.", ex);
             }
         }
-        report(gotStuck, startTimeNs, "write");
+        report(gotStuck, startTimeNs, "write", writeWaitHistogram);
         writeLock = currentThread;
         writeLockCount++;
     }
@@ -125,11 +130,12 @@ public class PLock {
         }
     }
     
-    private void report(boolean gotStuck, long startTimeNs, String type) {
+    private void report(boolean gotStuck, long startTimeNs, String type, Metrics.Histogram waitHistogram) {
         if (gotStuck == false) {
             return;
         }
         final long endTimeNs = System.nanoTime();
+        waitHistogram.record(endTimeNs - startTimeNs);
         final double duration = TimeUtilities.nsToS(endTimeNs - startTimeNs);
         if (duration < 0.1) {
             return;
@@ -146,4 +152,22 @@ public class PLock {
         }
         Log.warn("End of PLock dump.");
     }
+    
+    @Benchmark private static Object benchmarkUncontendedReadLock(int iterationCount) {
+        final PLock lock = new PLock();
+        for (int i = 0; i < iterationCount; ++i) {
+            lock.getReadLock();
+            lock.relinquishReadLock();
+        }
+        return lock;
+    }
+    
+    @Benchmark private static Object benchmarkUncontendedWriteLock(int iterationCount) {
+        final PLock lock = new PLock();
+        for (int i = 0; i < iterationCount; ++i) {
+            lock.getWriteLock();
+            lock.relinquishWriteLock();
+        }
+        return lock;
+    }
 }
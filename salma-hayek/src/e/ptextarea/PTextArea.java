@@ -9,6 +9,7 @@ import java.util.regex.*;
 import javax.swing.*;
 import e.gui.*;
 import e.util.*;
+import org.jessies.test.*;
 
 /**
  * A PTextArea is a replacement for JTextArea.
@@ -44,6 +45,8 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     
     private PHighlightManager highlights = new PHighlightManager();
     private PTextStyler textStyler = new PPlainTextStyler(this);
+    // Used instead of textStyler for lines the governor says we can't afford to style.
+    private final PTextStyler plainTextStyler = new PPlainTextStyler(this);
     private List<StyleApplicator> styleApplicators;
     private TabStyleApplicator tabStyleApplicator = new TabStyleApplicator(this);
     
@@ -53,6 +56,8 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     private ArrayList<PCaretListener> caretListeners = new ArrayList<>();
     private ArrayList<PFindListener> findListeners = new ArrayList<>();
     private TreeMap<Integer, List<PLineSegment>> segmentCache = new TreeMap<>();
+    private final PTextAreaBackingStore backingStore = new PTextAreaBackingStore(this);
+    private final PTextAreaGovernor governor = new PTextAreaGovernor(this);
     
     private UnaryFunctor<String, String> pastedTextReformatter = new UnaryFunctor<String, String>() {
         public String evaluate(String s) {
@@ -89,6 +94,8 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         this.indenter = new PNoOpIndenter(this);
         
         initStyleApplicators();
+        initMemoryAccounting();
+        lines.addLineListener(governor);
         lines.addLineListener(this);
         revalidateLineWrappings();
         
@@ -106,10 +113,37 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         initPopupMenu();
     }
     
+    private void initMemoryAccounting() {
+        MemoryAccountant.register(this, "Text", PTextArea::describeForMemoryAccountant, (textArea) -> textArea.getTextBuffer().estimateMemoryUse());
+        MemoryAccountant.register(this, "Undo history", PTextArea::describeForMemoryAccountant, (textArea) -> textArea.getTextBuffer().estimateUndoMemoryUse());
+        MemoryAccountant.register(this, "Line list", PTextArea::describeForMemoryAccountant, (textArea) -> textArea.lines.estimateMemoryUse());
+        MemoryAccountant.register(this, "Line segment cache", PTextArea::describeForMemoryAccountant, PTextArea::estimateSegmentCacheMemoryUse);
+        MemoryAccountant.register(this, "Highlights", PTextArea::describeForMemoryAccountant, (textArea) -> textArea.highlights.estimateMemoryUse());
+    }
+    
+    // Applications can name a text area (after the file it's showing, say) with setName.
+    private static String describeForMemoryAccountant(PTextArea textArea) {
+        final String name = textArea.getName();
+        return (name != null) ? name : ("unnamed " + textArea.getFileType().getName() + " text area");
+    }
+    
+    private long estimateSegmentCacheMemoryUse() {
+        synchronized (segmentCache) {
+            long segmentCount = 0;
+            for (List<PLineSegment> segments : segmentCache.values()) {
+                segmentCount += segments.size();
+            }
+            // Each cached line has a TreeMap entry, an Integer key, and an ArrayList.
+            final long bytesPerLine = MemoryAccountant.objectBytes(6) + MemoryAccountant.objectBytes(1) + MemoryAccountant.objectBytes(2) + MemoryAccountant.arrayBytes(10, 4);
+            return segmentCache.size() * bytesPerLine + segmentCount * MemoryAccountant.objectBytes(5);
+        }
+    }
+    
     private void initListeners() {
         this.mouseHandler = new PMouseHandler(this);
         addComponentListener(new Rewrapper(this));
         addCaretListener(new PMatchingBracketHighlighter());
+        governor.addChangeListener((e) -> { governorLevelChanged(); });
         addKeyListener(new PKeyHandler(this, mouseHandler));
         addMouseListener(mouseHandler);
         addMouseMotionListener(mouseHandler);
@@ -540,6 +574,22 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         spellingChecker.checkSpelling();
     }
     
+    /**
+     * Returns the governor that decides which of our more expensive features
+     * can be afforded for the current text.
+     */
+    public PTextAreaGovernor getGovernor() {
+        return governor;
+    }
+    
+    private void governorLevelChanged() {
+        clearSegmentCache();
+        if (spellingChecker != null) {
+            spellingChecker.checkSpelling();
+        }
+        repaint();
+    }
+    
     public PTextAreaSpellingChecker getSpellingChecker() {
         return spellingChecker;
     }
@@ -859,13 +909,32 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
                 }
             }
             
-            // Let the styler have the first go.
-            List<PLineSegment> segments = textStyler.getTextSegments(lineIndex);
-            
-            // Then let the style applicators add their finishing touches.
             String line = getLineContents(lineIndex).toString();
-            for (StyleApplicator styleApplicator : styleApplicators) {
-                segments = applyStyleApplicator(styleApplicator, line, segments);
+            List<PLineSegment> segments;
+            if (governor.shouldStyleLine(line.length())) {
+                final long startNs = System.nanoTime();
+                final PFlightRecorderEvents.Styling event = new PFlightRecorderEvents.Styling();
+                event.begin();
+                
+                // Let the styler have the first go.
+                segments = textStyler.getTextSegments(lineIndex);
+                
+                // Then let the style applicators add their finishing touches.
+                for (StyleApplicator styleApplicator : styleApplicators) {
+                    segments = applyStyleApplicator(styleApplicator, line, segments);
+                }
+                
+                governor.lineStyled(System.nanoTime() - startNs);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.fileType = fileType.getName();
+                    event.lineIndex = lineIndex;
+                    event.lineLength = line.length();
+                    event.segmentCount = segments.size();
+                    event.commit();
+                }
+            } else {
+                segments = plainTextStyler.getTextSegments(lineIndex);
             }
             
             // Finally, deal with tabs.
@@ -1030,10 +1099,9 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         try {
             generateLineWrappings();
             
-            PTextAreaRenderer renderer = new PTextAreaRenderer(this, (Graphics2D) oldGraphics);
-            renderer.render();
+            backingStore.paint((Graphics2D) oldGraphics, g -> new PTextAreaRenderer(this, g).render());
             if (bigRedArrowPoint != null) {
-                renderer.drawBigRedArrowPointingAt(bigRedArrowPoint);
+                new PTextAreaRenderer(this, (Graphics2D) oldGraphics).drawBigRedArrowPointingAt(bigRedArrowPoint);
             }
         } catch (Throwable th) {
             Log.warn("PTextArea paint failed", th);
@@ -1054,8 +1122,8 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         for (int i = 0; i < event.getLength(); i++) {
             splitIndex += addSplitLines(lineIndex++, splitIndex);
         }
-        updateHeight();
-        repaintFromLine(firstSplitIndex);
+        final int addedCount = splitIndex - firstSplitIndex;
+        repaintAfterSplitLinesChanged(firstSplitIndex, addedCount, addedCount);
     }
     
     public void linesRemoved(PLineEvent event) {
@@ -1067,8 +1135,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         int endSplitIndex = getSplitLineIndex(event.getLineIndex() + event.getLength());
         removeSplitLines(beginSplitIndex, endSplitIndex);
         changeLineIndices(event.getLineIndex() + event.getLength(), -event.getLength());
-        updateHeight();
-        repaintFromLine(beginSplitIndex);
+        repaintAfterSplitLinesChanged(beginSplitIndex, 0, beginSplitIndex - endSplitIndex);
     }
     
     public void linesCompletelyReplaced(PLineEvent event) {
@@ -1106,11 +1173,54 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
             visibleLineCount += addedCount;
         }
         if (lineCountChange != 0) {
-            updateHeight();
-            repaintFromLine(getSplitLineIndex(event.getLineIndex()));
+            repaintAfterSplitLinesChanged(minLine, visibleLineCount, lineCountChange);
         } else {
-            repaintLines(minLine, minLine + visibleLineCount);
+            repaintLines(minLine, minLine + visibleLineCount - 1);
+        }
+    }
+    
+    /**
+     * Repaints after the 'changedCount' split lines starting at 'splitIndex' have
+     * been replaced, with the split lines after them moving by 'splitLineCountChange'.
+     * Only the changed lines need rendering; the backing store moves the pixels of
+     * the others, rather than us repainting everything from 'splitIndex' down.
+     */
+    private void repaintAfterSplitLinesChanged(int splitIndex, int changedCount, int splitLineCountChange) {
+        final int firstMovedSplitIndex = splitIndex + changedCount;
+        if (splitLineCountChange != 0) {
+            final int oldTop = getLineTop(firstMovedSplitIndex - splitLineCountChange);
+            backingStore.linesMoved(oldTop, splitLineCountChange * getLineHeight());
+            // Resizing asks for a repaint of everything, but we know that the pixels that moved are still good.
+            backingStore.setResizing(true);
+            try {
+                updateHeight();
+            } finally {
+                backingStore.setResizing(false);
+            }
+            // The screen still needs to show the moved pixels, even though we needn't render them.
+            final int newTop = getLineTop(firstMovedSplitIndex);
+            super.repaint(0, 0, newTop, getWidth(), getHeight() - newTop);
+        }
+        if (changedCount > 0) {
+            repaintLines(splitIndex, firstMovedSplitIndex - 1);
+        }
+    }
+    
+    /**
+     * Invalidates the corresponding part of the backing store before asking Swing for a repaint.
+     * All of JComponent's repaint methods come through here.
+     */
+    @Override public void repaint(long tm, int x, int y, int width, int height) {
+        // We're called during JComponent construction, before our fields have been initialized.
+        if (backingStore != null) {
+            backingStore.invalidate(y, height);
         }
+        super.repaint(tm, x, y, width, height);
+    }
+    
+    @Override public void removeNotify() {
+        super.removeNotify();
+        backingStore.dispose();
     }
     
     public void repaintFromLine(int splitIndex) {
@@ -1775,4 +1885,42 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     public void setShouldHideMouseWhenTyping(boolean newState) {
         shouldHideMouseWhenTyping = newState;
     }
+    
+    /**
+     * Returns a text area (not on screen) containing 'lineCount' lines of sample Java source, styled as Java.
+     */
+    @TestHelper static PTextArea makeBenchmarkTextArea(int lineCount) {
+        final PTextArea textArea = new PTextArea();
+        new PJavaTextStyler(textArea);
+        textArea.setText(PTextBuffer.makeSampleSource(lineCount));
+        return textArea;
+    }
+    
+    // Each iteration gets the segments for one line, as painting does: styler, style applicators, and tabs.
+    @Benchmark private static Object benchmarkLineSegments(int iterationCount) {
+        final PTextArea textArea = makeBenchmarkTextArea(5000);
+        final int lineCount = textArea.getLineCount();
+        int total = 0;
+        for (int i = 0; i < iterationCount; ++i) {
+            final int lineIndex = i % lineCount;
+            if (lineIndex == 0) {
+                textArea.clearSegmentCache();
+            }
+            total += textArea.getLineSegments(lineIndex).size();
+        }
+        return total;
+    }
+    
+    // Each iteration does what Evergreen's "Replace All" does to a 5000-line file: a regular expression replacement on the whole text, and setText.
+    @Benchmark private static Object benchmarkReplaceAll(int iterationCount) {
+        final PTextArea textArea = makeBenchmarkTextArea(5000);
+        // Alternate between two replacements so the text doesn't grow or shrink.
+        final Pattern[] patterns = { Pattern.compile("\\bcompute\\b"), Pattern.compile("\\bcalculate\\b") };
+        final String[] replacements = { "calculate", "compute" };
+        for (int i = 0; i < iterationCount; ++i) {
+            final String newText = patterns[i % 2].matcher(textArea.getText()).replaceAll(replacements[i % 2]);
+            textArea.setText(newText);
+        }
+        return textArea;
+    }
 }
@@ -0,0 +1,216 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Keeps a copy of the pixels a PTextArea last rendered in its visible area.
+ * 
+ * When an edit adds or removes lines, the lines below the edit haven't changed,
+ * they've just moved. Rather than re-rendering (and re-styling) them, we move
+ * their pixels with copyArea, and only render the lines that really changed.
+ * 
+ * We track validity per device pixel row: a row is valid if its entire width is
+ * known to match what rendering would produce now. Every repaint request
+ * invalidates the rows it covers, so anything that changes our appearance and
+ * asks to be repainted (as everything must in Swing) is automatically handled.
+ * Swing's own buffering can't be used for this, because we don't know whether
+ * the Graphics we're given is backed by anything persistent.
+ * 
+ * All access is synchronized because repaint requests can come from any thread.
+ */
+final class PTextAreaBackingStore {
+    private static final Stopwatch paintStopwatch = Stopwatch.get("PTextAreaBackingStore.paint");
+    
+    private final PTextArea textArea;
+    
+    private BufferedImage image;
+    // The part of the text area (in component coordinates) that 'image' corresponds to.
+    private Rectangle area;
+    // The number of device pixels per component pixel.
+    private double scale;
+    // Which of the image's rows currently hold valid pixels.
+    private final BitSet validRows = new BitSet();
+    // The thread (if any) whose repaint requests we should ignore because it's resizing the text area.
+    private Thread resizingThread;
+    
+    PTextAreaBackingStore(PTextArea textArea) {
+        this.textArea = textArea;
+    }
+    
+    /**
+     * Paints the text area into 'g', rendering only those parts of the clip
+     * that we don't already have valid pixels for.
+     */
+    void paint(Graphics2D g, Consumer<Graphics2D> renderer) {
+        Stopwatch.Timer timer = paintStopwatch.start();
+        try {
+            synchronized (this) {
+                final Rectangle clip = g.getClipBounds();
+                final Rectangle visible = textArea.getVisibleRect();
+                if (canUseImage(g, clip, visible) == false) {
+                    renderer.accept(g);
+                    return;
+                }
+                realign(visible, g.getTransform().getScaleX());
+                
+                // Render whatever isn't already valid.
+                final int firstRow = rowFloor(clip.y);
+                final int lastRow = rowCeil(clip.y + clip.height);
+                for (int row = validRows.nextClearBit(firstRow); row < lastRow; ) {
+                    int end = validRows.nextSetBit(row);
+                    end = (end == -1) ? lastRow : Math.min(end, lastRow);
+                    renderRows(renderer, clip, row, end);
+                    row = validRows.nextClearBit(end);
+                }
+                
+                // Only rows we rendered across the whole width are completely valid.
+                if (clip.x <= area.x && clip.x + clip.width >= area.x + area.width) {
+                    final int firstWholeRow = rowCeil(clip.y);
+                    final int lastWholeRow = rowFloor(clip.y + clip.height);
+                    if (firstWholeRow < lastWholeRow) {
+                        validRows.set(firstWholeRow, lastWholeRow);
+                    }
+                }
+                
+                g.drawImage(image, new AffineTransform(1 / scale, 0, 0, 1 / scale, area.x, area.y), null);
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+    
+    private boolean canUseImage(Graphics2D g, Rectangle clip, Rectangle visible) {
+        if (textArea.isOpaque() == false || clip == null || visible.isEmpty() || visible.contains(clip) == false) {
+            // We'd have nothing to draw over, or we're being asked to paint somewhere other than on screen (printing, say).
+            return false;
+        }
+        // We only cope with the translate-and-scale transforms Swing uses for HiDPI.
+        final AffineTransform transform = g.getTransform();
+        return (transform.getType() & ~(AffineTransform.TYPE_TRANSLATION | AffineTransform.TYPE_UNIFORM_SCALE)) == 0;
+    }
+    
+    private void renderRows(Consumer<Graphics2D> renderer, Rectangle clip, int firstRow, int lastRow) {
+        final int top = area.y + (int) Math.floor(firstRow / scale);
+        final int bottom = area.y + (int) Math.ceil(lastRow / scale);
+        final Graphics2D imageGraphics = image.createGraphics();
+        try {
+            imageGraphics.scale(scale, scale);
+            imageGraphics.translate(-area.x, -area.y);
+            imageGraphics.clipRect(clip.x, top, clip.width, bottom - top);
+            renderer.accept(imageGraphics);
+        } finally {
+            imageGraphics.dispose();
+        }
+    }
+    
+    /**
+     * Ensures that our image corresponds to the given visible area.
+     * If we've just been scrolled vertically, we keep whatever pixels are still visible.
+     */
+    private void realign(Rectangle visible, double newScale) {
+        final int width = (int) Math.ceil(visible.width * newScale);
+        final int height = (int) Math.ceil(visible.height * newScale);
+        if (image == null || newScale != scale || image.getWidth() != width || image.getHeight() != height || visible.x != area.x) {
+            final GraphicsConfiguration configuration = textArea.getGraphicsConfiguration();
+            image = (configuration != null) ? configuration.createCompatibleImage(width, height, Transparency.OPAQUE) : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            area = new Rectangle(visible);
+            scale = newScale;
+            validRows.clear();
+        } else if (visible.y != area.y) {
+            shiftRows(area.y, area.y - visible.y);
+            area = new Rectangle(visible);
+        }
+    }
+    
+    /**
+     * Records that everything from 'y' down (in component coordinates) has moved
+     * by 'dy' pixels, and moves our pixels to match.
+     */
+    synchronized void linesMoved(int y, int dy) {
+        if (image != null && dy != 0) {
+            shiftRows(y, dy);
+        }
+    }
+    
+    private void shiftRows(int y, int dy) {
+        final double fromRowExact = (y - area.y) * scale;
+        final double rowDeltaExact = dy * scale;
+        final int fromRow = (int) Math.floor(fromRowExact);
+        final int rowDelta = (int) rowDeltaExact;
+        if (fromRow != fromRowExact || rowDelta != rowDeltaExact) {
+            // We can't move part of a device pixel, so we'll just have to render again.
+            invalidateRows(fromRow, image.getHeight());
+            return;
+        }
+        
+        // Copy whichever source rows land inside the image.
+        final int imageHeight = image.getHeight();
+        final int sourceStart = Math.max(Math.max(fromRow, 0), -rowDelta);
+        final int sourceEnd = Math.min(imageHeight, imageHeight - rowDelta);
+        if (sourceStart < sourceEnd) {
+            final Graphics2D imageGraphics = image.createGraphics();
+            try {
+                imageGraphics.copyArea(0, sourceStart, image.getWidth(), sourceEnd - sourceStart, 0, rowDelta);
+            } finally {
+                imageGraphics.dispose();
+            }
+        }
+        
+        // Work out which rows are now valid. Rows above both the old and new positions are untouched.
+        final BitSet oldValidRows = (BitSet) validRows.clone();
+        final int firstAffectedRow = Math.max(0, Math.min(fromRow, fromRow + rowDelta));
+        validRows.clear(firstAffectedRow, Math.max(firstAffectedRow, imageHeight));
+        for (int row = oldValidRows.nextSetBit(sourceStart); row != -1 && row < sourceEnd; row = oldValidRows.nextSetBit(row + 1)) {
+            validRows.set(row + rowDelta);
+        }
+    }
+    
+    /**
+     * Sets whether the current thread is resizing the text area after calling
+     * linesMoved. Resizing causes a repaint of everything, but the pixels we've
+     * just moved are still good, so we ignore this thread's requests meanwhile.
+     * Other threads' requests still count.
+     */
+    synchronized void setResizing(boolean isResizing) {
+        resizingThread = isResizing ? Thread.currentThread() : null;
+    }
+    
+    /**
+     * Invalidates the rows covering the given vertical range (in component coordinates).
+     */
+    synchronized void invalidate(int y, int height) {
+        if (image != null && Thread.currentThread() != resizingThread) {
+            invalidateRows(rowFloor(y), rowCeil(y + height));
+        }
+    }
+    
+    private void invalidateRows(int firstRow, int lastRow) {
+        firstRow = Math.max(0, firstRow);
+        lastRow = Math.min(image.getHeight(), lastRow);
+        if (firstRow < lastRow) {
+            validRows.clear(firstRow, lastRow);
+        }
+    }
+    
+    /**
+     * Releases our image, for when the text area is no longer on screen.
+     */
+    synchronized void dispose() {
+        image = null;
+        area = null;
+        validRows.clear();
+    }
+    
+    private int rowFloor(int y) {
+        return Math.max(0, (int) Math.floor((y - area.y) * scale));
+    }
+    
+    private int rowCeil(int y) {
+        return Math.max(0, (int) Math.ceil((y - area.y) * scale));
+    }
+}
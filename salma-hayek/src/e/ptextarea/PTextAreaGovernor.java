@@ -0,0 +1,214 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.util.*;
+import javax.swing.event.*;
+
+/**
+ * Decides how much work a PTextArea's optional features can afford to do for
+ * the text it's currently showing.
+ * 
+ * Ordinary source files get everything. Pathological files (the multi-megabyte
+ * single line of JSON, the million-line log, minified JavaScript) would lock up
+ * the EDT if we styled, spelling-checked, and bracket-matched them the same
+ * way, so we step down through progressively cheaper levels instead.
+ * 
+ * The level is chosen from the size of the text whenever it's completely
+ * replaced, and raised (but never lowered) if styling turns out to be slow
+ * in practice. Lowering it again would risk flapping back and forth as the
+ * user scrolls, so we only do that when the text is next replaced.
+ * 
+ * Statistics may be updated from any thread that holds the buffer's read lock.
+ * Listeners are always notified on the EDT.
+ */
+public class PTextAreaGovernor implements PLineListener {
+    public enum Level {
+        FULL(null),
+        REDUCED("spelling off, long lines unstyled, bracket matching limited, find on enter"),
+        MINIMAL("styling off, spelling off, tags off, bracket matching limited, find on enter");
+        
+        private final String description;
+        
+        private Level(String description) {
+            this.description = description;
+        }
+    }
+    
+    // Size limits beyond which we drop to REDUCED.
+    private static final int REDUCED_CHAR_COUNT = 4 * 1024 * 1024;
+    private static final int REDUCED_LINE_COUNT = 200 * 1000;
+    private static final int REDUCED_LONGEST_LINE = 10 * 1000;
+    
+    // Size limits beyond which we drop to MINIMAL.
+    private static final int MINIMAL_CHAR_COUNT = 32 * 1024 * 1024;
+    private static final int MINIMAL_LINE_COUNT = 2 * 1000 * 1000;
+    private static final int MINIMAL_LONGEST_LINE = 200 * 1000;
+    
+    // At REDUCED, lines longer than this are shown without styling.
+    private static final int LONG_LINE_LENGTH = 2000;
+    
+    // Bracket matching gives up after scanning this many characters, unless we're at FULL.
+    private static final int BRACKET_SEARCH_LIMIT = 64 * 1024;
+    
+    // If styling a single line takes longer than this, we step down a level.
+    private static final long SLOW_LINE_NS = 50L * 1000 * 1000;
+    // If the average time to style a line (over at least SAMPLE_LINE_COUNT lines) is longer than this, we step down a level.
+    private static final long SLOW_AVERAGE_NS = 500L * 1000;
+    private static final int SAMPLE_LINE_COUNT = 200;
+    
+    private final PTextArea textArea;
+    private final ArrayList<ChangeListener> listeners = new ArrayList<>();
+    
+    private volatile Level level = Level.FULL;
+    private volatile int longestLineLength;
+    
+    // Time spent styling since the last sample was taken, guarded by 'this'.
+    private long sampleNs;
+    private int sampleLineCount;
+    
+    public PTextAreaGovernor(PTextArea textArea) {
+        this.textArea = textArea;
+    }
+    
+    public Level getLevel() {
+        return level;
+    }
+    
+    /**
+     * Returns a short description of what we've turned off, suitable for a
+     * status bar, or null if everything's enabled.
+     */
+    public String getDescription() {
+        final String description = level.description;
+        return (description != null) ? ("large file: " + description) : null;
+    }
+    
+    /**
+     * Adds a listener to be notified on the EDT whenever the level changes.
+     */
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+    
+    public boolean shouldCheckSpelling() {
+        return level == Level.FULL;
+    }
+    
+    /**
+     * Returns true if it's worth running an external tags scanner over the text.
+     */
+    public boolean shouldScanTags() {
+        return level != Level.MINIMAL;
+    }
+    
+    /**
+     * Returns true if a line of the given length should be given to the text
+     * styler and style applicators, false if it should be shown as plain text.
+     */
+    public boolean shouldStyleLine(int lineLength) {
+        switch (level) {
+        case FULL:
+            return true;
+        case REDUCED:
+            return lineLength <= LONG_LINE_LENGTH;
+        default:
+            return false;
+        }
+    }
+    
+    /**
+     * Returns the maximum number of characters bracket matching should scan
+     * looking for a partner.
+     */
+    public int getBracketSearchLimit() {
+        return (level == Level.FULL) ? Integer.MAX_VALUE : BRACKET_SEARCH_LIMIT;
+    }
+    
+    /**
+     * Returns true if finding should wait until the user's finished typing the
+     * pattern, rather than re-running after every keystroke or edit.
+     */
+    public boolean shouldDeferFind() {
+        return level != Level.FULL;
+    }
+    
+    /**
+     * Records that styling a line took 'ns' nanoseconds.
+     */
+    void lineStyled(long ns) {
+        boolean tooSlow;
+        synchronized (this) {
+            sampleNs += ns;
+            ++sampleLineCount;
+            tooSlow = (ns > SLOW_LINE_NS);
+            if (sampleLineCount >= SAMPLE_LINE_COUNT) {
+                tooSlow = tooSlow || (sampleNs / sampleLineCount > SLOW_AVERAGE_NS);
+                sampleNs = 0;
+                sampleLineCount = 0;
+            }
+        }
+        if (tooSlow && level != Level.MINIMAL) {
+            setLevel(Level.values()[level.ordinal() + 1]);
+        }
+    }
+    
+    private void setLevel(Level newLevel) {
+        if (newLevel == level) {
+            return;
+        }
+        Log.warn("Text area governor changing from " + level + " to " + newLevel + " (" + textArea.getLineCount() + " lines, longest " + longestLineLength + " characters).");
+        level = newLevel;
+        GuiUtilities.invokeLater(() -> {
+            final ChangeEvent event = new ChangeEvent(this);
+            for (ChangeListener listener : listeners) {
+                listener.stateChanged(event);
+            }
+        });
+    }
+    
+    private Level levelForSize() {
+        final int charCount = textArea.getTextBuffer().length();
+        final int lineCount = textArea.getLineCount();
+        if (charCount > MINIMAL_CHAR_COUNT || lineCount > MINIMAL_LINE_COUNT || longestLineLength > MINIMAL_LONGEST_LINE) {
+            return Level.MINIMAL;
+        } else if (charCount > REDUCED_CHAR_COUNT || lineCount > REDUCED_LINE_COUNT || longestLineLength > REDUCED_LONGEST_LINE) {
+            return Level.REDUCED;
+        }
+        return Level.FULL;
+    }
+    
+    private void noteLineLengths(PLineList lines, int firstLineIndex, int lineCount) {
+        int longest = longestLineLength;
+        for (int i = firstLineIndex; i < firstLineIndex + lineCount; ++i) {
+            longest = Math.max(longest, lines.getLine(i).getLength());
+        }
+        longestLineLength = longest;
+    }
+    
+    public void linesAdded(PLineEvent event) {
+        noteLineLengths(event.getLineList(), event.getLineIndex(), event.getLength());
+        // Edits can only make things worse until the text is next replaced; see the class comment.
+        final Level sizeLevel = levelForSize();
+        if (sizeLevel.compareTo(level) > 0) {
+            setLevel(sizeLevel);
+        }
+    }
+    
+    public void linesChanged(PLineEvent event) {
+        linesAdded(event);
+    }
+    
+    public void linesRemoved(PLineEvent event) {
+        // Our idea of the longest line may now be an over-estimate, but that's okay until the text is next replaced.
+    }
+    
+    public void linesCompletelyReplaced(PLineEvent event) {
+        longestLineLength = 0;
+        noteLineLengths(event.getLineList(), 0, event.getLineList().size());
+        synchronized (this) {
+            sampleNs = 0;
+            sampleLineCount = 0;
+        }
+        setLevel(levelForSize());
+    }
+}
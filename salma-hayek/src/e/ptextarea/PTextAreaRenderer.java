@@ -28,6 +28,8 @@ final class PTextAreaRenderer {
     
     void render() {
         Stopwatch.Timer timer = paintStopwatch.start();
+        final PFlightRecorderEvents.Paint event = new PFlightRecorderEvents.Paint();
+        event.begin();
         try {
             GuiUtilities.setTextAntiAliasing(g, true);
             
@@ -60,6 +62,8 @@ final class PTextAreaRenderer {
             int maxLine = (bounds.y - insets.top + bounds.height) / plainFontMetrics.getHeight();
             minLine = Math.max(0, Math.min(maxSplitLine, minLine));
             maxLine = Math.max(0, Math.min(maxSplitLine, maxLine));
+            event.firstLine = minLine;
+            event.lineCount = maxLine - minLine + 1;
             
             // Paint the highlights on those lines.
             paintHighlights(minLine, maxLine);
@@ -77,6 +81,11 @@ final class PTextAreaRenderer {
             }
         } finally {
             timer.stop();
+            event.end();
+            if (event.shouldCommit()) {
+                event.fileType = textArea.getFileType().getName();
+                event.commit();
+            }
         }
     }
 
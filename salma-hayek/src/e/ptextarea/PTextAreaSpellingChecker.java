@@ -173,9 +173,10 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
      * it can take a second or more for a large file.
      */
     public void checkSpelling() {
+        // Take the snapshot here, so the background thread never sees a half-applied edit.
+        final CharSequence snapshot = component.getTextBuffer().snapshot();
         new Thread(() -> {
-            PTextBuffer buffer = component.getTextBuffer();
-            checkSpelling(buffer, 0, buffer.length());
+            checkSpelling(snapshot, 0, snapshot.length());
         }, "Spell-Checker Thread").start();
     }
     
@@ -225,7 +226,13 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
         return Character.isLetter(c) || c == '\'';
     }
     
-    private void checkSpelling(PTextBuffer buffer, int fromIndex, int toIndex) {
+    private void checkSpelling(CharSequence buffer, int fromIndex, int toIndex) {
+        if (component.getGovernor().shouldCheckSpelling() == false) {
+            // The text's too big for us to keep up with, so don't leave stale misspellings lying around either.
+            component.removeHighlights(HIGHLIGHTER_NAME);
+            return;
+        }
+        
         int checkCount = 0;
         int misspellingCount = 0;
         
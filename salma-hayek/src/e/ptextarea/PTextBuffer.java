@@ -6,8 +6,10 @@ import java.nio.*;
 import java.nio.charset.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import org.jessies.test.*;
 
 /**
  * The PTextArea's model. It can be used as a CharSequence, for efficient
@@ -38,6 +40,11 @@ import javax.swing.event.ChangeListener;
  * CHARSET_PROPERTY, which will have been initialized to correspond to the
  * encoding the file had when read from disk, or UTF-8 if this is a new file.
  * 
+ * Background readers that want to scan the whole text should take a
+ * 'snapshot' rather than holding the read lock (which blocks the typist) or
+ * calling 'toString' (which copies everything). A snapshot shares our char[]
+ * until the next edit, at which point we copy the array for ourselves.
+ * 
  * @author Elliott Hughes
  * @author Phil Norman
  */
@@ -52,6 +59,8 @@ public class PTextBuffer implements CharSequence {
     private char[] text = new char[0];
     private int gapPosition;
     private int gapLength;
+    // True if 'text' is also referenced by a Snapshot, and so must be copied before we next modify it.
+    private boolean textIsShared;
     private ArrayList<PTextListener> textListeners = new ArrayList<>();
     private PAnchorSet anchorSet = new PAnchorSet();
     private Undoer undoBuffer = new Undoer();
@@ -145,36 +154,90 @@ public class PTextBuffer implements CharSequence {
      * Replaces the contents of this buffer with the entire contents of 'file'.
      */
     public void readFromFile(File file) {
-        getLock().getWriteLock();
         try {
-            // Read all the bytes in.
             final ByteBuffer byteBuffer = ByteBufferUtilities.readFile(file);
-            
-            // Decode the raw bytes into characters.
-            final ByteBufferDecoder decoder = new ByteBufferDecoder(byteBuffer, byteBuffer.capacity());
-            final String encoding = decoder.getEncodingName();
-            char[] chars = decoder.getCharArray();
-            if (decoder.sawCarriageReturns()) {
-                chars = fixLineEndings(chars);
-            } else {
-                putProperty(LINE_ENDING_PROPERTY, "\n");
-            }
-            
-            // Use the characters and the inferred encoding.
-            putProperty(CHARSET_PROPERTY, encoding);
-            setText(chars);
+            setDecodedText(decode(byteBuffer, byteBuffer.capacity()));
         } catch (IOException ex) {
             throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * Decodes the first 'byteCount' bytes of 'byteBuffer' as readFromFile would.
+     * This doesn't touch any buffer, so callers can do the expensive part of
+     * reading a file on another thread, and then hand the result to
+     * 'setDecodedText' on the EDT.
+     */
+    public static DecodedText decode(ByteBuffer byteBuffer, int byteCount) {
+        final PFlightRecorderEvents.Decode event = new PFlightRecorderEvents.Decode();
+        event.begin();
+        final ByteBufferDecoder decoder = new ByteBufferDecoder(byteBuffer, byteCount);
+        char[] chars = decoder.getCharArray();
+        String lineEnding = "\n";
+        if (decoder.sawCarriageReturns()) {
+            final String s = new String(chars);
+            lineEnding = s.contains("\r\n") ? "\r\n" : "\r";
+            chars = s.replaceAll(lineEnding, "\n").toCharArray();
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.byteCount = byteCount;
+            event.charCount = chars.length;
+            event.charsetName = decoder.getEncodingName();
+            event.commit();
+        }
+        return new DecodedText(chars, decoder.getEncodingName(), lineEnding);
+    }
+    
+    /**
+     * Replaces the contents of this buffer with text previously returned by 'decode'.
+     */
+    public void setDecodedText(DecodedText decodedText) {
+        final PFlightRecorderEvents.Load event = new PFlightRecorderEvents.Load();
+        event.begin();
+        getLock().getWriteLock();
+        try {
+            // Use the characters and the inferred encoding.
+            putProperty(LINE_ENDING_PROPERTY, decodedText.lineEnding);
+            putProperty(CHARSET_PROPERTY, decodedText.charsetName);
+            setText(decodedText.chars);
         } finally {
             getLock().relinquishWriteLock();
         }
+        event.end();
+        if (event.shouldCommit()) {
+            event.charCount = decodedText.chars.length;
+            event.lineCount = 1;
+            for (char ch : decodedText.chars) {
+                if (ch == '\n') {
+                    ++event.lineCount;
+                }
+            }
+            event.commit();
+        }
     }
     
-    private char[] fixLineEndings(char[] chars) {
-        final String s = new String(chars);
-        final String lineEnding = s.contains("\r\n") ? "\r\n" : "\r";
-        putProperty(LINE_ENDING_PROPERTY, lineEnding);
-        return s.replaceAll(lineEnding, "\n").toCharArray();
+    /**
+     * The result of decoding a file's bytes. See 'decode'.
+     */
+    public static class DecodedText {
+        private final char[] chars;
+        private final String charsetName;
+        private final String lineEnding;
+        
+        private DecodedText(char[] chars, String charsetName, String lineEnding) {
+            this.chars = chars;
+            this.charsetName = charsetName;
+            this.lineEnding = lineEnding;
+        }
+        
+        /**
+         * Returns the decoded characters, with line endings already converted to '\n'.
+         * The array isn't copied, and will become the buffer's if passed to 'setDecodedText'.
+         */
+        public CharSequence getCharSequence() {
+            return new CharArrayCharSequence(chars);
+        }
     }
     
     /**
@@ -184,7 +247,7 @@ public class PTextBuffer implements CharSequence {
     public void writeTo(Path file) {
         writeToFile(file.toFile());
     }
-        
+    
     /**
      * Writes the contents of this buffer into the given file, replacing
      * whatever's already there.
@@ -234,25 +297,20 @@ public class PTextBuffer implements CharSequence {
     }
     
     private void writeToStream(OutputStreamWriter outputStreamWriter) {
-        getLock().getReadLock();
+        // Writing to disk can be slow, so work from a snapshot rather than holding the read lock throughout.
+        final Snapshot snapshot = snapshot();
         try {
             Writer writer = new BufferedWriter(outputStreamWriter);
             
             String lineEnding = (String) getProperty(LINE_ENDING_PROPERTY);
             if (lineEnding.equals("\n")) {
                 // Just write out the two halves as they are.
-                if (gapPosition != 0) {
-                    writer.write(text, 0, gapPosition);
-                }
-                final int gapEnd = gapPosition + gapLength;
-                if (gapEnd < text.length) {
-                    writer.write(text, gapEnd, text.length - gapEnd);
-                }
+                snapshot.writeTo(writer);
             } else {
                 // Split our internal content into lines, and write them
                 // out individually. Expensive, but why aren't you using
                 // Unix line-endings, crazy person?
-                String[] lines = toString().split("\n");
+                String[] lines = snapshot.toString().split("\n");
                 for (String line : lines) {
                     writer.write(line);
                     writer.write(lineEnding);
@@ -261,11 +319,23 @@ public class PTextBuffer implements CharSequence {
             writer.flush();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
-        } finally {
-            getLock().relinquishReadLock();
         }
     }
     
+    /**
+     * Returns an estimate of the memory used by our text, for MemoryAccountant.
+     */
+    public long estimateMemoryUse() {
+        return MemoryAccountant.arrayBytes(text.length, 2);
+    }
+    
+    /**
+     * Returns an estimate of the memory used by our undo history, for MemoryAccountant.
+     */
+    public long estimateUndoMemoryUse() {
+        return undoBuffer.estimateMemoryUse();
+    }
+    
     /**
      * Sets the text, replacing anything that was here before.
      * Note that this method does not copy the given char[].
@@ -274,6 +344,7 @@ public class PTextBuffer implements CharSequence {
         getLock().getWriteLock();
         try {
             this.text = text;
+            this.textIsShared = false;
             gapPosition = 0;
             gapLength = 0;
             fireTextEvent(new PTextEvent(this, PTextEvent.COMPLETE_REPLACEMENT, 0, new CharArrayCharSequence(text)));
@@ -321,11 +392,37 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
+    /**
+     * Returns an immutable view of the current text, in constant time.
+     * The snapshot can be read from any thread without holding the lock, and
+     * won't see any subsequent edits. The cost is that the first edit after a
+     * snapshot has been taken copies the underlying array, but it does so
+     * without waiting for the snapshot's readers.
+     */
+    public Snapshot snapshot() {
+        getLock().getReadLock();
+        try {
+            textIsShared = true;
+            return new Snapshot(text, gapPosition, gapLength, 0, length());
+        } finally {
+            getLock().relinquishReadLock();
+        }
+    }
+    
+    /** Ensures that we're the only user of 'text', so it's safe to modify in place. */
+    private void unshareText() {
+        if (textIsShared) {
+            text = text.clone();
+            textIsShared = false;
+        }
+    }
+    
     /** Moves the gap to the specified position. */
     private void moveGap(int newPosition) {
         if (gapPosition == newPosition) {
             return;
         }
+        unshareText();
         if (newPosition < gapPosition) {
             System.arraycopy(text, newPosition, text, newPosition + gapLength, gapPosition - newPosition);
         } else {
@@ -341,6 +438,7 @@ public class PTextBuffer implements CharSequence {
         System.arraycopy(text, endOffset, newText, endOffset + lengthChange, text.length - endOffset);
         gapLength += lengthChange;
         text = newText;
+        textIsShared = false;
     }
     
     /** Expands the buffer. */
@@ -358,6 +456,8 @@ public class PTextBuffer implements CharSequence {
     }
     
     public void replace(SelectionSetter beforeCaret, int position, int removeCount, CharSequence add, SelectionSetter afterCaret) {
+        final PFlightRecorderEvents.Edit event = new PFlightRecorderEvents.Edit();
+        event.begin();
         getLock().getWriteLock();
         try {
             if (beforeCaret == null) {
@@ -371,6 +471,14 @@ public class PTextBuffer implements CharSequence {
                 add = null;
             }
             undoBuffer.addAndDo(beforeCaret, position, removeChars, add, afterCaret);
+            event.end();
+            if (event.shouldCommit()) {
+                event.offset = position;
+                event.removedCharCount = removeCount;
+                event.insertedCharCount = (add != null) ? add.length() : 0;
+                event.bufferLength = length();
+                event.commit();
+            }
         } finally {
             getLock().relinquishWriteLock();
         }
@@ -392,6 +500,7 @@ public class PTextBuffer implements CharSequence {
         while (textLength > gapLength) {
             expandBuffer(textLength);
         }
+        unshareText();
         if (chars instanceof CharArrayCharSequence) {
             ((CharArrayCharSequence) chars).copyTo(text, gapPosition);
         } else {
@@ -504,6 +613,212 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
+    /**
+     * An immutable copy of a PTextBuffer's text at the time 'snapshot' was called.
+     * The characters are shared with the buffer until the buffer is next modified,
+     * so taking a snapshot is cheap, and reading one needs no locking.
+     */
+    public static class Snapshot implements CharSequence {
+        private final char[] text;
+        private final int gapPosition;
+        private final int gapLength;
+        private final int start;
+        private final int end;
+        
+        private Snapshot(char[] text, int gapPosition, int gapLength, int start, int end) {
+            this.text = text;
+            this.gapPosition = gapPosition;
+            this.gapLength = gapLength;
+            this.start = start;
+            this.end = end;
+        }
+        
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException("index " + index + " not in half-open range [0.." + length() + ")");
+            }
+            final int bufferIndex = start + index;
+            return (bufferIndex < gapPosition) ? text[bufferIndex] : text[bufferIndex + gapLength];
+        }
+        
+        public int length() {
+            return end - start;
+        }
+        
+        public Snapshot subSequence(int subStart, int subEnd) {
+            if (subStart < 0 || subEnd > length() || subEnd < subStart) {
+                throw new IndexOutOfBoundsException("subSequence(" + subStart + ", " + subEnd + ") of sequence of length " + length());
+            }
+            return new Snapshot(text, gapPosition, gapLength, start + subStart, start + subEnd);
+        }
+        
+        /**
+         * Writes the characters of this snapshot to 'writer' without
+         * creating an intermediate copy.
+         */
+        public void writeTo(Writer writer) throws IOException {
+            if (start < gapPosition) {
+                writer.write(text, start, Math.min(end, gapPosition) - start);
+            }
+            if (end > gapPosition) {
+                final int from = Math.max(start, gapPosition);
+                writer.write(text, from + gapLength, end - from);
+            }
+        }
+        
+        public String toString() {
+            StringBuilder result = new StringBuilder(length());
+            if (start < gapPosition) {
+                result.append(text, start, Math.min(end, gapPosition) - start);
+            }
+            if (end > gapPosition) {
+                final int from = Math.max(start, gapPosition);
+                result.append(text, from + gapLength, end - from);
+            }
+            return result.toString();
+        }
+    }
+    
+    @Test private static void testSnapshotIsolation() {
+        final PTextBuffer buffer = new PTextBuffer();
+        final SelectionSetter noOp = () -> {};
+        buffer.replace(noOp, 0, 0, "hello world", noOp);
+        buffer.replace(noOp, 5, 0, ",", noOp);
+        final Snapshot snapshot = buffer.snapshot();
+        buffer.replace(noOp, 0, 5, "goodbye", noOp);
+        buffer.replace(noOp, buffer.length(), 0, "!", noOp);
+        Assert.equals(snapshot.toString(), "hello, world");
+        Assert.equals(buffer.toString(), "goodbye, world!");
+        Assert.equals(snapshot.subSequence(4, 9).toString(), "o, wo");
+        Assert.equals(snapshot.subSequence(4, 9).subSequence(1, 3).toString(), ", ");
+        final StringWriter writer = new StringWriter();
+        try {
+            snapshot.subSequence(2, 7).writeTo(writer);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        Assert.equals(writer.toString(), "llo, ");
+    }
+    
+    /**
+     * Returns 'lineCount' lines of plausible Java source, with comments,
+     * strings, keywords, and tabs for the stylers to get their teeth into.
+     */
+    @TestHelper static String makeSampleSource(int lineCount) {
+        final String[] block = new String[] {
+            "/**",
+            " * A documentation comment for class Sample%d, mentioning http://example.com/ for the hyperlinker.",
+            " */",
+            "public class Sample%d extends Object implements Comparable<Sample%d> {",
+            "\tprivate static final String NAME = \"sample \\\"quoted\\\" string %d\";",
+            "\t// A comment to the end of the line.",
+            "\tpublic int compute(int x, int y) {",
+            "\t\tif (x > y && (x & 1) == 0) {",
+            "\t\t\treturn x * 31 + y; /* An inline comment. */",
+            "\t\t}",
+            "\t\tfor (int i = 0; i < y; ++i) { x += i; }",
+            "\t\treturn x;",
+            "\t}",
+            "}",
+        };
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < lineCount; ++i) {
+            result.append(String.format(block[i % block.length], i / block.length, i / block.length, i / block.length, i / block.length));
+            result.append('\n');
+        }
+        return result.toString();
+    }
+    
+    @TestHelper private static PTextBuffer makeBenchmarkBuffer(int lineCount) {
+        final PTextBuffer buffer = new PTextBuffer();
+        final SelectionSetter noOp = () -> {};
+        buffer.replace(noOp, 0, 0, makeSampleSource(lineCount), noOp);
+        // There's always a line list listening when we're used for real.
+        new PLineList(buffer);
+        return buffer;
+    }
+    
+    @TestHelper private static PTextBuffer typeInto(PTextBuffer buffer, int offset, int charCount) {
+        final SelectionSetter noOp = () -> {};
+        final String typing = "x += compute(x, y);\n";
+        for (int i = 0; i < charCount; ++i) {
+            final int typingIndex = i % typing.length();
+            buffer.replace(noOp, offset + i, 0, typing.substring(typingIndex, typingIndex + 1), noOp);
+        }
+        return buffer;
+    }
+    
+    @Benchmark private static Object benchmarkTypingAtStart(int iterationCount) {
+        return typeInto(makeBenchmarkBuffer(20000), 0, iterationCount);
+    }
+    
+    @Benchmark private static Object benchmarkTypingInMiddle(int iterationCount) {
+        final PTextBuffer buffer = makeBenchmarkBuffer(20000);
+        return typeInto(buffer, buffer.length() / 2, iterationCount);
+    }
+    
+    @Benchmark private static Object benchmarkTypingAtEnd(int iterationCount) {
+        final PTextBuffer buffer = makeBenchmarkBuffer(20000);
+        return typeInto(buffer, buffer.length(), iterationCount);
+    }
+    
+    // Types into the middle of a buffer while another thread scans all of it over and over, as saving, TagsUpdater, HtmlTagger, or the spelling checker would.
+    // The typist's edits copy the text after each new snapshot, but never wait for the scanner: compare benchmarkTypingWhileScanningUnderReadLock.
+    @Benchmark private static Object benchmarkTypingWhileScanningSnapshots(int iterationCount) throws InterruptedException {
+        return typeWhileScanning(iterationCount, true);
+    }
+    
+    // The same, with the scanner holding the read lock instead, as those readers did before snapshots.
+    @Benchmark private static Object benchmarkTypingWhileScanningUnderReadLock(int iterationCount) throws InterruptedException {
+        return typeWhileScanning(iterationCount, false);
+    }
+    
+    @TestHelper private static PTextBuffer typeWhileScanning(int charCount, boolean useSnapshots) throws InterruptedException {
+        final PTextBuffer buffer = makeBenchmarkBuffer(20000);
+        final AtomicBoolean isTyping = new AtomicBoolean(true);
+        final Thread scanner = new Thread(() -> {
+            while (isTyping.get()) {
+                if (useSnapshots) {
+                    StringUtilities.count(buffer.snapshot(), '\n');
+                } else {
+                    buffer.getLock().getReadLock();
+                    try {
+                        StringUtilities.count(buffer, '\n');
+                    } finally {
+                        buffer.getLock().relinquishReadLock();
+                    }
+                }
+            }
+        }, "benchmark scanner");
+        scanner.start();
+        typeInto(buffer, buffer.length() / 2, charCount);
+        isTyping.set(false);
+        scanner.join();
+        return buffer;
+    }
+    
+    // Each iteration takes a snapshot of a 20000-line buffer, and types a character, which has to copy the text.
+    @Benchmark private static Object benchmarkFirstEditAfterSnapshot(int iterationCount) {
+        final PTextBuffer buffer = makeBenchmarkBuffer(20000);
+        final int offset = buffer.length() / 2;
+        for (int i = 0; i < iterationCount; ++i) {
+            buffer.snapshot();
+            typeInto(buffer, offset + i, 1);
+        }
+        return buffer;
+    }
+    
+    // Appends a block of 64 lines per iteration, as when reading the output of a build.
+    @Benchmark private static Object benchmarkBulkAppend(int iterationCount) {
+        final PTextBuffer buffer = makeBenchmarkBuffer(0);
+        final SelectionSetter noOp = () -> {};
+        final String block = makeSampleSource(64);
+        for (int i = 0; i < iterationCount; ++i) {
+            buffer.replace(noOp, buffer.length(), 0, block, noOp);
+        }
+        return buffer;
+    }
+    
     public class Undoer implements PUndoBuffer {
         private ArrayList<Doable> undoList;
         private int undoPosition;
@@ -553,6 +868,21 @@ public class PTextBuffer implements CharSequence {
             ++compoundingDepth;
         }
         
+        private long estimateMemoryUse() {
+            long result = MemoryAccountant.arrayBytes(undoList.size(), 4);
+            for (Doable doable : undoList) {
+                // The Doable itself, its two SelectionSetters, and its text.
+                result += MemoryAccountant.objectBytes(6) + 2 * MemoryAccountant.objectBytes(2);
+                result += estimateCharsMemoryUse(doable.removeChars) + estimateCharsMemoryUse(doable.insertChars);
+            }
+            return result;
+        }
+        
+        private long estimateCharsMemoryUse(CharSequence chars) {
+            // Removed text is a CharArrayCharSequence, and inserted text is usually a String; either way, we'll assume a char[].
+            return (chars != null) ? MemoryAccountant.objectBytes(3) + MemoryAccountant.arrayBytes(chars.length(), 2) : 0;
+        }
+        
         private void dumpUndoList() {
             Log.warn("Dumping PTextBuffer undo list:");
             int i = 0;
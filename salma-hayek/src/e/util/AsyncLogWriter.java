@@ -0,0 +1,282 @@
+package e.util;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import org.jessies.test.*;
+
+/**
+ * Takes the cost of writing the log off the threads that log.
+ * 
+ * Log.warn used to write and flush on the calling thread, which is often the
+ * EDT. A burst of warnings with the log on a slow disk (or an NFS home
+ * directory) meant a visible stall. Now a caller just puts the message in a
+ * bounded ring buffer, and a single writer thread formats and writes
+ * everything it finds there, flushing once per batch.
+ * 
+ * The ring buffer is the array-based bounded queue described by Dmitry Vyukov:
+ * each slot has a sequence number saying whether it's ready to be written to
+ * or read from, so producers only need a compare-and-set on the tail, and our
+ * single consumer doesn't need any atomic read-modify-write at all.
+ * 
+ * When the buffer's full, we either drop the message (counting it, and saying
+ * how many we dropped in the log once there's room) or block until there's
+ * room, depending on the OverflowPolicy. Dropping is the default, because a
+ * log that can't keep up shouldn't be allowed to hang the UI.
+ * 
+ * A shutdown hook writes anything still in the buffer, after which we write
+ * synchronously, so messages logged during shutdown aren't lost.
+ */
+final class AsyncLogWriter implements LogWriter {
+    public enum OverflowPolicy {
+        DROP, BLOCK
+    }
+    
+    // How long the writer thread waits before looking again, if nobody wakes it.
+    private static final long IDLE_WAIT_NS = 100L * 1000 * 1000;
+    
+    // How long shutdown waits for the writer thread to catch up.
+    private static final long SHUTDOWN_FLUSH_TIMEOUT_NS = 2L * 1000 * 1000 * 1000;
+    
+    private static final Metrics.Counter droppedMessageCounter = Metrics.counter("Log.droppedMessages");
+    
+    private final DefaultLogWriter delegate;
+    private final OverflowPolicy overflowPolicy;
+    
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<Record> records;
+    private final AtomicLong tail = new AtomicLong();
+    // Only touched by the writer thread, but read by flush.
+    private volatile long head;
+    
+    // Messages dropped since we last said so in the log.
+    private final AtomicLong droppedCount = new AtomicLong();
+    
+    private final Thread writerThread;
+    private volatile boolean writerIsWaiting;
+    private volatile boolean isSynchronous;
+    
+    private static final class Record {
+        private final long timeMs;
+        private final String message;
+        private final Throwable throwable;
+        
+        private Record(long timeMs, String message, Throwable throwable) {
+            this.timeMs = timeMs;
+            this.message = message;
+            this.throwable = throwable;
+        }
+    }
+    
+    /**
+     * Creates a writer that buffers up to 'capacity' messages (rounded up to a
+     * power of two) before applying 'overflowPolicy', and writes to 'delegate'.
+     */
+    AsyncLogWriter(DefaultLogWriter delegate, int capacity, OverflowPolicy overflowPolicy) {
+        this.delegate = delegate;
+        this.overflowPolicy = overflowPolicy;
+        
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.records = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+        
+        this.writerThread = new Thread(this::writeRecords, "Log Writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutDown, "Log Writer Shutdown"));
+    }
+    
+    public void log(String message, Throwable throwable) {
+        if (isSynchronous) {
+            delegate.log(message, throwable);
+            return;
+        }
+        final Record record = new Record(System.currentTimeMillis(), message, throwable);
+        while (offer(record) == false) {
+            if (overflowPolicy == OverflowPolicy.DROP) {
+                droppedCount.incrementAndGet();
+                droppedMessageCounter.increment();
+                break;
+            }
+            wakeWriter();
+            LockSupport.parkNanos(100 * 1000);
+            if (isSynchronous) {
+                delegate.log(message, throwable);
+                return;
+            }
+        }
+        if (writerIsWaiting) {
+            wakeWriter();
+        }
+    }
+    
+    private boolean offer(Record record) {
+        while (true) {
+            final long position = tail.get();
+            final int index = (int) position & mask;
+            final long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    records.set(index, record);
+                    // Publish the record to the writer thread.
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                // The writer hasn't consumed the record a whole lap behind us.
+                return false;
+            }
+            // Another thread got this slot first, so try again.
+        }
+    }
+    
+    // Only called by the writer thread (or by shutDown, once the writer thread has stopped).
+    private Record poll() {
+        final long position = head;
+        final int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        final Record record = records.get(index);
+        records.set(index, null);
+        // Hand the slot back to the producers for their next lap.
+        sequences.set(index, position + mask + 1);
+        head = position + 1;
+        return record;
+    }
+    
+    private void wakeWriter() {
+        LockSupport.unpark(writerThread);
+    }
+    
+    private void writeRecords() {
+        while (isSynchronous == false) {
+            if (writeBatch() == false) {
+                writerIsWaiting = true;
+                // Check again now the flag's set, so we can't miss a wake-up from a producer that didn't see it.
+                if (writeBatch() == false) {
+                    LockSupport.parkNanos(this, IDLE_WAIT_NS);
+                }
+                writerIsWaiting = false;
+            }
+        }
+    }
+    
+    /**
+     * Writes everything currently in the buffer, flushing once at the end.
+     * Returns false if there was nothing to write.
+     */
+    private boolean writeBatch() {
+        synchronized (delegate) {
+            boolean wroteSomething = false;
+            Record record;
+            while ((record = poll()) != null) {
+                delegate.write(record.timeMs, record.message, record.throwable);
+                wroteSomething = true;
+            }
+            final long dropped = droppedCount.getAndSet(0);
+            if (dropped > 0) {
+                delegate.write(System.currentTimeMillis(), "(" + StringUtilities.pluralize((int) Math.min(dropped, Integer.MAX_VALUE), "message", "messages") + " dropped because the log couldn't keep up.)", null);
+                wroteSomething = true;
+            }
+            if (wroteSomething) {
+                delegate.flush();
+            }
+            return wroteSomething;
+        }
+    }
+    
+    /**
+     * Waits (for at most 'timeoutNs') until everything logged before this call has been written.
+     */
+    void flush(long timeoutNs) {
+        final long target = tail.get();
+        final long deadlineNs = System.nanoTime() + timeoutNs;
+        while (head < target && System.nanoTime() < deadlineNs) {
+            wakeWriter();
+            LockSupport.parkNanos(1000 * 1000);
+        }
+    }
+    
+    private void shutDown() {
+        flush(SHUTDOWN_FLUSH_TIMEOUT_NS);
+        // From now on, write on the caller's thread; the writer thread may not get another chance to run.
+        isSynchronous = true;
+        wakeWriter();
+        try {
+            writerThread.join(SHUTDOWN_FLUSH_TIMEOUT_NS / 1000 / 1000);
+        } catch (InterruptedException ex) {
+            // We're shutting down anyway.
+        }
+        if (writerThread.isAlive() == false) {
+            // Write anything that slipped in between the flush and the switch.
+            writeBatch();
+        }
+    }
+    
+    @Test private static void testMessagesAreWrittenInOrder() {
+        final StringWriter stringWriter = new StringWriter();
+        final AsyncLogWriter writer = new AsyncLogWriter(new DefaultLogWriter("test", stringWriter), 4, OverflowPolicy.BLOCK);
+        for (int i = 0; i < 100; ++i) {
+            writer.log("message " + i, null);
+        }
+        writer.flush(SHUTDOWN_FLUSH_TIMEOUT_NS);
+        final String[] lines = stringWriter.toString().split("\n");
+        Assert.equals(lines.length, 100);
+        for (int i = 0; i < 100; ++i) {
+            Assert.equals(lines[i].endsWith(" test: message " + i), true);
+        }
+    }
+    
+    @TestHelper private static Writer makeNullWriter() {
+        return new Writer() {
+            @Override public void write(char[] chars, int offset, int length) {
+            }
+            @Override public void flush() {
+            }
+            @Override public void close() {
+            }
+        };
+    }
+    
+    // Shared between runs, so we don't start a new writer thread each time.
+    private static AsyncLogWriter benchmarkWriter;
+    private static final int BENCHMARK_CAPACITY = 8192;
+    
+    // Measures the cost of logging a message, a buffer's worth at a time, as a burst of warnings would.
+    // We wait for each burst to be written before the next, so this includes the writer thread's work, not just the caller's.
+    // A dropped message costs next to nothing, so we fail rather than report a cost that's mostly dropping.
+    @Benchmark private static Object benchmarkAsyncLog(int iterationCount) {
+        if (benchmarkWriter == null) {
+            benchmarkWriter = new AsyncLogWriter(new DefaultLogWriter("benchmark", makeNullWriter()), BENCHMARK_CAPACITY, OverflowPolicy.DROP);
+        }
+        final AsyncLogWriter writer = benchmarkWriter;
+        final long initialDroppedCount = droppedMessageCounter.get();
+        for (int i = 0; i < iterationCount; i += BENCHMARK_CAPACITY) {
+            final int burstEnd = Math.min(i + BENCHMARK_CAPACITY, iterationCount);
+            for (int j = i; j < burstEnd; ++j) {
+                writer.log("benchmark message", null);
+            }
+            writer.flush(SHUTDOWN_FLUSH_TIMEOUT_NS);
+        }
+        final long droppedCount = droppedMessageCounter.get() - initialDroppedCount;
+        if (droppedCount > 0) {
+            throw new IllegalStateException("dropped " + droppedCount + " of " + iterationCount + " messages");
+        }
+        return writer;
+    }
+    
+    // The synchronous equivalent, for comparison. This is with a writer that does nothing; a real disk would be much worse.
+    @Benchmark private static Object benchmarkSyncLog(int iterationCount) {
+        final DefaultLogWriter writer = new DefaultLogWriter("benchmark", makeNullWriter());
+        for (int i = 0; i < iterationCount; ++i) {
+            writer.log("benchmark message", null);
+        }
+        return writer;
+    }
+}
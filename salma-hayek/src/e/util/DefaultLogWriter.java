@@ -3,16 +3,21 @@ package e.util;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Date;
 
 /**
  * Respects e.util.Log.filename property if set, otherwise uses stderr.
  * 
+ * AsyncLogWriter uses the package-private methods to do the formatting and
+ * writing on its own thread, a batch at a time.
+ * 
  * @author mth
  */
 class DefaultLogWriter implements LogWriter {
 
     private final String applicationName;
-    private PrintWriter out = new PrintWriter(System.err, true);
+    private PrintWriter out = new PrintWriter(System.err);
 
     public DefaultLogWriter(final String applicationName) {
         this.applicationName = applicationName;
@@ -24,20 +29,44 @@ class DefaultLogWriter implements LogWriter {
                 FileOutputStream fileOutputStream = new FileOutputStream(logFilename, true);
                 // Use the UTF-8 character encoding.
                 OutputStreamWriter outputStreamWriter = new OutputStreamWriter(fileOutputStream, "utf-8");
-                // Auto-flush when println is called.
-                out = new PrintWriter(outputStreamWriter, true);
+                // We flush after each message (or batch of messages), rather than after every println.
+                out = new PrintWriter(outputStreamWriter);
             }
         } catch (Throwable th) {
             log("Couldn't redirect logging to \"" + logFilename + "\"", th);
         }
     }
 
-    public void log(final String message, final Throwable th) {
-        out.println(TimeUtilities.currentIsoString() + " " + applicationName + ": " + message);
+    /**
+     * Logs to 'writer' instead of the usual destination. Used for testing and benchmarking.
+     */
+    DefaultLogWriter(final String applicationName, final Writer writer) {
+        this.applicationName = applicationName;
+        this.out = new PrintWriter(writer);
+    }
+
+    public synchronized void log(final String message, final Throwable th) {
+        write(System.currentTimeMillis(), message, th);
+        flush();
+    }
+
+    /**
+     * Writes a message logged at 'timeMs' without flushing.
+     * Callers must synchronize on this writer.
+     */
+    void write(final long timeMs, final String message, final Throwable th) {
+        out.println(TimeUtilities.toIsoString(new Date(timeMs)) + " " + applicationName + ": " + message);
         if (th != null) {
             out.println("Associated exception:");
             th.printStackTrace(out);
         }
     }
 
+    /**
+     * Callers must synchronize on this writer.
+     */
+    void flush() {
+        out.flush();
+    }
+
 }
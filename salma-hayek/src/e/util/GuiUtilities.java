@@ -52,14 +52,15 @@ public class GuiUtilities {
     // and which is the only "unusual" platform anyway, hard-code the -Ex value
     // that we need. (Reported by Tanel Poder.)
     // All of this can be replaced by just getMenuShortcutKeyMaskEx() >= Java 10.
+    // A headless toolkit (as when running benchmarks) refuses to answer, so assume control.
     @SuppressWarnings("deprecation") // getMenuShortcutKeyMaskEx requires Java 10.
-    private static final int defaultKeyStrokeModifier = GuiUtilities.isMacOs() ? InputEvent.META_DOWN_MASK : Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
+    private static final int defaultKeyStrokeModifier = GuiUtilities.isMacOs() ? InputEvent.META_DOWN_MASK : (GraphicsEnvironment.isHeadless() ? InputEvent.CTRL_MASK : Toolkit.getDefaultToolkit().getMenuShortcutKeyMask());
     
     /**
      * An invisible cursor, useful if you want to hide the cursor when the
-     * user is typing.
+     * user is typing. (When headless, there are no cursors, so it's just the default.)
      */
-    public static final Cursor INVISIBLE_CURSOR = Toolkit.getDefaultToolkit().createCustomCursor(new BufferedImage(1, 1, BufferedImage.TYPE_4BYTE_ABGR), new Point(0, 0), "invisible");
+    public static final Cursor INVISIBLE_CURSOR = GraphicsEnvironment.isHeadless() ? Cursor.getDefaultCursor() : Toolkit.getDefaultToolkit().createCustomCursor(new BufferedImage(1, 1, BufferedImage.TYPE_4BYTE_ABGR), new Point(0, 0), "invisible");
     
     private static final Color MAC_OS_ALTERNATE_ROW_COLOR = new Color(0.92f, 0.95f, 0.99f);
     
@@ -79,13 +80,15 @@ public class GuiUtilities {
     }
     
     public static void invokeLater(final Runnable runnable) {
-        java.awt.EventQueue.invokeLater(() -> {
+        // This is what EventQueue.invokeLater does, except that we use the Runnable as the event's source.
+        // That lets EventDispatchThreadHangMonitor say whose code was slow, rather than just blaming us.
+        Toolkit.getDefaultToolkit().getSystemEventQueue().postEvent(new InvocationEvent(runnable, () -> {
             try {
                 runnable.run();
             } catch (Throwable th) {
                 Log.warn("Failure in Swing invocation", th);
             }
-        });
+        }));
     }
     
     /**
@@ -14,6 +14,10 @@ import java.util.*;
  * 
  * Evergreen uses this so you can open files from the shell, and Terminator uses it
  * so that successive invocations don't need to start a new VM.
+ * 
+ * Every server also understands "metrics [filter]", which replies with
+ * Metrics.toStringAll, so you can see how a running application is doing
+ * without having to use its debug menu.
  */
 public final class InAppServer {
     private String fullName;
@@ -66,6 +70,10 @@ public final class InAppServer {
         String commandName = split[0];
         
         try {
+            if (commandName.equals("metrics")) {
+                out.print(Metrics.toStringAll((split.length > 1) ? split[1] : null));
+                return true;
+            }
             Method[] methods = exportedInterface.getMethods();
             for (Method method : methods) {
                 if (method.getName().equals(commandName) && method.getReturnType() == void.class) {
@@ -29,7 +29,7 @@ public class Log {
     
     private static String applicationName = System.getProperty("e.util.Log.applicationName", "unknown");
     
-    private static LogWriter out = new DefaultLogWriter(applicationName);
+    private static LogWriter out = makeDefaultLogWriter();
     static {
         final String logWriterClassName = System.getProperty("e.util.Log.logWriter");
         try {
@@ -42,6 +42,21 @@ public class Log {
         }
     }
     
+    /**
+     * Logs asynchronously unless e.util.Log.async is "false".
+     * e.util.Log.overflow says what to do when the writer thread can't keep up: "drop" (the default) or "block".
+     * e.util.Log.capacity says how many messages can be waiting to be written.
+     */
+    private static LogWriter makeDefaultLogWriter() {
+        final DefaultLogWriter defaultLogWriter = new DefaultLogWriter(applicationName);
+        if (System.getProperty("e.util.Log.async", "true").equals("false")) {
+            return defaultLogWriter;
+        }
+        final AsyncLogWriter.OverflowPolicy overflowPolicy = System.getProperty("e.util.Log.overflow", "drop").equals("block") ? AsyncLogWriter.OverflowPolicy.BLOCK : AsyncLogWriter.OverflowPolicy.DROP;
+        final int capacity = Integer.getInteger("e.util.Log.capacity", 8192);
+        return new AsyncLogWriter(defaultLogWriter, capacity, overflowPolicy);
+    }
+    
     private static ArrayList<String> banners = initBanners();
     
     private static ArrayList<String> initBanners() {
@@ -0,0 +1,182 @@
+package e.util;
+
+import java.lang.ref.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Estimates how much of the heap each of our big data structures is using.
+ *
+ * The heap view tells you how much memory is in use, and a heap histogram
+ * tells you it's mostly char[], but neither tells you which file's undo
+ * history or which terminal's scrollback is responsible. So each structure
+ * that can grow large registers an estimator here:
+ *
+ *   MemoryAccountant.register(this, "Terminal scrollback", TerminalModel::getName, TerminalModel::estimateMemoryUse);
+ *
+ * Owners are only weakly referenced, so registering doesn't keep anything
+ * alive, and there's no need to unregister. Estimators should be quick
+ * (arithmetic on sizes we already know, or at worst a walk over an array)
+ * because they're all called every few seconds while the breakdown's on show.
+ * They're called on the EDT.
+ *
+ * The estimates assume a 64-bit VM with compressed oops and compact strings,
+ * and ignore sharing. They're meant to say which structure is big, not to
+ * add up to the heap size.
+ */
+public final class MemoryAccountant {
+    private static final ArrayList<Entry<?>> entries = new ArrayList<>();
+
+    private MemoryAccountant() {
+    }
+
+    /**
+     * Registers 'owner' for accounting under 'category'. 'describer' says
+     * which particular file, terminal, or whatever, 'owner' belongs to, and
+     * 'estimator' returns an estimate of its size in bytes.
+     */
+    public static <T> void register(T owner, String category, Function<? super T, String> describer, ToLongFunction<? super T> estimator) {
+        synchronized (entries) {
+            entries.add(new Entry<T>(owner, category, describer, estimator));
+        }
+    }
+
+    /**
+     * Returns estimates for all live registered owners, largest first.
+     */
+    public static List<Estimate> estimateAll() {
+        final ArrayList<Entry<?>> liveEntries = new ArrayList<>();
+        synchronized (entries) {
+            entries.removeIf((entry) -> entry.owner.get() == null);
+            liveEntries.addAll(entries);
+        }
+        final ArrayList<Estimate> result = new ArrayList<>();
+        for (Entry<?> entry : liveEntries) {
+            final Estimate estimate = entry.estimate();
+            if (estimate != null) {
+                result.add(estimate);
+            }
+        }
+        Collections.sort(result, (lhs, rhs) -> Long.compare(rhs.bytes, lhs.bytes));
+        return result;
+    }
+
+    /**
+     * Returns the total of all the estimates.
+     */
+    public static long estimateTotal() {
+        long total = 0;
+        for (Estimate estimate : estimateAll()) {
+            total += estimate.bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Returns a human-readable breakdown: the total for each category, and
+     * then each individual estimate, largest first in both cases.
+     */
+    public static String toStringAll() {
+        final List<Estimate> estimates = estimateAll();
+        final Map<String, Long> categoryTotals = new HashMap<>();
+        long total = 0;
+        for (Estimate estimate : estimates) {
+            categoryTotals.merge(estimate.category, estimate.bytes, Long::sum);
+            total += estimate.bytes;
+        }
+        final List<Map.Entry<String, Long>> sortedTotals = new ArrayList<>(categoryTotals.entrySet());
+        Collections.sort(sortedTotals, (lhs, rhs) -> Long.compare(rhs.getValue(), lhs.getValue()));
+
+        final StringBuilder result = new StringBuilder();
+        result.append(String.format("%10s  %s\n", bytesToString(total), "Total (estimated)"));
+        result.append("\n");
+        for (Map.Entry<String, Long> categoryTotal : sortedTotals) {
+            result.append(String.format("%10s  %s\n", bytesToString(categoryTotal.getValue()), categoryTotal.getKey()));
+        }
+        result.append("\n");
+        for (Estimate estimate : estimates) {
+            result.append(String.format("%10s  %s\n", bytesToString(estimate.bytes), estimate));
+        }
+        return result.toString();
+    }
+
+    private static String bytesToString(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1f KiB", bytes / 1024.0);
+        }
+        return String.format("%.1f MiB", bytes / 1024.0 / 1024.0);
+    }
+
+    /**
+     * Returns the estimated size of an object with the given number of
+     * reference and primitive fields (counting every primitive as 4 bytes,
+     * which is wrong for longs and doubles but close enough).
+     */
+    public static long objectBytes(int fieldCount) {
+        return align(12 + 4L * fieldCount);
+    }
+
+    /**
+     * Returns the estimated size of an array of 'length' elements, each 'elementBytes' long.
+     * References are 4 bytes.
+     */
+    public static long arrayBytes(int length, int elementBytes) {
+        return align(16 + (long) length * elementBytes);
+    }
+
+    /**
+     * Returns the estimated size of a String (or similar CharSequence) of the given length.
+     * We assume the text is mostly ASCII, and so stored one byte per character.
+     */
+    public static long stringBytes(int length) {
+        return objectBytes(3) + arrayBytes(length, 1);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * One structure's estimated size.
+     */
+    public static final class Estimate {
+        public final String category;
+        public final String description;
+        public final long bytes;
+
+        private Estimate(String category, String description, long bytes) {
+            this.category = category;
+            this.description = description;
+            this.bytes = bytes;
+        }
+
+        @Override public String toString() {
+            return category + ((description != null) ? (" (" + description + ")") : "");
+        }
+    }
+
+    private static final class Entry<T> {
+        private final WeakReference<T> owner;
+        private final String category;
+        private final Function<? super T, String> describer;
+        private final ToLongFunction<? super T> estimator;
+
+        private Entry(T owner, String category, Function<? super T, String> describer, ToLongFunction<? super T> estimator) {
+            this.owner = new WeakReference<>(owner);
+            this.category = category;
+            this.describer = describer;
+            this.estimator = estimator;
+        }
+
+        // Returns null if our owner has gone.
+        private Estimate estimate() {
+            final T currentOwner = owner.get();
+            if (currentOwner == null) {
+                return null;
+            }
+            return new Estimate(category, describer.apply(currentOwner), estimator.applyAsLong(currentOwner));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package e.util;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * A List backed by a circular array, so that removing elements from the
+ * front is as cheap as adding them to the back. That makes it a good fit for
+ * bounded histories such as terminal scrollback, where the oldest element
+ * goes every time a new one arrives.
+ * 
+ * Random access is O(1). Inserting or removing elsewhere moves whichever
+ * side of the list is shorter, so it's cheap near either end.
+ * 
+ * Like ArrayList, this isn't synchronized, and permits null.
+ */
+public class RingList<E> extends AbstractList<E> implements RandomAccess {
+    private Object[] elements;
+    // The index in 'elements' of our element 0.
+    private int head;
+    private int size;
+    
+    public RingList() {
+        this(16);
+    }
+    
+    public RingList(int initialCapacity) {
+        elements = new Object[Math.max(1, initialCapacity)];
+    }
+    
+    // Returns the index in 'elements' of our element 'index'.
+    private int physicalIndex(int index) {
+        final int i = head + index;
+        return (i < elements.length) ? i : i - elements.length;
+    }
+    
+    private void checkIndex(int index, int limit) {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException("index=" + index + " size()=" + size);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override public E get(int index) {
+        checkIndex(index, size);
+        return (E) elements[physicalIndex(index)];
+    }
+    
+    @Override public E set(int index, E element) {
+        final E result = get(index);
+        elements[physicalIndex(index)] = element;
+        return result;
+    }
+    
+    @Override public int size() {
+        return size;
+    }
+    
+    @Override public boolean add(E element) {
+        ensureCapacity(size + 1);
+        elements[physicalIndex(size)] = element;
+        ++size;
+        ++modCount;
+        return true;
+    }
+    
+    @Override public void add(int index, E element) {
+        checkIndex(index, size + 1);
+        ensureCapacity(size + 1);
+        if (index < size / 2) {
+            // Move the elements before 'index' one to the left.
+            head = (head == 0) ? elements.length - 1 : head - 1;
+            for (int i = 0; i < index; ++i) {
+                elements[physicalIndex(i)] = elements[physicalIndex(i + 1)];
+            }
+        } else {
+            // Move the elements from 'index' on one to the right.
+            for (int i = size; i > index; --i) {
+                elements[physicalIndex(i)] = elements[physicalIndex(i - 1)];
+            }
+        }
+        elements[physicalIndex(index)] = element;
+        ++size;
+        ++modCount;
+    }
+    
+    @Override public E remove(int index) {
+        final E result = get(index);
+        if (index < size / 2) {
+            // Move the elements before 'index' one to the right.
+            for (int i = index; i > 0; --i) {
+                elements[physicalIndex(i)] = elements[physicalIndex(i - 1)];
+            }
+            elements[head] = null;
+            head = physicalIndex(1);
+        } else {
+            // Move the elements after 'index' one to the left.
+            for (int i = index; i < size - 1; ++i) {
+                elements[physicalIndex(i)] = elements[physicalIndex(i + 1)];
+            }
+            elements[physicalIndex(size - 1)] = null;
+        }
+        --size;
+        ++modCount;
+        return result;
+    }
+    
+    /**
+     * Removes the first 'count' elements, in time proportional to 'count' rather than the size of the list.
+     */
+    public void removeFirst(int count) {
+        if (count < 0 || count > size) {
+            throw new IndexOutOfBoundsException("count=" + count + " size()=" + size);
+        }
+        for (int i = 0; i < count; ++i) {
+            elements[physicalIndex(i)] = null;
+        }
+        head = physicalIndex(count);
+        size -= count;
+        ++modCount;
+    }
+    
+    @Override public void clear() {
+        Arrays.fill(elements, null);
+        head = 0;
+        size = 0;
+        ++modCount;
+    }
+    
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity <= elements.length) {
+            return;
+        }
+        final int newCapacity = Math.max(minCapacity, elements.length + (elements.length >> 1));
+        final Object[] newElements = new Object[newCapacity];
+        for (int i = 0; i < size; ++i) {
+            newElements[i] = elements[physicalIndex(i)];
+        }
+        elements = newElements;
+        head = 0;
+    }
+    
+    @Test private static void testRingList() {
+        final RingList<Integer> list = new RingList<>(4);
+        final ArrayList<Integer> expected = new ArrayList<>();
+        final Random random = new Random(0);
+        for (int i = 0; i < 2000; ++i) {
+            final int operation = random.nextInt(5);
+            if (operation == 0 && expected.isEmpty() == false) {
+                final int index = random.nextInt(expected.size());
+                Assert.equals(list.remove(index), expected.remove(index));
+            } else if (operation == 1 && expected.size() > 2) {
+                final int count = random.nextInt(3);
+                list.removeFirst(count);
+                expected.subList(0, count).clear();
+            } else if (operation == 2) {
+                final int index = random.nextInt(expected.size() + 1);
+                list.add(index, i);
+                expected.add(index, i);
+            } else {
+                list.add(i);
+                expected.add(i);
+            }
+            Assert.equals(list, expected);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package e.util;
 
-import static e.util.TimeUtilities.nsToString;
-import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Collects timing data.
@@ -16,40 +15,21 @@ import java.util.*;
  *     } finally {
  *         timer.stop();
  *     }
+ * 
+ * Timings are recorded in the Metrics histogram of the same name, so they
+ * show up alongside all the other metrics, with percentiles.
  */
 public class Stopwatch {
-    private static final Map<String, Stopwatch> stopwatches = new HashMap<>();
+    private static final ConcurrentMap<String, Stopwatch> stopwatches = new ConcurrentHashMap<>();
     
-    private String name;
-    private int sampleCount = 0;
-    private long minDuration_ns = Long.MAX_VALUE;
-    private long maxDuration_ns = 0;
-    private long totalDuration_ns = 0;
+    private final Metrics.Histogram histogram;
     
     private Stopwatch(String name) {
-        this.name = name;
+        this.histogram = Metrics.histogram(name);
     }
     
     public static Stopwatch get(String name) {
-        synchronized (stopwatches) {
-            Stopwatch stopwatch = stopwatches.get(name);
-            if (stopwatch == null) {
-                stopwatch = new Stopwatch(name);
-                stopwatches.put(name, stopwatch);
-            }
-            return stopwatch;
-        }
-    }
-    
-    private synchronized void recordTiming(long duration_ns) {
-        ++sampleCount;
-        if (minDuration_ns > duration_ns) {
-            minDuration_ns = duration_ns;
-        }
-        if (maxDuration_ns < duration_ns) {
-            maxDuration_ns = duration_ns;
-        }
-        totalDuration_ns += duration_ns;
+        return stopwatches.computeIfAbsent(name, Stopwatch::new);
     }
     
     public Timer start() {
@@ -58,27 +38,20 @@ public class Stopwatch {
     
     @Override
     public String toString() {
-        String result = "\"" + name + "\": ";
-        if (sampleCount == 0) {
-            result += " (no samples)";
-        } else {
-            result += StringUtilities.pluralize(sampleCount, "sample", "samples") + ", " + nsToString(totalDuration_ns) + " total, " + nsToString(minDuration_ns) + ".." + nsToString(maxDuration_ns) + " (mean " + nsToString(totalDuration_ns/sampleCount) + ")";
-        }
-        return result;
+        return histogram.toString();
     }
     
+    /**
+     * Returns a description of all the stopwatches.
+     * These days, you probably want Metrics.toStringAll instead.
+     */
     public static String toStringAll() {
-        Stopwatch[] all;
-        synchronized (stopwatches) {
-            all = stopwatches.values().toArray(new Stopwatch[stopwatches.size()]);
-        }
-        
         StringBuilder result = new StringBuilder();
-        for (Stopwatch stopwatch : all) {
+        for (Stopwatch stopwatch : stopwatches.values()) {
             result.append(stopwatch.toString());
             result.append("\n");
         }
-        if (all.length == 0) {
+        if (stopwatches.isEmpty()) {
             result.append("(No stopwatches.)");
         }
         return result.toString();
@@ -91,7 +64,7 @@ public class Stopwatch {
         }
         public void stop() {
             t1_ns = System.nanoTime();
-            recordTiming(ns());
+            histogram.record(ns());
         }
         public long ns() {
             return t1_ns - t0_ns;
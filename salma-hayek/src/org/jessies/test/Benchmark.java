@@ -0,0 +1,15 @@
+package org.jessies.test;
+
+import java.lang.annotation.*;
+
+/**
+ * Indicates that the annotated method is a benchmark for the simple Java unit testing framework.
+ * For use only on private static methods taking a single int, the number of times to perform
+ * the operation being measured. (The benchmark runner checks this.)
+ * Anything the method returns is kept, so the JIT can't optimize away the work that produced it.
+ * Setup before the loop is fine: the runner subtracts the cost of a run with an iteration count of 0.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Benchmark {
+}
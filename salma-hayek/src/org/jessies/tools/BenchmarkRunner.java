@@ -0,0 +1,249 @@
+package org.jessies.tools;
+
+import e.util.*;
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.regex.*;
+import org.jessies.cli.*;
+import org.jessies.os.*;
+import org.jessies.test.*;
+
+/**
+ * Runs benchmarks for the simple Java unit testing framework.
+ * 
+ * Given a list of directories, all the class files in those directories trees
+ * are scanned for methods annotated with @Benchmark, just as TestRunner does
+ * for @Test. Each benchmark is then run in turn (never concurrently, since
+ * that would make the timings meaningless).
+ * 
+ * A benchmark method is given an iteration count, and should perform the
+ * operation it measures that many times. We start with one iteration and keep
+ * increasing the count until a run takes at least --min-time milliseconds,
+ * which doubles as JIT warm-up. We then do --trials runs at that count, and
+ * report the median, fastest, and slowest time per operation, plus the bytes
+ * allocated per operation where the JVM can tell us (-1 where it can't).
+ * Give --iterations to use that count instead: a benchmark whose iterations
+ * get dearer the more it does, because it keeps adding to the same state,
+ * can only be compared with another at the same count.
+ * Each trial has the cost of a run with no iterations subtracted, so a
+ * benchmark can do its setup before its loop without the setup counting.
+ * 
+ * Results are written to standard output as tab-separated values, one line per
+ * benchmark, so they can be saved and compared between revisions. Give the
+ * saved output of an earlier run as --baseline to get an extra column showing
+ * how each median has changed. Progress goes to standard error.
+ * 
+ * There's no attempt to match JMH's rigor (forking a fresh JVM per benchmark,
+ * say). The aim is something that's always available and good enough to spot
+ * a regression of tens of percent, not to settle arguments about nanoseconds.
+ */
+public class BenchmarkRunner {
+    @Option(names = { "--filter" })
+    private String filter = null;
+    
+    @Option(names = { "--trials" })
+    private int trialCount = 5;
+    
+    @Option(names = { "--min-time" })
+    private int minTimeMs = 200;
+    
+    // If not 0, the iteration count to use, rather than finding one that takes --min-time.
+    @Option(names = { "--iterations" })
+    private int fixedIterationCount = 0;
+    
+    @Option(names = { "--baseline" })
+    private String baselineFilename = null;
+    
+    // The last thing each benchmark returned; see @Benchmark.
+    public static volatile Object sink;
+    
+    private final List<BenchmarkResult> results = new ArrayList<>();
+    
+    public static void main(String[] args) throws Exception {
+        new BenchmarkRunner(args);
+    }
+    
+    private BenchmarkRunner(String[] args) throws Exception {
+        final List<String> directories = new OptionParser(this).parse(args);
+        final Map<String, Double> baseline = readBaseline();
+        
+        final List<Method> benchmarks = findBenchmarkMethods(directories);
+        if (benchmarks.isEmpty()) {
+            error("No benchmarks found!");
+        }
+        for (Method benchmark : benchmarks) {
+            results.add(runBenchmark(benchmark));
+        }
+        
+        reportResults(baseline);
+        System.exit(Posix.EXIT_SUCCESS);
+    }
+    
+    private List<Method> findBenchmarkMethods(List<String> directoryNames) throws Exception {
+        final ClassFileFinder finder = new ClassFileFinder(directoryNames);
+        List<String> classNames = null;
+        try {
+            classNames = finder.findClassNames();
+        } catch (IllegalArgumentException ex) {
+            error(ex.getMessage());
+        }
+        
+        final ClassLoader classLoader = finder.makeClassLoader();
+        final Pattern filterPattern = (filter != null) ? Pattern.compile(filter) : null;
+        final List<Method> result = new ArrayList<>();
+        for (String className : classNames) {
+            final Class<?> benchmarkClass = classLoader.loadClass(className);
+            for (Method method : benchmarkClass.getDeclaredMethods()) {
+                if (method.isAnnotationPresent(Benchmark.class)) {
+                    ensureBenchmarkMethodIsSuitable(method);
+                    if (filterPattern == null || filterPattern.matcher(nameOf(method)).find()) {
+                        method.setAccessible(true);
+                        result.add(method);
+                    }
+                }
+            }
+        }
+        // A consistent order makes it easier to compare runs by eye.
+        Collections.sort(result, (lhs, rhs) -> nameOf(lhs).compareTo(nameOf(rhs)));
+        return result;
+    }
+    
+    private static String nameOf(Method method) {
+        return method.getDeclaringClass().getName() + "." + method.getName();
+    }
+    
+    private BenchmarkResult runBenchmark(Method method) throws Exception {
+        final String name = nameOf(method);
+        System.err.println("-- " + name);
+        
+        // Warm up, and find out how long a benchmark's setup takes by itself.
+        timeRun(method, 1);
+        final long setupNs = timeRun(method, 0);
+        
+        // Unless we were given one, find an iteration count that takes long enough (beyond the setup) to time reliably.
+        final long minTimeNs = minTimeMs * 1000L * 1000L;
+        int iterationCount = 1;
+        if (fixedIterationCount != 0) {
+            // We still want the JIT warmed up, as finding a count would have done.
+            iterationCount = fixedIterationCount;
+            timeRun(method, iterationCount);
+        }
+        while (fixedIterationCount == 0) {
+            final long ns = timeRun(method, iterationCount) - setupNs;
+            if (ns >= minTimeNs || iterationCount == Integer.MAX_VALUE) {
+                break;
+            }
+            // Aim a little past the target, but don't grow too fast on the strength of one noisy run.
+            final double predicted = 1.2 * iterationCount * minTimeNs / Math.max(ns, 1);
+            iterationCount = (int) Math.min(Integer.MAX_VALUE, Math.max(iterationCount + 1, Math.min(100.0 * iterationCount, predicted)));
+        }
+        
+        // Each trial subtracts the cost of a run with no iterations, so setup isn't counted as part of the operation.
+        final BenchmarkResult result = new BenchmarkResult(name, iterationCount);
+        for (int trial = 0; trial < trialCount; ++trial) {
+            final long emptyBytesBefore = allocatedBytes();
+            final long emptyNs = timeRun(method, 0);
+            final long emptyBytes = allocatedBytes() - emptyBytesBefore;
+            final long bytesBefore = allocatedBytes();
+            final long ns = timeRun(method, iterationCount);
+            final long bytes = allocatedBytes() - bytesBefore;
+            result.addTrial((double) (ns - emptyNs) / iterationCount, (bytesBefore == -1) ? -1 : (double) (bytes - emptyBytes) / iterationCount);
+        }
+        return result;
+    }
+    
+    private static long timeRun(Method method, int iterationCount) throws Exception {
+        final long startNs = System.nanoTime();
+        try {
+            sink = method.invoke(null, iterationCount);
+        } catch (InvocationTargetException ex) {
+            throw new RuntimeException(nameOf(method) + " failed", ex.getCause());
+        }
+        return System.nanoTime() - startNs;
+    }
+    
+    /**
+     * Returns the number of bytes allocated by the current thread so far, or -1 if the JVM won't tell us.
+     */
+    private static long allocatedBytes() {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+    
+    private static class BenchmarkResult {
+        private final String name;
+        private final int iterationCount;
+        private final List<Double> nsPerOp = new ArrayList<>();
+        private double bytesPerOp = Double.MAX_VALUE;
+        
+        BenchmarkResult(String name, int iterationCount) {
+            this.name = name;
+            this.iterationCount = iterationCount;
+        }
+        
+        void addTrial(double ns, double bytes) {
+            nsPerOp.add(ns);
+            // Take the smallest, since a GC or class loading can only add allocation.
+            bytesPerOp = Math.min(bytesPerOp, bytes);
+        }
+        
+        double median() {
+            final List<Double> sorted = new ArrayList<>(nsPerOp);
+            Collections.sort(sorted);
+            return sorted.get(sorted.size() / 2);
+        }
+    }
+    
+    private Map<String, Double> readBaseline() {
+        final Map<String, Double> result = new HashMap<>();
+        if (baselineFilename == null) {
+            return result;
+        }
+        try {
+            for (String line : StringUtilities.readLinesFromFile(baselineFilename)) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\t");
+                result.put(fields[0], Double.valueOf(fields[2]));
+            }
+        } catch (Exception ex) {
+            error("couldn't read baseline \"" + baselineFilename + "\": " + ex.getMessage());
+        }
+        return result;
+    }
+    
+    private void reportResults(Map<String, Double> baseline) {
+        System.out.println("# benchmark\titerations\tmedian ns/op\tmin ns/op\tmax ns/op\tbytes/op" + (baseline.isEmpty() ? "" : "\tchange"));
+        for (BenchmarkResult result : results) {
+            final double median = result.median();
+            String line = String.format("%s\t%d\t%.1f\t%.1f\t%.1f\t%.1f", result.name, result.iterationCount, median, Collections.min(result.nsPerOp), Collections.max(result.nsPerOp), result.bytesPerOp);
+            if (baseline.isEmpty() == false) {
+                final Double baselineMedian = baseline.get(result.name);
+                line += (baselineMedian != null) ? String.format("\t%+.1f%%", 100.0 * (median - baselineMedian) / baselineMedian) : "\tnew";
+            }
+            System.out.println(line);
+        }
+    }
+    
+    // Check that the given method, which was annotated with @Benchmark, is actually suitable to be a benchmark method.
+    private void ensureBenchmarkMethodIsSuitable(Method method) {
+        if (!Modifier.isPrivate(method.getModifiers()) || !Modifier.isStatic(method.getModifiers())) {
+            error("benchmark methods should be private static; got " + method);
+        }
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        if (parameterTypes.length != 1 || parameterTypes[0] != int.class) {
+            error("benchmark methods should take a single int iteration count; got " + method);
+        }
+    }
+    
+    private void error(String message) {
+        System.err.println("ERROR: " + message);
+        System.exit(Posix.EXIT_FAILURE);
+    }
+}
@@ -0,0 +1,61 @@
+package org.jessies.tools;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Finds and loads all the top-level classes in some directory trees of class files.
+ * Shared by TestRunner and BenchmarkRunner, which both want "everything in this directory".
+ */
+class ClassFileFinder {
+    private final List<String> directoryNames;
+    
+    ClassFileFinder(List<String> directoryNames) {
+        this.directoryNames = directoryNames;
+    }
+    
+    // Makes a ClassLoader that can load classes from our directories.
+    ClassLoader makeClassLoader() throws MalformedURLException {
+        final URL[] classPath = new URL[directoryNames.size()];
+        for (int i = 0; i < classPath.length; ++i) {
+            classPath[i] = new File(directoryNames.get(i)).toURI().toURL();
+        }
+        return new URLClassLoader(classPath, getClass().getClassLoader());
+    }
+    
+    /**
+     * Returns the names of all the top-level classes in our directories.
+     * Throws IllegalArgumentException if we come across something that isn't a directory or a class file.
+     */
+    List<String> findClassNames() {
+        List<String> result = new ArrayList<>();
+        for (String directoryName : directoryNames) {
+            File directory = new File(directoryName);
+            if (directory.isDirectory()) {
+                findClassNames(directory, "", result);
+            } else {
+                throw new IllegalArgumentException("'" + directoryName + "' is not a directory");
+            }
+        }
+        return result;
+    }
+    
+    private void findClassNames(File directory, String packageName, List<String> result) {
+        // FIXME: parallelize?
+        for (String filename : directory.list()) {
+            if (filename.indexOf('$') != -1) {
+                // We're not interested in inner classes.
+            } else if (filename.endsWith(".class")) {
+                String className = filename.substring(0, filename.length() - ".class".length());
+                result.add(packageName + className);
+            } else {
+                File file = new File(directory, filename);
+                if (file.isDirectory() == false) {
+                    throw new IllegalArgumentException("'" + file + "' is not a directory or a .class file");
+                }
+                findClassNames(file, packageName + filename + ".", result);
+            }
+        }
+    }
+}
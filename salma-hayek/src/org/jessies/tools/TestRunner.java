@@ -3,7 +3,6 @@ package org.jessies.tools;
 import e.util.*;
 import java.io.*;
 import java.lang.reflect.*;
-import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
 import org.jessies.cli.*;
@@ -111,48 +110,15 @@ public class TestRunner {
     }
     
     private void scheduleTests(List<String> directoryNames) throws Exception {
-        findTestMethods(makeClassLoader(directoryNames), findClassNames(directoryNames));
-    }
-    
-    // Makes a ClassLoader that can load classes from the given directories.
-    private ClassLoader makeClassLoader(List<String> classPathDirectoryNames) throws Exception {
-        final URL[] classPath = new URL[classPathDirectoryNames.size()];
-        for (int i = 0; i < classPath.length; ++i) {
-            classPath[i] = new File(classPathDirectoryNames.get(i)).toURI().toURL();
-        }
-        return new URLClassLoader(classPath, getClass().getClassLoader());
-    }
-    
-    private List<String> findClassNames(List<String> directoryNames) {
-        List<String> result = new ArrayList<>();
-        for (String directoryName : directoryNames) {
-            File directory = new File(directoryName);
-            if (directory.isDirectory()) {
-                findClassNames(directory, "", result);
-            } else {
-                error("'" + directoryName + "' is not a directory");
-            }
-        }
-        verbose("Total classes scanned: " + result.size());
-        return result;
-    }
-    
-    private void findClassNames(File directory, String packageName, List<String> result) {
-        // FIXME: parallelize?
-        for (String filename : directory.list()) {
-            if (filename.indexOf('$') != -1) {
-                // We're not interested in inner classes.
-            } else if (filename.endsWith(".class")) {
-                String className = filename.substring(0, filename.length() - ".class".length());
-                result.add(packageName + className);
-            } else {
-                File file = new File(directory, filename);
-                if (file.isDirectory() == false) {
-                    error("'" + file + "' is not a directory or a .class file");
-                }
-                findClassNames(file, packageName + filename + ".", result);
-            }
+        final ClassFileFinder finder = new ClassFileFinder(directoryNames);
+        List<String> classNames = null;
+        try {
+            classNames = finder.findClassNames();
+        } catch (IllegalArgumentException ex) {
+            error(ex.getMessage());
         }
+        verbose("Total classes scanned: " + classNames.size());
+        findTestMethods(finder.makeClassLoader(), classNames);
     }
     
     private void findTestMethods(ClassLoader classLoader, List<String> classNames) throws Exception {
@@ -187,22 +187,35 @@ public class Palettes {
     
     /**
      * Returns an accessor for the given color. This is then used to retrieve the current color at redraw time.
+     * Inks are immutable, and the get methods below return shared instances where they can, because they're created for almost every SGR escape sequence.
      */
     public static class Ink {
-        private int index;
-        private Color fixedColor;
-        private String colorSetting;
+        private final int index;
+        private final Color fixedColor;
+        private final String colorSetting;
+        private final int hashCode;
         
         protected Ink(int index) {
-            this.index = index;
+            this(index, null, null);
         }
         
         protected Ink(Color fixedColor) {
-            this.fixedColor = fixedColor;
+            this(0, fixedColor, null);
         }
         
         protected Ink(String colorSetting) {
+            this(0, null, colorSetting);
+        }
+        
+        private Ink(int index, Color fixedColor, String colorSetting) {
+            this.index = index;
+            this.fixedColor = fixedColor;
             this.colorSetting = colorSetting;
+            int result = 17;
+            result = 31 * result + index;
+            result = 31 * result + Objects.hashCode(fixedColor);
+            result = 31 * result + Objects.hashCode(colorSetting);
+            this.hashCode = result;
         }
         
         public Color get() {
@@ -214,22 +227,70 @@ public class Palettes {
         @Override public String toString() {
             return "Ink[" + get() + "]";
         }
+        
+        // Inks are compared by what they refer to, not what that currently is, so that a palette or preference change still affects both.
+        @Override public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof Ink == false) {
+                return false;
+            }
+            Ink ink = (Ink) obj;
+            return hashCode == ink.hashCode && index == ink.index && Objects.equals(fixedColor, ink.fixedColor) && Objects.equals(colorSetting, ink.colorSetting);
+        }
+        
+        @Override public int hashCode() {
+            return hashCode;
+        }
     }
     
+    private static final Ink[] indexedInks = new Ink[256];
+    static {
+        for (int i = 0; i < indexedInks.length; ++i) {
+            indexedInks[i] = new Ink(i);
+        }
+    }
+    
+    private static final Ink BACKGROUND_INK = new Ink(TerminatorPreferences.BACKGROUND_COLOR);
+    private static final Ink FOREGROUND_INK = new Ink(TerminatorPreferences.FOREGROUND_COLOR);
+    
+    // A direct-mapped cache of 24-bit colors, so that a program that sets the same few colors over and over (which is what they all do) doesn't allocate a Color and an Ink each time.
+    // Unsynchronized, because Inks are immutable and a lost update just means a miss.
+    private static final Ink[] fixedInkCache = new Ink[1024];
+    
     public static Ink getInk(int index) {
-        return new Ink(index);
+        return (index >= 0 && index < indexedInks.length) ? indexedInks[index] : new Ink(index);
     }
     
     public static Ink getFixedInk(Color fixedColor) {
         return new Ink(fixedColor);
     }
     
+    /**
+     * Returns an Ink for the 24-bit color with the given components, each 0-255.
+     */
+    public static Ink getFixedInk(int red, int green, int blue) {
+        if (((red | green | blue) & ~0xff) != 0) {
+            // Let Color complain.
+            return getFixedInk(new Color(red, green, blue));
+        }
+        final int rgb = (red << 16) | (green << 8) | blue;
+        final int slot = ((rgb * 0x9e3779b1) >>> 22) & (fixedInkCache.length - 1);
+        Ink ink = fixedInkCache[slot];
+        if (ink == null || (ink.fixedColor.getRGB() & 0xffffff) != rgb) {
+            ink = new Ink(new Color(rgb));
+            fixedInkCache[slot] = ink;
+        }
+        return ink;
+    }
+    
     public static Ink getBackgroundInk() {
-        return new Ink(TerminatorPreferences.BACKGROUND_COLOR);
+        return BACKGROUND_INK;
     }
     
     public static Ink getForegroundInk() {
-        return new Ink(TerminatorPreferences.FOREGROUND_COLOR);
+        return FOREGROUND_INK;
     }
     
     /**
@@ -2,60 +2,115 @@ package terminator;
 
 import e.gui.*;
 import e.util.*;
-import java.awt.event.*;
 import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.text.*;
 import java.util.*;
-import javax.swing.Timer;
+import java.util.zip.*;
+import org.jessies.test.*;
 
 /**
  * Logs terminal output to a file.
  * Logging can be temporarily suspended.
  * If the terminal logs directory does not exist or we can't open the log file for some other reason, logging is automatically suspended, and can't be un-suspended.
+ * 
+ * The terminal's reader thread only copies what it's read into a bounded
+ * queue. A writer thread of our own compresses and writes it, so a slow or
+ * network home directory can't slow the terminal down, and the EDT never
+ * touches the file. If the writer falls so far behind that the queue fills,
+ * we drop output rather than make the terminal wait, and say how much we've
+ * dropped, both in the log and in getInfo.
+ * 
+ * Logs are gzipped, and flushed a second after a line of output if nothing
+ * more comes, so zcat shows everything but the last second or so, even while
+ * the terminal's still writing. Once a log file is big or old enough, we
+ * start another, and we keep only a session's newest few.
  */
 public class TerminalLogWriter {
     // We can't use ':' to separate the hours, minutes, and seconds because it's not allowed on all file systems.
     private static final DateFormat FILENAME_TIMESTAMP_FORMATTER = new SimpleDateFormat("yyyy-MM-dd'T'HHmmss.SSSZ");
     
-    private String info = "(not logging)";
-    private Writer writer;
-    private Writer suspendedWriter;
-    private Timer flushTimer;
+    private static final boolean COMPRESS = Boolean.parseBoolean(System.getProperty("org.jessies.terminator.compressLogs", "true"));
+    // How much output we'll hold for the writer thread before we start dropping it.
+    private static final int MAX_PENDING_BYTE_COUNT = Integer.getInteger("org.jessies.terminator.logBufferBytes", 4 * 1024 * 1024);
+    // How many bytes (after compression) and how many hours a log file gets before we start a new one.
+    private static final long ROTATION_BYTE_COUNT = Long.getLong("org.jessies.terminator.logRotationBytes", 64L * 1024 * 1024);
+    private static final long ROTATION_AGE_MS = Long.getLong("org.jessies.terminator.logRotationHours", 24) * 60 * 60 * 1000;
+    // How many of a session's log files we keep.
+    private static final int MAX_FILE_COUNT = Integer.getInteger("org.jessies.terminator.logMaxFiles", 8);
+    
+    // How long after output containing a newline we wait for more before flushing.
+    private static final long FLUSH_DELAY_MS = 1000;
+    // How long flush and exiting wait for the writer thread.
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+    
+    private static final Metrics.Counter droppedByteCounter = Metrics.counter("TerminalLogWriter.droppedBytes");
+    
+    // Writers whose threads are still running, so that we can give them a chance to finish their files when we exit.
+    private static final ArrayList<TerminalLogWriter> runningWriters = new ArrayList<>();
+    private static boolean addedShutdownHook;
+    
+    private volatile String info = "(not logging)";
+    
+    private final long rotationByteCount;
+    private final long rotationAgeMs;
+    private final int maxFileCount;
+    
+    // Null if we're not logging.
+    private Thread writerThread;
+    
+    // These are shared between the threads appending and the writer thread, and guarded by 'this'.
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    private int pendingByteCount;
+    private boolean sawNewline;
+    // Bytes dropped since we last said so in the log, and ever.
+    private long droppedByteCount;
+    private long totalDroppedByteCount;
+    private int flushRequestCount;
+    private int completedFlushCount;
+    private boolean suspended;
+    private boolean closed;
+    
+    // These are only used by the writer thread, once it's started.
+    private File logsDirectory;
+    private String commandLine;
+    private int truncationLength;
+    private final ArrayDeque<File> files = new ArrayDeque<>();
+    private OutputStream stream;
+    private CountingOutputStream fileStream;
+    private long fileStartMs;
+    private boolean fileIsEmpty;
     
     public TerminalLogWriter(List<String> command) {
-        // Establish the invariant that writer != null.
-        // suspendedWriter is still null - when we're not suspended.
-        this.writer = NullWriter.INSTANCE;
-        this.flushTimer = new Timer(1000, new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                flush();
-            }
-        });
-        flushTimer.setRepeats(false);
-        // If the user has chosen to disable terminal logging, just leave the NullWriter in place.
-        // Note that this has to occur after the 'flushTimer' initialisation has taken place, otherwise the
-        // 'append' method will throw a null pointer exception, which will prevent the terminal from being
-        // redrawn correctly.
+        this(ROTATION_BYTE_COUNT, ROTATION_AGE_MS, MAX_FILE_COUNT);
+        // If the user has chosen to disable terminal logging, we just never start logging.
         if (!Terminator.getPreferences().getBoolean(TerminatorPreferences.LOG_TERMINAL_ACTIVITY)) {
             return;
         }
         try {
-            initLogging(StringUtilities.join(command, " "));
+            initLogging(System.getProperty("org.jessies.terminator.logDirectory"), StringUtilities.join(command, " "));
         } catch (Throwable th) {
             SimpleDialog.showDetails(null, "Couldn't Open Log File", th);
         }
     }
     
-    private synchronized static File makeLogFilename(File logsDirectory, String commandLine, int truncationLength) {
+    private TerminalLogWriter(long rotationByteCount, long rotationAgeMs, int maxFileCount) {
+        this.rotationByteCount = rotationByteCount;
+        this.rotationAgeMs = rotationAgeMs;
+        this.maxFileCount = maxFileCount;
+    }
+    
+    private synchronized static File makeLogFilename(File logsDirectory, String commandLine, int truncationLength, int fileNumber) {
         String mostInterestingPartOfCommandLine = commandLine.substring(0, truncationLength);
         String suffix = StringUtilities.urlEncode(mostInterestingPartOfCommandLine);
         String timestamp = FILENAME_TIMESTAMP_FORMATTER.format(new Date());
-        String leafname = timestamp + "-" + suffix + ".txt";
+        // Rotated files are numbered, so two started in the same millisecond don't have the same name.
+        String leafname = timestamp + "-" + suffix + ((fileNumber > 1) ? "-" + fileNumber : "") + (COMPRESS ? ".txt.gz" : ".txt");
         return new File(logsDirectory, leafname);
     }
     
-    private void initLogging(String commandLine) throws IOException {
-        String logsDirectoryName = System.getProperty("org.jessies.terminator.logDirectory");
+    private void initLogging(String logsDirectoryName, String commandLine) throws IOException {
         File logsDirectory = new File(logsDirectoryName);
         if (logsDirectory.exists() == false) {
             this.info = "(\"" + logsDirectoryName + "\" does not exist)";
@@ -74,16 +129,15 @@ public class TerminalLogWriter {
             return;
         }
         
+        this.logsDirectory = logsDirectory;
+        this.commandLine = commandLine;
         // Try to create a log file.
         // We'll keep truncating the name until we either succeed or there's no name left.
         // This avoids assumptions about maximum filename or path lengths.
-        for (int truncationLength = commandLine.length(); truncationLength >= 0; --truncationLength) {
-            File logFile = makeLogFilename(logsDirectory, commandLine, truncationLength);
+        for (truncationLength = commandLine.length(); truncationLength >= 0; --truncationLength) {
             try {
-                this.info = "(\"" + logFile + "\" could not be opened for writing)";
-                this.writer = new BufferedWriter(new FileWriter(logFile));
-                this.info = logFile.toString();
-                return;
+                openLogFile();
+                break;
             } catch (IOException ex) {
                 if (truncationLength == 0) {
                     // That's it. We can't retry with a shorter filename.
@@ -91,71 +145,263 @@ public class TerminalLogWriter {
                 }
             }
         }
+        
+        this.writerThread = new Thread(this::writeLoop, "Terminal Log Writer");
+        // We'd rather lose the end of a log than hang on exit; the shutdown hook gives us a chance to finish.
+        writerThread.setDaemon(true);
+        synchronized (runningWriters) {
+            runningWriters.add(this);
+            if (addedShutdownHook == false) {
+                Runtime.getRuntime().addShutdownHook(new Thread(TerminalLogWriter::closeRunningWriters, "Terminal Log Writer Shutdown"));
+                addedShutdownHook = true;
+            }
+        }
+        writerThread.start();
+    }
+    
+    private void openLogFile() throws IOException {
+        File logFile = makeLogFilename(logsDirectory, commandLine, truncationLength, files.size() + 1);
+        this.info = "(\"" + logFile + "\" could not be opened for writing)";
+        this.fileStream = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(logFile)));
+        // Sync flushing means that whatever we've flushed can be decompressed, even if we never finish the file.
+        this.stream = COMPRESS ? new GZIPOutputStream(fileStream, 64 * 1024, true) : fileStream;
+        this.fileStartMs = System.currentTimeMillis();
+        this.fileIsEmpty = true;
+        files.add(logFile);
+        this.info = logFile.toString();
     }
     
-    public void append(char[] chars, int charCount, boolean sawNewline) throws IOException {
-        writer.write(chars, 0, charCount);
-        if (sawNewline) {
-            flushTimer.restart();
+    /**
+     * Queues output for the writer thread. This never waits for the writer: if it's too far behind, the output is dropped.
+     */
+    public synchronized void append(byte[] bytes, int byteCount, boolean sawNewline) {
+        if (writerThread == null || suspended || closed || byteCount == 0) {
+            return;
         }
+        if (pendingByteCount + byteCount > MAX_PENDING_BYTE_COUNT) {
+            droppedByteCount += byteCount;
+            totalDroppedByteCount += byteCount;
+            droppedByteCounter.add(byteCount);
+            return;
+        }
+        pending.add(Arrays.copyOf(bytes, byteCount));
+        pendingByteCount += byteCount;
+        this.sawNewline |= sawNewline;
+        notifyAll();
     }
     
+    /**
+     * Waits, for a second or two at most, until everything appended so far is in the file.
+     */
     public void flush() {
-        try {
-            writer.flush();
-        } catch (Throwable th) {
-            Log.warn("Exception occurred flushing log writer \"" + info + "\".", th);
+        synchronized (this) {
+            if (writerThread == null || closed) {
+                return;
+            }
+            final int target = ++flushRequestCount;
+            notifyAll();
+            final long deadlineMs = System.currentTimeMillis() + FLUSH_TIMEOUT_MS;
+            long remainingMs;
+            while (completedFlushCount < target && writerThread.isAlive() && (remainingMs = deadlineMs - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remainingMs);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
         }
     }
     
-    public void close() {
-        try {
-            suspend(false);
+    /**
+     * Stops logging. The writer thread writes anything still queued, and finishes the file, in its own time.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+    
+    private static void closeRunningWriters() {
+        final ArrayList<TerminalLogWriter> writers;
+        synchronized (runningWriters) {
+            writers = new ArrayList<>(runningWriters);
+        }
+        for (TerminalLogWriter writer : writers) {
             writer.close();
-            writer = NullWriter.INSTANCE;
+        }
+        final long deadlineMs = System.currentTimeMillis() + FLUSH_TIMEOUT_MS;
+        for (TerminalLogWriter writer : writers) {
+            try {
+                writer.writerThread.join(Math.max(1, deadlineMs - System.currentTimeMillis()));
+            } catch (InterruptedException ex) {
+                // We're exiting anyway.
+                return;
+            }
+        }
+    }
+    
+    private void writeLoop() {
+        try {
+            // Whether we've written a newline we've yet to flush, which we'll do once output has stopped for a while.
+            boolean flushDue = false;
+            while (true) {
+                final ArrayList<byte[]> batch;
+                final long dropped;
+                final int flushRequests;
+                final boolean closing;
+                synchronized (this) {
+                    if (pending.isEmpty() && droppedByteCount == 0 && flushRequestCount == completedFlushCount && closed == false) {
+                        if (flushDue) {
+                            wait(FLUSH_DELAY_MS);
+                        } else {
+                            wait();
+                        }
+                    }
+                    batch = new ArrayList<>(pending);
+                    pending.clear();
+                    pendingByteCount = 0;
+                    dropped = droppedByteCount;
+                    droppedByteCount = 0;
+                    flushRequests = flushRequestCount;
+                    closing = closed;
+                    flushDue |= sawNewline;
+                    sawNewline = false;
+                }
+                final boolean idle = batch.isEmpty() && dropped == 0;
+                write(batch, dropped);
+                if (closing) {
+                    stream.close();
+                    break;
+                }
+                if ((flushDue && idle) || flushRequests != completedFlushCount) {
+                    stream.flush();
+                    flushDue = false;
+                }
+                synchronized (this) {
+                    completedFlushCount = flushRequests;
+                    notifyAll();
+                }
+            }
         } catch (Throwable th) {
-            Log.warn("Exception occurred closing log writer \"" + info + "\".", th);
+            Log.warn("Exception occurred writing log \"" + info + "\".", th);
+            try {
+                stream.close();
+            } catch (IOException ex) {
+                // We've already said that something's wrong.
+            }
+            this.info = "(writing \"" + info + "\" failed)";
+        } finally {
+            synchronized (this) {
+                // Stop queuing output, and don't keep anyone waiting for a flush.
+                closed = true;
+                pending.clear();
+                completedFlushCount = flushRequestCount;
+                notifyAll();
+            }
+            synchronized (runningWriters) {
+                runningWriters.remove(this);
+            }
+        }
+    }
+    
+    private void write(ArrayList<byte[]> batch, long dropped) throws IOException {
+        if (batch.isEmpty() && dropped == 0) {
+            return;
+        }
+        if (fileIsEmpty == false && (fileStream.getCount() >= rotationByteCount || System.currentTimeMillis() - fileStartMs >= rotationAgeMs)) {
+            rotate();
+        }
+        if (dropped > 0) {
+            // We've lost track of what the terminal's showing, so start on a new line.
+            final String note = "\r\n[Terminator: " + StringUtilities.pluralize((int) Math.min(dropped, Integer.MAX_VALUE), "byte", "bytes") + " of output dropped because the log couldn't keep up.]\r\n";
+            stream.write(note.getBytes(StandardCharsets.US_ASCII));
+        }
+        for (byte[] bytes : batch) {
+            stream.write(bytes);
+        }
+        fileIsEmpty = false;
+    }
+    
+    private void rotate() throws IOException {
+        stream.close();
+        openLogFile();
+        while (files.size() > maxFileCount) {
+            final File oldest = files.remove();
+            if (oldest.delete() == false) {
+                Log.warn("Couldn't delete old log \"" + oldest + "\".");
+            }
         }
     }
     
     public String getInfo() {
+        synchronized (this) {
+            if (totalDroppedByteCount > 0) {
+                return info + " (" + StringUtilities.pluralize((int) Math.min(totalDroppedByteCount, Integer.MAX_VALUE), "byte", "bytes") + " dropped because the log couldn't keep up)";
+            }
+        }
         return info;
     }
     
     public void suspend(boolean shouldSuspend) {
         flush();
-        if (shouldSuspend == isSuspended()) {
-            return;
-        }
-        if (shouldSuspend) {
-            suspendedWriter = writer;
-            writer = NullWriter.INSTANCE;
-        } else {
-            writer = suspendedWriter;
-            suspendedWriter = null;
+        synchronized (this) {
+            suspended = shouldSuspend;
         }
     }
     
-    public boolean isSuspended() {
-        return (suspendedWriter != null);
+    public synchronized boolean isSuspended() {
+        return suspended;
     }
     
-    public static class NullWriter extends Writer {
-        public static final Writer INSTANCE = new NullWriter();
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
         
-        private NullWriter() {
+        private CountingOutputStream(OutputStream out) {
+            super(out);
         }
         
-        @Override public void close() {
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
         }
         
-        @Override public void flush() {
+        @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
         }
         
-        @Override public void write(int c) {
+        private long getCount() {
+            return count;
         }
-        
-        @Override public void write(char[] buffer, int offset, int byteCount) {
+    }
+    
+    @Test private static void testRotation() throws Exception {
+        final File directory = Files.createTempDirectory("TerminalLogWriter-test").toFile();
+        try {
+            // A new file for every batch, keeping only the last two.
+            final TerminalLogWriter writer = new TerminalLogWriter(1, Long.MAX_VALUE, 2);
+            writer.initLogging(directory.toString(), "echo hello");
+            for (String output : new String[] { "one\r\n", "two\r\n", "three\r\n" }) {
+                final byte[] bytes = output.getBytes(StandardCharsets.US_ASCII);
+                writer.append(bytes, bytes.length, true);
+                writer.flush();
+            }
+            writer.close();
+            writer.writerThread.join();
+            final File[] files = directory.listFiles();
+            Arrays.sort(files);
+            final StringBuilder text = new StringBuilder();
+            for (File file : files) {
+                try (InputStream in = COMPRESS ? new GZIPInputStream(new FileInputStream(file)) : new FileInputStream(file)) {
+                    text.append(new String(in.readAllBytes(), StandardCharsets.US_ASCII));
+                }
+            }
+            Assert.equals(text.toString(), "two\r\nthree\r\n");
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
         }
     }
 }
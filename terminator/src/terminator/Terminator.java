@@ -112,11 +112,15 @@ public class Terminator {
     
     public void flushBiggestScrollBuffer() {
         TerminalModel victim = null;
+        // Estimating means looking at every line, so we only do it once per terminal.
+        long victimMemoryUse = -1;
         for (TerminatorFrame frame : getFrames()) {
             for (JTerminalPane pane : frame.getPanes()) {
                 TerminalModel candidate = pane.getTerminalView().getModel();
-                if (victim == null || candidate.getLineCount() > victim.getLineCount()) {
+                long candidateMemoryUse = candidate.estimateMemoryUse();
+                if (candidateMemoryUse > victimMemoryUse) {
                     victim = candidate;
+                    victimMemoryUse = candidateMemoryUse;
                 }
             }
         }
@@ -135,7 +139,7 @@ public class Terminator {
             return;
         }
         if (availableMemory < runtime.maxMemory() / 4) {
-            Log.warn("Available memory down to " + availableMemory + ", flushing biggest scroll buffer...");
+            Log.warn("Available memory down to " + availableMemory + ", flushing biggest scroll buffer. Estimated use:\n" + MemoryAccountant.toStringAll());
             flushBiggestScrollBuffer();
         }
         // Turning the scroll buffer to garbage won't necessarily cause it to be collected.
@@ -0,0 +1,62 @@
+package terminator;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for the work a terminal does for its output.
+ * 
+ * See e.ptextarea.PFlightRecorderEvents for how to use these without cost when
+ * no recording is running.
+ */
+public final class TerminatorFlightRecorderEvents {
+    private TerminatorFlightRecorderEvents() {
+    }
+    
+    @Name("terminator.ProcessBuffer")
+    @Label("Terminal Output Processing")
+    @Description("Parsing a buffer of output from the child process, on its reader thread")
+    @Category({ "Terminator" })
+    public static final class ProcessBuffer extends Event {
+        @Label("Pty")
+        public String ptyName;
+        
+        @Label("Pid")
+        public int pid;
+        
+        @Label("Bytes")
+        public int byteCount;
+        
+        @Label("Actions")
+        public int actionCount;
+    }
+    
+    @Name("terminator.ProcessActions")
+    @Label("Terminal Model Update")
+    @Description("Applying a batch of terminal actions to the model, on the terminal's emulation thread")
+    @Category({ "Terminator" })
+    public static final class ProcessActions extends Event {
+        @Label("Actions")
+        public int actionCount;
+        
+        @Label("First Changed Line")
+        public int firstLineChanged;
+        
+        @Label("Line Count")
+        public int lineCount;
+    }
+    
+    @Name("terminator.PublishChanges")
+    @Label("Terminal Frame Publication")
+    @Description("Telling the view what the model's changes since the last frame were, on the EDT")
+    @Category({ "Terminator" })
+    public static final class PublishChanges extends Event {
+        @Label("Changed Rows")
+        public int changedRowCount;
+        
+        @Label("Evicted Lines")
+        public int evictedLineCount;
+        
+        @Label("Line Count")
+        public int lineCount;
+    }
+}
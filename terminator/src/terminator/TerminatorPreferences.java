@@ -23,12 +23,16 @@ public class TerminatorPreferences extends Preferences {
     public static final String BLOCK_CURSOR = "blockCursor";
     public static final String FANCY_BELL = "fancyBell";
     public static final String FONT = "font";
+    public static final String GLYPH_ATLAS = "glyphAtlas";
     public static final String HIDE_MOUSE_WHEN_TYPING = "hideMouseWhenTyping";
     public static final String INITIAL_COLUMN_COUNT = "initialColumnCount";
     public static final String INITIAL_ROW_COUNT = "initialRowCount";
     public static final String PALETTE = "palette";
     public static final String SCROLL_ON_KEY_PRESS = "scrollKey";
     public static final String SCROLL_ON_TTY_OUTPUT = "scrollTtyOutput";
+    public static final String SCROLLBACK_LINE_COUNT = "scrollbackLineCount";
+    public static final String UNCOMPRESSED_SCROLLBACK_LINE_COUNT = "uncompressedScrollbackLineCount";
+    public static final String SPILL_SCROLLBACK_TO_DISK = "spillScrollbackToDisk";
     public static final String VISUAL_BELL = "visualBell";
     
     /**
@@ -86,6 +90,9 @@ public class TerminatorPreferences extends Preferences {
         addPreference("Behavior", ALWAYS_SHOW_TABS, Boolean.FALSE, "Always show tab bar");
         addPreference("Behavior", SCROLL_ON_KEY_PRESS, Boolean.TRUE, "Scroll to bottom on key press");
         addPreference("Behavior", SCROLL_ON_TTY_OUTPUT, Boolean.FALSE, "Scroll to bottom on output");
+        addPreference("Behavior", SCROLLBACK_LINE_COUNT, Integer.valueOf(100000), "Scrollback lines (0 for unlimited)");
+        addPreference("Behavior", UNCOMPRESSED_SCROLLBACK_LINE_COUNT, Integer.valueOf(10000), "Uncompressed scrollback lines (0 to never compress)");
+        addPreference("Behavior", SPILL_SCROLLBACK_TO_DISK, Boolean.FALSE, "Keep compressed scrollback in a temporary file");
         addPreference("Behavior", HIDE_MOUSE_WHEN_TYPING, Boolean.TRUE, "Hide mouse when typing");
         addPreference("Behavior", VISUAL_BELL, Boolean.TRUE, "Visual bell (as opposed to no bell)");
         addPreference("Behavior", USE_ALT_AS_META, Boolean.FALSE, "Use alt key as meta key (for Emacs)");
@@ -99,6 +106,7 @@ public class TerminatorPreferences extends Preferences {
         addPreference("Appearance", FANCY_BELL, Boolean.TRUE, "High-quality rendering of the visual bell");
         addPreference("Appearance", ALPHA, Double.valueOf(1.0), "Terminal opacity");
         addPreference("Appearance", FONT, new Font(GuiUtilities.getMonospacedFontName(), Font.PLAIN, 12), "Font");
+        addPreference("Appearance", GLYPH_ATLAS, Boolean.FALSE, "Draw text from a cache of rendered characters (faster, but clips overhanging glyphs)");
         addPreference("Appearance", PALETTE, Palettes.fromString("ANSI"), "Palette");
         
         // Defaults similar to most other modern terminals: black on white.
@@ -0,0 +1,246 @@
+package terminator.model;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+import org.jessies.test.*;
+import terminator.*;
+
+/**
+ * An immutable run of scrollback lines, stored compressed.
+ * 
+ * A TextLine is cheap to change, but that costs memory: a line of plain text
+ * typically takes a couple of hundred bytes, and a colorful one more than twice
+ * that. Scrollback doesn't change, so once it's far enough from the bottom,
+ * TextLineList encodes a few thousand lines at a time with TextLine.encode, and
+ * deflates the result. That typically gets a line down to a few tens of bytes.
+ * 
+ * We remember which styles our lines use, so that StyleTable doesn't give
+ * their ids to new styles.
+ * 
+ * Given a ScrollbackSpillFile, we keep the compressed lines there instead,
+ * leaving only a few dozen bytes per block on the heap.
+ */
+final class CompressedLineBlock {
+    private static final Metrics.Counter inflationCounter = Metrics.counter("CompressedLineBlock.inflations");
+    
+    // Either 'bytes' is null, and our data is the record 'spillRecord' in 'spillFile', or it's our data and 'spillFile' is null.
+    // Once the spill file's been closed, both are null, and our lines are gone. Snapshots read us on other threads, hence volatile.
+    private final byte[] bytes;
+    private volatile ScrollbackSpillFile spillFile;
+    private final long spillRecord;
+    private final int lineCount;
+    private final int compressedByteCount;
+    private final int uncompressedByteCount;
+    private final Palettes.Ink[] backgrounds;
+    private final int[] styleIds;
+    
+    /**
+     * Compresses 'lines', keeping the result in 'spillFile' if it's not null.
+     */
+    CompressedLineBlock(List<TextLine> lines, ScrollbackSpillFile spillFile) {
+        final ArrayList<Palettes.Ink> backgroundList = new ArrayList<>();
+        final BitSet styleIdSet = new BitSet();
+        // We encode everything before deflating, because the streams would call the Deflater for every byte.
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(byteStream)) {
+            for (int i = 0; i < lines.size(); ++i) {
+                final TextLine line = lines.get(i);
+                line.encode(out, backgroundList);
+                line.markStyleIds(styleIdSet);
+            }
+        } catch (IOException ex) {
+            // We're writing to memory, so this can't happen.
+            throw new RuntimeException(ex);
+        }
+        final byte[] uncompressedBytes = byteStream.toByteArray();
+        final byte[] bytes = deflate(uncompressedBytes);
+        this.lineCount = lines.size();
+        this.compressedByteCount = bytes.length;
+        this.uncompressedByteCount = uncompressedBytes.length;
+        
+        long spillRecord = -1;
+        if (spillFile != null) {
+            try {
+                spillRecord = spillFile.append(bytes);
+            } catch (IOException ex) {
+                Log.warn("Failed to spill scrollback to disk.", ex);
+            }
+        }
+        if (spillRecord != -1) {
+            this.bytes = null;
+            this.spillFile = spillFile;
+        } else {
+            this.bytes = bytes;
+            this.spillFile = null;
+        }
+        this.spillRecord = spillRecord;
+        this.backgrounds = backgroundList.toArray(new Palettes.Ink[backgroundList.size()]);
+        this.styleIds = styleIdSet.stream().toArray();
+    }
+    
+    int getLineCount() {
+        return lineCount;
+    }
+    
+    boolean isSpilled() {
+        return spillFile != null;
+    }
+    
+    /**
+     * Returns new TextLines equal to the ones we were made from.
+     * If we've been released, and our space in the spill file's been reused, the lines are empty; only a snapshot of lines since evicted or changed should ask.
+     * They're also empty if our lines were in a spill file that's since been closed.
+     */
+    TextLine[] inflate() {
+        inflationCounter.increment();
+        final TextLine[] lines = new TextLine[lineCount];
+        final ScrollbackSpillFile spillFile = this.spillFile;
+        byte[] uncompressedBytes = null;
+        if (bytes != null) {
+            uncompressedBytes = inflate(ByteBuffer.wrap(bytes), uncompressedByteCount);
+        } else if (spillFile != null) {
+            uncompressedBytes = spillFile.read(spillRecord, compressedByteCount, compressedBytes -> inflate(compressedBytes, uncompressedByteCount));
+        }
+        if (uncompressedBytes == null) {
+            for (int i = 0; i < lines.length; ++i) {
+                lines[i] = new TextLine(null);
+            }
+            return lines;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(uncompressedBytes))) {
+            for (int i = 0; i < lines.length; ++i) {
+                lines[i] = TextLine.decode(in, backgrounds);
+            }
+        } catch (IOException ex) {
+            // We wrote these bytes ourselves, so this can't happen.
+            throw new RuntimeException(ex);
+        }
+        return lines;
+    }
+    
+    private static byte[] deflate(byte[] input) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4);
+            final byte[] buffer = new byte[8192];
+            while (deflater.finished() == false) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            // Free the native memory now, rather than whenever the Deflater's finalized.
+            deflater.end();
+        }
+    }
+    
+    private static byte[] inflate(ByteBuffer input, int outputLength) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            final byte[] output = new byte[outputLength];
+            int offset = 0;
+            while (offset < outputLength && inflater.finished() == false) {
+                offset += inflater.inflate(output, offset, outputLength - offset);
+            }
+            return output;
+        } catch (DataFormatException ex) {
+            // We wrote these bytes ourselves, so this can't happen.
+            throw new RuntimeException(ex);
+        } finally {
+            inflater.end();
+        }
+    }
+    
+    /**
+     * Says that the list no longer has our lines, so our space in the spill file can be reused.
+     */
+    void release() {
+        final ScrollbackSpillFile spillFile = this.spillFile;
+        if (spillFile != null) {
+            spillFile.release(spillRecord);
+        }
+    }
+    
+    /**
+     * Drops our reference to the spill file, which is being closed, so that nothing keeps its mappings reachable.
+     */
+    void forgetSpillFile() {
+        spillFile = null;
+    }
+    
+    void markStyleIds(BitSet ids) {
+        for (int id : styleIds) {
+            ids.set(id);
+        }
+    }
+    
+    /**
+     * Returns an estimate of the memory used by this block, for MemoryAccountant.
+     */
+    long estimateMemoryUse() {
+        long result = MemoryAccountant.objectBytes(8) + MemoryAccountant.arrayBytes(backgrounds.length, 4) + MemoryAccountant.arrayBytes(styleIds.length, 4);
+        if (bytes != null) {
+            result += MemoryAccountant.arrayBytes(bytes.length, 1);
+        }
+        return result;
+    }
+    
+    @Test private static void testRoundTrip() throws IOException {
+        checkRoundTrip(null);
+        final ScrollbackSpillFile spillFile = ScrollbackSpillFile.create();
+        try {
+            checkRoundTrip(spillFile);
+        } finally {
+            spillFile.close();
+        }
+    }
+    
+    @Test private static void testSpillFileClosed() throws IOException {
+        final ScrollbackSpillFile spillFile = ScrollbackSpillFile.create();
+        final TextLine line = new TextLine(null);
+        line.writeTextAt(0, "spilled", Style.getDefaultStyle());
+        final CompressedLineBlock block = new CompressedLineBlock(Collections.nCopies(10, line), spillFile);
+        Assert.equals(block.isSpilled(), true);
+        block.forgetSpillFile();
+        spillFile.close();
+        // The lines are gone, but the block still has the right number of them.
+        final TextLine[] inflated = block.inflate();
+        Assert.equals(inflated.length, 10);
+        Assert.equals(inflated[9].length(), 0);
+        block.release();
+    }
+    
+    @TestHelper private static void checkRoundTrip(ScrollbackSpillFile spillFile) {
+        final Style bold = Style.makeStyle(Palettes.getFixedInk(200, 0, 0), null, Style.BOLD);
+        final ArrayList<TextLine> lines = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            final TextLine line = new TextLine((i % 10 == 0) ? Palettes.getFixedInk(0, 0, 64) : null);
+            line.writeTextAt(0, "line " + i + " é中", Style.getDefaultStyle());
+            if (i % 3 == 0) {
+                line.insertTabAt(line.length(), 4, Style.getDefaultStyle());
+                line.writeTextAt(line.length(), "bold", bold);
+            }
+            lines.add(line);
+        }
+        final CompressedLineBlock block = new CompressedLineBlock(lines, spillFile);
+        Assert.equals(block.isSpilled(), spillFile != null);
+        final TextLine[] inflated = block.inflate();
+        Assert.equals(inflated.length, lines.size());
+        for (int i = 0; i < inflated.length; ++i) {
+            final TextLine expected = lines.get(i);
+            Assert.equals(inflated[i].getTabbedString(0, inflated[i].length()), expected.getTabbedString(0, expected.length()));
+            Assert.equals(inflated[i].getBackground(), expected.getBackground());
+            for (int offset = 0; offset < expected.length(); ++offset) {
+                Assert.equals(inflated[i].getStyleIdAt(offset), expected.getStyleIdAt(offset));
+            }
+        }
+        final BitSet ids = new BitSet();
+        block.markStyleIds(ids);
+        Assert.equals(ids.get(bold.getId()), true);
+    }
+}
@@ -0,0 +1,343 @@
+package terminator.model;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * Maps between line numbers and character indexes, given each line's length.
+ * 
+ * TerminalModel used to keep each line's start index in the line itself, and
+ * recalculate them lazily from the first line that might have changed. Any
+ * resize invalidated them all, so the next lookup cost O(lines), and
+ * checking them cost the same again.
+ * 
+ * Here the lengths live in small blocks, with a Fenwick tree (a binary
+ * indexed tree) over the blocks' line counts and character counts. Finding
+ * the block containing a given line or character is O(log blocks), and
+ * changing a length is an update to its block and O(log blocks) tree nodes.
+ * Inserting or removing a line shifts at most a block's worth of lengths.
+ * Only when a block is split or emptied do we rebuild the tree, which is
+ * O(blocks) but happens at most once every MIN_BLOCK_SIZE insertions or
+ * removals, so it's cheap amortized.
+ * 
+ * Character indexes are relative to the first line, so evicting old lines
+ * doesn't renumber anything we need to update. They're longs, as are the
+ * blocks' character counts, since unlimited scrollback can hold more than
+ * Integer.MAX_VALUE characters; a single line's length is still an int.
+ */
+final class LineOffsetIndex {
+    private static final int MAX_BLOCK_SIZE = 256;
+    private static final int MIN_BLOCK_SIZE = MAX_BLOCK_SIZE / 2;
+    
+    private static final class Block {
+        private final int[] lengths = new int[MAX_BLOCK_SIZE];
+        private int count;
+        private long charCount;
+    }
+    
+    private final ArrayList<Block> blocks = new ArrayList<>();
+    // Fenwick trees over the blocks' line counts and character counts. Element 0 is unused.
+    private int[] lineCountTree = new int[1];
+    private long[] charCountTree = new long[1];
+    private int size;
+    
+    int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the total length of all the lines.
+     */
+    long getCharCount() {
+        return prefixSum(charCountTree, blocks.size());
+    }
+    
+    /**
+     * Returns the index of the first character of the given line.
+     */
+    long getStartIndex(int lineIndex) {
+        checkIndex(lineIndex, size);
+        final int blockIndex = findBlock(lineCountTree, lineIndex);
+        final int offset = lineIndex - prefixSum(lineCountTree, blockIndex);
+        final int[] lengths = blocks.get(blockIndex).lengths;
+        long result = prefixSum(charCountTree, blockIndex);
+        for (int i = 0; i < offset; ++i) {
+            result += lengths[i];
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the index of the line containing the given character.
+     * Characters beyond the end are treated as being on the last line.
+     */
+    int getLineIndex(long charIndex) {
+        if (size == 0 || charIndex < 0) {
+            throw new IndexOutOfBoundsException("charIndex=" + charIndex + " size()=" + size);
+        }
+        if (charIndex >= getCharCount()) {
+            return size - 1;
+        }
+        final int blockIndex = findBlock(charCountTree, charIndex);
+        final Block block = blocks.get(blockIndex);
+        long remaining = charIndex - prefixSum(charCountTree, blockIndex);
+        int offset = 0;
+        while (remaining >= block.lengths[offset]) {
+            remaining -= block.lengths[offset];
+            ++offset;
+        }
+        return prefixSum(lineCountTree, blockIndex) + offset;
+    }
+    
+    /**
+     * Copies the lengths of 'count' lines, from 'lineIndex', into 'dst' from 'dstBegin'.
+     */
+    void getLengths(int lineIndex, int count, int[] dst, int dstBegin) {
+        if (count == 0) {
+            return;
+        }
+        checkIndex(lineIndex, size);
+        checkIndex(lineIndex + count - 1, size);
+        int blockIndex = findBlock(lineCountTree, lineIndex);
+        int offset = lineIndex - prefixSum(lineCountTree, blockIndex);
+        while (count > 0) {
+            final Block block = blocks.get(blockIndex++);
+            final int n = Math.min(count, block.count - offset);
+            System.arraycopy(block.lengths, offset, dst, dstBegin, n);
+            dstBegin += n;
+            count -= n;
+            offset = 0;
+        }
+    }
+    
+    void add(int lineIndex, int length) {
+        checkIndex(lineIndex, size + 1);
+        if (blocks.isEmpty()) {
+            blocks.add(new Block());
+            rebuildTrees();
+        }
+        // Lines appended at the end go in the last block, rather than starting a new one.
+        final int blockIndex = (lineIndex == size) ? blocks.size() - 1 : findBlock(lineCountTree, lineIndex);
+        final Block block = blocks.get(blockIndex);
+        final int offset = lineIndex - prefixSum(lineCountTree, blockIndex);
+        System.arraycopy(block.lengths, offset, block.lengths, offset + 1, block.count - offset);
+        block.lengths[offset] = length;
+        ++block.count;
+        block.charCount += length;
+        ++size;
+        if (block.count == MAX_BLOCK_SIZE) {
+            final Block newBlock = new Block();
+            newBlock.count = MAX_BLOCK_SIZE - MIN_BLOCK_SIZE;
+            System.arraycopy(block.lengths, MIN_BLOCK_SIZE, newBlock.lengths, 0, newBlock.count);
+            for (int i = 0; i < newBlock.count; ++i) {
+                newBlock.charCount += newBlock.lengths[i];
+            }
+            block.count = MIN_BLOCK_SIZE;
+            block.charCount -= newBlock.charCount;
+            blocks.add(blockIndex + 1, newBlock);
+            rebuildTrees();
+        } else {
+            addToTrees(blockIndex, 1, length);
+        }
+    }
+    
+    void set(int lineIndex, int length) {
+        checkIndex(lineIndex, size);
+        final int blockIndex = findBlock(lineCountTree, lineIndex);
+        final Block block = blocks.get(blockIndex);
+        final int offset = lineIndex - prefixSum(lineCountTree, blockIndex);
+        final int delta = length - block.lengths[offset];
+        block.lengths[offset] = length;
+        block.charCount += delta;
+        addToTrees(blockIndex, 0, delta);
+    }
+    
+    void remove(int lineIndex) {
+        checkIndex(lineIndex, size);
+        final int blockIndex = findBlock(lineCountTree, lineIndex);
+        final Block block = blocks.get(blockIndex);
+        final int offset = lineIndex - prefixSum(lineCountTree, blockIndex);
+        final int length = block.lengths[offset];
+        System.arraycopy(block.lengths, offset + 1, block.lengths, offset, block.count - offset - 1);
+        --block.count;
+        block.charCount -= length;
+        --size;
+        if (block.count == 0) {
+            blocks.remove(blockIndex);
+            rebuildTrees();
+        } else {
+            addToTrees(blockIndex, -1, -length);
+        }
+    }
+    
+    /**
+     * Removes the first 'count' lines.
+     */
+    void removeFirst(int count) {
+        checkIndex(count, size + 1);
+        size -= count;
+        int removedBlockCount = 0;
+        while (count > 0 && count >= blocks.get(removedBlockCount).count) {
+            count -= blocks.get(removedBlockCount).count;
+            ++removedBlockCount;
+        }
+        if (count > 0) {
+            final Block block = blocks.get(removedBlockCount);
+            long removedCharCount = 0;
+            for (int i = 0; i < count; ++i) {
+                removedCharCount += block.lengths[i];
+            }
+            System.arraycopy(block.lengths, count, block.lengths, 0, block.count - count);
+            block.count -= count;
+            block.charCount -= removedCharCount;
+            if (removedBlockCount == 0) {
+                addToTrees(0, -count, -removedCharCount);
+            }
+        }
+        if (removedBlockCount > 0) {
+            blocks.subList(0, removedBlockCount).clear();
+            rebuildTrees();
+        }
+    }
+    
+    private static void checkIndex(int index, int limit) {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException("index=" + index + " limit=" + limit);
+        }
+    }
+    
+    private void addToTrees(int blockIndex, int lineCountDelta, long charCountDelta) {
+        for (int i = blockIndex + 1; i < lineCountTree.length; i += i & -i) {
+            lineCountTree[i] += lineCountDelta;
+            charCountTree[i] += charCountDelta;
+        }
+    }
+    
+    private void rebuildTrees() {
+        final int blockCount = blocks.size();
+        lineCountTree = new int[blockCount + 1];
+        charCountTree = new long[blockCount + 1];
+        for (int i = 1; i <= blockCount; ++i) {
+            lineCountTree[i] += blocks.get(i - 1).count;
+            charCountTree[i] += blocks.get(i - 1).charCount;
+            // Each node also contributes to its parent, which covers twice the range.
+            final int parent = i + (i & -i);
+            if (parent <= blockCount) {
+                lineCountTree[parent] += lineCountTree[i];
+                charCountTree[parent] += charCountTree[i];
+            }
+        }
+    }
+    
+    // Returns the sum of the first 'blockCount' blocks' values.
+    private static int prefixSum(int[] tree, int blockCount) {
+        int result = 0;
+        for (int i = blockCount; i > 0; i -= i & -i) {
+            result += tree[i];
+        }
+        return result;
+    }
+    
+    private static long prefixSum(long[] tree, int blockCount) {
+        long result = 0;
+        for (int i = blockCount; i > 0; i -= i & -i) {
+            result += tree[i];
+        }
+        return result;
+    }
+    
+    // Returns the index of the block containing the element 'target' is the index of, given that all the values are positive.
+    // That's the number of blocks whose values sum to no more than 'target'.
+    private static int findBlock(int[] tree, int target) {
+        int position = 0;
+        for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+            if (position + step < tree.length && tree[position + step] <= target) {
+                position += step;
+                target -= tree[position];
+            }
+        }
+        return position;
+    }
+    
+    private static int findBlock(long[] tree, long target) {
+        int position = 0;
+        for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+            if (position + step < tree.length && tree[position + step] <= target) {
+                position += step;
+                target -= tree[position];
+            }
+        }
+        return position;
+    }
+    
+    @Test private static void testAgainstList() {
+        final LineOffsetIndex index = new LineOffsetIndex();
+        final ArrayList<Integer> lengths = new ArrayList<>();
+        final Random random = new Random(0);
+        for (int i = 0; i < 20000; ++i) {
+            final int operation = random.nextInt(10);
+            if (operation == 0 && lengths.isEmpty() == false) {
+                final int line = random.nextInt(lengths.size());
+                index.remove(line);
+                lengths.remove(line);
+            } else if (operation == 1 && lengths.isEmpty() == false) {
+                final int line = random.nextInt(lengths.size());
+                final int length = 1 + random.nextInt(100);
+                index.set(line, length);
+                lengths.set(line, length);
+            } else if (operation == 2 && lengths.size() > 300) {
+                final int count = random.nextInt(300);
+                index.removeFirst(count);
+                lengths.subList(0, count).clear();
+            } else {
+                final int line = (operation == 3) ? random.nextInt(lengths.size() + 1) : lengths.size();
+                final int length = 1 + random.nextInt(100);
+                index.add(line, length);
+                lengths.add(line, length);
+            }
+            Assert.equals(index.size(), lengths.size());
+            if (lengths.isEmpty() == false) {
+                final int line = random.nextInt(lengths.size());
+                long start = 0;
+                for (int j = 0; j < line; ++j) {
+                    start += lengths.get(j);
+                }
+                Assert.equals(index.getStartIndex(line), start);
+                Assert.equals(index.getLineIndex(start), line);
+                Assert.equals(index.getLineIndex(start + lengths.get(line) - 1), line);
+                final int count = random.nextInt(lengths.size() - line + 1);
+                final int[] copy = new int[count];
+                index.getLengths(line, count, copy, 0);
+                for (int j = 0; j < count; ++j) {
+                    Assert.equals(copy[j], lengths.get(line + j).intValue());
+                }
+            }
+        }
+        long total = 0;
+        for (int length : lengths) {
+            total += length;
+        }
+        Assert.equals(index.getCharCount(), total);
+        Assert.equals(index.getLineIndex(total + 10), lengths.size() - 1);
+    }
+    
+    @Test private static void testMoreThanIntegerMaxValueCharacters() {
+        final LineOffsetIndex index = new LineOffsetIndex();
+        // Enough lines for several blocks, and enough characters to overflow an int a few times over.
+        final int lineCount = 3 * MAX_BLOCK_SIZE;
+        final int length = 10 * 1000 * 1000;
+        for (int i = 0; i < lineCount; ++i) {
+            index.add(i, length);
+        }
+        final long total = (long) lineCount * length;
+        Assert.equals(index.getCharCount(), total);
+        Assert.equals(index.getStartIndex(lineCount - 1), total - length);
+        Assert.equals(index.getLineIndex(total - 1), lineCount - 1);
+        Assert.equals(index.getLineIndex(total - length - 1), lineCount - 2);
+        index.set(0, 1);
+        Assert.equals(index.getCharCount(), total - length + 1);
+        index.removeFirst(MAX_BLOCK_SIZE + 1);
+        Assert.equals(index.getStartIndex(1), (long) length);
+        Assert.equals(index.getCharCount(), (long) (lineCount - MAX_BLOCK_SIZE - 1) * length);
+    }
+}
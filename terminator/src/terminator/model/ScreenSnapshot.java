@@ -0,0 +1,116 @@
+package terminator.model;
+
+import java.util.*;
+
+/**
+ * The screen as TerminalModel last published it to the view.
+ * 
+ * The model changes on its terminal's emulation thread, but it's painted on
+ * the EDT, so at most once a frame the model gives the view one of these:
+ * copies of the lines on the screen, which don't change, and so can be
+ * painted without the model's lock. Lines above the screen don't change
+ * between publications, so they don't need copying.
+ * 
+ * Copying is bounded by the size of the screen, and usually much less: a
+ * line that hasn't changed since the last snapshot is shared with it, even if
+ * it's moved. Each row says whether it shows something different from the
+ * same line in the last snapshot, so the view can repaint just those.
+ */
+public final class ScreenSnapshot {
+    private final int firstLineIndex;
+    // The model's lines that we copied, and how many changes each had had, so the next snapshot can tell which copies it can share.
+    private final TextLine[] sources;
+    private final int[] modificationCounts;
+    // One per row of the screen. These are never changed.
+    private final TextLine[] lines;
+    private final boolean[] rowsChanged;
+    private final int changedRowCount;
+    private final int maxLineWidth;
+    
+    ScreenSnapshot(int firstLineIndex, TextLine[] sources, int[] modificationCounts, TextLine[] lines, boolean[] rowsChanged, int maxLineWidth) {
+        this.firstLineIndex = firstLineIndex;
+        this.sources = sources;
+        this.modificationCounts = modificationCounts;
+        this.lines = lines;
+        this.rowsChanged = rowsChanged;
+        int changedRowCount = 0;
+        for (boolean rowChanged : rowsChanged) {
+            changedRowCount += rowChanged ? 1 : 0;
+        }
+        this.changedRowCount = changedRowCount;
+        this.maxLineWidth = maxLineWidth;
+    }
+    
+    /**
+     * Returns the index of the line on the first row of the screen.
+     */
+    public int getFirstLineIndex() {
+        return firstLineIndex;
+    }
+    
+    public int getRowCount() {
+        return lines.length;
+    }
+    
+    /**
+     * Returns the number of lines, including those above the screen. The screen is always at the bottom.
+     */
+    public int getLineCount() {
+        return firstLineIndex + lines.length;
+    }
+    
+    public int getMaxLineWidth() {
+        return maxLineWidth;
+    }
+    
+    /**
+     * Returns our copy of the given line, as it should be displayed, or null if it's not on the screen.
+     * The line mustn't be changed.
+     */
+    public TextLine getLine(int lineIndex) {
+        final int row = lineIndex - firstLineIndex;
+        return (row >= 0 && row < lines.length) ? lines[row] : null;
+    }
+    
+    /**
+     * Tests whether the given row of the screen changed since the previous snapshot.
+     */
+    public boolean isRowChanged(int row) {
+        return rowsChanged[row];
+    }
+    
+    public int getChangedRowCount() {
+        return changedRowCount;
+    }
+    
+    /**
+     * Returns our copy of 'source', if we have one that's still current, or null.
+     * We look at 'likelyLineIndex' first, because lines that haven't moved are the most common.
+     */
+    TextLine findCopy(TextLine source, int modificationCount, int likelyLineIndex) {
+        final int likelyRow = likelyLineIndex - firstLineIndex;
+        if (likelyRow >= 0 && likelyRow < sources.length && sources[likelyRow] == source) {
+            return (modificationCounts[likelyRow] == modificationCount) ? lines[likelyRow] : null;
+        }
+        for (int row = 0; row < sources.length; ++row) {
+            if (sources[row] == source && modificationCounts[row] == modificationCount) {
+                return lines[row];
+            }
+        }
+        return null;
+    }
+    
+    void markStyleIds(BitSet ids) {
+        for (TextLine line : lines) {
+            line.markStyleIds(ids);
+        }
+    }
+    
+    long estimateMemoryUse() {
+        long result = 0;
+        for (TextLine line : lines) {
+            result += line.estimateMemoryUse();
+        }
+        return result;
+    }
+}
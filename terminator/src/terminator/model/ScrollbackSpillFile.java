@@ -0,0 +1,253 @@
+package terminator.model;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import org.jessies.test.*;
+
+/**
+ * A temporary file that holds a terminal's compressed scrollback, so it doesn't take heap.
+ * 
+ * The file is mapped a segment at a time, and we write and read through the
+ * mappings, so reading a line back costs no more than a page fault. A record
+ * never spans two segments, so reading one is a single slice.
+ * 
+ * Records are released when their lines are evicted, which happens oldest
+ * first, so whole segments fall empty in the order we filled them. Once a
+ * segment we've finished appending to has no records left, we reuse it for
+ * the next ones, rather than growing the file. So the file is only ever a
+ * segment or so bigger than the scrollback it holds.
+ * 
+ * A snapshot of the lines may still try to read a record after it's been
+ * released. That's fine until the segment's reused; after that, read returns
+ * null. Reading holds a read lock, and reusing a segment the write lock, so a
+ * reader never sees a record being overwritten.
+ * 
+ * We open the file with DELETE_ON_CLOSE. On Unix, that unlinks it
+ * straight away, so it can't outlive us even if we crash; elsewhere, the
+ * operating system deletes it when we close it or exit. Closing drops our
+ * mappings, and TerminalModel has its blocks drop their references to us
+ * first, so nothing can read a record afterwards. The disk space is only
+ * freed once the mappings have been garbage collected, though: Java can't
+ * unmap a MappedByteBuffer, and a mapping keeps its pages (and, on Unix, the
+ * unlinked file) for as long as it's reachable.
+ */
+final class ScrollbackSpillFile {
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    // A record's handle is its offset in the file, with its segment's generation above this bit.
+    private static final int GENERATION_SHIFT = 40;
+    
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // The rest are guarded by 'lock'.
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+    // For each segment, how many times it's been reused, and how many of its records haven't been released.
+    private int[] generations = new int[0];
+    private int[] liveRecordCounts = new int[0];
+    // Segments with no records that we've finished appending to, oldest first.
+    private final ArrayDeque<Integer> freeSegments = new ArrayDeque<>();
+    private int currentSegment = -1;
+    private int segmentUsed;
+    private boolean isClosed;
+    
+    private ScrollbackSpillFile(FileChannel channel, int segmentSize) {
+        this.channel = channel;
+        this.segmentSize = segmentSize;
+        this.segmentUsed = segmentSize;
+    }
+    
+    static ScrollbackSpillFile create() throws IOException {
+        return create(SEGMENT_SIZE);
+    }
+    
+    // Tests use small segments, so as not to write hundreds of megabytes.
+    private static ScrollbackSpillFile create(int segmentSize) throws IOException {
+        final Path path = Files.createTempFile("terminator-scrollback-", ".tmp");
+        try {
+            return new ScrollbackSpillFile(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE), segmentSize);
+        } catch (IOException ex) {
+            Files.deleteIfExists(path);
+            throw ex;
+        }
+    }
+    
+    /**
+     * Appends 'bytes', and returns a handle to read them back with.
+     * Returns -1 if we're closed, or the record wouldn't fit in a segment, in which case the caller should keep the data itself.
+     */
+    long append(byte[] bytes) throws IOException {
+        final int length = bytes.length;
+        lock.writeLock().lock();
+        try {
+            if (isClosed || length > segmentSize) {
+                return -1;
+            }
+            if (segmentUsed + length > segmentSize) {
+                startSegment();
+            }
+            final ByteBuffer segment = segments.get(currentSegment).duplicate();
+            segment.position(segmentUsed);
+            segment.put(bytes);
+            final long offset = (long) currentSegment * segmentSize + segmentUsed;
+            segmentUsed += length;
+            ++liveRecordCounts[currentSegment];
+            return ((long) generations[currentSegment] << GENERATION_SHIFT) | offset;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    private void startSegment() throws IOException {
+        if (currentSegment != -1 && liveRecordCounts[currentSegment] == 0) {
+            freeSegments.add(currentSegment);
+        }
+        final Integer freeSegment = freeSegments.poll();
+        if (freeSegment != null) {
+            currentSegment = freeSegment;
+            // Any handles to the records that were here are no longer any use.
+            ++generations[currentSegment];
+        } else {
+            // Mapping beyond the end of the file extends it, sparsely.
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * segmentSize, segmentSize));
+            currentSegment = segments.size() - 1;
+            generations = Arrays.copyOf(generations, segments.size());
+            liveRecordCounts = Arrays.copyOf(liveRecordCounts, segments.size());
+        }
+        segmentUsed = 0;
+    }
+    
+    /**
+     * Says that the record with the given handle is no longer needed, so its space can be reused once the rest of its segment's are too.
+     */
+    void release(long record) {
+        lock.writeLock().lock();
+        try {
+            if (isClosed) {
+                return;
+            }
+            final int segment = getSegment(record);
+            if (generations[segment] != getGeneration(record)) {
+                return;
+            }
+            if (--liveRecordCounts[segment] == 0 && segment != currentSegment) {
+                freeSegments.add(segment);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Passes 'reader' a read-only view of the 'length' bytes of the given record, and returns what it returns.
+     * Returns null without calling 'reader' if the record's been released and its space reused, or we're closed.
+     */
+    <T> T read(long record, int length, Function<ByteBuffer, T> reader) {
+        lock.readLock().lock();
+        try {
+            if (isClosed) {
+                return null;
+            }
+            final int segment = getSegment(record);
+            if (generations[segment] != getGeneration(record)) {
+                return null;
+            }
+            final ByteBuffer result = segments.get(segment).asReadOnlyBuffer();
+            final int position = (int) (getOffset(record) % segmentSize);
+            result.position(position);
+            result.limit(position + length);
+            return reader.apply(result.slice());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    private static long getOffset(long record) {
+        return record & ((1L << GENERATION_SHIFT) - 1);
+    }
+    
+    private int getSegment(long record) {
+        return (int) (getOffset(record) / segmentSize);
+    }
+    
+    private static int getGeneration(long record) {
+        return (int) (record >>> GENERATION_SHIFT);
+    }
+    
+    /**
+     * Returns the number of segments in the file, for tests.
+     */
+    int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Stops appending and reading, drops our mappings, and deletes the file if it hasn't already been deleted.
+     */
+    void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            isClosed = true;
+            // A mapping outlives the channel, and holds on to the file's space until it's collected.
+            segments.clear();
+            freeSegments.clear();
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Test private static void testAppendAndRead() throws IOException {
+        final ScrollbackSpillFile file = ScrollbackSpillFile.create();
+        try {
+            final long first = file.append(new byte[] { 4, 5 });
+            final long second = file.append(new byte[] { 7, 8, 9 });
+            Assert.equals(file.read(first, 2, bytes -> bytes.get(1)), (byte) 5);
+            Assert.equals(file.read(second, 3, bytes -> bytes.remaining()), 3);
+            Assert.equals(file.read(second, 3, bytes -> bytes.get(0)), (byte) 7);
+        } finally {
+            file.close();
+        }
+        // Once we're closed, callers have to keep their data themselves, and what we had is gone.
+        Assert.equals(file.append(new byte[1]), -1L);
+        Assert.equals(file.getSegmentCount(), 0);
+        Assert.equals(file.read(0L, 1, bytes -> bytes.get(0)) == null, true);
+    }
+    
+    @Test private static void testSegmentsAreReused() throws IOException {
+        final ScrollbackSpillFile file = ScrollbackSpillFile.create(1024);
+        try {
+            // Each record fills half a segment, and we release each once there are four newer, as bounded scrollback would.
+            final byte[] bytes = new byte[512];
+            final ArrayDeque<Long> records = new ArrayDeque<>();
+            long first = -1;
+            for (int i = 0; i < 100; ++i) {
+                bytes[0] = (byte) i;
+                final long record = file.append(bytes);
+                if (i == 0) {
+                    first = record;
+                }
+                records.add(record);
+                if (records.size() > 4) {
+                    file.release(records.remove());
+                }
+            }
+            Assert.equals(file.getSegmentCount() <= 4, true);
+            // The live records are intact, but a released record whose space has been reused can't be read.
+            Assert.equals(file.read(records.getLast(), 1, buffer -> buffer.get(0)), (byte) 99);
+            Assert.equals(file.read(records.getFirst(), 1, buffer -> buffer.get(0)), (byte) 96);
+            Assert.equals(file.read(first, 1, buffer -> buffer.get(0)) == null, true);
+        } finally {
+            file.close();
+        }
+    }
+}
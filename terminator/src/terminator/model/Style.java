@@ -4,7 +4,10 @@ import java.awt.*;
 import terminator.*;
 
 /**
- * Objects of this class are immutable.
+ * Objects of this class are immutable, and canonical: makeStyle returns the
+ * same Style for equal arguments, and each distinct Style has a small integer
+ * id. TextLine stores those ids rather than references, and compares runs by
+ * id. See StyleTable.
  */
 public final class Style {
     private static final Style DEFAULT_STYLE = makeStyle(null, null, 0);
@@ -27,6 +30,8 @@ public final class Style {
     private final Palettes.Ink foreground;
     private final Palettes.Ink background;
     private final int attributes;
+    // Set to -1 if StyleTable frees our id because nothing was using it.
+    private int id;
     
     @Override public String toString() {
         return "Style[foreground=" + foreground + ", background=" + background + ", attributes=" + Integer.toHexString(attributes) + "]";
@@ -60,10 +65,11 @@ public final class Style {
         return result;
     }
     
-    private Style(Palettes.Ink foreground, Palettes.Ink background, int attributes) {
+    Style(Palettes.Ink foreground, Palettes.Ink background, int attributes, int id) {
         this.foreground = foreground;
         this.background = background;
         this.attributes = attributes;
+        this.id = id;
     }
     
     public int getAttributes() {
@@ -95,6 +101,30 @@ public final class Style {
     }
     
     public static Style makeStyle(Palettes.Ink foreground, Palettes.Ink background, int attributes) {
-        return new Style(foreground, background, attributes);
+        return StyleTable.getInstance().intern(foreground, background, attributes);
+    }
+    
+    /**
+     * Returns this style's id, which is the same for all equal styles.
+     * The default style's id is 0.
+     */
+    public int getId() {
+        final int currentId = id;
+        if (currentId >= 0) {
+            return currentId;
+        }
+        // Someone held on to us across a StyleTable compaction that freed our id, so we're no longer the canonical instance.
+        return makeStyle(foreground, background, attributes).getId();
+    }
+    
+    void retire() {
+        id = -1;
+    }
+    
+    /**
+     * Returns the style with the given id.
+     */
+    public static Style forId(int id) {
+        return StyleTable.getInstance().get(id);
     }
 }
@@ -0,0 +1,265 @@
+package terminator.model;
+
+import e.gui.*;
+import e.util.*;
+import java.lang.ref.*;
+import java.util.*;
+import org.jessies.test.*;
+import terminator.*;
+
+/**
+ * Canonicalizes Styles, and gives each one a small integer id.
+ * 
+ * Programs that use a lot of color send an SGR escape sequence before
+ * almost every character, so looking up a style mustn't allocate: we use
+ * our own open-addressed hash table, comparing the foreground, background,
+ * and attributes directly rather than building a Style to look up.
+ * 
+ * With 24-bit color, there's no useful bound on the number of distinct
+ * styles a long-running terminal might see, so the table can't just grow.
+ * When it's grown enough since it was last compacted, we look through every
+ * terminal's lines for the ids still in use, and free the rest for reuse.
+ * Each terminal's lines change on its own emulation thread, which interns
+ * styles while holding the model's lock, so we can't hold ours while we wait
+ * for a model's: instead, we also keep every id we hand out while we look.
+ * If the table's still full after that, new styles lose their colors
+ * rather than their text.
+ */
+final class StyleTable {
+    // The most styles we'll keep, so a pathological program can't fill the heap.
+    // This also keeps ids well clear of the bits TextLine uses for tab marks.
+    private static final int MAX_STYLE_COUNT = 1 << 20;
+    
+    // We don't bother compacting until there are at least this many styles.
+    private static final int MIN_COMPACTION_COUNT = 4096;
+    
+    private static final Metrics.Counter compactionCounter = Metrics.counter("StyleTable.compactions");
+    
+    private static final StyleTable INSTANCE = new StyleTable();
+    
+    // Guarded by 'this'. Each slot holds 1 + the id of a style, or 0 if empty.
+    private int[] slots = new int[64];
+    // Readers (such as painting) don't lock. We only ever publish a new array, and only null out entries for ids nothing uses.
+    private volatile Style[] stylesById = new Style[32];
+    private int count;
+    private int nextId;
+    private int[] freeIds = new int[0];
+    private int freeIdCount;
+    private int compactionThreshold = MIN_COMPACTION_COUNT;
+    private boolean compactionPending;
+    // Non-null while compact is looking through the models, when it has the ids we've handed out since it started.
+    private BitSet idsHandedOutDuringCompaction;
+    
+    // The models whose lines we need to check before freeing an id. Held weakly, like MemoryAccountant's owners.
+    private final ArrayList<WeakReference<TerminalModel>> models = new ArrayList<>();
+    
+    private StyleTable() {
+    }
+    
+    static StyleTable getInstance() {
+        return INSTANCE;
+    }
+    
+    void register(TerminalModel model) {
+        synchronized (models) {
+            models.add(new WeakReference<>(model));
+        }
+    }
+    
+    Style get(int id) {
+        return stylesById[id];
+    }
+    
+    synchronized int size() {
+        return count;
+    }
+    
+    /**
+     * Returns the canonical style with the given colors and attributes, creating it if necessary.
+     */
+    synchronized Style intern(Palettes.Ink foreground, Palettes.Ink background, int attributes) {
+        final int hash = hash(foreground, background, attributes);
+        final Style[] styles = stylesById;
+        final int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0) {
+            final Style style = styles[slots[slot] - 1];
+            if (style.getAttributes() == attributes && Objects.equals(style.getRawForeground(), foreground) && Objects.equals(style.getRawBackground(), background)) {
+                return handOut(style);
+            }
+            slot = (slot + 1) & mask;
+        }
+        
+        if (count >= MAX_STYLE_COUNT) {
+            if (foreground == null && background == null) {
+                // Can't happen, because there aren't enough attribute combinations, but don't recurse forever if it does.
+                return Style.getDefaultStyle();
+            }
+            // The best we can do is keep the attributes.
+            return intern(null, null, attributes);
+        }
+        if (count >= compactionThreshold) {
+            requestCompaction();
+        }
+        
+        final int id = (freeIdCount > 0) ? freeIds[--freeIdCount] : nextId++;
+        final Style style = new Style(foreground, background, attributes, id);
+        Style[] newStyles = styles;
+        if (id >= newStyles.length) {
+            newStyles = Arrays.copyOf(newStyles, newStyles.length * 2);
+        }
+        newStyles[id] = style;
+        stylesById = newStyles;
+        slots[slot] = id + 1;
+        ++count;
+        if (count * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return handOut(style);
+    }
+    
+    // Callers must synchronize on this.
+    private Style handOut(Style style) {
+        if (idsHandedOutDuringCompaction != null) {
+            idsHandedOutDuringCompaction.set(style.getId());
+        }
+        return style;
+    }
+    
+    private static int hash(Palettes.Ink foreground, Palettes.Ink background, int attributes) {
+        int result = 17;
+        result = 31 * result + Objects.hashCode(foreground);
+        result = 31 * result + Objects.hashCode(background);
+        result = 31 * result + attributes;
+        // Spread the bits, because we only use the low ones.
+        return result ^ (result >>> 16);
+    }
+    
+    // Callers must synchronize on this.
+    private void rehash(int slotCount) {
+        final Style[] styles = stylesById;
+        slots = new int[slotCount];
+        final int mask = slotCount - 1;
+        for (int id = 0; id < nextId; ++id) {
+            final Style style = styles[id];
+            if (style == null) {
+                continue;
+            }
+            int slot = hash(style.getRawForeground(), style.getRawBackground(), style.getAttributes()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+    
+    private void requestCompaction() {
+        if (compactionPending) {
+            return;
+        }
+        compactionPending = true;
+        GuiUtilities.invokeLater(this::compact);
+    }
+    
+    /**
+     * Frees the ids of all styles not used by any live TerminalModel.
+     * A model may start using a style after we've looked at it, but only by interning it, so we keep the ids we hand out until we've finished looking.
+     * Mustn't be called with a model's lock held.
+     */
+    void compact() {
+        synchronized (this) {
+            idsHandedOutDuringCompaction = new BitSet();
+        }
+        final BitSet liveIds = new BitSet();
+        synchronized (models) {
+            models.removeIf((reference) -> reference.get() == null);
+            for (WeakReference<TerminalModel> reference : models) {
+                final TerminalModel model = reference.get();
+                if (model != null) {
+                    model.markStyleIds(liveIds);
+                }
+            }
+        }
+        synchronized (this) {
+            liveIds.or(idsHandedOutDuringCompaction);
+            idsHandedOutDuringCompaction = null;
+            compact(liveIds);
+        }
+    }
+    
+    /**
+     * Frees the ids of all styles whose bits aren't set in 'liveIds'.
+     * The default style is always kept.
+     */
+    synchronized void compact(BitSet liveIds) {
+        compactionPending = false;
+        liveIds.set(Style.getDefaultStyle().getId());
+        final Style[] styles = stylesById;
+        int freedCount = 0;
+        for (int id = 0; id < nextId; ++id) {
+            if (styles[id] != null && liveIds.get(id) == false) {
+                styles[id].retire();
+                styles[id] = null;
+                ++freedCount;
+            }
+        }
+        if (freedCount > 0) {
+            // Rebuild the free list, lowest ids last so they're handed out first, to keep stylesById dense.
+            freeIds = new int[nextId];
+            freeIdCount = 0;
+            for (int id = nextId - 1; id >= 0; --id) {
+                if (styles[id] == null) {
+                    freeIds[freeIdCount++] = id;
+                }
+            }
+            count -= freedCount;
+            rehash(slots.length);
+        }
+        // Don't come back until we've at least doubled.
+        compactionThreshold = Math.max(MIN_COMPACTION_COUNT, count * 2);
+        compactionCounter.increment();
+    }
+    
+    @Test private static void testInterning() {
+        final StyleTable table = new StyleTable();
+        final Style red = table.intern(Palettes.getFixedInk(255, 0, 0), null, Style.BOLD);
+        Assert.equals(table.intern(Palettes.getFixedInk(255, 0, 0), null, Style.BOLD) == red, true);
+        Assert.equals(table.intern(Palettes.getFixedInk(255, 0, 0), null, 0) == red, false);
+        Assert.equals(table.get(red.getId()) == red, true);
+        for (int i = 0; i < 1000; ++i) {
+            table.intern(Palettes.getFixedInk(i % 256, i / 256, 0), null, 0);
+        }
+        Assert.equals(table.intern(Palettes.getFixedInk(255, 0, 0), null, Style.BOLD) == red, true);
+    }
+    
+    @Test private static void testCompaction() {
+        final StyleTable table = new StyleTable();
+        final ArrayList<Style> styles = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            styles.add(table.intern(Palettes.getFixedInk(i, 0, 0), null, 0));
+        }
+        final BitSet liveIds = new BitSet();
+        for (int i = 0; i < 100; i += 10) {
+            liveIds.set(styles.get(i).getId());
+        }
+        table.compact(liveIds);
+        Assert.equals(table.size(), 10);
+        for (int i = 0; i < 100; i += 10) {
+            Assert.equals(table.get(styles.get(i).getId()) == styles.get(i), true);
+            Assert.equals(table.intern(Palettes.getFixedInk(i, 0, 0), null, 0) == styles.get(i), true);
+        }
+        // Freed ids are reused.
+        final Style newStyle = table.intern(Palettes.getFixedInk(0, 255, 0), null, 0);
+        Assert.equals(newStyle.getId() < 100, true);
+    }
+    
+    // Each iteration is what an SGR sequence setting a 24-bit foreground color costs, cycling through a gradient of 64 colors as a colorful prompt or diff might.
+    @Benchmark private static Object benchmarkTrueColorStyle(int iterationCount) {
+        Style style = null;
+        for (int i = 0; i < iterationCount; ++i) {
+            final int level = (i & 63) * 4;
+            style = Style.makeStyle(Palettes.getFixedInk(level, 255 - level, 128), null, Style.BOLD);
+        }
+        return style;
+    }
+}
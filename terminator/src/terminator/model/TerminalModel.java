@@ -1,30 +1,69 @@
 package terminator.model;
 
 import java.awt.*;
+import java.io.*;
 import java.util.*;
+import java.util.function.*;
 import javax.swing.*;
 import e.util.*;
 import terminator.terminal.*;
 import terminator.view.*;
 import terminator.*;
 
+/**
+ * A terminal's lines, cursor, and modes.
+ * 
+ * We're changed by the terminal's emulation thread (see TerminalControl),
+ * and read on the EDT, so both hold our lock. Rather than tell the view about
+ * each change as we make it, we remember what's changed, and the view asks
+ * for it at most once a frame, with publishChanges. That gives the view a
+ * ScreenSnapshot to paint, so painting the screen doesn't need our lock, and
+ * the EDT's work per frame depends on the size of the screen rather than on
+ * how much output there was.
+ */
 public class TerminalModel {
+    // Checking the invariant after every change is for debugging; run with -Dterminator.model.TerminalModel.checkInvariant=true to do it.
+    private static final boolean CHECK_INVARIANT = Boolean.getBoolean("terminator.model.TerminalModel.checkInvariant");
+    
     private TerminalView view;
     private int width;
     private int height;
-    private ArrayList<TextLine> textLines = new ArrayList<>();
+    // A TextLineList rather than an ArrayList so that evicting the oldest line of scrollback is O(1), and old scrollback can be compressed.
+    private TextLineList textLines = new TextLineList();
     private Style currentStyle = Style.getDefaultStyle();
     private int firstScrollLineIndex;
     private int lastScrollLineIndex;
     private Location cursorPosition;
-    private int lastValidStartIndex = 0;
     private boolean insertMode = false;
     private ArrayList<Integer> tabPositions = new ArrayList<>();
     private int maxLineWidth = width;
     private int flushes = 0;
     
-    // Used for reducing the number of lines changed events sent up to the view.
-    private int firstLineChanged;
+    // How many lines of history we keep above the screen, or 0 for no limit.
+    private int scrollbackLineLimit;
+    // How many lines of history above the screen we keep uncompressed, or 0 to never compress.
+    private int uncompressedLineLimit;
+    // How many of the oldest lines, beyond the scrollback limit, we've already emptied to await eviction.
+    private int clearedLineCount;
+    // Where compressed history goes if it's to be kept on disk rather than the heap. Created on demand.
+    private ScrollbackSpillFile spillFile;
+    private boolean spillsScrollbackToDisk;
+    
+    // What's changed since we last published, which the view hasn't yet been told about.
+    // Lines are only evicted when we publish, so the lines above the screen keep their indexes between publications (though clearEvictableLines may empty them).
+    private int firstLineChanged = Integer.MAX_VALUE;
+    private boolean needsRepaint;
+    private Color newBackground;
+    private String newWindowTitle;
+    private boolean cursorVisible = true;
+    // -1 if it hasn't changed.
+    private int newCursorStyle = -1;
+    
+    // The screen as we last published it. Only changed on the EDT, but the background find reads it too.
+    private volatile ScreenSnapshot snapshot;
+    
+    // The width of a character on the display, which limits how long a line can be (see processLine).
+    private int charUnitWidth = 1;
     
     // Fields used for saving and restoring state.
     private Location savedPosition;
@@ -36,13 +75,14 @@ public class TerminalModel {
     // Stores the last alternate buffer (eg last time you ran less or vim etc).
     private TextLine[] alternateScreen;
     // Are we currently viewing the opposite of the current buffer?
-    private boolean viewInactiveScreen;
+    // This and the modes below are read on the EDT without our lock.
+    private volatile boolean viewInactiveScreen;
     
-    private boolean mouseTracking;
-    private boolean cellMotionMouseTracking;
+    private volatile boolean mouseTracking;
+    private volatile boolean cellMotionMouseTracking;
+    
+    private volatile boolean bracketedPasteMode = false;
     
-    private boolean bracketedPasteMode = false;
-        
     // Whether we've already printed a warning about too much input having been chopped.
     // Such a warning is only printed once per terminal, in order to avoid massive input
     // causing massive logging.
@@ -52,6 +92,8 @@ public class TerminalModel {
         this.view = view;
         setSize(width, height);
         cursorPosition = view.getCursorPosition();
+        updateSnapshot(0);
+        StyleTable.getInstance().register(this);
     }
     
     public void updateMaxLineWidth(int aLineWidth) {
@@ -81,47 +123,55 @@ public class TerminalModel {
         return viewInactiveScreen;
     }
     
-    public boolean canViewInactiveBuffer() {
+    public synchronized boolean canViewInactiveBuffer() {
         // There's always the savedScreen if we're in alternative buffer mode.
         if (usingAlternateBuffer()) return true;
         // We're not in alternate buffer mode, so we can only see the inactive buffer if we've saved a previous alternative buffer.
         return alternateScreen != null;
     }
     
-    /** Switch *view only* between normal and alternative buffer. */
-    public void setViewInactiveBuffer(boolean viewInactive) {
+    /** Switch *view only* between normal and alternative buffer. Must be called on the EDT. */
+    public synchronized void setViewInactiveBuffer(boolean viewInactive) {
         if (viewInactive == viewInactiveScreen) return;
         if (viewInactive && !canViewInactiveBuffer()) return;
         // If we get here, it's safe to switch to view the inactive buffer.
         viewInactiveScreen = viewInactive;
-        lineIsDirty(getFirstDisplayLine());
         linesChangedFrom(getFirstDisplayLine());
-        view.linesChangedFrom(getFirstDisplayLine());
-        view.repaint();
+        needsRepaint = true;
         checkInvariant();
+        // The user's waiting, so there's no need to wait for the next frame.
+        publishChanges();
     }
     
+    /**
+     * Start indexes can no longer be out of order, because they're worked out from the line lengths.
+     * The line lengths textLines knows can be out of date if we change a line and forget to say so, though.
+     * Checking all of them would cost O(lines), so we just check the cursor's line, which is the one most likely to have changed.
+     * Even that's O(log lines), so we only check if CHECK_INVARIANT is set.
+     */
     public void checkInvariant() {
-        int highestStartLineIndex = -1;
-        for (int lineNumber = 0; lineNumber <= lastValidStartIndex; ++ lineNumber) {
-            int thisStartLineIndex = textLines.get(lineNumber).getLineStartIndex();
-            if (thisStartLineIndex <= highestStartLineIndex) {
-                throw new RuntimeException("the lineStartIndex must increase monotonically as the line number increases");
-            }
-            highestStartLineIndex = thisStartLineIndex;
+        if (CHECK_INVARIANT == false) {
+            return;
+        }
+        if (cursorPosition == null) {
+            // We're still being constructed.
+            return;
+        }
+        final int lineIndex = cursorPosition.getLineIndex();
+        if (lineIndex < textLines.size() && getLineLength(lineIndex) != getStartIndex(lineIndex + 1, true) - getStartIndex(lineIndex)) {
+            throw new RuntimeException("the length of line " + lineIndex + " has changed without a call to lineLengthChanged");
         }
     }
     
-    public void clearScrollBuffer() {
+    /**
+     * Must be called on the EDT.
+     */
+    public synchronized void clearScrollBuffer() {
         // FIXME: really, we should still clear everything off-screen.
         if (usingAlternateBuffer()) {
             return;
         }
         
-        // If we don't remove the highlights, we'll see the mouse
-        // cursor change when we move over where they were.
-        view.removeHighlightsFrom(0);
-        
         // We want to keep any lines after the cursor, so remember them.
         // FIXME: if the user's editing a really long logical line at
         // the bash prompt, it may have manually wrapped it onto
@@ -136,8 +186,9 @@ public class TerminalModel {
         // expensive nulling-out of now-unused elements. The assumption
         // being that we're most likely to be asked to clear the
         // scrollback when it's insanely large.
-        textLines = new ArrayList<TextLine>();
-        setSize(width, view.getVisibleSizeInCharacters().height);
+        textLines = new TextLineList();
+        clearedLineCount = 0;
+        setSize(width, height);
         maxLineWidth = width;
         
         // Re-insert the lines after the cursor.
@@ -145,26 +196,25 @@ public class TerminalModel {
             insertLine(i, retainedLines.get(i));
         }
         
-        // Make sure all the lines will be redrawn.
-        view.sizeChanged();
-        lineIsDirty(0);
+        // Every line is new, so the view needs to forget everything it knew by line index (in particular, if we don't remove the highlights, we'll see the mouse cursor change when we move over where they were).
+        linesChangedFrom(0);
         
         resetCursorPosition();
         
         // Redraw ourselves.
-        view.repaint();
+        needsRepaint = true;
         checkInvariant();
+        // The view can't be left showing lines we no longer have.
+        publishChanges();
     }
     
     private void resetCursorPosition() {
         // Re-position the cursor.
-        // FIXME: it's a bit crazy that these aren't tied!
         // FIXME: it's even crazier that they use different origins!
         setCursorPosition(-1, 1);
-        view.setCursorPosition(cursorPosition);
     }
     
-    public void flushScrollBuffer() {
+    public synchronized void flushScrollBuffer() {
         clearScrollBuffer();
         ++ flushes;
     }
@@ -212,7 +262,7 @@ public class TerminalModel {
         // Since we don't save the alternate buffer, reset background to default before switching to it.
         // When switching back, we don't want the background that was probably set while in the alternate buffer.
         // FIXME: should we save the screen's old background along with savedScreen?
-        view.setBackground(Terminator.getPreferences().getColor(TerminatorPreferences.BACKGROUND_COLOR));
+        newBackground = Terminator.getPreferences().getColor(TerminatorPreferences.BACKGROUND_COLOR);
         if (useAlternateBuffer) {
             savedScreen = new TextLine[height];
             for (int i = 0; i < height; i++) {
@@ -233,12 +283,11 @@ public class TerminalModel {
             }
             savedScreen = null;
         }
-        lineIsDirty(getFirstDisplayLine());
         for (int i = 0; i < height; i++) {
             int index = getFirstDisplayLine() + i;
             linesChangedFrom(index);
         }
-        view.repaint();
+        needsRepaint = true;
         checkInvariant();
     }
     
@@ -285,10 +334,16 @@ public class TerminalModel {
         return getTextLine(lineIndex).length() + 1;
     }
     
-    /** Returns the start character index of the indexed line. */
-    public int getStartIndex(int lineIndex) {
-        ensureValidStartIndex(lineIndex);
-        return getTextLine(lineIndex).getLineStartIndex();
+    /**
+     * Returns the start character index of the indexed line, counting from the first line we still have. O(log lines).
+     */
+    public long getStartIndex(int lineIndex) {
+        return textLines.getStartIndex(lineIndex);
+    }
+    
+    // Like getStartIndex, but returns length() for the line after the last, if 'allowEnd'.
+    private long getStartIndex(int lineIndex, boolean allowEnd) {
+        return (allowEnd && lineIndex == textLines.size()) ? length() : getStartIndex(lineIndex);
     }
     
     /**
@@ -296,44 +351,83 @@ public class TerminalModel {
      * If the index is actually larger than the screen area, returns a 'fake' location to the right
      * of the end of the last line.
      */
-    public Location getLocationFromCharIndex(int charIndex) {
-        int lowLine = 0;
-        int highLine = textLines.size();
-        
-        while (highLine - lowLine > 1) {
-            int midLine = (lowLine + highLine) / 2;
-            int mid = getStartIndex(midLine);
-            if (mid <= charIndex) {
-                lowLine = midLine;
-            } else {
-                highLine = midLine;
-            }
-        }
-        return new Location(lowLine, charIndex - getStartIndex(lowLine));
+    public Location getLocationFromCharIndex(long charIndex) {
+        final int lineIndex = textLines.getLineIndex(charIndex);
+        return new Location(lineIndex, (int) Math.min(charIndex - getStartIndex(lineIndex), Integer.MAX_VALUE));
     }
     
     /** Returns the char index equivalent to the given Location. */
-    public int getCharIndexFromLocation(Location location) {
+    public long getCharIndexFromLocation(Location location) {
         return getStartIndex(location.getLineIndex()) + location.getCharOffset();
     }
     
-    /** Returns the count of all characters in the buffer, including NLs. */
-    public int length() {
-        int lastIndex = textLines.size() - 1;
-        return getStartIndex(lastIndex) + getLineLength(lastIndex);
+    /**
+     * Copies the lengths, including NLs, of 'count' lines from 'lineIndex' into 'dst' from 'dstBegin'.
+     * These are the lengths of the logical lines, not the inactive buffer's, which may be displayed on the screen instead.
+     */
+    public void getLineLengths(int lineIndex, int count, int[] dst, int dstBegin) {
+        textLines.getLengths(lineIndex, count, dst, dstBegin);
+    }
+    
+    /**
+     * Returns the lines from 'lineIndex' to 'endLineIndex', by index, for other threads to read while we carry on changing.
+     * The lines must be above the screen, since lines there don't change (though they may be evicted or compressed).
+     */
+    public IntFunction<TextLine> getLinesSnapshot(int lineIndex, int endLineIndex) {
+        if (endLineIndex > getFirstDisplayLine()) {
+            throw new IllegalArgumentException("endLineIndex " + endLineIndex + " is on the screen, which starts at " + getFirstDisplayLine());
+        }
+        return textLines.snapshot(lineIndex, endLineIndex);
     }
     
-    private void lineIsDirty(int dirtyLineIndex) {
-        lastValidStartIndex = Math.min(lastValidStartIndex, dirtyLineIndex + 1);
+    /** Returns the count of all characters in the buffer, including NLs. This can be more than Integer.MAX_VALUE. */
+    public long length() {
+        return textLines.getCharCount();
     }
     
-    private void ensureValidStartIndex(int lineIndex) {
-        if (lineIndex > lastValidStartIndex) {
-            for (int i = lastValidStartIndex; i < lineIndex; i++) {
-                TextLine line = getTextLine(i);
-                getTextLine(i + 1).setLineStartIndex(line.getLineStartIndex() + line.lengthIncludingNewline());
+    /**
+     * Must be called whenever we change the length of a line in place.
+     * (Adding, removing, or replacing lines is taken care of by textLines.)
+     */
+    private void lineLengthChanged(int lineIndex) {
+        textLines.lineLengthChanged(lineIndex);
+    }
+    
+    /**
+     * Returns an estimate of the memory used by our lines (including the
+     * scrollback, any alternate screen, and our snapshot), for MemoryAccountant.
+     */
+    public synchronized long estimateMemoryUse() {
+        long result = textLines.estimateMemoryUse() + snapshot.estimateMemoryUse();
+        for (TextLine[] screen : new TextLine[][] { savedScreen, alternateScreen }) {
+            if (screen != null) {
+                for (TextLine textLine : screen) {
+                    result += (textLine != null) ? textLine.estimateMemoryUse() : 0;
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Sets the bit in 'ids' for each style id we're using, for StyleTable.
+     */
+    synchronized void markStyleIds(BitSet ids) {
+        textLines.markStyleIds(ids);
+        snapshot.markStyleIds(ids);
+        for (TextLine[] screen : new TextLine[][] { savedScreen, alternateScreen }) {
+            if (screen != null) {
+                for (TextLine textLine : screen) {
+                    if (textLine != null) {
+                        textLine.markStyleIds(ids);
+                    }
+                }
+            }
+        }
+        for (Style style : new Style[] { currentStyle, savedStyle }) {
+            if (style != null) {
+                ids.set(style.getId());
             }
-            lastValidStartIndex = lineIndex;
         }
     }
     
@@ -341,18 +435,126 @@ public class TerminalModel {
         return textLines.size();
     }
     
+    /**
+     * Sets how many lines of history we keep above the screen. Zero means there's no limit.
+     * A new, lower, limit takes effect next time we publish changes.
+     */
+    public synchronized void setScrollbackLineLimit(int scrollbackLineLimit) {
+        this.scrollbackLineLimit = Math.max(0, scrollbackLineLimit);
+    }
+    
+    /**
+     * Sets how many lines of history above the screen we keep uncompressed. Zero means we never compress.
+     * Like the scrollback limit, a new limit takes effect as lines scroll off the top of the screen.
+     */
+    public synchronized void setUncompressedLineLimit(int uncompressedLineLimit) {
+        this.uncompressedLineLimit = Math.max(0, uncompressedLineLimit);
+    }
+    
+    /**
+     * Sets whether compressed history goes in a temporary file rather than on the heap.
+     * Lines already compressed stay where they are.
+     */
+    public synchronized void setSpillsScrollbackToDisk(boolean spillsScrollbackToDisk) {
+        if (spillsScrollbackToDisk && spillFile == null) {
+            try {
+                spillFile = ScrollbackSpillFile.create();
+            } catch (IOException ex) {
+                Log.warn("Failed to create scrollback spill file; keeping scrollback in memory.", ex);
+                return;
+            }
+        }
+        this.spillsScrollbackToDisk = spillsScrollbackToDisk;
+    }
+    
+    /**
+     * Deletes our spill file, if we have one. Called when the terminal closes.
+     */
+    public synchronized void close() {
+        if (spillFile != null) {
+            // Nothing may keep the file's mappings reachable, or its space on disk isn't freed.
+            textLines.forgetSpillFile();
+            try {
+                spillFile.close();
+            } catch (IOException ex) {
+                Log.warn("Failed to close scrollback spill file.", ex);
+            }
+            spillFile = null;
+            spillsScrollbackToDisk = false;
+        }
+    }
+    
+    /**
+     * Compresses the oldest uncompressed lines of history, a block at a time, if there are more than our limit.
+     * Lines beyond the scrollback limit are only evicted when we next publish, so we leave those be: compressing them would be wasted.
+     */
+    private void compressOldLines() {
+        if (uncompressedLineLimit == 0) {
+            return;
+        }
+        final int evictableLineCount = (scrollbackLineLimit == 0) ? 0 : getFirstDisplayLine() - scrollbackLineLimit;
+        while (getFirstDisplayLine() - textLines.getCompressedLineCount() >= uncompressedLineLimit + TextLineList.BLOCK_LINE_COUNT && textLines.getCompressedLineCount() + TextLineList.BLOCK_LINE_COUNT > evictableLineCount) {
+            textLines.compressOldestLines(spillsScrollbackToDisk ? spillFile : null);
+        }
+    }
+    
+    /**
+     * Replaces the lines beyond the scrollback limit with empty lines, leaving them to be evicted when we next publish.
+     * A flood can bring a frame's worth of lines before then. Until we publish, the view reads them by their indexes, so they have to stay, but their text can go while it's still young and cheap to collect.
+     * Clearing costs more than it saves if we're about to publish anyway, so we wait until there's a block's worth.
+     */
+    private void clearEvictableLines() {
+        if (scrollbackLineLimit == 0) {
+            return;
+        }
+        final int evictableLineCount = getFirstDisplayLine() - scrollbackLineLimit;
+        if (evictableLineCount - clearedLineCount < TextLineList.BLOCK_LINE_COUNT) {
+            return;
+        }
+        // Compressed lines cost little to keep, and replacing one would mean uncompressing the lines after it.
+        for (int i = Math.max(clearedLineCount, textLines.getCompressedLineCount()); i < evictableLineCount; ++i) {
+            textLines.set(i, new TextLine(Palettes.getBackgroundInk()));
+        }
+        clearedLineCount = Math.max(clearedLineCount, evictableLineCount);
+    }
+    
+    /**
+     * Removes the oldest lines of history if we have more than our limit, returning how many we removed.
+     * Each evicted line costs O(1), not O(lines): TextLineList doesn't move the rest, and start indexes are relative to the first line.
+     * Only publishChanges calls this, so that line indexes are the same for us and for the view.
+     */
+    private int evictExcessLines() {
+        if (scrollbackLineLimit == 0) {
+            return 0;
+        }
+        final int excess = getFirstDisplayLine() - scrollbackLineLimit;
+        if (excess <= 0) {
+            return 0;
+        }
+        textLines.removeFirst(excess);
+        clearedLineCount = Math.max(0, clearedLineCount - excess);
+        cursorPosition = new Location(cursorPosition.getLineIndex() - excess, cursorPosition.getCharOffset());
+        if (savedPosition != null) {
+            savedPosition = new Location(Math.max(0, savedPosition.getLineIndex() - excess), savedPosition.getCharOffset());
+        }
+        if (firstLineChanged != Integer.MAX_VALUE) {
+            firstLineChanged = Math.max(0, firstLineChanged - excess);
+        }
+        return excess;
+    }
+    
     public void fullReset() {
         resetCursorPosition();
         int firstLineToClear = getFirstDisplayLine();
         for (int i = 0; i < height; i++) {
             getTextLine(firstLineToClear + i).clear();
+            lineLengthChanged(firstLineToClear + i);
         }
-        view.repaint();
+        needsRepaint = true;
     }
     
     public void linesChangedFrom(int firstLineChanged) {
         this.firstLineChanged = Math.min(this.firstLineChanged, firstLineChanged);
-        view.getSelectionHighlighter().textChanged(new Location(firstLineChanged, 0), new Location(getLineCount() + 1, 0));
     }
     
     public Dimension getCurrentSizeInChars() {
@@ -363,26 +565,121 @@ public class TerminalModel {
         return cursorPosition;
     }
     
+    /**
+     * Performs the given actions, and asks the view to publish the changes in its next frame.
+     * Called on the terminal's emulation thread, and occasionally on the EDT.
+     */
     public void processActions(TerminalAction[] actions) {
-        firstLineChanged = Integer.MAX_VALUE;
-        boolean wereAtBottom = view.isAtBottom();
-        boolean needsScroll = false;
-        Dimension initialSize = getCurrentSizeInChars();
-        for (TerminalAction action : actions) {
-            action.perform(this);
+        final TerminatorFlightRecorderEvents.ProcessActions event = new TerminatorFlightRecorderEvents.ProcessActions();
+        event.begin();
+        synchronized (this) {
+            for (TerminalAction action : actions) {
+                action.perform(this);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.actionCount = actions.length;
+                event.firstLineChanged = (firstLineChanged != Integer.MAX_VALUE) ? firstLineChanged : -1;
+                event.lineCount = getLineCount();
+                event.commit();
+            }
+        }
+        view.modelChanged();
+    }
+    
+    /**
+     * Returns the screen as we last published it.
+     */
+    public ScreenSnapshot getSnapshot() {
+        return snapshot;
+    }
+    
+    /**
+     * Tells the view about everything that's changed since we last did, and gives it a new snapshot of the screen.
+     * Must be called on the EDT; the view does so at most once a frame.
+     */
+    public synchronized void publishChanges() {
+        final TerminatorFlightRecorderEvents.PublishChanges event = new TerminatorFlightRecorderEvents.PublishChanges();
+        event.begin();
+        final boolean wereAtBottom = view.isAtBottom();
+        final Dimension initialSize = new Dimension(snapshot.getMaxLineWidth(), snapshot.getLineCount());
+        final int evictedLineCount = evictExcessLines();
+        updateSnapshot(evictedLineCount);
+        if (evictedLineCount > 0) {
+            view.getSelectionHighlighter().linesRemovedFromTop(evictedLineCount);
+            view.linesRemovedFromTop(evictedLineCount, wereAtBottom);
         }
+        final int firstLineChangedSincePublication = firstLineChanged;
         if (firstLineChanged != Integer.MAX_VALUE) {
-            needsScroll = true;
+            view.getSelectionHighlighter().textChanged(new Location(firstLineChanged, 0), new Location(getLineCount() + 1, 0));
             view.linesChangedFrom(firstLineChanged);
+            firstLineChanged = Integer.MAX_VALUE;
+        }
+        if (snapshot.getChangedRowCount() > 0) {
+            view.repaintChangedRows();
         }
         Dimension finalSize = getCurrentSizeInChars();
         if (initialSize.equals(finalSize) == false) {
             view.sizeChanged(initialSize, finalSize);
         }
-        if (needsScroll) {
+        if (firstLineChangedSincePublication != Integer.MAX_VALUE) {
             view.scrollOnTtyOutput(wereAtBottom);
         }
         view.setCursorPosition(cursorPosition);
+        view.setCursorVisible(cursorVisible);
+        if (newCursorStyle != -1) {
+            view.setCursorStyle(newCursorStyle);
+            newCursorStyle = -1;
+        }
+        if (newBackground != null) {
+            view.setBackground(newBackground);
+            newBackground = null;
+        }
+        if (needsRepaint) {
+            view.repaint();
+            needsRepaint = false;
+        }
+        if (newWindowTitle != null) {
+            JTerminalPane terminalPane = (JTerminalPane) SwingUtilities.getAncestorOfClass(JTerminalPane.class, view);
+            terminalPane.setTerminalName(newWindowTitle);
+            newWindowTitle = null;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.changedRowCount = snapshot.getChangedRowCount();
+            event.evictedLineCount = evictedLineCount;
+            event.lineCount = getLineCount();
+            event.commit();
+        }
+    }
+    
+    /**
+     * Replaces our snapshot, copying only the lines on the screen that have changed since the last one.
+     * A line that has only moved, as when a full-screen program scrolls, keeps its copy, so the view can move what it painted rather than paint it again.
+     * If we've just evicted lines, the last snapshot's line indexes are 'evictedLineCount' higher than ours.
+     */
+    private void updateSnapshot(int evictedLineCount) {
+        final ScreenSnapshot previousSnapshot = snapshot;
+        final int firstDisplayLine = getFirstDisplayLine();
+        final TextLine[] sources = new TextLine[height];
+        final int[] modificationCounts = new int[height];
+        final TextLine[] lines = new TextLine[height];
+        final boolean[] rowsChanged = new boolean[height];
+        for (int row = 0; row < height; ++row) {
+            final int lineIndex = firstDisplayLine + row;
+            final TextLine source = getDisplayTextLine(lineIndex);
+            sources[row] = source;
+            modificationCounts[row] = source.getModificationCount();
+            TextLine line = null;
+            if (previousSnapshot != null) {
+                line = previousSnapshot.findCopy(source, modificationCounts[row], lineIndex + evictedLineCount);
+            }
+            if (line == null || line != previousSnapshot.getLine(lineIndex + evictedLineCount)) {
+                rowsChanged[row] = true;
+            }
+            lines[row] = (line != null) ? line : source.copy();
+        }
+        snapshot = new ScreenSnapshot(firstDisplayLine, sources, modificationCounts, lines, rowsChanged, getMaxLineWidth());
     }
     
     public void setStyle(Style style) {
@@ -409,7 +706,6 @@ public class TerminalModel {
         // Use a private copy of the first display line throughout this method to avoid mutation
         // caused by textLines.add()/textLines.remove().
         final int firstDisplayLine = getFirstDisplayLine();
-        lineIsDirty(firstDisplayLine);
         if (index > firstDisplayLine + lastScrollLineIndex) {
             for (int i = firstDisplayLine + lastScrollLineIndex + 1; i <= index; i++) {
                 textLines.add(i, lineToInsert);
@@ -422,9 +718,10 @@ public class TerminalModel {
                 int removeIndex = firstDisplayLine + firstScrollLineIndex;
                 textLines.remove(removeIndex);
                 linesChangedFrom(removeIndex);
-                view.repaint();
             } else {
                 cursorPosition = new Location(index, cursorPosition.getCharOffset());
+                clearEvictableLines();
+                compressOldLines();
             }
         } else {
             textLines.remove(firstDisplayLine + lastScrollLineIndex);
@@ -471,7 +768,8 @@ public class TerminalModel {
     
     public void setSize(int width, int height) {
         this.width = width;
-        lineIsDirty(0);
+        final int oldFirstDisplayLine = getFirstDisplayLine();
+        final int oldHeight = this.height;
         if (this.height > height && textLines.size() >= this.height) {
             for (int i = 0; i < (this.height - height); i++) {
                 int lineToRemove = textLines.size() - 1;
@@ -492,6 +790,10 @@ public class TerminalModel {
         while (getFirstDisplayLine() < 0) {
             textLines.add(new TextLine(Palettes.getBackgroundInk()));
         }
+        if (height != oldHeight) {
+            // The screen has grown over the lines above it, or shrunk from them.
+            linesChangedFrom(Math.max(0, Math.min(oldFirstDisplayLine, getFirstDisplayLine())));
+        }
         checkInvariant();
     }
     
@@ -510,7 +812,7 @@ public class TerminalModel {
         // and at sizes much larger than that, we end up with things getting horribly slow.
         // For example, cat a multi-megabyte file with no newlines, and Terminator can lock
         // up on you for many seconds.
-        int maxChars = 32700 / view.getCharUnitSize().width;
+        int maxChars = 32700 / charUnitWidth;
         int charsLeft = maxChars - cursorPosition.getCharOffset();
         if (charsLeft <= 0) {
             return;
@@ -536,9 +838,7 @@ public class TerminalModel {
     private void textAdded(int length) {
         TextLine textLine = getTextLine(cursorPosition.getLineIndex());
         updateMaxLineWidth(textLine.length());
-        // cursorPosition's line still has a valid *start* index, so we invalidate
-        // only the next line's start position.
-        lineIsDirty(cursorPosition.getLineIndex() + 1);
+        lineLengthChanged(cursorPosition.getLineIndex());
         linesChangedFrom(cursorPosition.getLineIndex());
         moveCursorHorizontally(length);
     }
@@ -582,11 +882,18 @@ public class TerminalModel {
     
     /** Sets whether the cursor should be visible. */
     public void setCursorVisible(boolean isDisplayed) {
-        view.setCursorVisible(isDisplayed);
+        cursorVisible = isDisplayed;
     }
     
     public void setCursorStyle(int style) {
-        view.setCursorStyle(style);
+        newCursorStyle = style;
+    }
+    
+    /**
+     * Sets the width of a character on the display. Must be called when the view's font changes.
+     */
+    public synchronized void setCharUnitWidth(int charUnitWidth) {
+        this.charUnitWidth = charUnitWidth;
     }
     
     /** Inserts lines at the current cursor position. */
@@ -601,7 +908,7 @@ public class TerminalModel {
         int start = cursorPosition.getCharOffset();
         int end = start + count;
         line.killText(start, end);
-        lineIsDirty(cursorPosition.getLineIndex() + 1);  // cursorPosition.y's line still has a valid *start* index.
+        lineLengthChanged(cursorPosition.getLineIndex());
         linesChangedFrom(cursorPosition.getLineIndex());
     }
     
@@ -620,7 +927,7 @@ public class TerminalModel {
             int start = fromStart ? 0 : cursorPosition.getCharOffset();
             line.killText(start, oldLineLength);
         }
-        lineIsDirty(cursorPosition.getLineIndex() + 1);  // cursorPosition.y's line still has a valid *start* index.
+        lineLengthChanged(cursorPosition.getLineIndex());
         linesChangedFrom(cursorPosition.getLineIndex());
     }
     
@@ -642,17 +949,18 @@ public class TerminalModel {
             TextLine cl = getTextLine(i);
             cl.clear();
             cl.setBackground(currentStyle.getRawBackground());
+            lineLengthChanged(i);
         }
         TextLine line = getTextLine(cursorPosition.getLineIndex());
         int oldLineLength = line.length();
         if (toBottom) {
-            view.setBackground(currentStyle.getBackground());
+            newBackground = currentStyle.getBackground();
             line.killText(cursorPosition.getCharOffset(), oldLineLength);
         } else /* only fromTop = true */ {
             // The current position is always erased, hence the + 1.
             line.writeTextAt(0, StringUtilities.nCopies(cursorPosition.getCharOffset() + 1, ' '), currentStyle);
         }
-        lineIsDirty(start + 1);
+        lineLengthChanged(cursorPosition.getLineIndex());
         linesChangedFrom(start);
     }
     
@@ -719,9 +1027,7 @@ public class TerminalModel {
         int removeIndex = getFirstDisplayLine() + lastScrollLineIndex + 1;
         textLines.add(addIndex, new TextLine(Palettes.getBackgroundInk()));
         textLines.remove(removeIndex);
-        lineIsDirty(addIndex);
         linesChangedFrom(addIndex);
-        view.repaint();
         checkInvariant();
     }
     
@@ -735,9 +1041,7 @@ public class TerminalModel {
             textLines.add(addIndex, new TextLine(Palettes.getBackgroundInk()));
             textLines.remove(removeIndex);
         }
-        lineIsDirty(addIndex);
         linesChangedFrom(addIndex);
-        view.repaint();
         checkInvariant();
     }
     
@@ -747,15 +1051,12 @@ public class TerminalModel {
         int addIndex = getFirstDisplayLine() + lastScrollLineIndex + 1;
         textLines.add(addIndex, new TextLine(Palettes.getBackgroundInk()));
         textLines.remove(removeIndex);
-        lineIsDirty(removeIndex);
         linesChangedFrom(removeIndex);
-        view.repaint();
         checkInvariant();
     }
     
     public void setWindowTitle(String newWindowTitle) {
-        JTerminalPane terminalPane = (JTerminalPane) SwingUtilities.getAncestorOfClass(JTerminalPane.class, view);
-        terminalPane.setTerminalName(newWindowTitle);
+        this.newWindowTitle = newWindowTitle;
     }
     
     public void setBracketedPasteMode(boolean value) {
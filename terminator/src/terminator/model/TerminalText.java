@@ -0,0 +1,251 @@
+package terminator.model;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.regex.*;
+import org.jessies.test.*;
+
+/**
+ * A range of a terminal's lines as one CharSequence, with a newline between each line and the next, so that a regular expression can match across lines.
+ * 
+ * Nothing is copied: we only know each line's length up front, and ask for a
+ * line's text when a character of it is first wanted. Matching mostly reads
+ * forwards, so finding the line a character is on is usually a comparison or
+ * two, and otherwise a binary search of the lines' start indexes. The same
+ * search maps a match's offsets back to Locations in O(log lines).
+ * 
+ * The lengths say what the text is. If a line has since changed length, the
+ * text still has the old length: a line that's grown is cut short, and one
+ * that's shrunk is padded with spaces, so a matcher never sees the text
+ * change length under it. Callers that want better than that should give us
+ * lines that don't change, as TerminalView does with its published lines.
+ * 
+ * We keep the lines' start indexes as longs, since there can be more than
+ * Integer.MAX_VALUE characters of scrollback. A CharSequence can't be that
+ * long, though, so such a text is cut short there: callers that want all of
+ * it should use getLines to take it a few lines at a time.
+ * 
+ * Like a Matcher, this isn't safe for use by multiple threads, but
+ * subSequence and getLines give a cheap independent view of part of the text.
+ */
+public final class TerminalText implements CharSequence {
+    private final int firstLineIndex;
+    // starts[i] is the index of the first character of line 'firstLineIndex + i'. The last element is the total length, including the last line's newline, which isn't part of the text.
+    private final long[] starts;
+    private final IntFunction<TextLine> lines;
+    // The range of 'starts' this view covers.
+    private final long begin;
+    private final long end;
+    
+    // The line charAt last used, relative to 'firstLineIndex', or -1.
+    private int currentLine = -1;
+    private CharSequence currentChars;
+    
+    /**
+     * Covers 'lineLengths.length' lines from 'firstLineIndex', each of which has the given length, including its newline.
+     * 'lines' returns a line, given its index, and is only called once a character of that line is wanted.
+     */
+    public TerminalText(int firstLineIndex, int[] lineLengths, IntFunction<TextLine> lines) {
+        this.firstLineIndex = firstLineIndex;
+        this.starts = new long[lineLengths.length + 1];
+        for (int i = 0; i < lineLengths.length; ++i) {
+            if (lineLengths[i] < 1) {
+                throw new IllegalArgumentException("line " + (firstLineIndex + i) + " has length " + lineLengths[i] + ", but every line has at least a newline");
+            }
+            starts[i + 1] = starts[i] + lineLengths[i];
+        }
+        this.lines = lines;
+        this.begin = 0;
+        this.end = Math.max(0, starts[lineLengths.length] - 1);
+    }
+    
+    private TerminalText(TerminalText text, long begin, long end) {
+        this.firstLineIndex = text.firstLineIndex;
+        this.starts = text.starts;
+        this.lines = text.lines;
+        this.begin = begin;
+        this.end = end;
+    }
+    
+    public int length() {
+        return (int) Math.min(end - begin, Integer.MAX_VALUE);
+    }
+    
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("index=" + index + " length()=" + length());
+        }
+        final long charIndex = begin + index;
+        if (currentLine == -1 || charIndex < starts[currentLine] || charIndex >= starts[currentLine + 1]) {
+            final int line = (currentLine != -1 && charIndex >= starts[currentLine + 1] && charIndex < starts[currentLine + 2]) ? currentLine + 1 : findLine(charIndex);
+            currentChars = lines.apply(firstLineIndex + line).getCharSequence();
+            currentLine = line;
+        }
+        final int offset = (int) (charIndex - starts[currentLine]);
+        if (charIndex == starts[currentLine + 1] - 1) {
+            return '\n';
+        }
+        return (offset < currentChars.length()) ? currentChars.charAt(offset) : ' ';
+    }
+    
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || start > end || end > length()) {
+            throw new IndexOutOfBoundsException("start=" + start + " end=" + end + " length()=" + length());
+        }
+        return new TerminalText(this, begin + start, begin + end);
+    }
+    
+    @Override public String toString() {
+        final StringBuilder result = new StringBuilder(length());
+        for (int i = 0; i < length(); ++i) {
+            result.append(charAt(i));
+        }
+        return result.toString();
+    }
+    
+    /**
+     * Returns the text of the lines from 'lineIndex' to 'endLineIndex', without the last one's newline, however long the whole text is.
+     */
+    public TerminalText getLines(int lineIndex, int endLineIndex) {
+        final int line = lineIndex - firstLineIndex;
+        final int endLine = endLineIndex - firstLineIndex;
+        if (line < 0 || line >= endLine || endLine > getLineCount()) {
+            throw new IndexOutOfBoundsException("lineIndex=" + lineIndex + " endLineIndex=" + endLineIndex + " firstLineIndex=" + firstLineIndex + " getLineCount()=" + getLineCount());
+        }
+        return new TerminalText(this, Math.max(begin, starts[line]), Math.min(end, starts[endLine] - 1));
+    }
+    
+    /**
+     * Returns the number of lines, including any this text only has part of.
+     */
+    public int getLineCount() {
+        return starts.length - 1;
+    }
+    
+    /**
+     * Returns the index of the line containing the character at 'index'. An index of length() is at the end of the last line.
+     */
+    public int getLineIndex(int index) {
+        checkIndex(index);
+        return firstLineIndex + findLine(begin + index);
+    }
+    
+    /**
+     * Returns the index, in this text, of the first character of the given line. This is negative if the line starts before this text does.
+     * Throws ArithmeticException if that doesn't fit in an int, which can only happen in a text longer than Integer.MAX_VALUE.
+     */
+    public int getLineStart(int lineIndex) {
+        final int line = lineIndex - firstLineIndex;
+        if (line < 0 || line >= getLineCount()) {
+            throw new IndexOutOfBoundsException("lineIndex=" + lineIndex + " firstLineIndex=" + firstLineIndex + " getLineCount()=" + getLineCount());
+        }
+        return Math.toIntExact(starts[line] - begin);
+    }
+    
+    /**
+     * Returns the index, in this text, of the end of the given line, where its newline is (or would be, for the last line).
+     */
+    public int getLineEnd(int lineIndex) {
+        return getLineStart(lineIndex) + (int) (starts[lineIndex - firstLineIndex + 1] - starts[lineIndex - firstLineIndex] - 1);
+    }
+    
+    /**
+     * Returns the characters of the given line, without its newline, for callers that want to look at a whole line more quickly than charAt allows.
+     * These are the line's characters now: if it's grown since we were told its length, there may be more than our text has of it; if it's shrunk, fewer.
+     */
+    public CharSequence getLineChars(int lineIndex) {
+        getLineStart(lineIndex);
+        return lines.apply(lineIndex).getCharSequence();
+    }
+    
+    /**
+     * Returns the Location of the character at 'index'.
+     */
+    public Location getLocation(int index) {
+        final int lineIndex = getLineIndex(index);
+        return new Location(lineIndex, index - getLineStart(lineIndex));
+    }
+    
+    private void checkIndex(int index) {
+        if (index < 0 || index > length()) {
+            throw new IndexOutOfBoundsException("index=" + index + " length()=" + length());
+        }
+    }
+    
+    // Returns the line, relative to 'firstLineIndex', containing 'charIndex', which is relative to the first line.
+    private int findLine(long charIndex) {
+        final int lineCount = getLineCount();
+        if (lineCount == 0) {
+            throw new IndexOutOfBoundsException("charIndex=" + charIndex + ", but there are no lines");
+        }
+        final int result = Arrays.binarySearch(starts, 0, lineCount, charIndex);
+        return (result >= 0) ? result : -result - 2;
+    }
+    
+    @TestHelper private static TerminalText makeText(int firstLineIndex, String... strings) {
+        final TextLine[] textLines = new TextLine[strings.length];
+        final int[] lengths = new int[strings.length];
+        for (int i = 0; i < strings.length; ++i) {
+            textLines[i] = new TextLine(null);
+            textLines[i].writeTextAt(0, strings[i], Style.getDefaultStyle());
+            lengths[i] = textLines[i].lengthIncludingNewline();
+        }
+        return new TerminalText(firstLineIndex, lengths, lineIndex -> textLines[lineIndex - firstLineIndex]);
+    }
+    
+    @Test private static void testTerminalText() {
+        final TerminalText text = makeText(10, "hello", "", "wrapped at the e", "dge of the screen");
+        Assert.equals(text.toString(), "hello\n\nwrapped at the e\ndge of the screen");
+        Assert.equals(text.length(), text.toString().length());
+        Assert.equals(text.getLocation(0), new Location(10, 0));
+        Assert.equals(text.getLocation(5), new Location(10, 5));
+        Assert.equals(text.getLocation(6), new Location(11, 0));
+        Assert.equals(text.getLocation(7), new Location(12, 0));
+        Assert.equals(text.getLocation(text.length()), new Location(13, "dge of the screen".length()));
+        Assert.equals(text.getLineStart(13), 24);
+        Assert.equals(text.getLineEnd(12), 23);
+        Assert.equals(text.getLineEnd(13), text.length());
+        Assert.equals(text.getLineChars(12).toString(), "wrapped at the e");
+        
+        // Matches can span lines.
+        final Matcher matcher = Pattern.compile("e\\s*dge").matcher(text);
+        Assert.equals(matcher.find(), true);
+        Assert.equals(text.getLocation(matcher.start()), new Location(12, 15));
+        Assert.equals(text.getLocation(matcher.end()), new Location(13, 3));
+        
+        // A sub-sequence shares the lines, but counts from its own start.
+        final TerminalText end = (TerminalText) text.subSequence(8, text.length());
+        Assert.equals(end.toString(), "rapped at the e\ndge of the screen");
+        Assert.equals(end.getLocation(0), new Location(12, 1));
+        Assert.equals(end.getLineStart(12), -1);
+        Assert.equals(end.subSequence(16, 19).toString(), "dge");
+        Assert.equals(text.getLines(11, 13).toString(), "\nwrapped at the e");
+        Assert.equals(end.getLines(12, 13).toString(), "rapped at the e");
+    }
+    
+    @Test private static void testMoreThanIntegerMaxValueCharacters() {
+        final TextLine line = new TextLine(null);
+        line.writeTextAt(0, "abc", Style.getDefaultStyle());
+        final int hugeLength = 2000 * 1000 * 1000;
+        final TerminalText text = new TerminalText(0, new int[] { hugeLength, hugeLength, 4 }, lineIndex -> line);
+        // The whole text is too long for a CharSequence, but its lines can still be had.
+        Assert.equals(text.length(), Integer.MAX_VALUE);
+        final TerminalText lastLine = text.getLines(2, 3);
+        Assert.equals(lastLine.toString(), "abc");
+        Assert.equals(lastLine.getLocation(1), new Location(2, 1));
+        Assert.equals(text.getLines(1, 3).getLineStart(2), hugeLength);
+    }
+    
+    @Test private static void testChangedLines() {
+        final TextLine line = new TextLine(null);
+        line.writeTextAt(0, "abc", Style.getDefaultStyle());
+        final TerminalText before = new TerminalText(0, new int[] { 4 }, lineIndex -> line);
+        // A line that's grown is cut short to the length we were told.
+        line.writeTextAt(3, "def", Style.getDefaultStyle());
+        Assert.equals(before.toString(), "abc");
+        // One that's shrunk is padded.
+        final TerminalText after = new TerminalText(0, new int[] { 7 }, lineIndex -> line);
+        line.killText(1, line.length());
+        Assert.equals(after.toString(), "a     ");
+    }
+}
@@ -1,10 +1,13 @@
 package terminator.model;
 
+import e.util.*;
+import java.io.*;
 import java.util.*;
+import org.jessies.test.*;
 import terminator.Palettes;
 
 /**
- * Ties together the String containing the characters on a particular line, and the styles to be applied to each character.
+ * Ties together the characters on a particular line, and the styles to be applied to each character.
  * TextLines are mutable, though it's not possible to change style information without rewriting the corresponding characters (because that's not how terminals work).
  * Actually documentation says that the VT400 has some, but by default support is not compiled into xterm.
  * #define OPT_DEC_RECTOPS 1
@@ -13,54 +16,65 @@ import terminator.Palettes;
 public class TextLine {
     // The text we store internally contains information about tabs.
     // When text is passed back out to the outside world, we either convert the tab information to spaces (for the display), or to tab characters (for the clipboard).
-    // Internally, a tab is marked as beginning with TAB_START.
-    // Each following display position (assuming *all* characters are the same width) covered by the tab is denoted by TAB_CONTINUE.
+    // A tab is stored as spaces, so the display case needs no conversion; the first cell is marked with TAB_START, and each following display position (assuming *all* characters are the same width) covered by the tab is marked with TAB_CONTINUE.
     // We have to internally store all this tab position and length information because tab positions can change in the outside world at any time, but each TextLine must retain its integrity once the tabs have been inserted into it.
-    private static final char TAB_START = '\t';
-    private static final char TAB_CONTINUE = '\r';
+    // The marks live in the top bits of the cell's entry in 'cells'; the rest of the entry is the cell's Style id.
+    private static final int TAB_START = (1 << 30);
+    private static final int TAB_CONTINUE = (1 << 31);
+    private static final int STYLE_ID_MASK = ~(TAB_START | TAB_CONTINUE);
+    
+    private static final char[] EMPTY_CHARS = new char[0];
     
     // The default background, used beyond the last character of the line.
     private Palettes.Ink background;
-    // The index in characters into the containing buffer of the first character of this line.
-    private int lineStartIndex;
-    
-    // The characters on this line.
-    // An immutable String may seem like an odd choice, but we've tried StringBuilder too.
-    // In terms of space, StringBuilder helps a little, saving on useless String fields (such as the cached hashCode), but we pay extra for each blank line (where the cost is a whole new StringBuilder rather than just sharing the JVM's single empty-string instance), and we pay for unused space in the underlying char[]s.
-    // In terms of time, StringBuilder hurts a little, because we need to convert to a String for our callers (especially rendering), and young lines don't change much and old lines never change.
-    // In terms of code, there's nothing in it; the StringBuilder delete and insert methods are arguably more readable, but that only affects a handful of lines.
-    // All in all, then, String is actually the best choice in our current environment.
-    // (If we switched rendering over to AttributedCharacterIterator or something else that didn't require a String, that might change the balance.)
-    private String text;
-    
-    // The styles to be applied to the characters on this line.
-    // styles == null => all characters use the default style.
-    // Otherwise, styles.length == text.length(), and the style information for text.charAt(i) is styles[i] (never null).
-    private Style[] styles;
+    
+    // The characters on this line are chars[0] to chars[length - 1].
+    // We used to use an immutable String, but that meant copying the whole line for every change (including the very common case of overwriting a few characters in a full-screen application), and then again to turn the tab marks into spaces for the display.
+    // Now the display doesn't need any copying at all: it can draw straight from the array with getChars.
+    // When we have to grow the array, we leave a little room, because lines are usually written a piece at a time, from left to right.
+    private char[] chars;
+    private int length;
+    
+    // The style id and tab marks for each character on this line.
+    // cells == null => all characters use the default style, and there are no tabs.
+    // Otherwise, cells.length >= length, and the information for chars[i] is cells[i].
+    // An int is no bigger than a (compressed) reference to a Style, and it means comparing runs doesn't have to chase pointers.
+    private int[] cells;
+    
+    // Incremented by every change, so ScreenSnapshot can tell whether its copy of this line is still current, even if the line has moved.
+    private int modificationCount;
     
     public TextLine(Palettes.Ink bg) {
         background = bg;
         clear();
     }
     
+    // Used by decode.
+    private TextLine(Palettes.Ink bg, char[] chars, int[] cells) {
+        this.background = bg;
+        this.chars = chars;
+        this.length = chars.length;
+        this.cells = cells;
+    }
+    
     public Palettes.Ink getBackground() {
         return background == null ? Palettes.getBackgroundInk() : background;
     }
     
     public void setBackground(Palettes.Ink bg) {
         background = bg;
+        ++modificationCount;
     }
     
-    public int getLineStartIndex() {
-        return lineStartIndex;
-    }
-    
-    public void setLineStartIndex(int lineStartIndex) {
-        this.lineStartIndex = lineStartIndex;
+    public Style getStyleAt(int index) {
+        return Style.forId(getStyleIdAt(index));
     }
     
-    public Style getStyleAt(int index) {
-        return (styles == null) ? Style.getDefaultStyle() : styles[index];
+    /**
+     * Returns the id of the style of the character at 'index'. See Style.getId.
+     */
+    public int getStyleIdAt(int index) {
+        return (cells == null) ? Style.getDefaultStyle().getId() : (cells[index] & STYLE_ID_MASK);
     }
     
     /**
@@ -79,12 +93,12 @@ public class TextLine {
             throw new AssertionError("start=" + start + " end=" + end + " length()=" + length());
         }
         // If we have no styling, only caller can affect styling of a run.
-        if (styles == null) {
+        if (cells == null) {
             return end;
         }
-        Style toMatch = styles[start];
+        final int toMatch = cells[start] & STYLE_ID_MASK;
         for (int i = start + 1; i < end; i++) {
-            if (!toMatch.equals(styles[i])) {
+            if ((cells[i] & STYLE_ID_MASK) != toMatch) {
                 return i;
             }
         }
@@ -97,44 +111,229 @@ public class TextLine {
      * This isn't called toString because you need to come here and think about whether you want this method or getTabbedString instead.
      */
     public String getString() {
-        return text.replace(TAB_START, ' ').replace(TAB_CONTINUE, ' ');
+        return new String(chars, 0, length);
     }
     
     public String getSubstring(int beginIndex, int endIndex) {
-        return getString().substring(beginIndex, endIndex);
+        checkRange(beginIndex, endIndex);
+        return new String(chars, beginIndex, endIndex - beginIndex);
     }
-
+    
+    /**
+     * Copies the characters from 'beginIndex' to 'endIndex' into 'dst' at 'dstBegin', like String.getChars.
+     * Tabs are copied as spaces. This lets the display draw without allocating anything.
+     */
+    public void getChars(int beginIndex, int endIndex, char[] dst, int dstBegin) {
+        checkRange(beginIndex, endIndex);
+        System.arraycopy(chars, beginIndex, dst, dstBegin, endIndex - beginIndex);
+    }
+    
+    /**
+     * Returns a view of the same text as getString, without copying it.
+     * The view reflects later changes to this line, so don't hang on to it; it's meant for things like running a regular expression over the line.
+     */
+    public CharSequence getCharSequence() {
+        return new CharsView(0, length);
+    }
+    
+    private void checkRange(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || beginIndex > endIndex || endIndex > length) {
+            throw new IndexOutOfBoundsException("beginIndex=" + beginIndex + " endIndex=" + endIndex + " length()=" + length);
+        }
+    }
+    
+    private class CharsView implements CharSequence {
+        private final int offset;
+        private final int count;
+        
+        private CharsView(int offset, int count) {
+            this.offset = offset;
+            this.count = count;
+        }
+        
+        public char charAt(int index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("index=" + index + " length()=" + count);
+            }
+            return chars[offset + index];
+        }
+        
+        public int length() {
+            return count;
+        }
+        
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || start > end || end > count) {
+                throw new IndexOutOfBoundsException("start=" + start + " end=" + end + " length()=" + count);
+            }
+            return new CharsView(offset + start, end - start);
+        }
+        
+        @Override public String toString() {
+            return new String(chars, offset, count);
+        }
+    }
+    
     /** Returns the text, with all the tabs put back in for use with clipboard stuff. */
     public String getTabbedString(int start, int end) {
+        if (cells == null) {
+            return getSubstring(start, end);
+        }
         StringBuilder buf = new StringBuilder();
         for (int i = start; i < end; i++) {
-            char ch = text.charAt(i);
-            if (ch != TAB_CONTINUE) {
-                buf.append(ch);
+            if ((cells[i] & TAB_START) != 0) {
+                buf.append('\t');
+            } else if ((cells[i] & TAB_CONTINUE) == 0) {
+                buf.append(chars[i]);
             }
         }
         return buf.toString();
     }
     
+    /**
+     * Returns an estimate of the memory used by this line, for MemoryAccountant.
+     */
+    public long estimateMemoryUse() {
+        return MemoryAccountant.objectBytes(4) + MemoryAccountant.arrayBytes(chars.length, 2) + ((cells != null) ? MemoryAccountant.arrayBytes(cells.length, 4) : 0);
+    }
+    
+    /**
+     * Returns a copy of this line, unaffected by later changes to it, for ScreenSnapshot.
+     */
+    TextLine copy() {
+        return new TextLine(background, Arrays.copyOf(chars, length), (cells != null) ? Arrays.copyOf(cells, length) : null);
+    }
+    
+    int getModificationCount() {
+        return modificationCount;
+    }
+    
+    /**
+     * Sets the bit in 'ids' for each style id used on this line, for StyleTable.
+     */
+    void markStyleIds(BitSet ids) {
+        if (cells == null) {
+            ids.set(Style.getDefaultStyle().getId());
+            return;
+        }
+        int previousId = -1;
+        for (int i = 0; i < length; ++i) {
+            final int id = cells[i] & STYLE_ID_MASK;
+            if (id != previousId) {
+                ids.set(id);
+                previousId = id;
+            }
+        }
+    }
+    
+    /**
+     * Writes this line in the compact form CompressedLineBlock compresses.
+     * Characters are variable-length integers, so ASCII costs a byte each, and styles are run-length encoded.
+     * Our background is written as an index into 'backgrounds', which we add it to if necessary.
+     */
+    void encode(DataOutput out, List<Palettes.Ink> backgrounds) throws IOException {
+        int backgroundIndex = backgrounds.indexOf(background);
+        if (backgroundIndex == -1) {
+            backgroundIndex = backgrounds.size();
+            backgrounds.add(background);
+        }
+        writeVarInt(out, backgroundIndex);
+        writeVarInt(out, length);
+        for (int i = 0; i < length; ++i) {
+            writeVarInt(out, chars[i]);
+        }
+        if (cells == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        int runCount = 0;
+        for (int i = 0; i < length; i = getCellRunLimit(i)) {
+            ++runCount;
+        }
+        writeVarInt(out, runCount);
+        for (int i = 0; i < length; ) {
+            final int limit = getCellRunLimit(i);
+            writeVarInt(out, limit - i);
+            writeVarInt(out, cells[i]);
+            i = limit;
+        }
+    }
+    
+    /**
+     * Reads a line written by encode.
+     */
+    static TextLine decode(DataInput in, Palettes.Ink[] backgrounds) throws IOException {
+        final Palettes.Ink background = backgrounds[readVarInt(in)];
+        final char[] chars = new char[readVarInt(in)];
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = (char) readVarInt(in);
+        }
+        int[] cells = null;
+        final int runCount = readVarInt(in);
+        if (runCount > 0) {
+            cells = new int[chars.length];
+            int offset = 0;
+            for (int run = 0; run < runCount; ++run) {
+                final int runLength = readVarInt(in);
+                Arrays.fill(cells, offset, offset + runLength, readVarInt(in));
+                offset += runLength;
+            }
+        }
+        return new TextLine(background, chars, cells);
+    }
+    
+    // Like getRunLimit, but tab marks count too, because encode needs to preserve them.
+    private int getCellRunLimit(int start) {
+        int i = start + 1;
+        while (i < length && cells[i] == cells[start]) {
+            ++i;
+        }
+        return i;
+    }
+    
+    // Seven bits per byte, least significant first, with the top bit set on all but the last byte.
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    
+    private static int readVarInt(DataInput in) throws IOException {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            final int b = in.readUnsignedByte();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+    
     public int length() {
-        return text.length();
+        return length;
     }
     
     public int lengthIncludingNewline() {
         return length() + 1;
     }
     
+    private boolean isTabContinuation(int index) {
+        return cells != null && (cells[index] & TAB_CONTINUE) != 0;
+    }
+    
     /**
     * Returns the offset of the character specified by charOffset.
     * The returned value will be charOffset for most characters, but may
     * be smaller if the character at charOffset is part of a tab.
     */
     public int getEffectiveCharStartOffset(int charOffset) {
-        if (charOffset >= text.length()) {
+        if (charOffset >= length) {
             return charOffset;
         }
         for (int i = charOffset; i >= 0; i--) {
-            if (text.charAt(i) != TAB_CONTINUE) {
+            if (isTabContinuation(i) == false) {
                 return i;
             }
         }
@@ -147,121 +346,168 @@ public class TextLine {
     * be larger if the character at charOffset is part of a tab (after the start).
     */
     public int getEffectiveCharEndOffset(int charOffset) {
-        if (charOffset >= text.length()) {
+        if (charOffset >= length) {
             return charOffset;
         }
-        for (int i = charOffset; i < text.length(); i++) {
-            if (text.charAt(i) != TAB_CONTINUE) {
+        for (int i = charOffset; i < length; i++) {
+            if (isTabContinuation(i) == false) {
                 return i;
             }
         }
-        return text.length();
+        return length;
     }
     
     public void clear() {
-        text = "";
-        styles = null;
+        chars = EMPTY_CHARS;
+        length = 0;
+        cells = null;
+        ++modificationCount;
     }
     
     public void killText(int startIndex, int endIndex) {
-        if (startIndex >= endIndex || startIndex >= text.length()) {
+        if (startIndex >= endIndex || startIndex >= length) {
             return;
         }
-        endIndex = Math.min(endIndex, text.length());
-        text = text.substring(0, startIndex) + text.substring(endIndex);
-        removeStyleData(startIndex, endIndex);
+        endIndex = Math.min(endIndex, length);
+        System.arraycopy(chars, endIndex, chars, startIndex, length - endIndex);
+        if (cells != null) {
+            System.arraycopy(cells, endIndex, cells, startIndex, length - endIndex);
+        }
+        length -= endIndex - startIndex;
+        ++modificationCount;
     }
     
     public void insertTabAt(int offset, int tabLength, Style style) {
-        insertTextAt(offset, getTabString(tabLength), style);
-    }
-    
-    private static String getTabString(int tabLength) {
-        char[] tab = new char[tabLength];
-        tab[0] = TAB_START;
-        Arrays.fill(tab, 1, tab.length, TAB_CONTINUE);
-        return new String(tab);
+        openGap(offset, tabLength);
+        Arrays.fill(chars, offset, offset + tabLength, ' ');
+        ensureCells();
+        final int styleId = style.getId();
+        cells[offset] = styleId | TAB_START;
+        Arrays.fill(cells, offset + 1, offset + tabLength, styleId | TAB_CONTINUE);
+        ++modificationCount;
     }
     
     /** Inserts text at the given position, moving anything already there further to the right. */
     public void insertTextAt(int offset, String newText, Style style) {
-        ensureOffsetIsOK(offset);
-        text = text.substring(0, offset) + newText + text.substring(offset);
-        insertStyleData(offset, newText.length(), style);
+        final int count = newText.length();
+        openGap(offset, count);
+        newText.getChars(0, count, chars, offset);
+        fillStyle(offset, count, style);
+        ++modificationCount;
     }
     
     /** Writes text at the given position, overwriting anything underneath. */
     public void writeTextAt(int offset, String newText, Style style) {
         ensureOffsetIsOK(offset);
-        if (offset + newText.length() < text.length()) {
-            text = text.substring(0, offset) + newText + text.substring(offset + newText.length());
-        } else {
-            text = text.substring(0, offset) + newText;
+        final int count = newText.length();
+        if (offset + count > length) {
+            ensureCapacity(offset + count);
+            length = offset + count;
+        }
+        newText.getChars(0, count, chars, offset);
+        fillStyle(offset, count, style);
+        ++modificationCount;
+    }
+    
+    /**
+     * Makes room for 'count' characters at 'offset', moving anything already there further to the right.
+     * The contents of the gap are undefined.
+     */
+    private void openGap(int offset, int count) {
+        ensureOffsetIsOK(offset);
+        ensureCapacity(length + count);
+        System.arraycopy(chars, offset, chars, offset + count, length - offset);
+        if (cells != null) {
+            System.arraycopy(cells, offset, cells, offset + count, length - offset);
         }
-        overwriteStyleData(offset, newText.length(), style);
+        length += count;
     }
     
     private void ensureOffsetIsOK(int offset) {
         if (offset < 0) {
             throw new IllegalArgumentException("Negative offset " + offset);
         }
-        if (offset > text.length()) {
-            appendPadding(offset - text.length());
+        if (offset > length) {
+            appendPadding(offset - length);
         }
     }
     
     private void appendPadding(int count) {
-        char[] pad = new char[count];
-        Arrays.fill(pad, ' ');
-        int oldTextLength = text.length();
-        text += new String(pad);
+        final int oldLength = length;
+        ensureCapacity(length + count);
+        Arrays.fill(chars, oldLength, oldLength + count, ' ');
+        length += count;
         // Even an empty line can have a background color; make sure we use it.
-        insertStyleData(oldTextLength, count, Style.makeStyle(null, background, 0));
+        fillStyle(oldLength, count, Style.makeStyle(null, background, 0));
     }
     
-    private void overwriteStyleData(int offset, int count, Style value) {
-        if (styles == null && value.equals(Style.getDefaultStyle())) {
-            return;
-        }
-        Style[] oldStyleData = maybeResizeStyleData();
-        if (oldStyleData != null) {
-            System.arraycopy(oldStyleData, 0, styles, 0, oldStyleData.length);
+    private void fillStyle(int offset, int count, Style style) {
+        final int styleId = style.getId();
+        if (cells == null) {
+            if (styleId == Style.getDefaultStyle().getId()) {
+                return;
+            }
+            ensureCells();
         }
-        Arrays.fill(styles, offset, offset + count, value);
+        Arrays.fill(cells, offset, offset + count, styleId);
     }
     
-    private void insertStyleData(int offset, int count, Style value) {
-        if (styles == null && value.equals(Style.getDefaultStyle())) {
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity <= chars.length) {
             return;
         }
-        Style[] oldStyleData = maybeResizeStyleData();
-        if (oldStyleData != null) {
-            System.arraycopy(oldStyleData, 0, styles, 0, offset);
-            System.arraycopy(oldStyleData, offset, styles, offset + count, oldStyleData.length - offset);
+        final int newCapacity = Math.max(minCapacity, chars.length + (chars.length >> 2));
+        chars = Arrays.copyOf(chars, newCapacity);
+        if (cells != null) {
+            cells = Arrays.copyOf(cells, newCapacity);
         }
-        Arrays.fill(styles, offset, offset + count, value);
-    }
-    
-    private void removeStyleData(int startIndex, int endIndex) {
-        if (styles == null) {
-            return;
-        }
-        Style[] oldStyleData = maybeResizeStyleData();
-        // insert and overwrite can get here when oldStyleData is null, but remove can't.
-        System.arraycopy(oldStyleData, 0, styles, 0, startIndex);
-        System.arraycopy(oldStyleData, endIndex, styles, startIndex, oldStyleData.length - endIndex);
     }
     
     /**
-     * Ensures that the "styles" array is the right size for the current "text".
-     * You should only call this if you know that the line requires non-default styling.
+     * Ensures that we have a "cells" array, with room for as many characters as "chars".
+     * You should only call this if you know that the line requires non-default styling, or has a tab.
      */
-    private Style[] maybeResizeStyleData() {
-        Style[] oldStyleData = styles;
-        if (styles == null || styles.length != text.length()) {
-            styles = new Style[text.length()];
-            Arrays.fill(styles, 0, styles.length, Style.getDefaultStyle());
+    private void ensureCells() {
+        if (cells == null) {
+            cells = new int[chars.length];
+            final int defaultStyleId = Style.getDefaultStyle().getId();
+            if (defaultStyleId != 0) {
+                Arrays.fill(cells, defaultStyleId);
+            }
         }
-        return oldStyleData;
+    }
+    
+    @Test private static void testTabs() {
+        final TextLine line = new TextLine(null);
+        line.writeTextAt(0, "a", Style.getDefaultStyle());
+        line.insertTabAt(1, 7, Style.getDefaultStyle());
+        line.writeTextAt(8, "b", Style.getDefaultStyle());
+        Assert.equals(line.getString(), "a       b");
+        Assert.equals(line.getTabbedString(0, line.length()), "a\tb");
+        Assert.equals(line.getEffectiveCharStartOffset(4), 1);
+        Assert.equals(line.getEffectiveCharEndOffset(4), 8);
+        // Overwriting the start of a tab leaves the rest of its cells showing as spaces, but without a start they're no longer copied as a tab, or at all.
+        line.writeTextAt(1, "x", Style.getDefaultStyle());
+        Assert.equals(line.getString(), "ax      b");
+        Assert.equals(line.getTabbedString(0, line.length()), "axb");
+    }
+    
+    @Test private static void testEditing() {
+        final Style bold = Style.makeStyle(null, null, Style.BOLD);
+        final TextLine line = new TextLine(null);
+        line.writeTextAt(0, "hello world", Style.getDefaultStyle());
+        line.writeTextAt(6, "WORLD", bold);
+        line.insertTextAt(5, ",", Style.getDefaultStyle());
+        Assert.equals(line.getString(), "hello, WORLD");
+        Assert.equals(line.getRunLimit(0, line.length()), 7);
+        Assert.equals(line.getStyleAt(7), bold);
+        line.killText(0, 7);
+        Assert.equals(line.getSubstring(0, line.length()), "WORLD");
+        Assert.equals(line.getRunLimit(0, line.length()), 5);
+        Assert.equals(line.getCharSequence().subSequence(1, 3).toString(), "OR");
+        // Writing beyond the end pads with spaces.
+        line.writeTextAt(7, "!", bold);
+        Assert.equals(line.getString(), "WORLD  !");
+        Assert.equals(line.getStyleAt(5).getAttributes(), 0);
     }
 }
@@ -0,0 +1,363 @@
+package terminator.model;
+
+import e.util.*;
+import java.util.*;
+import java.util.function.*;
+import org.jessies.test.*;
+
+/**
+ * A terminal's lines, oldest first, with all but the most recent kept in CompressedLineBlocks.
+ * 
+ * The newest lines (including the screen) are ordinary TextLines in a RingList.
+ * TerminalModel calls compressOldestLines to move the oldest of those into a
+ * new block once they're far enough from the bottom. get inflates the block a
+ * line's in, and keeps the few most recently used blocks inflated, so that
+ * painting, selecting, and finding in old scrollback don't inflate a block per
+ * line. Scrolling to the top means inflating at most a block or two.
+ * 
+ * Lines in blocks are meant to be read, not changed: a line returned by get is
+ * a copy that's only kept for as long as its block stays in the cache. If a
+ * line in a block is replaced or removed, or a line inserted before it, we
+ * first move the blocks from there on back into the uncompressed lines.
+ * Terminals don't do that in practice, because they only change the screen.
+ * 
+ * Like RingList, evicting the oldest lines is O(lines evicted). A block's
+ * memory is freed once all its lines have been evicted, and a spilled block's
+ * space in its ScrollbackSpillFile is released to be reused.
+ */
+final class TextLineList extends AbstractList<TextLine> implements RandomAccess {
+    // A few thousand lines compress well, and inflate quickly enough not to interfere with scrolling.
+    static final int BLOCK_LINE_COUNT = 2048;
+    
+    // Enough for painting, a selection, and a find in progress to each have a block or two.
+    private static final int INFLATED_BLOCK_CACHE_SIZE = 4;
+    
+    private final RingList<CompressedLineBlock> blocks = new RingList<>();
+    // How many of the first block's lines have been evicted.
+    private int firstBlockEvictedLineCount;
+    // The number of lines in blocks, not counting evicted ones.
+    private int compressedLineCount;
+    private final RingList<TextLine> uncompressedLines = new RingList<>();
+    // Every line's length, so we can map between lines and character indexes without inflating anything.
+    private final LineOffsetIndex lineOffsets = new LineOffsetIndex();
+    
+    // The background find reads lines off the EDT, so this is guarded by itself.
+    private final LinkedHashMap<CompressedLineBlock, TextLine[]> inflatedBlocks = new LinkedHashMap<CompressedLineBlock, TextLine[]>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<CompressedLineBlock, TextLine[]> eldest) {
+            return size() > INFLATED_BLOCK_CACHE_SIZE;
+        }
+    };
+    
+    /**
+     * Returns the number of lines in blocks. These are the lines from index 0.
+     */
+    int getCompressedLineCount() {
+        return compressedLineCount;
+    }
+    
+    /**
+     * Returns the index of the first character of the given line, counting from the first line and including newlines.
+     */
+    long getStartIndex(int index) {
+        return lineOffsets.getStartIndex(index);
+    }
+    
+    /**
+     * Returns the index of the line containing the given character index, or the last line if it's beyond the end.
+     */
+    int getLineIndex(long charIndex) {
+        return lineOffsets.getLineIndex(charIndex);
+    }
+    
+    /**
+     * Copies the lengths, including newlines, of 'count' lines from 'index' into 'dst' from 'dstBegin', without inflating anything.
+     */
+    void getLengths(int index, int count, int[] dst, int dstBegin) {
+        lineOffsets.getLengths(index, count, dst, dstBegin);
+    }
+    
+    /**
+     * Returns the lines from 'index' to 'endIndex', by index, as they are now, for other threads to read while we carry on changing.
+     * Uncompressed lines aren't copied, so they mustn't change: this is only for the lines above the screen.
+     */
+    IntFunction<TextLine> snapshot(int index, int endIndex) {
+        if (index < 0 || index > endIndex || endIndex > size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " endIndex=" + endIndex + " size()=" + size());
+        }
+        final int uncompressedIndex = Math.max(index, compressedLineCount);
+        final TextLine[] lines = uncompressedLines.subList(uncompressedIndex - compressedLineCount, Math.max(uncompressedIndex, endIndex) - compressedLineCount).toArray(new TextLine[0]);
+        return new Snapshot(index, endIndex, blocks.toArray(new CompressedLineBlock[blocks.size()]), firstBlockEvictedLineCount, uncompressedIndex, lines);
+    }
+    
+    /**
+     * What snapshot returns. Blocks are inflated as they're needed, and kept for a while, since the lines are usually read in order.
+     */
+    private static final class Snapshot implements IntFunction<TextLine> {
+        private final int index;
+        private final int endIndex;
+        private final CompressedLineBlock[] blocks;
+        private final int firstBlockEvictedLineCount;
+        // Lines from here on are in 'uncompressedLines'; those before are in 'blocks'.
+        private final int uncompressedIndex;
+        private final TextLine[] uncompressedLines;
+        // Separate from the list's own cache, so that a search doesn't evict the blocks being painted. Several threads may be reading different blocks at once.
+        private final LinkedHashMap<CompressedLineBlock, TextLine[]> inflatedBlocks = new LinkedHashMap<CompressedLineBlock, TextLine[]>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<CompressedLineBlock, TextLine[]> eldest) {
+                return size() > Runtime.getRuntime().availableProcessors() + 1;
+            }
+        };
+        
+        private Snapshot(int index, int endIndex, CompressedLineBlock[] blocks, int firstBlockEvictedLineCount, int uncompressedIndex, TextLine[] uncompressedLines) {
+            this.index = index;
+            this.endIndex = endIndex;
+            this.blocks = blocks;
+            this.firstBlockEvictedLineCount = firstBlockEvictedLineCount;
+            this.uncompressedIndex = uncompressedIndex;
+            this.uncompressedLines = uncompressedLines;
+        }
+        
+        public TextLine apply(int lineIndex) {
+            if (lineIndex < index || lineIndex >= endIndex) {
+                throw new IndexOutOfBoundsException("lineIndex=" + lineIndex + " index=" + index + " endIndex=" + endIndex);
+            }
+            if (lineIndex >= uncompressedIndex) {
+                return uncompressedLines[lineIndex - uncompressedIndex];
+            }
+            final int blockLineIndex = firstBlockEvictedLineCount + lineIndex;
+            final CompressedLineBlock block = blocks[blockLineIndex / BLOCK_LINE_COUNT];
+            TextLine[] lines;
+            synchronized (inflatedBlocks) {
+                lines = inflatedBlocks.get(block);
+            }
+            if (lines == null) {
+                // Two threads might both inflate the same block, but neither has to wait for the other.
+                lines = block.inflate();
+                synchronized (inflatedBlocks) {
+                    inflatedBlocks.put(block, lines);
+                }
+            }
+            return lines[blockLineIndex % BLOCK_LINE_COUNT];
+        }
+    }
+    
+    /**
+     * Returns the number of characters in all the lines, including newlines.
+     */
+    long getCharCount() {
+        return lineOffsets.getCharCount();
+    }
+    
+    /**
+     * Tells us that the given line's length may have changed. Lines are changed in place, so we can't tell for ourselves.
+     */
+    void lineLengthChanged(int index) {
+        if (index < size()) {
+            lineOffsets.set(index, get(index).lengthIncludingNewline());
+        }
+    }
+    
+    /**
+     * Moves the oldest BLOCK_LINE_COUNT uncompressed lines into a new block, kept in 'spillFile' if that's not null.
+     */
+    void compressOldestLines(ScrollbackSpillFile spillFile) {
+        final List<TextLine> lines = uncompressedLines.subList(0, BLOCK_LINE_COUNT);
+        blocks.add(new CompressedLineBlock(lines, spillFile));
+        uncompressedLines.removeFirst(BLOCK_LINE_COUNT);
+        compressedLineCount += BLOCK_LINE_COUNT;
+    }
+    
+    @Override public TextLine get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " size()=" + size());
+        }
+        if (index >= compressedLineCount) {
+            return uncompressedLines.get(index - compressedLineCount);
+        }
+        final int blockLineIndex = firstBlockEvictedLineCount + index;
+        return getInflatedBlock(blocks.get(blockLineIndex / BLOCK_LINE_COUNT))[blockLineIndex % BLOCK_LINE_COUNT];
+    }
+    
+    private TextLine[] getInflatedBlock(CompressedLineBlock block) {
+        synchronized (inflatedBlocks) {
+            TextLine[] lines = inflatedBlocks.get(block);
+            if (lines == null) {
+                lines = block.inflate();
+                inflatedBlocks.put(block, lines);
+            }
+            return lines;
+        }
+    }
+    
+    @Override public int size() {
+        return compressedLineCount + uncompressedLines.size();
+    }
+    
+    @Override public TextLine set(int index, TextLine line) {
+        uncompressFrom(index);
+        lineOffsets.set(index, line.lengthIncludingNewline());
+        return uncompressedLines.set(index - compressedLineCount, line);
+    }
+    
+    @Override public void add(int index, TextLine line) {
+        uncompressFrom(index);
+        uncompressedLines.add(index - compressedLineCount, line);
+        lineOffsets.add(index, line.lengthIncludingNewline());
+        ++modCount;
+    }
+    
+    @Override public TextLine remove(int index) {
+        uncompressFrom(index);
+        lineOffsets.remove(index);
+        ++modCount;
+        return uncompressedLines.remove(index - compressedLineCount);
+    }
+    
+    /**
+     * Moves blocks back into the uncompressed lines until the line at 'index' is uncompressed.
+     */
+    private void uncompressFrom(int index) {
+        while (index < compressedLineCount) {
+            final CompressedLineBlock block = blocks.remove(blocks.size() - 1);
+            final TextLine[] lines;
+            synchronized (inflatedBlocks) {
+                final TextLine[] cachedLines = inflatedBlocks.remove(block);
+                lines = (cachedLines != null) ? cachedLines : block.inflate();
+            }
+            block.release();
+            final int firstLine = blocks.isEmpty() ? firstBlockEvictedLineCount : 0;
+            for (int i = lines.length - 1; i >= firstLine; --i) {
+                uncompressedLines.add(0, lines[i]);
+            }
+            compressedLineCount -= lines.length - firstLine;
+            if (blocks.isEmpty()) {
+                firstBlockEvictedLineCount = 0;
+            }
+        }
+    }
+    
+    /**
+     * Removes the first 'count' lines, in time proportional to 'count' rather than the number of lines.
+     */
+    void removeFirst(int count) {
+        if (count < 0 || count > size()) {
+            throw new IndexOutOfBoundsException("count=" + count + " size()=" + size());
+        }
+        final int originalCount = count;
+        while (count > 0 && compressedLineCount > 0) {
+            final int evictedCount = Math.min(count, BLOCK_LINE_COUNT - firstBlockEvictedLineCount);
+            firstBlockEvictedLineCount += evictedCount;
+            compressedLineCount -= evictedCount;
+            count -= evictedCount;
+            if (firstBlockEvictedLineCount == BLOCK_LINE_COUNT) {
+                final CompressedLineBlock block = blocks.remove(0);
+                synchronized (inflatedBlocks) {
+                    inflatedBlocks.remove(block);
+                }
+                block.release();
+                firstBlockEvictedLineCount = 0;
+            }
+        }
+        uncompressedLines.removeFirst(count);
+        lineOffsets.removeFirst(originalCount);
+        ++modCount;
+    }
+    
+    /**
+     * Drops our blocks' references to the spill file, which is being closed. Lines that were in it are empty from now on.
+     */
+    void forgetSpillFile() {
+        for (CompressedLineBlock block : blocks) {
+            block.forgetSpillFile();
+        }
+    }
+    
+    /**
+     * Sets the bit in 'ids' for each style id used by our lines, without inflating anything.
+     */
+    void markStyleIds(BitSet ids) {
+        for (CompressedLineBlock block : blocks) {
+            block.markStyleIds(ids);
+        }
+        for (TextLine line : uncompressedLines) {
+            line.markStyleIds(ids);
+        }
+    }
+    
+    /**
+     * Returns an estimate of the memory used by our lines, including the inflated blocks we're caching.
+     */
+    long estimateMemoryUse() {
+        // The line offset index costs about 4 bytes per line.
+        long result = MemoryAccountant.arrayBytes(blocks.size(), 4) + MemoryAccountant.arrayBytes(uncompressedLines.size(), 4) + 4L * size();
+        for (CompressedLineBlock block : blocks) {
+            result += block.estimateMemoryUse();
+        }
+        for (TextLine line : uncompressedLines) {
+            result += line.estimateMemoryUse();
+        }
+        synchronized (inflatedBlocks) {
+            for (TextLine[] lines : inflatedBlocks.values()) {
+                for (TextLine line : lines) {
+                    result += line.estimateMemoryUse();
+                }
+            }
+        }
+        return result;
+    }
+    
+    @TestHelper private static TextLine makeLine(String text) {
+        final TextLine line = new TextLine(null);
+        line.writeTextAt(0, text, Style.getDefaultStyle());
+        return line;
+    }
+    
+    @Test private static void testCompressionAndEviction() {
+        final TextLineList list = new TextLineList();
+        final int lineCount = 3 * BLOCK_LINE_COUNT + 10;
+        for (int i = 0; i < lineCount; ++i) {
+            list.add(makeLine("line " + i));
+        }
+        list.compressOldestLines(null);
+        list.compressOldestLines(null);
+        Assert.equals(list.getCompressedLineCount(), 2 * BLOCK_LINE_COUNT);
+        Assert.equals(list.size(), lineCount);
+        for (int i = 0; i < lineCount; i += 97) {
+            Assert.equals(list.get(i).getString(), "line " + i);
+            Assert.equals(list.getLineIndex(list.getStartIndex(i) + 2), i);
+        }
+        
+        // Evict part of the first block, then the rest of it and part of the second.
+        list.removeFirst(10);
+        Assert.equals(list.get(0).getString(), "line 10");
+        list.removeFirst(BLOCK_LINE_COUNT);
+        Assert.equals(list.get(0).getString(), "line " + (BLOCK_LINE_COUNT + 10));
+        Assert.equals(list.getCompressedLineCount(), BLOCK_LINE_COUNT - 10);
+        Assert.equals(list.size(), lineCount - BLOCK_LINE_COUNT - 10);
+        
+        // Changing a compressed line uncompresses it, and everything after it.
+        final long startIndex = list.getStartIndex(6);
+        list.set(5, makeLine("changed"));
+        Assert.equals(list.getStartIndex(6), startIndex - ("line " + (BLOCK_LINE_COUNT + 15)).length() + "changed".length());
+        Assert.equals(list.getCompressedLineCount(), 0);
+        Assert.equals(list.get(5).getString(), "changed");
+        Assert.equals(list.get(6).getString(), "line " + (BLOCK_LINE_COUNT + 16));
+        Assert.equals(list.get(list.size() - 1).getString(), "line " + (lineCount - 1));
+    }
+    
+    @Test private static void testSnapshot() {
+        final TextLineList list = new TextLineList();
+        for (int i = 0; i < 2 * BLOCK_LINE_COUNT + 10; ++i) {
+            list.add(makeLine("line " + i));
+        }
+        list.compressOldestLines(null);
+        list.removeFirst(10);
+        final IntFunction<TextLine> snapshot = list.snapshot(5, list.size());
+        // Evicting, compressing, and uncompressing lines doesn't change what the snapshot sees.
+        list.removeFirst(100);
+        list.compressOldestLines(null);
+        list.set(0, makeLine("changed"));
+        for (int i = 5; i < 2 * BLOCK_LINE_COUNT; i += 97) {
+            Assert.equals(snapshot.apply(i).getString(), "line " + (i + 10));
+        }
+    }
+}
@@ -15,17 +15,36 @@ import terminator.terminal.escape.*;
 /**
  * Ties together the subprocess reader thread, the subprocess writer thread, and the thread that processes the subprocess' output.
  * Some basic processing is done here.
+ * 
+ * The reader thread parses what it reads into TerminalActions, and the
+ * terminal's emulation thread applies them to the model. The view catches up
+ * at most once a frame (see TerminalModel.publishChanges), so however much
+ * output there is, the EDT only has as much to do as there is on the screen.
+ * Our own state, such as the character sets, is only touched by actions, with
+ * the model's lock held.
+ * 
+ * When output comes faster than we can show it, we jump scroll, as xterm
+ * does. The reader doesn't wait for the model, so it keeps parsing while the
+ * emulation thread is busy or the EDT is publishing, and the emulation
+ * thread applies everything that's piled up in one go. Intermediate screens
+ * are never published, let alone painted. The pile is bounded, so that once
+ * the user's ^C has stopped the child, we show where it stopped within a
+ * frame rather than working through a backlog.
  */
 public class TerminalControl {
     // Andrew Giddings wanted "windows-1252" for his Psion.
     public static final String CHARSET_NAME = "UTF-8";
     
     // This should be around your system's pipe size.
-    // Too much larger and you'll waste time copying unused char[].
+    // Too much larger and you'll waste memory on an unused byte[].
     // Too much smaller and you'll waste time making excessive system calls reading just part of what's available.
     // FIXME: add a JNI call to return PIPE_BUF? (It's not strictly required to be the value we're looking for, but it probably is.)
     private static final int INPUT_BUFFER_SIZE = 8192;
     
+    // The most parsed output we'll have waiting for the emulation thread before the reader waits too, letting the pty apply back-pressure to the child.
+    // The emulation thread should be able to apply this much within a frame.
+    private static final int MAX_PENDING_BYTE_COUNT = 64 * 1024;
+    
     // We use "new String" here because we're going to use reference equality later to recognize Terminator-supplied defaults.
     private static final String TERMINATOR_DEFAULT_SHELL = new String(System.getenv("SHELL"));
     
@@ -42,11 +61,12 @@ public class TerminalControl {
     private boolean processIsRunning;
     private boolean processHasBeenDestroyed = false;
     
-    private InputStreamReader in;
+    private InputStream in;
     private OutputStream out;
     
     private ExecutorService writerExecutor;
     private Thread readerThread;
+    private Thread emulatorThread;
     
     private int characterSet;
     private char[] g = new char[4];
@@ -55,14 +75,16 @@ public class TerminalControl {
     
     private TerminalLogWriter terminalLogWriter;
     
-    private StringBuilder lineBuffer = new StringBuilder();
+    private final VtParser parser = new VtParser(new ParserHandler());
     
-    private EscapeParser escapeParser;
+    // Whether the buffer we're processing contains a newline, which is when we flush the log.
+    private boolean sawNewline;
     
-    // Buffer of TerminalActions to perform.
+    // TerminalActions parsed but not yet performed, and how many bytes of output they came from.
     private ArrayList<TerminalAction> terminalActions = new ArrayList<>();
-    // Semaphore to prevent us from overrunning the EDT.
-    private Semaphore flowControl = new Semaphore(30);
+    private int pendingByteCount;
+    // Set once the reader's read everything it ever will, so the emulation thread can stop when it's caught up.
+    private boolean readerFinished;
     
     public TerminalControl(JTerminalPane pane, TerminalModel model) {
         reset();
@@ -93,7 +115,7 @@ public class TerminalControl {
         this.ptyProcess = new PtyProcess(executable, argv, workingDirectory);
         this.processIsRunning = true;
         Log.warn("Created " + ptyProcess + " and logging to " + terminalLogWriter.getInfo());
-        this.in = new InputStreamReader(ptyProcess.getInputStream(), CHARSET_NAME);
+        this.in = ptyProcess.getInputStream();
         this.out = ptyProcess.getOutputStream();
         writerExecutor = ThreadUtilities.newSingleThreadExecutor(makeThreadName("Writer"));
     }
@@ -130,6 +152,7 @@ public class TerminalControl {
             return;
         }
         
+        emulatorThread = startThread("Emulator", new EmulatorRunnable());
         readerThread = startThread("Reader", new ReaderRunnable());
     }
     
@@ -147,16 +170,17 @@ public class TerminalControl {
     private class ReaderRunnable implements Runnable {
         public void run() {
             try {
+                // The parser copies out everything it needs, so we can reuse the buffer.
+                byte[] bytes = new byte[INPUT_BUFFER_SIZE];
                 while (true) {
-                    char[] chars = new char[INPUT_BUFFER_SIZE];
-                    int readCount = in.read(chars, 0, chars.length);
+                    int readCount = in.read(bytes, 0, bytes.length);
                     if (readCount == -1) {
                         Log.warn("read returned -1 from " + ptyProcess);
                         return; // This isn't going to fix itself!
                     }
                     
                     try {
-                        processBuffer(chars, readCount);
+                        processBuffer(bytes, readCount);
                     } catch (Throwable th) {
                         Log.warn("Problem processing output from " + ptyProcess, th);
                     }
@@ -167,10 +191,42 @@ public class TerminalControl {
                 // Our reader might throw an exception before the child has terminated.
                 // So "handleProcessTermination" is perhaps not the ideal name.
                 handleProcessTermination();
+                synchronized (TerminalControl.this) {
+                    readerFinished = true;
+                    TerminalControl.this.notifyAll();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Applies what the reader parses to the model, as much as has piled up at a time.
+     */
+    private class EmulatorRunnable implements Runnable {
+        public void run() {
+            try {
+                while (waitForTerminalActions()) {
+                    performTerminalActions();
+                }
+            } catch (InterruptedException ex) {
+                Log.warn("Interrupted while waiting for output from " + ptyProcess, ex);
             }
         }
     }
     
+    /**
+     * Waits until there's something to perform, returning false if there never will be.
+     */
+    private synchronized boolean waitForTerminalActions() throws InterruptedException {
+        while (terminalActions.isEmpty()) {
+            if (readerFinished) {
+                return false;
+            }
+            wait();
+        }
+        return true;
+    }
+    
     public void invokeCharacterSet(int index) {
         this.characterSet = index;
     }
@@ -181,7 +237,6 @@ public class TerminalControl {
      * Before this fix, "echo hello ^N world" would all appear in character set 1.
      */
     public void invokeCharacterSetLater(final int index) {
-        flushLineBuffer();
         terminalActions.add(new TerminalAction() {
             public void perform(TerminalModel model) {
                 invokeCharacterSet(index);
@@ -280,9 +335,11 @@ public class TerminalControl {
     
     public void announceConnectionLost(String message) {
         try {
-            final char[] buffer = message.toCharArray();
+            final byte[] buffer = message.getBytes(CHARSET_NAME);
             processBuffer(buffer, buffer.length);
-            pane.getTerminalView().setCursorVisible(false);
+            addTerminalAction((model) -> model.setCursorVisible(false));
+            // There may be no emulation thread, if the child never started.
+            performTerminalActions();
         } catch (Exception ex) {
             Log.warn("Couldn't say \"" + message + "\"", ex);
         }
@@ -304,101 +361,121 @@ public class TerminalControl {
         ptyProcess.sendResizeNotification(sizeInChars, sizeInPixels);
     }
     
-    private synchronized void processBuffer(char[] buffer, int size) throws IOException {
-        boolean sawNewline = false;
-        for (int i = 0; i < size; ++i) {
-            char ch = buffer[i];
-            if (ch == '\n') {
-                sawNewline = true;
-            }
-            processChar(ch);
+    /**
+     * Parses a buffer of output, leaving the emulation thread to perform it.
+     */
+    private synchronized void processBuffer(byte[] buffer, int size) throws IOException, InterruptedException {
+        while (pendingByteCount >= MAX_PENDING_BYTE_COUNT) {
+            wait();
         }
+        final TerminatorFlightRecorderEvents.ProcessBuffer event = new TerminatorFlightRecorderEvents.ProcessBuffer();
+        event.begin();
+        sawNewline = false;
+        final int initialActionCount = terminalActions.size();
+        parser.parse(buffer, 0, size);
         terminalLogWriter.append(buffer, size, sawNewline);
-        flushLineBuffer();
-        flushTerminalActions();
+        final int actionCount = terminalActions.size() - initialActionCount;
+        pendingByteCount += size;
+        notifyAll();
         fireChangeListeners();
+        event.end();
+        if (event.shouldCommit()) {
+            event.ptyName = ptyProcess.getPtyName();
+            event.pid = ptyProcess.getPid();
+            event.byteCount = size;
+            event.actionCount = actionCount;
+            event.commit();
+        }
     }
     
-    private synchronized void flushTerminalActions() {
-        if (terminalActions.size() == 0) {
-            return;
+    /**
+     * Performs all the TerminalActions parsed so far.
+     * We take them with the model's lock held, so that if another thread gets here too, each performs its batch in the order it was parsed.
+     */
+    private void performTerminalActions() {
+        synchronized (model) {
+            final TerminalAction[] actions = takeTerminalActions();
+            if (actions.length == 0) {
+                return;
+            }
+            try {
+                model.processActions(actions);
+            } catch (Throwable th) {
+                Log.warn("Couldn't process terminal actions for " + ptyProcess, th);
+            }
         }
-        
+    }
+    
+    private synchronized TerminalAction[] takeTerminalActions() {
         final TerminalAction[] actions = terminalActions.toArray(new TerminalAction[terminalActions.size()]);
         terminalActions.clear();
-        
-        boolean didAcquire = false;
-        try {
-            flowControl.acquire();
-            didAcquire = true;
-            GuiUtilities.invokeLater(() -> {
-                try {
-                    model.processActions(actions);
-                } catch (Throwable th) {
-                    Log.warn("Couldn't process terminal actions for " + ptyProcess, th);
-                } finally {
-                    flowControl.release();
-                }
-            });
-        } catch (Throwable th) {
-            Log.warn("Couldn't flush terminal actions for " + ptyProcess, th);
-            if (didAcquire) {
-                flowControl.release();
-            }
-        }
+        pendingByteCount = 0;
+        // The reader may be waiting for us to catch up.
+        notifyAll();
+        return actions;
     }
     
-    /**
-     * According to vttest, these cursor movement characters are still
-     * treated as such, even when they occur within an escape sequence.
-     */
-    private final boolean countsTowardsEscapeSequence(char ch) {
-        return (ch != Ascii.BS && ch != Ascii.CR && ch != Ascii.VT);
+    private synchronized void addTerminalAction(TerminalAction action) {
+        terminalActions.add(action);
+        notifyAll();
     }
     
-    private synchronized void processChar(final char ch) {
-        // Enable this if you're having trouble working out what we're being asked to interpret.
-        if (SHOW_ASCII_RENDITION) {
-            if (ch >= ' ' || ch == '\n') {
-                System.out.print(ch);
-            } else {
-                System.out.print(".");
+    /**
+     * Turns what the parser finds into TerminalActions, to be performed on the model by the emulation thread.
+     */
+    private class ParserHandler implements VtParser.Handler {
+        public void print(char[] chars, int offset, int length) {
+            // Enable this if you're having trouble working out what we're being asked to interpret.
+            if (SHOW_ASCII_RENDITION) {
+                System.out.print(new String(chars, offset, length));
             }
+            doStep();
+            terminalActions.add(new PlainTextAction(new String(chars, offset, length)));
         }
         
-        if (ch == Ascii.ESC) {
-            flushLineBuffer();
-            // If the old escape sequence is interrupted; we start a new one.
-            if (escapeParser != null) {
-                Log.warn("Escape parser discarded with string \"" + escapeParser + "\"");
+        public void execute(char ch) {
+            if (SHOW_ASCII_RENDITION) {
+                System.out.print((ch == '\n') ? "\n" : ".");
             }
-            escapeParser = new EscapeParser();
-            return;
-        }
-        if (escapeParser != null && countsTowardsEscapeSequence(ch)) {
-            escapeParser.addChar(ch);
-            if (escapeParser.isComplete()) {
-                processEscape();
-                escapeParser = null;
+            if (ch == Ascii.LF || ch == Ascii.CR || ch == Ascii.BS || ch == Ascii.HT || ch == Ascii.VT) {
+                if (ch == Ascii.LF) {
+                    sawNewline = true;
+                }
+                doStep();
+                processSpecialCharacter(ch);
+            } else if (ch == Ascii.SO) {
+                invokeCharacterSetLater(1);
+            } else if (ch == Ascii.SI) {
+                invokeCharacterSetLater(0);
+            } else if (ch == Ascii.BEL) {
+                pane.flash();
             }
-        } else if (ch == Ascii.LF || ch == Ascii.CR || ch == Ascii.BS || ch == Ascii.HT || ch == Ascii.VT) {
-            flushLineBuffer();
-            doStep();
-            processSpecialCharacter(ch);
-        } else if (ch == Ascii.SO) {
-            invokeCharacterSetLater(1);
-        } else if (ch == Ascii.SI) {
-            invokeCharacterSetLater(0);
-        } else if (ch == Ascii.BEL) {
-            pane.flash();
-        } else if (ch == Ascii.NUL) {
+            // We ignore the other control characters, including NUL.
             // Most telnetd(1) implementations seem to have a bug whereby
             // they send the NUL byte at the end of the C strings they want to
             // output when you first connect. Since all Unixes are pretty much
             // copy and pasted from one another these days, this silly mistake
             // only needed to be made once.
-        } else {
-            lineBuffer.append(ch);
+        }
+        
+        public void escDispatch(char intermediate, char finalChar) {
+            if (intermediate == 0 && finalChar == '\\') {
+                // ST, the end of an OSC or other string, which the parser has already dealt with.
+                return;
+            }
+            if (intermediate == 0) {
+                addEscapeAction(new SingleCharEscapeAction(TerminalControl.this, finalChar));
+            } else {
+                addEscapeAction(new TwoCharEscapeAction(TerminalControl.this, String.valueOf(intermediate) + finalChar));
+            }
+        }
+        
+        public void csiDispatch(char privateMarker, int[] parameters, int parameterCount, char intermediate, char finalChar) {
+            addEscapeAction(new CSIEscapeAction(TerminalControl.this, privateMarker, Arrays.copyOf(parameters, parameterCount), intermediate, finalChar));
+        }
+        
+        public void oscDispatch(CharSequence string) {
+            addEscapeAction(new XTermEscapeAction(TerminalControl.this, string.toString()));
         }
     }
     
@@ -432,59 +509,58 @@ public class TerminalControl {
         return translation.toString();
     }
     
-    private synchronized void flushLineBuffer() {
-        if (lineBuffer.length() == 0) {
-            // Nothing to flush!
-            return;
+    /**
+     * Performs a special character. These actions have no state, so we share them rather than allocate one per newline.
+     */
+    private static class SpecialCharacterAction implements TerminalAction {
+        private static final SpecialCharacterAction[] INSTANCES = new SpecialCharacterAction[' '];
+        static {
+            for (char ch : new char[] { Ascii.LF, Ascii.CR, Ascii.HT, Ascii.VT, Ascii.BS }) {
+                INSTANCES[ch] = new SpecialCharacterAction(ch);
+            }
         }
         
-        final String line = lineBuffer.toString();
-        lineBuffer = new StringBuilder();
+        private final char ch;
         
-        doStep();
+        private SpecialCharacterAction(char ch) {
+            this.ch = ch;
+        }
         
-        // Conform to the stated claim that the model's always mutated in the AWT dispatch thread.
-        terminalActions.add(new PlainTextAction(line));
+        public void perform(TerminalModel model) {
+            if (DEBUG) {
+                Log.warn("Processing special char \"" + getCharDesc(ch) + "\"");
+            }
+            model.processSpecialCharacter(ch);
+        }
+        
+        @Override public String toString() {
+            return "TerminalAction[Special char " + getCharDesc(ch) + "]";
+        }
+        
+        private static String getCharDesc(char ch) {
+            switch (ch) {
+                case Ascii.LF: return "LF";
+                case Ascii.CR: return "CR";
+                case Ascii.HT: return "HT";
+                case Ascii.VT: return "VT";
+                case Ascii.BS: return "BS";
+                default: return "UK";
+            }
+        }
     }
     
     public synchronized void processSpecialCharacter(final char ch) {
-        terminalActions.add(new TerminalAction() {
-            public void perform(TerminalModel model) {
-                if (DEBUG) {
-                    Log.warn("Processing special char \"" + getCharDesc(ch) + "\"");
-                }
-                model.processSpecialCharacter(ch);
-            }
-            
-            @Override public String toString() {
-                return "TerminalAction[Special char " + getCharDesc(ch) + "]";
-            }
-            
-            private String getCharDesc(char ch) {
-                switch (ch) {
-                    case Ascii.LF: return "LF";
-                    case Ascii.CR: return "CR";
-                    case Ascii.HT: return "HT";
-                    case Ascii.VT: return "VT";
-                    case Ascii.BS: return "BS";
-                    default: return "UK";
-                }
-            }
-        });
+        terminalActions.add(SpecialCharacterAction.INSTANCES[ch]);
     }
     
-    public synchronized void processEscape() {
+    private synchronized void addEscapeAction(TerminalAction action) {
         if (DEBUG) {
-            Log.warn("Processing escape sequence \"" + StringUtilities.escapeForJava(escapeParser.toString()) + "\"");
+            Log.warn("Processing escape sequence " + action);
         }
         
-        // Invoke all escape sequence handling in the AWT dispatch thread - otherwise we'd have
-        // to create billions upon billions of tiny little invokeLater(Runnable) things all over the place.
+        // Escape sequences are performed along with the text around them, so the emulation thread takes the model's lock once per batch rather than once per sequence.
         doStep();
-        TerminalAction action = escapeParser.getAction(this);
-        if (action != null) {
-            terminalActions.add(action);
-        }
+        terminalActions.add(action);
     }
     
     private char translateToCharacterSet(char ch) {
@@ -16,8 +16,12 @@ public class FindBirdsEye implements BirdsEye {
         this.currentLineIndex = currentLineIndex;
     }
     
+    public void linesRemovedFromTop(int count) {
+        currentLineIndex = Math.max(-1, currentLineIndex - count);
+    }
+    
     public int getVisibleLineCount() {
-        return view.getModel().getLineCount();
+        return view.getLineCount();
     }
     
     public int getVisibleLineIndex(int logicalLineIndex) {
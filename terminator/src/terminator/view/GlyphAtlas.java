@@ -0,0 +1,251 @@
+package terminator.view;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+import terminator.model.*;
+
+/**
+ * Rasterized characters, so that TerminalView can paint a run of text on its monospaced grid by copying each character's cell, rather than by laying out and drawing the text.
+ * 
+ * Each cell of the atlas holds one character in one appearance, painted by
+ * TerminalView.paintStyledText exactly as it would paint that character on
+ * its own: colors, bold and italic, underline and strikethrough, and all. We
+ * key cells by what paintStyledText would draw rather than by Style, because
+ * the palette can change what a Style looks like, and StyleTable reuses ids.
+ * 
+ * Only characters exactly one cell wide can come from the atlas. A run
+ * containing a wide character, a combining mark, or half of a surrogate pair
+ * is drawn as text, just as it would be without us. A glyph that overhangs
+ * its cell, as an italic one can, is clipped to it.
+ * 
+ * When the atlas is full, we start again: a terminal rarely uses more than a
+ * few hundred cells at once.
+ */
+final class GlyphAtlas {
+    private static final int COLUMN_COUNT = 64;
+    private static final int ROW_COUNT = 16;
+    private static final int CELL_COUNT = COLUMN_COUNT * ROW_COUNT;
+    
+    // What we know about each BMP character in our font.
+    private static final byte UNKNOWN = 0;
+    private static final byte CELL = 1;
+    private static final byte TEXT = 2;
+    
+    private BufferedImage image;
+    // From appearance (foreground and background) to an index, and from that index, decorations, and character to a cell of 'image'.
+    private final LongIntMap appearances = new LongIntMap();
+    private final LongIntMap cells = new LongIntMap();
+    private int cellCount;
+    private final byte[] characterKinds = new byte[Character.MAX_VALUE + 1];
+    private final char[] cellChars = new char[1];
+    
+    // What the cells were painted with; if any of these change, we start again.
+    private Font font;
+    private Color background;
+    private int scale;
+    private int cellWidth;
+    private int cellHeight;
+    private int baselineOffset;
+    private Object textAntiAliasing;
+    private Object lcdContrast;
+    private Object fractionalMetrics;
+    
+    // The number of cells we've had to paint, for tests.
+    private int paintedCellCount;
+    
+    /**
+     * Gets ready to paint a row to 'g', returning false if we can't help, in which case the caller should draw text instead.
+     */
+    boolean prepare(TerminalView view, Graphics2D g, FontMetrics metrics) {
+        final int scale = RowImageCache.getIntegerScale(g);
+        final Color background = view.getBackground();
+        if (scale == 0 || background.getAlpha() != 255) {
+            return false;
+        }
+        final Dimension charUnitSize = view.getCharUnitSize();
+        final boolean sameAppearance = image != null && scale == this.scale && metrics.getFont().equals(font) && background.equals(this.background) && charUnitSize.width == cellWidth && charUnitSize.height == cellHeight && Objects.equals(g.getRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING), textAntiAliasing) && Objects.equals(g.getRenderingHint(RenderingHints.KEY_TEXT_LCD_CONTRAST), lcdContrast) && Objects.equals(g.getRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS), fractionalMetrics);
+        if (sameAppearance == false) {
+            this.font = metrics.getFont();
+            this.background = background;
+            this.scale = scale;
+            this.cellWidth = charUnitSize.width;
+            this.cellHeight = charUnitSize.height;
+            // TerminalView puts the baseline this far below the top of the row.
+            this.baselineOffset = cellHeight - metrics.getMaxDescent();
+            this.textAntiAliasing = g.getRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING);
+            this.lcdContrast = g.getRenderingHint(RenderingHints.KEY_TEXT_LCD_CONTRAST);
+            this.fractionalMetrics = g.getRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS);
+            Arrays.fill(characterKinds, UNKNOWN);
+            image = new BufferedImage(COLUMN_COUNT * cellWidth * scale, ROW_COUNT * cellHeight * scale, BufferedImage.TYPE_INT_RGB);
+            clear();
+        }
+        return true;
+    }
+    
+    /**
+     * Paints the first 'charCount' of 'chars' as TerminalView.paintStyledText would, and returns true, or returns false, having done nothing, if they can't all come from the atlas.
+     */
+    boolean paint(TerminalView view, Graphics2D g, FontMetrics metrics, char[] chars, int charCount, Style style, int x, int baseline, boolean url, boolean isFind) {
+        if (charCount > CELL_COUNT) {
+            return false;
+        }
+        for (int i = 0; i < charCount; ++i) {
+            if (isCellCharacter(metrics, chars[i]) == false) {
+                return false;
+            }
+        }
+        if (cellCount + charCount > CELL_COUNT) {
+            clear();
+        }
+        final Color foreground = isFind ? Color.BLACK : style.getForeground();
+        final Color background = isFind ? Color.YELLOW : style.getBackground();
+        final long appearance = ((long) foreground.getRGB() << 32) | (background.getRGB() & 0xffffffffL);
+        int appearanceIndex = appearances.get(appearance);
+        if (appearanceIndex == -1) {
+            appearanceIndex = appearances.size();
+            appearances.put(appearance, appearanceIndex);
+        }
+        final long decorations = (style.getAttributes() & 0xff) | (url ? 0x100 : 0);
+        final long keyPrefix = ((long) appearanceIndex << 32) | (decorations << 16);
+        
+        // Text that's been seen before often has its cells side by side in the atlas, so we copy as many at a time as we can.
+        int firstCell = -1;
+        int spanCellCount = 0;
+        for (int i = 0; i < charCount; ++i) {
+            final long key = keyPrefix | chars[i];
+            int cell = cells.get(key);
+            if (cell == -1) {
+                cell = paintCell(view, g, metrics, chars[i], style, url, isFind);
+                cells.put(key, cell);
+            }
+            if (spanCellCount > 0 && (cell != firstCell + spanCellCount || cell % COLUMN_COUNT == 0)) {
+                x = drawCells(g, firstCell, spanCellCount, x, baseline);
+                spanCellCount = 0;
+            }
+            if (spanCellCount == 0) {
+                firstCell = cell;
+            }
+            ++spanCellCount;
+        }
+        if (spanCellCount > 0) {
+            drawCells(g, firstCell, spanCellCount, x, baseline);
+        }
+        return true;
+    }
+    
+    /**
+     * Copies 'cellCount' cells, from 'firstCell', all on one row of the atlas, to 'x', returning the x coordinate after them.
+     */
+    private int drawCells(Graphics2D g, int firstCell, int cellCount, int x, int baseline) {
+        final int top = baseline - baselineOffset;
+        final int width = cellCount * cellWidth;
+        final int sx = (firstCell % COLUMN_COUNT) * cellWidth * scale;
+        final int sy = (firstCell / COLUMN_COUNT) * cellHeight * scale;
+        g.drawImage(image, x, top, x + width, top + cellHeight, sx, sy, sx + width * scale, sy + cellHeight * scale, null);
+        return x + width;
+    }
+    
+    private boolean isCellCharacter(FontMetrics metrics, char ch) {
+        byte kind = characterKinds[ch];
+        if (kind == UNKNOWN) {
+            final int type = Character.getType(ch);
+            final boolean isMark = (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK || type == Character.COMBINING_SPACING_MARK);
+            // Wide characters, and characters the font doesn't have, which come from a fallback font, are usually a different width.
+            kind = (Character.isSurrogate(ch) == false && isMark == false && metrics.charWidth(ch) == cellWidth) ? CELL : TEXT;
+            characterKinds[ch] = kind;
+        }
+        return kind == CELL;
+    }
+    
+    private int paintCell(TerminalView view, Graphics2D viewGraphics, FontMetrics metrics, char ch, Style style, boolean url, boolean isFind) {
+        final int cell = cellCount++;
+        final int x = (cell % COLUMN_COUNT) * cellWidth;
+        final int y = (cell / COLUMN_COUNT) * cellHeight;
+        final Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHints(viewGraphics.getRenderingHints());
+            g.scale(scale, scale);
+            g.clipRect(x, y, cellWidth, cellHeight);
+            g.setColor(background);
+            g.fillRect(x, y, cellWidth, cellHeight);
+            g.setFont(font);
+            cellChars[0] = ch;
+            view.paintStyledText(g, metrics, cellChars, 1, style, x, y + baselineOffset, url, isFind);
+        } finally {
+            g.dispose();
+        }
+        ++paintedCellCount;
+        return cell;
+    }
+    
+    private void clear() {
+        appearances.clear();
+        cells.clear();
+        cellCount = 0;
+    }
+    
+    int getPaintedCellCount() {
+        return paintedCellCount;
+    }
+    
+    /**
+     * A map from long to non-negative int, without boxing, because we look up every character we paint.
+     */
+    private static final class LongIntMap {
+        private long[] keys = new long[64];
+        // -1 for an empty slot.
+        private int[] values = newValues(64);
+        private int size;
+        
+        private static int[] newValues(int slotCount) {
+            final int[] result = new int[slotCount];
+            Arrays.fill(result, -1);
+            return result;
+        }
+        
+        private int slotFor(long key) {
+            // Fibonacci hashing spreads keys that differ only in their low bits, as characters do.
+            int slot = (int) ((key * 0x9e3779b97f4a7c15L) >>> 40) & (keys.length - 1);
+            while (values[slot] != -1 && keys[slot] != key) {
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            return slot;
+        }
+        
+        int get(long key) {
+            return values[slotFor(key)];
+        }
+        
+        void put(long key, int value) {
+            if (2 * (size + 1) > keys.length) {
+                final long[] oldKeys = keys;
+                final int[] oldValues = values;
+                keys = new long[2 * oldKeys.length];
+                values = newValues(2 * oldKeys.length);
+                for (int i = 0; i < oldKeys.length; ++i) {
+                    if (oldValues[i] != -1) {
+                        final int slot = slotFor(oldKeys[i]);
+                        keys[slot] = oldKeys[i];
+                        values[slot] = oldValues[i];
+                    }
+                }
+            }
+            final int slot = slotFor(key);
+            if (values[slot] == -1) {
+                ++size;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+        }
+        
+        int size() {
+            return size;
+        }
+        
+        void clear() {
+            Arrays.fill(values, -1);
+            size = 0;
+        }
+    }
+}
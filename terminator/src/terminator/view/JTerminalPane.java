@@ -167,6 +167,7 @@ public class JTerminalPane extends JPanel {
         GuiUtilities.keepMaximumShowing(scrollPane.getVerticalScrollBar());
         
         view.sizeChanged();
+        MemoryAccountant.register(this, "Terminal scrollback", JTerminalPane::getTerminalName, (pane) -> pane.getTerminalView().getModel().estimateMemoryUse());
         try {
             control = new TerminalControl(this, view.getModel());
             view.setTerminalControl(control);
@@ -265,7 +266,8 @@ public class JTerminalPane extends JPanel {
     }
     
     public void reset() {
-        control.reset();
+        // The control's state belongs to the terminal's emulation thread, so we reset it as if the terminal had asked.
+        view.getModel().processActions(new TerminalAction[] { (model) -> control.reset() });
     }
     
     public TerminalControl getControl() {
@@ -696,6 +698,8 @@ public class JTerminalPane extends JPanel {
     
     public void destroyProcess() {
         control.destroyProcess();
+        // The terminal's going away, so its scrollback needn't stay on disk.
+        view.getModel().close();
     }
     
     private boolean shouldClose() {
@@ -0,0 +1,288 @@
+package terminator.view;
+
+import e.util.*;
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.*;
+import terminator.model.*;
+
+/**
+ * An image of the rows TerminalView last painted, so that it only has to draw the text of rows that have changed.
+ * 
+ * Each row of the image remembers what it shows: a line, and the cursor,
+ * selection, and highlights on it. When the view paints, a row that already
+ * shows what's wanted is just copied to the screen. A row that shows what's
+ * wanted somewhere else, because the terminal or the view scrolled, is moved
+ * within the image first, which is a blit. Only the rest have their text drawn.
+ * 
+ * Lines are compared by identity. That works because the lines on the screen
+ * come from the model's ScreenSnapshot, whose copies never change, and which
+ * keeps the same copy of a line for as long as the line doesn't change, even
+ * if it moves. Lines above the screen don't change until the model publishes.
+ * 
+ * The image covers the view's visible rectangle, a whole number of rows
+ * high, so it's only as big as the window. If there's no visible rectangle (as
+ * when benchmarking), or the screen's scale isn't a whole number, so that
+ * rows don't start on a device pixel, the view paints directly instead.
+ */
+final class RowImageCache {
+    /**
+     * What's painted on a row: TerminalView describes what it wants, and we remember what we have.
+     */
+    static final class Row {
+        // Null for a row with no line, below the last.
+        TextLine line;
+        // -1 if there's no cursor on this row; 'cursorAppearance' is only meaningful if there is.
+        int cursorOffset;
+        int cursorAppearance;
+        // -1 if there's no selection on this row; 'selectionToEnd' means the selection goes beyond the end of the row.
+        int selectionStart;
+        int selectionEnd;
+        boolean selectionToEnd;
+        Range[] findMatches;
+        // -1 if there's no URL under the mouse on this row.
+        int urlStart;
+        int urlEnd;
+        
+        private boolean isSameAs(Row other) {
+            return line == other.line && cursorOffset == other.cursorOffset && (cursorOffset == -1 || cursorAppearance == other.cursorAppearance) && selectionStart == other.selectionStart && selectionEnd == other.selectionEnd && selectionToEnd == other.selectionToEnd && urlStart == other.urlStart && urlEnd == other.urlEnd && isSameRanges(findMatches, other.findMatches);
+        }
+        
+        private void setFrom(Row other) {
+            line = other.line;
+            cursorOffset = other.cursorOffset;
+            cursorAppearance = other.cursorAppearance;
+            selectionStart = other.selectionStart;
+            selectionEnd = other.selectionEnd;
+            selectionToEnd = other.selectionToEnd;
+            findMatches = other.findMatches;
+            urlStart = other.urlStart;
+            urlEnd = other.urlEnd;
+        }
+        
+        // The find highlighter makes new arrays for lines whose matches haven't changed.
+        private static boolean isSameRanges(Range[] a, Range[] b) {
+            if (a == b) {
+                return true;
+            }
+            if (a == null || b == null || a.length != b.length) {
+                return false;
+            }
+            for (int i = 0; i < a.length; ++i) {
+                if (a[i].getStart() != b[i].getStart() || a[i].getEnd() != b[i].getEnd()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    private Image image;
+    private int scale;
+    // The view rectangle the image covers: 'rows.length' rows from 'firstLineIndex', 'width' pixels wide from 'x'.
+    private int x;
+    private int width;
+    private int rowHeight;
+    private int topInset;
+    private int firstLineIndex;
+    private Row[] rows = new Row[0];
+    // For each row we're asked to paint, the row of the image that already shows it, or -1.
+    private int[] sources = new int[0];
+    // What the image was painted with; if any of these change, nothing in it is any use.
+    private Color background;
+    private Font font;
+    
+    // The number of rows we've had to paint, and moved, for tests and benchmarks.
+    private int paintedRowCount;
+    private int movedRowCount;
+    
+    /**
+     * Forgets everything in the image, so every row will be painted again.
+     */
+    void invalidate() {
+        for (Row row : rows) {
+            row.line = null;
+            row.cursorOffset = Integer.MIN_VALUE;
+        }
+    }
+    
+    /**
+     * Paints the lines from 'firstLineIndex', described by 'wanted', to 'g', whose clip is 'clip', using and updating our image.
+     * Returns false, having done nothing, if we can't help with this paint, in which case the caller should paint directly.
+     */
+    boolean paint(TerminalView view, Graphics2D g, Rectangle clip, int firstLineIndex, Row[] wanted, int wantedCount) {
+        final int scale = getIntegerScale(g);
+        final Rectangle visible = view.getVisibleRect();
+        if (scale == 0 || visible.isEmpty() || visible.contains(clip) == false || wantedCount == 0) {
+            return false;
+        }
+        final int rowHeight = view.getCharUnitSize().height;
+        final int topInset = view.getInsets().top;
+        final int firstVisibleLineIndex = Math.floorDiv(visible.y - topInset, rowHeight);
+        final int rowCount = Math.floorDiv(visible.y + visible.height - 1 - topInset, rowHeight) - firstVisibleLineIndex + 1;
+        if (firstLineIndex < firstVisibleLineIndex || firstLineIndex + wantedCount > firstVisibleLineIndex + rowCount) {
+            return false;
+        }
+        prepareImage(view, g, scale, visible, rowHeight, topInset, rowCount);
+        this.firstLineIndex = firstVisibleLineIndex;
+        
+        final Graphics2D imageGraphics = (Graphics2D) image.getGraphics();
+        try {
+            final int firstRow = firstLineIndex - firstVisibleLineIndex;
+            if (sources.length < wantedCount) {
+                sources = new int[rows.length];
+            }
+            // Rows usually all move the same distance, so we look for each where we found the last.
+            int delta = 0;
+            for (int i = 0; i < wantedCount; ++i) {
+                final int row = firstRow + i;
+                if (rows[row].isSameAs(wanted[i])) {
+                    sources[i] = row;
+                } else {
+                    sources[i] = findRow(wanted[i], row + delta);
+                    if (sources[i] != -1) {
+                        delta = sources[i] - row;
+                    }
+                }
+            }
+            // Moving rows up, we mustn't overwrite one we've yet to move, so we go from the top; moving down, from the bottom.
+            // We check each row's source is still what we want, and paint it instead if it isn't.
+            for (int i = 0; i < wantedCount; ++i) {
+                moveRow(imageGraphics, firstRow + i, sources[i], wanted[i], true);
+            }
+            for (int i = wantedCount - 1; i >= 0; --i) {
+                moveRow(imageGraphics, firstRow + i, sources[i], wanted[i], false);
+            }
+            for (int i = 0; i < wantedCount; ++i) {
+                final int row = firstRow + i;
+                if (rows[row].isSameAs(wanted[i]) == false) {
+                    paintRow(imageGraphics, view, g, row, wanted[i]);
+                }
+            }
+        } finally {
+            imageGraphics.dispose();
+        }
+        
+        if (image instanceof VolatileImage && ((VolatileImage) image).contentsLost()) {
+            // Whatever we drew may not be there; start again next time.
+            invalidate();
+            return false;
+        }
+        final int top = topInset + firstLineIndex * rowHeight;
+        final int imageTop = (firstLineIndex - firstVisibleLineIndex) * rowHeight;
+        final int height = wantedCount * rowHeight;
+        g.drawImage(image, x, top, x + width, top + height, 0, imageTop * scale, width * scale, (imageTop + height) * scale, null);
+        return true;
+    }
+    
+    /**
+     * Returns the scale from view coordinates to device pixels, or 0 if it isn't a whole number, or there's more to the transform than scaling and translation by whole pixels.
+     */
+    static int getIntegerScale(Graphics2D g) {
+        final AffineTransform transform = g.getTransform();
+        final double scale = transform.getScaleX();
+        if ((transform.getType() & ~(AffineTransform.TYPE_TRANSLATION | AffineTransform.TYPE_UNIFORM_SCALE)) != 0 || scale != Math.rint(scale) || scale < 1) {
+            return 0;
+        }
+        if (transform.getTranslateX() != Math.rint(transform.getTranslateX()) || transform.getTranslateY() != Math.rint(transform.getTranslateY())) {
+            return 0;
+        }
+        return (int) scale;
+    }
+    
+    private void prepareImage(TerminalView view, Graphics2D g, int scale, Rectangle visible, int rowHeight, int topInset, int rowCount) {
+        final boolean sameGeometry = image != null && scale == this.scale && visible.x == x && visible.width == width && rowHeight == this.rowHeight && topInset == this.topInset && rowCount <= rows.length && view.getBackground().equals(background) && view.getFont().equals(font);
+        if (sameGeometry == false) {
+            image = null;
+            rows = new Row[rowCount];
+            for (int i = 0; i < rowCount; ++i) {
+                rows[i] = new Row();
+            }
+            invalidate();
+            this.scale = scale;
+            this.x = visible.x;
+            this.width = visible.width;
+            this.rowHeight = rowHeight;
+            this.topInset = topInset;
+            this.background = view.getBackground();
+            this.font = view.getFont();
+        }
+        final GraphicsConfiguration configuration = g.getDeviceConfiguration();
+        if (image instanceof VolatileImage) {
+            final int status = ((VolatileImage) image).validate(configuration);
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                image = null;
+            } else if (status == VolatileImage.IMAGE_RESTORED) {
+                invalidate();
+            }
+        }
+        if (image == null) {
+            final int imageWidth = width * scale;
+            final int imageHeight = rows.length * rowHeight * scale;
+            // A volatile image can live in video memory, next to the screen, but there's no such thing if we're painting into an image ourselves.
+            if (configuration.getDevice().getType() == GraphicsDevice.TYPE_IMAGE_BUFFER) {
+                image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+            } else {
+                image = configuration.createCompatibleVolatileImage(imageWidth, imageHeight);
+            }
+            invalidate();
+        }
+    }
+    
+    private int findRow(Row wanted, int likelyRow) {
+        if (likelyRow >= 0 && likelyRow < rows.length && rows[likelyRow].isSameAs(wanted)) {
+            return likelyRow;
+        }
+        if (wanted.line == null) {
+            // Painting an empty row is as cheap as moving one.
+            return -1;
+        }
+        for (int row = 0; row < rows.length; ++row) {
+            if (rows[row].isSameAs(wanted)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+    
+    private void moveRow(Graphics2D imageGraphics, int row, int source, Row wanted, boolean up) {
+        if (source == -1 || source == row || (source > row) != up || rows[source].isSameAs(wanted) == false) {
+            return;
+        }
+        final int h = rowHeight * scale;
+        imageGraphics.copyArea(0, source * h, width * scale, h, 0, (row - source) * h);
+        rows[row].setFrom(wanted);
+        ++movedRowCount;
+    }
+    
+    private void paintRow(Graphics2D imageGraphics, TerminalView view, Graphics2D viewGraphics, int row, Row wanted) {
+        final Graphics2D g = (Graphics2D) imageGraphics.create();
+        try {
+            final int lineIndex = firstLineIndex + row;
+            g.scale(scale, scale);
+            g.translate(-x, -(topInset + firstLineIndex * rowHeight));
+            final int top = topInset + lineIndex * rowHeight;
+            g.clipRect(x, top, width, rowHeight);
+            g.setColor(background);
+            g.fillRect(x, top, width, rowHeight);
+            g.setFont(font);
+            // Text anti-aliasing, in particular.
+            g.setRenderingHints(viewGraphics.getRenderingHints());
+            if (wanted.line != null) {
+                view.paintRow(g, lineIndex, wanted, x + width);
+            }
+        } finally {
+            g.dispose();
+        }
+        rows[row].setFrom(wanted);
+        ++paintedRowCount;
+    }
+    
+    int getPaintedRowCount() {
+        return paintedRowCount;
+    }
+    
+    int getMovedRowCount() {
+        return movedRowCount;
+    }
+}
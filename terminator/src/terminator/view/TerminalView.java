@@ -5,9 +5,13 @@ import java.awt.datatransfer.*;
 import java.awt.event.*;
 import java.awt.image.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 import javax.swing.*;
 import e.gui.*;
 import e.util.*;
+import org.jessies.test.*;
 
 import terminator.*;
 import terminator.model.*;
@@ -18,7 +22,16 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     private static final Stopwatch paintComponentStopwatch = Stopwatch.get("TerminalView.paintComponent");
     private static final Stopwatch paintStyledTextStopwatch = Stopwatch.get("TerminalView.paintStyledText");
     
+    // The refresh rate we assume for a screen that won't tell us its own.
+    private static final int DEFAULT_REFRESH_RATE = 60;
+    
     private TerminalModel model;
+    // Set when the model has changes for us that we haven't yet asked for. Cleared on the EDT just before we ask.
+    private final AtomicBoolean publicationScheduled = new AtomicBoolean();
+    // We show the model's changes at most once a frame of the screen we're on, however fast they come.
+    private long frameNanos = getFrameNanos(null);
+    private long lastPublicationNanos;
+    private final javax.swing.Timer publicationTimer;
     private Location cursorPosition = new Location(0, 0);
     private boolean displayCursor = true;
     private boolean blinkOn = true;
@@ -35,7 +48,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     private SelectionHighlighter selectionHighlighter;
     private FindHighlighter findHighlighter;
     private UrlHighlighter urlHighlighter;
-
+    
     // TODO: show the current selection like Evergreen does, and maybe the range of visible lines too?
     private BirdView birdView;
     private FindBirdsEye birdsEye;
@@ -45,8 +58,11 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     // 1. Lines with matches/URLs are very rare, so we shouldn't waste space on lines with no matches.
     // 2. We should use List<Range> rather than Range[].
     // 3. Using null instead of an empty array or list is gross (but any fix for #1 probably fixes this).
-    private final ArrayList<Range[]> urlMatches = new ArrayList<>();
-    private final ArrayList<Range[]> findMatches = new ArrayList<>();
+    // These are RingLists so that removing the first lines' entries when the model evicts its oldest lines is cheap.
+    private final RingList<Range[]> urlMatches = new RingList<>();
+    private final RingList<Range[]> findMatches = new RingList<>();
+    // The number of lines removed from the top since we were created, so that work done by line index off the EDT can catch up.
+    private long removedLineCount;
     
     // If non-null, the row of this is urlMouseLocation.getLineIndex()
     private Range urlUnderMouse = null;
@@ -65,12 +81,26 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     private static final Color TRUNCATION_COLOR = new Color(250, 150, 150);
     private static final String[] TRUNCATION_WARNING = {"output", "truncated"};
     
+    // Reused by paintComponent to hold each run of text, so painting doesn't allocate a String per run.
+    private char[] runChars = new char[256];
+    // Null unless the user's asked for text to be drawn from a GlyphAtlas.
+    private GlyphAtlas glyphAtlas;
+    
+    // What we last painted on each row we can see, so we only have to draw the text of rows that have changed.
+    private final RowImageCache rowImageCache = new RowImageCache();
+    // Reused by paintComponent to describe the rows it's painting.
+    private RowImageCache.Row[] wantedRows = new RowImageCache.Row[0];
+    
     public TerminalView() {
         TerminatorPreferences preferences = Terminator.getPreferences();
         // The background is no longer set in optionsDidChange
         // The background must be set before the model is created, or Bad Things happen
         setBackground(preferences.getColor(TerminatorPreferences.BACKGROUND_COLOR));
         this.model = new TerminalModel(this, preferences.getInt(TerminatorPreferences.INITIAL_COLUMN_COUNT), preferences.getInt(TerminatorPreferences.INITIAL_ROW_COUNT));
+        this.publicationTimer = new javax.swing.Timer(0, (e) -> publishModelChanges());
+        publicationTimer.setRepeats(false);
+        // We're told when we're first shown, and when we move to another screen.
+        addPropertyChangeListener("graphicsConfiguration", (e) -> frameNanos = getFrameNanos(getGraphicsConfiguration()));
         ComponentUtilities.disableFocusTraversal(this);
         setBorder(BorderFactory.createEmptyBorder(1, 4, 4, 4));
         setOpaque(true);
@@ -100,7 +130,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
                 } else {
                     requestFocus();
                     if (SwingUtilities.isLeftMouseButton(e) && urlUnderMouse != null && e.isControlDown()) {
-                        TextLine line = model.getDisplayTextLine(urlMouseLocation.getLineIndex());
+                        TextLine line = getDisplayTextLine(urlMouseLocation.getLineIndex());
                         String url = line.getTabbedString(urlUnderMouse.getStart(), urlUnderMouse.getEnd());
                         openUrlOrError(url);
                     }
@@ -202,7 +232,14 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     public void optionsDidChange() {
         TerminatorPreferences preferences = Terminator.getPreferences();
         setFont(preferences.getFont(TerminatorPreferences.FONT));
+        model.setCharUnitWidth(getCharUnitSize().width);
         setBackground(preferences.getColor(TerminatorPreferences.BACKGROUND_COLOR));
+        model.setScrollbackLineLimit(preferences.getInt(TerminatorPreferences.SCROLLBACK_LINE_COUNT));
+        model.setUncompressedLineLimit(preferences.getInt(TerminatorPreferences.UNCOMPRESSED_SCROLLBACK_LINE_COUNT));
+        model.setSpillsScrollbackToDisk(preferences.getBoolean(TerminatorPreferences.SPILL_SCROLLBACK_TO_DISK));
+        glyphAtlas = preferences.getBoolean(TerminatorPreferences.GLYPH_ATLAS) ? new GlyphAtlas() : null;
+        // The colors, cursor, and anti-aliasing may have changed too.
+        rowImageCache.invalidate();
         sizeChanged();
     }
     
@@ -221,11 +258,11 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     public UrlHighlighter getUrlHighlighter() {
         return urlHighlighter;
     }
-
+    
     public FindHighlighter getFindHighlighter() {
         return findHighlighter;
     }
-
+    
     public void userIsTyping() {
         model.setViewInactiveBuffer(false);
         blinkOn = true;
@@ -236,13 +273,120 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     }
     
     private void becomeDropTarget() {
-        new TerminalDropTarget(this);
+        // There's no drag and drop without a display (as when benchmarking).
+        if (GraphicsEnvironment.isHeadless() == false) {
+            new TerminalDropTarget(this);
+        }
     }
     
     public TerminalModel getModel() {
         return model;
     }
     
+    /**
+     * Returns the line to display at the given index, as the model last published it.
+     * Unlike the model's, this doesn't need the model's lock, and the line won't change under you.
+     */
+    public TextLine getDisplayTextLine(int lineIndex) {
+        return getDisplayTextLine(model.getSnapshot(), lineIndex);
+    }
+    
+    private TextLine getDisplayTextLine(ScreenSnapshot snapshot, int lineIndex) {
+        final TextLine line = snapshot.getLine(lineIndex);
+        if (line != null) {
+            return line;
+        }
+        // The lines above the screen don't change until the model next publishes, which it does on the EDT, except that those it's about to evict may be emptied.
+        synchronized (model) {
+            return model.getDisplayTextLine(lineIndex);
+        }
+    }
+    
+    /**
+     * Returns the lines from 'firstLineIndex' to the last, as the model last published them, as one CharSequence for matching regular expressions against.
+     * Nothing's copied, and lines in compressed scrollback are only inflated when they're read.
+     * The text doesn't change, even when the model does, so it can be searched on any thread.
+     */
+    public TerminalText getText(int firstLineIndex) {
+        final ScreenSnapshot snapshot;
+        final int[] lengths;
+        final int aboveScreenCount;
+        final IntFunction<TextLine> aboveScreen;
+        synchronized (model) {
+            snapshot = model.getSnapshot();
+            lengths = new int[Math.max(0, snapshot.getLineCount() - firstLineIndex)];
+            // Lines above the screen don't change, so we can share them with the model.
+            // If the model's screen has grown over some of the lines above ours since it published, we treat those as empty; we'll be asked again when it next publishes.
+            Arrays.fill(lengths, 1);
+            aboveScreenCount = Math.max(0, Math.min(Math.min(snapshot.getFirstLineIndex(), model.getFirstDisplayLine()) - firstLineIndex, lengths.length));
+            model.getLineLengths(firstLineIndex, aboveScreenCount, lengths, 0);
+            aboveScreen = (aboveScreenCount > 0) ? model.getLinesSnapshot(firstLineIndex, firstLineIndex + aboveScreenCount) : null;
+        }
+        for (int i = Math.max(0, snapshot.getFirstLineIndex() - firstLineIndex); i < lengths.length; ++i) {
+            lengths[i] = snapshot.getLine(firstLineIndex + i).lengthIncludingNewline();
+        }
+        final int screenLineIndex = firstLineIndex + aboveScreenCount;
+        return new TerminalText(firstLineIndex, lengths, lineIndex -> {
+            if (lineIndex < screenLineIndex) {
+                return aboveScreen.apply(lineIndex);
+            }
+            final TextLine line = snapshot.getLine(lineIndex);
+            return (line != null) ? line : new TextLine(Palettes.getBackgroundInk());
+        });
+    }
+    
+    /**
+     * Returns the number of lines, as the model last published it.
+     */
+    public int getLineCount() {
+        return model.getSnapshot().getLineCount();
+    }
+    
+    /**
+     * Tells us that the model has changes to publish. May be called on any thread.
+     * We ask for them on the EDT straight away if we haven't for a frame, and otherwise at the start of the next frame.
+     * However many times we're told in the meantime, we only ask once.
+     */
+    public void modelChanged() {
+        if (publicationScheduled.compareAndSet(false, true) == false) {
+            return;
+        }
+        GuiUtilities.invokeLater(() -> {
+            final long delayNanos = lastPublicationNanos + frameNanos - System.nanoTime();
+            if (delayNanos <= 0) {
+                publishModelChanges();
+            } else {
+                publicationTimer.setInitialDelay((int) TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
+                publicationTimer.restart();
+            }
+        });
+    }
+    
+    /**
+     * Returns the time between frames on the screen 'configuration' is for, or on the default screen if it's null.
+     */
+    private static long getFrameNanos(GraphicsConfiguration configuration) {
+        GraphicsDevice device = null;
+        if (configuration != null) {
+            device = configuration.getDevice();
+        } else if (GraphicsEnvironment.isHeadless() == false) {
+            device = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice();
+        }
+        final DisplayMode displayMode = (device != null) ? device.getDisplayMode() : null;
+        int refreshRate = (displayMode != null) ? displayMode.getRefreshRate() : DisplayMode.REFRESH_RATE_UNKNOWN;
+        if (refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN) {
+            refreshRate = DEFAULT_REFRESH_RATE;
+        }
+        return TimeUnit.SECONDS.toNanos(1) / refreshRate;
+    }
+    
+    private void publishModelChanges() {
+        // Changes made from now on need another publication, even if they make it into this one.
+        publicationScheduled.set(false);
+        lastPublicationNanos = System.nanoTime();
+        model.publishChanges();
+    }
+    
     /**
      * Pastes the text on the clipboard into the terminal.
      */
@@ -272,7 +416,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             pasteSystemSelection();
         }
     }
-        
+    
     private void pasteClipboard(Clipboard clipboard) {
         try {
             Transferable contents = clipboard.getContents(this);
@@ -344,11 +488,61 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     
     // Methods used by TerminalModel in order to update the display.
     
+    /**
+     * Called by the model when it publishes, if lines from 'lineIndex' on have changed.
+     * The rows of the screen that changed are repainted by repaintChangedRows, so we only have to repaint if lines above the screen changed.
+     */
     public void linesChangedFrom(int lineIndex) {
-        Point redrawTop = modelToView(new Location(lineIndex, 0)).getLocation();
         redoHighlightsFrom(lineIndex);
-        Dimension size = getSize();
-        repaint(redrawTop.x, redrawTop.y, size.width, size.height - redrawTop.y);
+        if (lineIndex < model.getSnapshot().getFirstLineIndex()) {
+            // What we've painted of those lines is no longer any use.
+            rowImageCache.invalidate();
+            repaintFromLine(lineIndex);
+        }
+    }
+    
+    /**
+     * Called by the model when it publishes, to repaint the rows of the screen that show something different.
+     */
+    public void repaintChangedRows() {
+        final ScreenSnapshot snapshot = model.getSnapshot();
+        int firstRow = -1;
+        int lastRow = -1;
+        for (int row = 0; row < snapshot.getRowCount(); ++row) {
+            if (snapshot.isRowChanged(row)) {
+                firstRow = (firstRow == -1) ? row : firstRow;
+                lastRow = row;
+            }
+        }
+        if (firstRow != -1) {
+            // The rows in between that haven't changed are only copied from rowImageCache.
+            final int h = getCharUnitSize().height;
+            final int y = getInsets().top + (snapshot.getFirstLineIndex() + firstRow) * h;
+            repaint(0, y, getWidth(), (lastRow - firstRow + 1) * h);
+        }
+    }
+    
+    /**
+     * Called by the model after it's discarded its oldest 'count' lines, so everything we know by line index needs to move up.
+     * If the user's looking at the history, we scroll so they keep seeing the same text.
+     */
+    public void linesRemovedFromTop(int count, boolean wereAtBottom) {
+        removedLineCount += count;
+        urlMatches.removeFirst(Math.min(count, urlMatches.size()));
+        findMatches.removeFirst(Math.min(count, findMatches.size()));
+        birdView.removeFirstLines(count);
+        birdsEye.linesRemovedFromTop(count);
+        urlUnderMouse = null;
+        urlMouseLocation = new Location(0, -1);
+        if (wereAtBottom == false) {
+            JViewport viewport = getViewport();
+            if (viewport != null) {
+                Point position = viewport.getViewPosition();
+                position.y = Math.max(0, position.y - count * getCharUnitSize().height);
+                viewport.setViewPosition(position);
+            }
+        }
+        repaint();
     }
     
     public void sizeChanged() {
@@ -361,7 +555,10 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     
     public void sizeChanged(Dimension oldSizeInChars, Dimension newSizeInChars) {
         sizeChanged();
-        redoHighlightsFrom(Math.min(oldSizeInChars.height, newSizeInChars.height));
+        // Any new lines were reported by linesChangedFrom, which the model calls first, so we've only to forget the highlights of lines that have gone.
+        if (newSizeInChars.height < oldSizeInChars.height) {
+            removeHighlightsFrom(newSizeInChars.height);
+        }
     }
     
     public void scrollToBottomButNotHorizontally() {
@@ -510,12 +707,12 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         String modelLine = "";
         // In line mode, if the line index is off the top or bottom, we leave charOffset = 0.
         // This makes it easier to select the whole first or last line.
-        if (lineIndex >= model.getLineCount()) {
-            lineIndex = model.getLineCount();
+        if (lineIndex >= getLineCount()) {
+            lineIndex = getLineCount();
         } else if (lineIndex < 0) {
             lineIndex = 0;
         } else {
-            modelLine = model.getDisplayTextLine(lineIndex).getString();
+            modelLine = getDisplayTextLine(lineIndex).getString();
         }
         // In block mode, there may not be text at the point we want to calculate.
         // We assume that W (see getCharUnitSize) doesn't have zero width.
@@ -540,8 +737,8 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         // Rather than have special case code in each caller, simply return a reasonable result.
         // Note that it's okay to have the empty string as the default here because we'll pad if necessary later in this method.
         String line = "";
-        if (charCoords.getLineIndex() < model.getLineCount()) {
-            line = model.getDisplayTextLine(charCoords.getLineIndex()).getString();
+        if (charCoords.getLineIndex() < getLineCount()) {
+            line = getDisplayTextLine(charCoords.getLineIndex()).getString();
         }
         
         final int offset = Math.max(0, charCoords.getCharOffset());
@@ -576,16 +773,18 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         Dimension character = getCharUnitSize();
         Insets insets = getInsets();
         // FIXME: really, we need to track the maximum pixel width.
-        final int width = insets.left + model.getMaxLineWidth() * character.width + insets.right;
-        final int height = insets.top + model.getLineCount() * character.height + insets.bottom;
+        final ScreenSnapshot snapshot = model.getSnapshot();
+        final int width = insets.left + snapshot.getMaxLineWidth() * character.width + insets.right;
+        final int height = insets.top + snapshot.getLineCount() * character.height + insets.bottom;
         return new Dimension(width, height);
     }
     
-    public void setUrlMatches(int lineIndex, Range[] matches) {
-        resizeAndSet(urlMatches, lineIndex, matches);
-        if (lineIndex == urlMouseLocation.getLineIndex()) {
-            urlUnderMouse = getUrlForLocation(urlMouseLocation);
-        }
+    /**
+     * Returns the number of lines removed from the top since we were created.
+     * A line's index has gone down by however much this has gone up since the index was taken.
+     */
+    public long getRemovedLineCount() {
+        return removedLineCount;
     }
     
     public void setFindMatches(int lineIndex, Range[] matches) {
@@ -593,9 +792,8 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         birdView.addMatchingLine(lineIndex);
     }
     
-    private static <T> void resizeAndSet(ArrayList<T> list, int index, T element) {
+    private static <T> void resizeAndSet(RingList<T> list, int index, T element) {
         if (list.size() <= index) {
-            list.ensureCapacity(index);
             for (int i = list.size(); i <= index; ++i) {
                 list.add(null);
             }
@@ -611,7 +809,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     
     private void redoHighlightsFrom(int firstLineIndex) {
         removeHighlightsFrom(firstLineIndex);
-        urlHighlighter.addHighlightsFrom(this, firstLineIndex);
+        // We look for links when the mouse gets to them, not here.
         findHighlighter.addHighlightsFrom(this, firstLineIndex);
     }
     
@@ -627,15 +825,28 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         
         birdView.setValueIsAdjusting(true);
         try {
+            // Only lines that had highlights need repainting, and they're rare.
+            int firstLineToRepaint = Integer.MAX_VALUE;
+            int lastLineToRepaint = -1;
             for (int i = urlMatches.size() - 1; i >= firstLineIndex; --i) {
-                urlMatches.remove(i);
+                final Range[] matches = urlMatches.remove(i);
+                if (matches != null && matches.length > 0) {
+                    firstLineToRepaint = i;
+                    lastLineToRepaint = Math.max(lastLineToRepaint, i);
+                }
             }
             // We use a backwards loop because going forwards results in N array copies if we're removing N lines.
             for (int i = findMatches.size() - 1; i >= firstLineIndex; --i) {
-                findMatches.remove(i);
+                if (findMatches.remove(i) != null) {
+                    firstLineToRepaint = Math.min(firstLineToRepaint, i);
+                    lastLineToRepaint = Math.max(lastLineToRepaint, i);
+                }
                 birdView.removeMatchingLine(i);
             }
-            repaintFromLine(firstLineIndex);
+            if (lastLineToRepaint != -1) {
+                final int h = getCharUnitSize().height;
+                repaint(0, getInsets().top + firstLineToRepaint * h, getWidth(), (lastLineToRepaint - firstLineToRepaint + 1) * h);
+            }
         } finally {
             birdView.setValueIsAdjusting(false);
         }
@@ -687,7 +898,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
      * Scrolls the display down to the next highlight of the given class not currently on the display.
      */
     public void findNext() {
-        findAgain(getLastVisibleLine() + 1, getModel().getLineCount() + 1, 1);
+        findAgain(getLastVisibleLine() + 1, getLineCount() + 1, 1);
     }
     
     /**
@@ -712,14 +923,20 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         Rectangle visibleBounds = getViewport().getViewRect();
         return (visibleBounds.y + visibleBounds.height) / lineHeight;
     }
-
+    
     private Range getUrlForLocation(Location location) {
         int line = location.getLineIndex();
         int offset = location.getCharOffset();
-        if (line >= urlMatches.size() || urlMatches.get(line) == null) {
+        if (line < 0 || line >= getLineCount()) {
             return null;
         }
-        for (Range r : urlMatches.get(line)) {
+        Range[] matches = (line < urlMatches.size()) ? urlMatches.get(line) : null;
+        if (matches == null) {
+            // We haven't looked at this line since it last changed.
+            matches = urlHighlighter.getMatches(getDisplayTextLine(line).getCharSequence());
+            resizeAndSet(urlMatches, line, matches);
+        }
+        for (Range r : matches) {
             // Optimization: URLs are in order.
             if (r.getStart() > offset) {
                 return null;
@@ -754,7 +971,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         if (isLastLine) {
             return endOffset;
         }
-        TextLine textLine = model.getDisplayTextLine(lineIndex);
+        TextLine textLine = getDisplayTextLine(lineIndex);
         int lineLength = textLine.length();
         return lineLength;
     }
@@ -766,7 +983,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             if (i == end.getLineIndex() && end.getCharOffset() == 0) {
                 break;
             }
-            TextLine textLine = model.getDisplayTextLine(i);
+            TextLine textLine = getDisplayTextLine(i);
             // In block mode, even the start of the selection may be beyond the end of the model line.
             int lineStart = Math.min(textLine.length(), getLineStart(blockMode, start, end, i));
             int lineEnd = Math.min(textLine.length(), getLineEnd(blockMode, start, end, i));
@@ -827,10 +1044,32 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             Graphics2D g = (Graphics2D) oldGraphics;
             GuiUtilities.setTextAntiAliasing(g, Terminator.getPreferences().getBoolean(TerminatorPreferences.ANTI_ALIAS));
             
-            FontMetrics metrics = getFontMetrics(getFont());
             Dimension charUnitSize = getCharUnitSize();
-            
             Rectangle rect = g.getClipBounds();
+            
+            Insets insets = getInsets();
+            int firstTextLine = (rect.y - insets.top) / charUnitSize.height;
+            int lastTextLine = (rect.y - insets.top + rect.height - 1) / charUnitSize.height;
+            lastTextLine = Math.min(lastTextLine, getLineCount() - 1);
+            final int rowCount = Math.max(0, lastTextLine - firstTextLine + 1);
+            describeRows(firstTextLine, rowCount, rect.x + rect.width);
+            
+            // The rows on the screen usually haven't changed since we last painted them, or have just moved.
+            // The output truncated watermark doesn't move with them, though.
+            if (rect.x + rect.width <= TRUNCATION_WATERMARK_BEGIN_X && rowImageCache.paint(this, g, rect, firstTextLine, wantedRows, rowCount)) {
+                // Fill in any of the clip the rows don't cover.
+                g.setColor(getBackground());
+                final int rowsTop = insets.top + firstTextLine * charUnitSize.height;
+                final int rowsBottom = rowsTop + rowCount * charUnitSize.height;
+                if (rect.y < rowsTop) {
+                    g.fillRect(rect.x, rect.y, rect.width, rowsTop - rect.y);
+                }
+                if (rowsBottom < rect.y + rect.height) {
+                    g.fillRect(rect.x, rowsBottom, rect.width, rect.y + rect.height - rowsBottom);
+                }
+                return;
+            }
+            
             g.setColor(getBackground());
             g.fill(rect);
             
@@ -850,90 +1089,141 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
                 }
             }
             
-            // We manually "clip" for performance, but we're quite loose about it.
-            // This avoids accidental pathological cases (hopefully) and doesn't seem to have any significant cost.
-            final int maxX = rect.x + rect.width;
-            final int widthHintInChars = maxX / charUnitSize.width * 2;
-            
-            Insets insets = getInsets();
-            int firstTextLine = (rect.y - insets.top) / charUnitSize.height;
-            int lastTextLine = (rect.y - insets.top + rect.height + charUnitSize.height - 1) / charUnitSize.height;
-            lastTextLine = Math.min(lastTextLine, model.getLineCount() - 1);
-            final Location selectionStart = selectionHighlighter.getStart();
-            final Location selectionEnd = selectionHighlighter.getEnd();
-            final boolean hasSelection = selectionStart != null;
-            
-            for (int i = firstTextLine; i <= lastTextLine; i++) {
-                boolean drawCursor = (shouldShowCursor() && i == cursorPosition.getLineIndex());
-                int x = insets.left;
-                int baseline = insets.top + charUnitSize.height * (i + 1) - metrics.getMaxDescent();
-                TextLine textLine = model.getDisplayTextLine(i);
-                final int length = textLine.length();
-                int urlStart = length;
-                int urlEnd = length;
-                if (urlUnderMouse != null && i == urlMouseLocation.getLineIndex()) {
-                    urlStart = urlUnderMouse.getStart();
-                    urlEnd = urlUnderMouse.getEnd();
-                }
-                Range[] findResults = matchesForLine(i);
-                int findIndex = -1;
-                int findStart = 0, findEnd = -1;
-                for (int start = 0, end, done; start < length && x < maxX; start = done) {
-                    if (findResults != null && findEnd <= start && ++findIndex < findResults.length) {
-                        findStart = findResults[findIndex].getStart();
-                        findEnd = findResults[findIndex].getEnd();
-                    }
-                    end = getMinGT(start, findStart, findEnd, urlStart, urlEnd, length);
-                    done = textLine.getRunLimit(start, end);
-                    String text = textLine.getSubstring(start, done);
-                    Style style = textLine.getStyleAt(start);
-                    boolean isUrl = urlStart <= start && start < urlEnd;
-                    boolean isFind = findStart <= start && start < findEnd;
-                    x += paintStyledText(g, metrics, text, style, x, baseline, isUrl, isFind);
-                    if (drawCursor && cursorPosition.charOffsetInRange(start, done)) {
-                        paintCursor(g, textLine.getSubstring(cursorPosition.getCharOffset(), cursorPosition.getCharOffset() + 1), baseline);
-                        drawCursor = false;
-                    }
-                }
-                Color lineBG = textLine.getBackground().get();
-                if (x < maxX && !getBackground().equals(lineBG)) {
-                    // Fill the rest of the line with line's default background
-                    g.setColor(lineBG);
-                    g.fillRect(x, baseline - metrics.getMaxAscent() - metrics.getLeading(), maxX - x, charUnitSize.height);
-                }
-                if (drawCursor) {
-                    // A cursor at the end of the line is in a position past the end of the text.
-                    paintCursor(g, "", baseline);
-                }
-                if (hasSelection && selectionStart.getLineIndex() <= i && i <= selectionEnd.getLineIndex()) {
-                    boolean blockMode = selectionHighlighter.isBlockMode();
-                    int start = getLineStart(blockMode, selectionStart, selectionEnd, i);
-                    int end = getLineEnd(blockMode, selectionStart, selectionEnd, i);
-                    boolean toEnd = blockMode == false && selectionEnd.getLineIndex() != i;
-                    String paddedLine = textLine.getString();
-                    if (end > length) {
-                        final int charactersOfPaddingRequired = end - length;
-                        // See getCharUnitSize for the 'W'.
-                        paddedLine += StringUtilities.nCopies(charactersOfPaddingRequired, 'W');
-                    }
-
-                    // FIXME: this is likely to want some tuning; in particular, we might need to distinguish between light-on-dark and dark-on-light color schemes.
-                    Color selectionColor = Terminator.getPreferences().getColor(TerminatorPreferences.SELECTION_COLOR);
-                    g.setColor(new Color(selectionColor.getRed(), selectionColor.getGreen(), selectionColor.getBlue(), 128));
-
-                    x = insets.left + (start == 0 ? 0 : metrics.stringWidth(paddedLine.substring(0, start)));
-                    int y = baseline - metrics.getMaxAscent() - metrics.getLeading();
-                    int w = toEnd ? maxX - x : metrics.stringWidth(paddedLine.substring(start, end));
-                    int h = charUnitSize.height;
-
-                    g.fillRect(x, y, w, h);
-                }
+            for (int i = 0; i < rowCount; i++) {
+                paintRow(g, firstTextLine + i, wantedRows[i], rect.x + rect.width);
             }
         } finally {
             timer.stop();
         }
     }
     
+    /**
+     * Fills in wantedRows with what should be painted on the 'rowCount' lines from 'firstTextLine'.
+     */
+    private void describeRows(int firstTextLine, int rowCount, int maxX) {
+        if (wantedRows.length < rowCount) {
+            wantedRows = Arrays.copyOf(wantedRows, rowCount);
+            for (int i = 0; i < rowCount; ++i) {
+                if (wantedRows[i] == null) {
+                    wantedRows[i] = new RowImageCache.Row();
+                }
+            }
+        }
+        final Location selectionStart = selectionHighlighter.getStart();
+        final Location selectionEnd = selectionHighlighter.getEnd();
+        final boolean hasSelection = selectionStart != null;
+        final boolean showCursor = shouldShowCursor();
+        for (int i = firstTextLine; i < firstTextLine + rowCount; i++) {
+            final RowImageCache.Row row = wantedRows[i - firstTextLine];
+            row.line = getDisplayTextLine(i);
+            row.cursorOffset = -1;
+            if (showCursor && i == cursorPosition.getLineIndex()) {
+                row.cursorOffset = cursorPosition.getCharOffset();
+                row.cursorAppearance = (isFocusOwner() ? 1 : 0) | (blinkOn ? 2 : 0) | (cursorStyle << 2);
+            }
+            row.urlStart = -1;
+            row.urlEnd = -1;
+            if (urlUnderMouse != null && i == urlMouseLocation.getLineIndex()) {
+                row.urlStart = urlUnderMouse.getStart();
+                row.urlEnd = urlUnderMouse.getEnd();
+            }
+            row.findMatches = matchesForLine(i);
+            row.selectionStart = -1;
+            row.selectionEnd = -1;
+            row.selectionToEnd = false;
+            if (hasSelection && selectionStart.getLineIndex() <= i && i <= selectionEnd.getLineIndex()) {
+                boolean blockMode = selectionHighlighter.isBlockMode();
+                row.selectionStart = getLineStart(blockMode, selectionStart, selectionEnd, i);
+                row.selectionEnd = getLineEnd(blockMode, selectionStart, selectionEnd, i);
+                row.selectionToEnd = blockMode == false && selectionEnd.getLineIndex() != i;
+            }
+        }
+    }
+    
+    /**
+     * Paints 'row', line 'lineIndex', whose background has already been filled in, as far as 'maxX'.
+     */
+    void paintRow(Graphics2D g, int lineIndex, RowImageCache.Row row, int maxX) {
+        FontMetrics metrics = getFontMetrics(getFont());
+        Dimension charUnitSize = getCharUnitSize();
+        Insets insets = getInsets();
+        
+        boolean drawCursor = (row.cursorOffset != -1);
+        final boolean useGlyphAtlas = (glyphAtlas != null && glyphAtlas.prepare(this, g, metrics));
+        int x = insets.left;
+        int baseline = insets.top + charUnitSize.height * (lineIndex + 1) - metrics.getMaxDescent();
+        TextLine textLine = row.line;
+        final int length = textLine.length();
+        Range[] findResults = row.findMatches;
+        int findIndex = -1;
+        int findStart = 0, findEnd = -1;
+        for (int start = 0, end, done; start < length && x < maxX; start = done) {
+            if (findResults != null && findEnd <= start && ++findIndex < findResults.length) {
+                findStart = findResults[findIndex].getStart();
+                findEnd = findResults[findIndex].getEnd();
+            }
+            end = getMinGT(start, findStart, findEnd, row.urlStart, row.urlEnd, length);
+            done = textLine.getRunLimit(start, end);
+            if (done - start > runChars.length) {
+                runChars = new char[Math.max(done - start, runChars.length * 2)];
+            }
+            textLine.getChars(start, done, runChars, 0);
+            Style style = textLine.getStyleAt(start);
+            boolean isUrl = row.urlStart <= start && start < row.urlEnd;
+            boolean isFind = findStart <= start && start < findEnd;
+            if (useGlyphAtlas && glyphAtlas.paint(this, g, metrics, runChars, done - start, style, x, baseline, isUrl, isFind)) {
+                x += (done - start) * charUnitSize.width;
+            } else {
+                x += paintStyledText(g, metrics, runChars, done - start, style, x, baseline, isUrl, isFind);
+            }
+            if (drawCursor && row.cursorOffset >= start && row.cursorOffset < done) {
+                paintCursor(g, textLine.getSubstring(row.cursorOffset, row.cursorOffset + 1), baseline);
+                drawCursor = false;
+            }
+        }
+        Color lineBG = textLine.getBackground().get();
+        if (x < maxX && !getBackground().equals(lineBG)) {
+            // Fill the rest of the line with line's default background
+            g.setColor(lineBG);
+            g.fillRect(x, baseline - metrics.getMaxAscent() - metrics.getLeading(), maxX - x, charUnitSize.height);
+        }
+        if (drawCursor) {
+            // A cursor at the end of the line is in a position past the end of the text.
+            paintCursor(g, "", baseline);
+        }
+        if (row.selectionStart != -1) {
+            int start = row.selectionStart;
+            int end = row.selectionEnd;
+            
+            // FIXME: this is likely to want some tuning; in particular, we might need to distinguish between light-on-dark and dark-on-light color schemes.
+            Color selectionColor = Terminator.getPreferences().getColor(TerminatorPreferences.SELECTION_COLOR);
+            g.setColor(new Color(selectionColor.getRed(), selectionColor.getGreen(), selectionColor.getBlue(), 128));
+            
+            x = insets.left + getTextWidth(metrics, textLine, 0, start);
+            int y = baseline - metrics.getMaxAscent() - metrics.getLeading();
+            int w = row.selectionToEnd ? maxX - x : getTextWidth(metrics, textLine, start, end);
+            int h = charUnitSize.height;
+            
+            g.fillRect(x, y, w, h);
+        }
+    }
+    
+    /**
+     * Returns the width of the characters of 'textLine' from 'start' to 'end', where each character past the end of the line is a cell wide.
+     */
+    private int getTextWidth(FontMetrics metrics, TextLine textLine, int start, int end) {
+        final int textEnd = Math.min(end, textLine.length());
+        int width = 0;
+        if (start < textEnd) {
+            if (textEnd - start > runChars.length) {
+                runChars = new char[Math.max(textEnd - start, runChars.length * 2)];
+            }
+            textLine.getChars(start, textEnd, runChars, 0);
+            width = metrics.charsWidth(runChars, 0, textEnd - start);
+        }
+        return width + Math.max(0, end - Math.max(start, textLine.length())) * getCharUnitSize().width;
+    }
+    
     /**
      * Paints the cursor, which is either a solid block or an underline.
      * The cursor may actually be invisible because it's blinking and in
@@ -987,9 +1277,9 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     }
     
     /**
-     * Paints the text. Returns how many pixels wide the text was.
+     * Paints the first 'charCount' characters of 'chars'. Returns how many pixels wide the text was.
      */
-    private int paintStyledText(Graphics2D g, FontMetrics metrics, String text, Style style, int x, int y, boolean url, boolean isFind) {
+    int paintStyledText(Graphics2D g, FontMetrics metrics, char[] chars, int charCount, Style style, int x, int y, boolean url, boolean isFind) {
         Stopwatch.Timer timer = paintStyledTextStopwatch.start();
         try {
             Color foreground = isFind ? Color.BLACK : style.getForeground();
@@ -1006,7 +1296,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
                 foreground = background;
             }
             
-            int textWidth = metrics.stringWidth(text);
+            int textWidth = metrics.charsWidth(chars, 0, charCount);
             if (background.equals(getBackground()) == false) {
                 g.setColor(background);
                 int backgroundWidth = textWidth;
@@ -1037,7 +1327,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             }
             
             g.setColor(foreground);
-            g.drawString(text, x, y);
+            g.drawChars(chars, 0, charCount, x, y);
             
             if (previousFont != null) g.setFont(previousFont);
             
@@ -1094,4 +1384,303 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     public boolean getScrollableTracksViewportHeight() {
         return false; // We want a vertical scroll-bar.
     }
+    
+    /**
+     * Returns a view (not on screen) containing 'lineCount' lines of colorful text, of the kind "ls --color" or a compiler produces: a style change every word or so.
+     */
+    @TestHelper static TerminalView makeBenchmarkTerminalView(int lineCount) {
+        final TerminalView view = new TerminalView();
+        final TerminalModel model = view.getModel();
+        // Processing text and publishing changes need what JTerminalPane would give us.
+        final JScrollPane scrollPane = new JScrollPane(view);
+        view.setBirdView(new BirdView(view.getBirdsEye(), scrollPane.getVerticalScrollBar()));
+        view.setTerminalControl(new TerminalControl(null, model));
+        synchronized (model) {
+            for (int i = 0; i < lineCount; ++i) {
+                final TextLine line = model.getTextLine(model.getCursorPosition().getLineIndex());
+                for (int j = 0; j < 16; ++j) {
+                    final Style style = Style.makeStyle(Palettes.getInk((i + j) % 8), null, (j % 3 == 0) ? Style.BOLD : 0);
+                    line.writeTextAt(line.length(), "word" + j + " ", style);
+                }
+                model.processSpecialCharacter('\r');
+                model.processSpecialCharacter('\n');
+            }
+            // We changed the lines behind the model's back.
+            model.linesChangedFrom(0);
+        }
+        view.publishModelChanges();
+        view.setSize(view.getOptimalViewSize());
+        return view;
+    }
+    
+    @Test private static void testSnapshots() {
+        final TerminalView view = makeBenchmarkTerminalView(0);
+        final TerminalModel model = view.getModel();
+        final int rowCount = model.getSnapshot().getRowCount();
+        synchronized (model) {
+            model.processLine("hello");
+        }
+        // Nothing changes for the view until the model publishes.
+        Assert.equals(view.getDisplayTextLine(0).getString(), "");
+        view.publishModelChanges();
+        Assert.equals(view.getDisplayTextLine(0).getString(), "hello");
+        Assert.equals(model.getSnapshot().getChangedRowCount(), 1);
+        
+        // Only changed lines are copied; the rest are shared with the previous snapshot.
+        final TextLine firstLine = view.getDisplayTextLine(0);
+        synchronized (model) {
+            model.processSpecialCharacter('\r');
+            model.processSpecialCharacter('\n');
+            model.processLine("world");
+        }
+        view.publishModelChanges();
+        Assert.equals(model.getSnapshot().getChangedRowCount(), 1);
+        Assert.equals(model.getSnapshot().isRowChanged(1), true);
+        Assert.equals(view.getDisplayTextLine(0) == firstLine, true);
+        
+        // Lines are only evicted when the model publishes, so the view's line indexes stay valid until then.
+        synchronized (model) {
+            model.setScrollbackLineLimit(2);
+            for (int i = 0; i < rowCount + 10; ++i) {
+                model.processSpecialCharacter('\r');
+                model.processSpecialCharacter('\n');
+                model.processLine("line " + i);
+            }
+        }
+        Assert.equals(view.getLineCount(), rowCount);
+        Assert.equals(view.getDisplayTextLine(0) == firstLine, true);
+        view.publishModelChanges();
+        Assert.equals(view.getLineCount(), 2 + rowCount);
+        Assert.equals(model.getSnapshot().getFirstLineIndex(), 2);
+        Assert.equals(view.getDisplayTextLine(view.getLineCount() - 1).getString(), "line " + (rowCount + 9));
+        Assert.equals(view.getDisplayTextLine(0).getString(), "line 8");
+        
+        // A flood of more than a block of lines past the limit empties those awaiting eviction, but they keep their indexes until the model publishes.
+        synchronized (model) {
+            for (int i = 0; i < 4096; ++i) {
+                model.processSpecialCharacter('\r');
+                model.processSpecialCharacter('\n');
+                model.processLine("flood " + i);
+            }
+        }
+        Assert.equals(view.getLineCount(), 2 + rowCount);
+        Assert.equals(view.getDisplayTextLine(0).getString(), "");
+        view.publishModelChanges();
+        Assert.equals(view.getLineCount(), 2 + rowCount);
+        Assert.equals(view.getDisplayTextLine(view.getLineCount() - 1).getString(), "flood 4095");
+        Assert.equals(view.getDisplayTextLine(0).getString(), "flood " + (4095 - rowCount - 1));
+    }
+    
+    @Test private static void testRowImageCache() {
+        final TerminalView view = makeBenchmarkTerminalView(100);
+        final TerminalModel model = view.getModel();
+        final JScrollPane scrollPane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, view);
+        scrollPane.setSize(400, 200);
+        scrollPane.doLayout();
+        final BufferedImage image = new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB);
+        publishAndPaint(view, image);
+        
+        // Output that scrolls the view only needs the new rows painted, and the one the cursor was on.
+        synchronized (model) {
+            for (int i = 0; i < 3; ++i) {
+                model.processLine("more " + i);
+                model.processSpecialCharacter('\r');
+                model.processSpecialCharacter('\n');
+            }
+        }
+        checkRowImageCache(view, image, 4);
+        
+        // So does output when the oldest lines are being evicted, and the view doesn't scroll: the new row, and the old cursor row.
+        model.setScrollbackLineLimit(10);
+        publishAndPaint(view, image);
+        synchronized (model) {
+            model.processLine("evicting");
+            model.processSpecialCharacter('\r');
+            model.processSpecialCharacter('\n');
+        }
+        checkRowImageCache(view, image, 2);
+        
+        // A full-screen program scrolling part of the screen, as "less" does, only needs the new row painted.
+        synchronized (model) {
+            model.setScrollingRegion(2, 10);
+            model.setCursorPosition(1, 10);
+            model.processSpecialCharacter('\n');
+            model.processLine("scrolled");
+        }
+        checkRowImageCache(view, image, 1);
+    }
+    
+    /**
+     * Checks that we paint the same as if we'd painted everything from scratch, while only painting 'maximumPaintedRowCount' rows.
+     */
+    @TestHelper private static void checkRowImageCache(TerminalView view, BufferedImage image, int maximumPaintedRowCount) {
+        final int paintedRowCount = view.rowImageCache.getPaintedRowCount();
+        final int[] pixels = publishAndPaint(view, image);
+        Assert.equals(view.rowImageCache.getPaintedRowCount() - paintedRowCount <= maximumPaintedRowCount, true);
+        view.rowImageCache.invalidate();
+        Assert.equals(Arrays.equals(publishAndPaint(view, image), pixels), true);
+    }
+    
+    /**
+     * Publishes the model's changes, scrolls to the bottom, as the user would see them, and paints what's visible into 'image'.
+     */
+    @TestHelper private static int[] publishAndPaint(TerminalView view, BufferedImage image) {
+        view.publishModelChanges();
+        final JViewport viewport = view.getViewport();
+        viewport.setViewPosition(new Point(0, view.getHeight() - viewport.getExtentSize().height));
+        final Rectangle visible = view.getVisibleRect();
+        final Graphics2D g = image.createGraphics();
+        g.translate(-visible.x, -visible.y);
+        g.setClip(visible);
+        view.paintComponent(g);
+        g.dispose();
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+    
+    @Test private static void testGlyphAtlas() {
+        final TerminalView view = makeBenchmarkTerminalView(10);
+        final TerminalModel model = view.getModel();
+        synchronized (model) {
+            // Wide and combining characters, and characters outside the BMP, have to be drawn as text.
+            model.processLine("wide \u6f22\u5b57 combining e\u0301 astral \ud83d\ude00 plain");
+        }
+        view.publishModelChanges();
+        view.setSize(view.getOptimalViewSize());
+        final BufferedImage image = new BufferedImage(view.getWidth(), view.getHeight(), BufferedImage.TYPE_INT_RGB);
+        final int[] text = paintAll(view, image);
+        view.glyphAtlas = new GlyphAtlas();
+        Assert.equals(Arrays.equals(paintAll(view, image), text), true);
+        final int paintedCellCount = view.glyphAtlas.getPaintedCellCount();
+        Assert.equals(paintedCellCount > 0, true);
+        // The second time, every cell comes from the atlas.
+        Assert.equals(Arrays.equals(paintAll(view, image), text), true);
+        Assert.equals(view.glyphAtlas.getPaintedCellCount(), paintedCellCount);
+    }
+    
+    @TestHelper private static int[] paintAll(TerminalView view, BufferedImage image) {
+        final Graphics2D g = image.createGraphics();
+        g.setClip(0, 0, image.getWidth(), image.getHeight());
+        // As Swing would.
+        g.setFont(view.getFont());
+        // Anti-aliased glyphs can overhang their cells by a pixel, which the atlas clips.
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+        view.paintComponent(g);
+        g.dispose();
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+    
+    // Each iteration paints a screenful (1000 by 1000 pixels) of text.
+    @Benchmark private static Object benchmarkPaint(int iterationCount) {
+        return paintRepeatedly(makeBenchmarkTerminalView(200), iterationCount);
+    }
+    
+    // The same, drawing text from a GlyphAtlas.
+    @Benchmark private static Object benchmarkPaintWithGlyphAtlas(int iterationCount) {
+        final TerminalView view = makeBenchmarkTerminalView(200);
+        view.glyphAtlas = new GlyphAtlas();
+        return paintRepeatedly(view, iterationCount);
+    }
+    
+    // Each iteration writes and publishes 100 lines of build output, some with links, as a flood of output would.
+    // Later iterations cost more, as the scrollback grows, so compare runs with a fixed --iterations, each in its own JVM.
+    @Benchmark private static Object benchmarkFlood(int iterationCount) throws Exception {
+        return floodRepeatedly(makeBenchmarkTerminalView(0), iterationCount);
+    }
+    
+    // We publish on the EDT, as the view would.
+    @TestHelper private static Object floodRepeatedly(TerminalView view, int iterationCount) throws Exception {
+        final TerminalModel model = view.getModel();
+        EventQueue.invokeAndWait(() -> {
+            for (int i = 0; i < iterationCount; ++i) {
+                synchronized (model) {
+                    for (int j = 0; j < 100; ++j) {
+                        model.processLine(makeFloodLine(i, j));
+                        model.processSpecialCharacter('\r');
+                        model.processSpecialCharacter('\n');
+                    }
+                }
+                view.publishModelChanges();
+            }
+        });
+        return view;
+    }
+    
+    // Each iteration finds the links in 100 lines of the flood benchmarks' output, as the mouse reaching each of them would.
+    @Benchmark private static Object benchmarkFindLinks(int iterationCount) {
+        final UrlHighlighter urlHighlighter = new UrlHighlighter();
+        final String[] lines = new String[100];
+        for (int j = 0; j < lines.length; ++j) {
+            lines[j] = makeFloodLine(0, j);
+        }
+        int matchCount = 0;
+        for (int i = 0; i < iterationCount; ++i) {
+            for (String line : lines) {
+                matchCount += urlHighlighter.getMatches(line).length;
+            }
+        }
+        return matchCount;
+    }
+    
+    // Each iteration writes a megabyte of build output, a pty read's worth at a time, as a terminal's emulation thread would, and waits for the view to show it all.
+    @Benchmark private static Object benchmarkFloodMegabyte(int iterationCount) throws Exception {
+        return floodMegabytes(makeBenchmarkTerminalView(0), iterationCount);
+    }
+    
+    // The same, publishing whenever the EDT can rather than once a frame, to show what waiting for the next frame saves.
+    @Benchmark private static Object benchmarkFloodMegabyteWithoutFramePacing(int iterationCount) throws Exception {
+        final TerminalView view = makeBenchmarkTerminalView(0);
+        view.frameNanos = 0;
+        return floodMegabytes(view, iterationCount);
+    }
+    
+    @TestHelper private static Object floodMegabytes(TerminalView view, int megabyteCount) throws Exception {
+        final TerminalModel model = view.getModel();
+        // So that later iterations cost no more than earlier ones.
+        model.setScrollbackLineLimit(10000);
+        final int linesPerRead = 40;
+        for (int i = 0; i < megabyteCount; ++i) {
+            int byteCount = 0;
+            for (int read = 0; byteCount < 1024 * 1024; ++read) {
+                final String[] lines = new String[linesPerRead];
+                for (int j = 0; j < linesPerRead; ++j) {
+                    lines[j] = makeFloodLine(read, j);
+                    byteCount += lines[j].length() + 2;
+                }
+                model.processActions(new TerminalAction[] { (m) -> {
+                    for (String line : lines) {
+                        m.processLine(line);
+                        m.processSpecialCharacter('\r');
+                        m.processSpecialCharacter('\n');
+                    }
+                } });
+            }
+        }
+        // Wait for the view to publish the last of it.
+        while (view.publicationScheduled.get()) {
+            Thread.sleep(1);
+        }
+        EventQueue.invokeAndWait(() -> {});
+        return view;
+    }
+    
+    // Returns line 'j' of batch 'i' of the flood benchmarks' output: mostly compiler progress, but every tenth line a warning with a link.
+    @TestHelper private static String makeFloodLine(int i, int j) {
+        if (j % 10 == 0) {
+            return "src/terminator/view/TerminalView.java:" + (i + j) + ": warning: see https://docs.oracle.com/javase/8/docs/api/ for more";
+        }
+        return "[javac] compiling " + j + " source files to /tmp/classes/terminator/view (pass " + i + ", no links here)";
+    }
+    
+    @TestHelper private static Object paintRepeatedly(TerminalView view, int iterationCount) {
+        final BufferedImage image = new BufferedImage(1000, 1000, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = image.createGraphics();
+        g.setClip(0, 0, image.getWidth(), image.getHeight());
+        // As Swing would.
+        g.setFont(view.getFont());
+        for (int i = 0; i < iterationCount; ++i) {
+            view.paintComponent(g);
+        }
+        g.dispose();
+        return image;
+    }
 }
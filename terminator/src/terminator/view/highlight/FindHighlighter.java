@@ -1,21 +1,48 @@
 package terminator.view.highlight;
 
 import e.util.*;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.regex.*;
-import java.util.ArrayList;
-import javax.swing.*;
 import terminator.model.*;
 import terminator.view.*;
 
 /**
  * Highlights the results of user-initiated finds.
+ * 
+ * A find searches the TerminalText of the lines the view showed when it
+ * started. That doesn't change as the model does, so searching it needs no
+ * locks, and can't see a line half-changed. The lines are split into chunks,
+ * searched in parallel, those nearest the visible lines first, and each
+ * chunk's highlights are added on the EDT as soon as it's done. Each chunk
+ * sees a few lines either side of its own, so a match can cross from one to
+ * the next, but a pattern whose matches abut, like "\s{3}" in a run of blank
+ * lines, may be split into matches a little differently at a chunk boundary
+ * than one search from the top would split it.
+ *
+ * As output arrives, the view tells us the first line that's changed, and we
+ * search just the lines from there, dropping any results we were still
+ * expecting for those lines. A new pattern cancels every search for the old.
  */
 public class FindHighlighter {
-    private static final ExecutorService executorService = ThreadUtilities.newSingleThreadExecutor("Background Find");
+    // Shared by all terminals. Finding is all CPU, and comes in bursts.
+    private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), forkJoinPool -> {
+        final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+        thread.setName("Background Find-" + thread.getPoolIndex());
+        // Avoid inheriting the high priority of the event dispatch thread.
+        thread.setPriority(Thread.NORM_PRIORITY);
+        return thread;
+    }, null, false);
+    
+    // The same as TextLineList's blocks, so a chunk of compressed scrollback usually means inflating a single block.
+    private static final int CHUNK_LINE_COUNT = 2048;
+    // How many lines either side of its own a chunk's matcher sees, so that a match can run from one chunk into the next.
+    private static final int CONTEXT_LINE_COUNT = 16;
     
     private Pattern pattern;
     private String regularExpression = "";
+    // The searches still running. Only used on the EDT.
+    private final ArrayList<Search> searches = new ArrayList<>();
     
     public String getName() {
         return "Find Highlighter";
@@ -54,63 +81,160 @@ public class FindHighlighter {
             return;
         }
         
-        executorService.execute(new SwingWorker<Object, Object>() {
-            private int matchCount;
-            
-            @Override
-            protected Object doInBackground() {
-                matchCount = addHighlightsInternal(view, 0);
-                return null;
-            }
-            
-            @Override
-            protected void done() {
-                findStatusDisplay.setStatus(StringUtilities.pluralize(matchCount, "match", "matches"), false);
-            }
-        });
+        startSearch(view, 0, findStatusDisplay);
     }
     
     public void forgetPattern(TerminalView view) {
+        for (Search search : new ArrayList<>(searches)) {
+            search.cancel();
+        }
         view.removeFindMatches();
         this.pattern = null;
         this.regularExpression = "";
     }
     
-    /** Request to add highlights to all lines of the view from the index given onwards. */
+    /**
+     * Request to add highlights to all lines of the view from the index given onwards.
+     * The lines from there have changed, so we forget any results for them we were still waiting for.
+     */
     public void addHighlightsFrom(TerminalView view, int firstLineIndex) {
-        addHighlightsInternal(view, firstLineIndex);
+        if (pattern == null) {
+            return;
+        }
+        // If we were going to report a find's progress, the new search will have to instead.
+        FindStatusDisplay findStatusDisplay = null;
+        for (Search search : new ArrayList<>(searches)) {
+            if (search.linesChangedFrom(firstLineIndex) && findStatusDisplay == null) {
+                findStatusDisplay = search.findStatusDisplay;
+            }
+        }
+        startSearch(view, firstLineIndex, findStatusDisplay);
     }
-
+    
+    private void startSearch(TerminalView view, int firstLineIndex, FindStatusDisplay findStatusDisplay) {
+        final Search search = new Search(view, firstLineIndex, findStatusDisplay);
+        searches.add(search);
+        search.start();
+    }
+    
     /**
-     * Returns the number of highlights added.
+     * A search for 'pattern' in the lines from 'firstLineIndex' to the end, as they were when we started.
+     * Line indexes are as they were then, too: the view tells us how many lines it's lost from the top since.
      */
-    private int addHighlightsInternal(TerminalView view, int firstLineIndex) {
-        if (pattern == null) {
-            return 0;
+    private final class Search {
+        private final TerminalView view;
+        private final Pattern pattern = FindHighlighter.this.pattern;
+        private final int firstLineIndex;
+        private final TerminalText text;
+        private final long removedLineCount;
+        // Null if we're not to report our progress.
+        private final FindStatusDisplay findStatusDisplay;
+        private final ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+        // Set on the EDT, and checked by the chunks, so they give up as soon as they can.
+        private volatile boolean cancelled;
+        // The results for lines from here on are stale. The rest of our fields, like this, are only used on the EDT.
+        private int firstChangedLineIndex = Integer.MAX_VALUE;
+        private int pendingChunkCount;
+        private int matchCount;
+        
+        private Search(TerminalView view, int firstLineIndex, FindStatusDisplay findStatusDisplay) {
+            this.view = view;
+            this.firstLineIndex = firstLineIndex;
+            this.text = view.getText(firstLineIndex);
+            this.removedLineCount = view.getRemovedLineCount();
+            this.findStatusDisplay = findStatusDisplay;
         }
-        view.getBirdView().setValueIsAdjusting(true);
-        try {
-            // FIXME: this code is duplicated in UrlHighlighter.addHighlightsFrom.
-            TerminalModel model = view.getModel();
-            int count = 0;
-            // FIXME: this strange scoping avoids allocating an ArrayList for lines without matches, but there must be a cleaner way.
-            final ArrayList<Range> matches = new ArrayList<>();
-            for (int i = model.getLineCount() - 1; i >= firstLineIndex; i--) {
-                String text = model.getDisplayTextLine(i).getString();
-                Matcher matcher = pattern.matcher(text);
-                matches.clear();
-                while (matcher.find()) {
-                    matches.add(new Range(matcher.start(), matcher.end()));
-                    ++count;
-                }
-                if (!matches.isEmpty()) {
-                    // FIXME: the toArray is a mistake. We should use List<Range> instead.
-                    view.setFindMatches(i, matches.toArray(new Range[matches.size()]));
+        
+        private void start() {
+            final int endLineIndex = firstLineIndex + text.getLineCount();
+            // We search the chunk the user's looking at first, and work outwards from there.
+            final int visibleLineIndex = (view.getViewport() != null) ? (view.getFirstVisibleLine() + view.getLastVisibleLine()) / 2 : endLineIndex;
+            final ArrayList<int[]> chunks = new ArrayList<>();
+            for (int start = firstLineIndex; start < endLineIndex; ) {
+                final int end = Math.min(endLineIndex, (start / CHUNK_LINE_COUNT + 1) * CHUNK_LINE_COUNT);
+                chunks.add(new int[] { start, end });
+                start = end;
+            }
+            chunks.sort(Comparator.comparingInt(chunk -> Math.max(0, Math.max(chunk[0] - visibleLineIndex, visibleLineIndex - (chunk[1] - 1)))));
+            pendingChunkCount = chunks.size();
+            for (int[] chunk : chunks) {
+                tasks.add(pool.submit(() -> searchChunk(chunk[0], chunk[1])));
+            }
+            if (pendingChunkCount == 0) {
+                finished();
+            }
+        }
+        
+        // Called on one of the pool's threads.
+        private void searchChunk(int chunkStart, int chunkEnd) {
+            if (cancelled) {
+                return;
+            }
+            final int textStart = Math.max(firstLineIndex, chunkStart - CONTEXT_LINE_COUNT);
+            final int textEnd = Math.min(firstLineIndex + text.getLineCount(), chunkEnd + CONTEXT_LINE_COUNT);
+            // A TerminalText remembers which line it last read, so each chunk needs its own.
+            final TerminalText chunkText = text.getLines(textStart, textEnd);
+            final ArrayList<Integer> lineIndexes = new ArrayList<>();
+            final ArrayList<Range[]> lineMatches = new ArrayList<>();
+            final int count = LineMatcher.findMatches(pattern, chunkText, chunkStart, chunkEnd, (lineIndex, matches) -> {
+                lineIndexes.add(lineIndex);
+                lineMatches.add(matches);
+            });
+            if (cancelled == false) {
+                GuiUtilities.invokeLater(() -> chunkFinished(lineIndexes, lineMatches, count));
+            }
+        }
+        
+        private void chunkFinished(ArrayList<Integer> lineIndexes, ArrayList<Range[]> lineMatches, int count) {
+            if (cancelled) {
+                return;
+            }
+            final int removedSinceStart = (int) (view.getRemovedLineCount() - removedLineCount);
+            view.getBirdView().setValueIsAdjusting(true);
+            try {
+                for (int i = 0; i < lineIndexes.size(); ++i) {
+                    final int lineIndex = lineIndexes.get(i);
+                    if (lineIndex < firstChangedLineIndex && lineIndex >= removedSinceStart) {
+                        view.setFindMatches(lineIndex - removedSinceStart, lineMatches.get(i));
+                    }
                 }
+            } finally {
+                view.getBirdView().setValueIsAdjusting(false);
+            }
+            if (lineIndexes.isEmpty() == false) {
+                view.repaint();
+            }
+            matchCount += count;
+            if (--pendingChunkCount == 0) {
+                finished();
+            }
+        }
+        
+        private void finished() {
+            searches.remove(this);
+            if (findStatusDisplay != null) {
+                findStatusDisplay.setStatus(StringUtilities.pluralize(matchCount, "match", "matches"), false);
+            }
+        }
+        
+        /**
+         * Tells us that the lines from 'lineIndex' (as it is now) on have changed. Returns true if that leaves us with nothing to do, so we've cancelled ourselves.
+         */
+        private boolean linesChangedFrom(int lineIndex) {
+            firstChangedLineIndex = Math.min(firstChangedLineIndex, lineIndex + (int) (view.getRemovedLineCount() - removedLineCount));
+            if (firstChangedLineIndex > firstLineIndex) {
+                return false;
+            }
+            cancel();
+            return true;
+        }
+        
+        private void cancel() {
+            cancelled = true;
+            for (ForkJoinTask<?> task : tasks) {
+                task.cancel(false);
             }
-            return count;
-        } finally {
-            view.getBirdView().setValueIsAdjusting(false);
+            searches.remove(this);
         }
     }
 }
@@ -0,0 +1,125 @@
+package terminator.view.highlight;
+
+import e.util.*;
+import java.util.*;
+import java.util.regex.*;
+import org.jessies.test.*;
+import terminator.model.*;
+
+/**
+ * Finds a pattern's matches in a TerminalText, and hands them out a line at a time, as the Ranges TerminalView highlights.
+ * 
+ * A match that spans lines gives each line a Range covering its part of the
+ * match. The newlines themselves aren't highlighted, so a line whose only
+ * part of a match is its newline gets nothing.
+ */
+final class LineMatcher {
+    interface Listener {
+        void lineMatched(int lineIndex, Range[] matches);
+    }
+    
+    private LineMatcher() {
+    }
+    
+    /**
+     * Tells 'listener' about the matches of 'pattern' on each line of 'text' that has any, in order. Returns the number of matches.
+     */
+    static int findMatches(Pattern pattern, TerminalText text, Listener listener) {
+        if (text.getLineCount() == 0) {
+            return 0;
+        }
+        return findMatches(pattern, text, text.getLineIndex(0), text.getLineIndex(text.length()) + 1, listener);
+    }
+    
+    /**
+     * Like findMatches, but only telling 'listener' about the lines from 'firstLineIndex' to 'endLineIndex', and only counting matches that start on them.
+     * The rest of 'text' is there so that matches can run onto or off these lines, and so that lookbehind and lookahead see what's around them.
+     * That lets a long text be searched in pieces, each with a few lines either side of it, without highlighting any line twice.
+     */
+    static int findMatches(Pattern pattern, TerminalText text, int firstLineIndex, int endLineIndex, Listener listener) {
+        if (firstLineIndex >= endLineIndex) {
+            return 0;
+        }
+        final int firstLineStart = Math.max(0, text.getLineStart(firstLineIndex));
+        final int lastLineEnd = Math.min(text.length(), text.getLineEnd(endLineIndex - 1));
+        final Matcher matcher = pattern.matcher(text);
+        // The matches so far on 'lineIndex', which we pass on once we find one on a later line.
+        final ArrayList<Range> matches = new ArrayList<>();
+        int lineIndex = -1;
+        int count = 0;
+        while (matcher.find()) {
+            final int start = matcher.start();
+            final int end = matcher.end();
+            if (start > lastLineEnd) {
+                break;
+            }
+            if (end < firstLineStart || (end == firstLineStart && start != end)) {
+                // This match is over before our lines start.
+                continue;
+            }
+            if (start >= firstLineStart) {
+                ++count;
+            }
+            final int lastLineIndex = Math.min(text.getLineIndex(Math.max(start, end - 1)), endLineIndex - 1);
+            for (int i = Math.max(text.getLineIndex(start), firstLineIndex); i <= lastLineIndex; ++i) {
+                final int lineStart = text.getLineStart(i);
+                final int rangeStart = Math.max(start, lineStart) - lineStart;
+                final int rangeEnd = Math.min(end, text.getLineEnd(i)) - lineStart;
+                if (rangeStart == rangeEnd && start != end) {
+                    continue;
+                }
+                if (i != lineIndex) {
+                    flush(listener, lineIndex, matches);
+                    lineIndex = i;
+                }
+                matches.add(new Range(rangeStart, rangeEnd));
+            }
+        }
+        flush(listener, lineIndex, matches);
+        return count;
+    }
+    
+    private static void flush(Listener listener, int lineIndex, ArrayList<Range> matches) {
+        if (matches.isEmpty() == false) {
+            // FIXME: the toArray is a mistake. We should use List<Range> instead.
+            listener.lineMatched(lineIndex, matches.toArray(new Range[matches.size()]));
+            matches.clear();
+        }
+    }
+    
+    @Test private static void testMatchesAcrossLines() {
+        final String[] strings = { "one two", "three", "", "four five" };
+        final TextLine[] lines = new TextLine[strings.length];
+        final int[] lengths = new int[strings.length];
+        for (int i = 0; i < strings.length; ++i) {
+            lines[i] = new TextLine(null);
+            lines[i].writeTextAt(0, strings[i], Style.getDefaultStyle());
+            lengths[i] = lines[i].lengthIncludingNewline();
+        }
+        final TerminalText text = new TerminalText(5, lengths, lineIndex -> lines[lineIndex - 5]);
+        final TreeMap<Integer, String> matchesByLine = new TreeMap<>();
+        final Listener listener = (lineIndex, matches) -> matchesByLine.put(lineIndex, Arrays.toString(matches));
+        
+        // One match, over four lines, one of them empty.
+        Assert.equals(findMatches(Pattern.compile("two\\s+three\\s+four"), text, listener), 1);
+        Assert.equals(matchesByLine.toString(), "{5=[Range[start=4,end=7]], 6=[Range[start=0,end=5]], 8=[Range[start=0,end=4]]}");
+        
+        // Anchors still match at the start and end of each line, as they did when we matched a line at a time.
+        matchesByLine.clear();
+        Assert.equals(findMatches(Pattern.compile("^\\w+|\\w+$", Pattern.MULTILINE), text, listener), 5);
+        Assert.equals(matchesByLine.toString(), "{5=[Range[start=0,end=3], Range[start=4,end=7]], 6=[Range[start=0,end=5]], 8=[Range[start=0,end=4], Range[start=5,end=9]]}");
+        
+        // A match ending with a newline doesn't highlight anything on the next line.
+        matchesByLine.clear();
+        Assert.equals(findMatches(Pattern.compile("three\\n"), text, listener), 1);
+        Assert.equals(matchesByLine.toString(), "{6=[Range[start=0,end=5]]}");
+        
+        // Searching just some of the lines, matches that run onto them are highlighted, but only counted where they start.
+        matchesByLine.clear();
+        Assert.equals(findMatches(Pattern.compile("two\\s+three\\s+four"), text, 6, 8, listener), 0);
+        Assert.equals(matchesByLine.toString(), "{6=[Range[start=0,end=5]]}");
+        matchesByLine.clear();
+        Assert.equals(findMatches(Pattern.compile("o"), text, 8, 9, listener), 1);
+        Assert.equals(matchesByLine.toString(), "{8=[Range[start=1,end=2]]}");
+    }
+}
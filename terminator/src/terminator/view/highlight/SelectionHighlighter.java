@@ -48,6 +48,27 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
         return highlightEnd;
     }
 
+    /**
+     * Moves the selection up to follow its text when the model discards its oldest lines.
+     * If the start of the selection was discarded, the selection starts with what's left.
+     */
+    public void linesRemovedFromTop(int count) {
+        if (initialPoint != null) {
+            initialPoint = new Point(initialPoint.x, initialPoint.y - count * view.getCharUnitSize().height);
+        }
+        if (hasSelection() == false) {
+            return;
+        }
+        if (highlightEnd.getLineIndex() < count) {
+            highlightStart = null;
+            highlightEnd = null;
+        } else {
+            highlightStart = (highlightStart.getLineIndex() < count) ? new Location(0, 0) : new Location(highlightStart.getLineIndex() - count, highlightStart.getCharOffset());
+            highlightEnd = new Location(highlightEnd.getLineIndex() - count, highlightEnd.getCharOffset());
+        }
+        view.repaint();
+    }
+    
     public void textChanged(Location start, Location end) {
         if (hasSelection()) {
             if (highlightEnd.compareTo(start) > 0 && highlightStart.compareTo(end) < 0) {
@@ -79,7 +100,7 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
         highlightStart = null;
         highlightEnd = null;
         
-        if (loc.getLineIndex() >= view.getModel().getLineCount()) {
+        if (loc.getLineIndex() >= view.getLineCount()) {
             return;
         }
         dragHandler = getDragHandlerForClick(e);
@@ -159,7 +180,7 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
         
         private Location getWordStart(Location location) {
             final int lineNumber = location.getLineIndex();
-            String line = view.getModel().getDisplayTextLine(lineNumber).getString();
+            String line = view.getDisplayTextLine(lineNumber).getString();
             if (location.getCharOffset() >= line.length()) {
                 return location;
             }
@@ -173,7 +194,7 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
         
         private Location getWordEnd(Location location) {
             final int lineNumber = location.getLineIndex();
-            String line = view.getModel().getDisplayTextLine(lineNumber).getString();
+            String line = view.getDisplayTextLine(lineNumber).getString();
             if (location.getCharOffset() >= line.length()) {
                 return location;
             }
@@ -204,7 +225,7 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
     private boolean matchBrackets(Location l) {
         final int lineNumber = l.getLineIndex();
         final int p0 = l.getCharOffset();
-        String line = view.getModel().getDisplayTextLine(lineNumber).getString();
+        String line = view.getDisplayTextLine(lineNumber).getString();
         if (p0 >= line.length()) {
             return false;
         }
@@ -247,7 +268,7 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
     
     public void selectAll() {
         Location start = new Location(0, 0);
-        Location end = new Location(view.getModel().getLineCount(), 0);
+        Location end = new Location(view.getLineCount(), 0);
         setHighlight(start, end);
         selectionChanged();
     }
@@ -316,10 +337,10 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
     }
     
     private void setHighlight(Location start, Location end) {
-        TextLine startLine = view.getModel().getDisplayTextLine(start.getLineIndex());
+        TextLine startLine = view.getDisplayTextLine(start.getLineIndex());
         start = new Location(start.getLineIndex(), startLine.getEffectiveCharStartOffset(start.getCharOffset()));
-        if (end.getLineIndex() < view.getModel().getLineCount()) {
-            TextLine endLine = view.getModel().getDisplayTextLine(end.getLineIndex());
+        if (end.getLineIndex() < view.getLineCount()) {
+            TextLine endLine = view.getDisplayTextLine(end.getLineIndex());
             end = new Location(end.getLineIndex(), endLine.getEffectiveCharEndOffset(end.getCharOffset()));
         }
         if (start.equals(end)) {
@@ -337,11 +358,10 @@ public class SelectionHighlighter implements ClipboardOwner, MouseListener, Mous
     }
     
     private boolean isValidLocation(TerminalView view, Location location) {
-        TerminalModel model = view.getModel();
-        if (location.getLineIndex() >= model.getLineCount()) {
+        if (location.getLineIndex() >= view.getLineCount()) {
             return false;
         }
-        TextLine line = model.getDisplayTextLine(location.getLineIndex());
+        TextLine line = view.getDisplayTextLine(location.getLineIndex());
         // It is common for a selection to start after the last visible character on a line.
         if (location.getCharOffset() > line.length()) {
             return false;
@@ -1,43 +1,157 @@
 package terminator.view.highlight;
 
-import e.util.PatternUtilities;
-import e.util.Range;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.ArrayList;
+import e.util.*;
+import java.util.*;
+import java.util.regex.*;
+import org.jessies.test.*;
 import terminator.Terminator;
 import terminator.TerminatorPreferences;
-import terminator.model.TerminalModel;
-import terminator.view.TerminalView;
 
 /**
  * This works in conjunction with the TerminalView mouse listener that tracks
  * and repaints highlights under the mouse.
+ * 
+ * A link is only ever shown when the mouse is over it, so we only look for
+ * the links in a line when the mouse first moves over that line. The view
+ * keeps what we found, a line at a time, until the line changes or goes.
+ * However fast output comes, it costs us nothing, and moving the mouse
+ * costs a look at one line.
+ * 
+ * Neither pattern can match a newline, so we match a line on its own, and
+ * only let the matcher try where a match could start: just before a "://"
+ * for a URL, and at the start of the file name before a colon and a digit
+ * for an error. Most lines have neither, and cost us just a look at each
+ * character.
  */
 public class UrlHighlighter {
-    public void addHighlightsFrom(final TerminalView view, final int firstLineIndex) {
-        // FIXME: this code is duplicated in FindHighlighter.addHighlightsInternal.
-        addMatches(PatternUtilities.HYPERLINK_PATTERN, view, firstLineIndex);
+    private static final Range[] NO_MATCHES = new Range[0];
+    
+    // Reused from line to line. We're only used on the EDT.
+    private final Matcher urlMatcher = PatternUtilities.HYPERLINK_PATTERN.matcher("").useTransparentBounds(true);
+    private final Matcher errorMatcher = PatternUtilities.ERROR_PATTERN.matcher("").useTransparentBounds(true);
+    private final ArrayList<Range> matches = new ArrayList<>();
+    
+    /**
+     * Returns the links in 'line', in order. If there are none, the array is empty.
+     */
+    public Range[] getMatches(CharSequence line) {
+        addUrlMatches(urlMatcher, line, matches);
         // If the user has configured a script to handle error links, then include the errors regexp as 'URL's.
         if (Terminator.getPreferences().getString(TerminatorPreferences.ERROR_LINK_CMD) != "") {
-            addMatches(PatternUtilities.ERROR_PATTERN, view, firstLineIndex);
+            addErrorMatches(errorMatcher, line, matches);
+            // A line can have both, so put them in order.
+            matches.sort((lhs, rhs) -> Integer.compare(lhs.getStart(), rhs.getStart()));
         }
+        final Range[] result = matches.isEmpty() ? NO_MATCHES : matches.toArray(new Range[matches.size()]);
+        matches.clear();
+        // Don't keep the line alive.
+        urlMatcher.reset("");
+        errorMatcher.reset("");
+        return result;
     }
     
-    private void addMatches(Pattern pattern, final TerminalView view, final int firstLineIndex) {
-        final TerminalModel model = view.getModel();
-        ArrayList<Range> matches = new ArrayList<>();
-        for (int i = model.getLineCount() - 1; i >= firstLineIndex; i--) {
-            String text = model.getTextLine(i).getString();
-            Matcher matcher = pattern.matcher(text);
-            matches.clear();
-            while (matcher.find()) {
+    /**
+     * Adds HYPERLINK_PATTERN's matches in 'chars' to 'matches'.
+     * A match starts with "http://" or "https://", so we only let the matcher look just before each "://".
+     */
+    private static void addUrlMatches(Matcher matcher, CharSequence chars, ArrayList<Range> matches) {
+        matcher.reset(chars);
+        int end = 0;
+        for (int i = indexOfSchemeSeparator(chars, 0); i != -1; i = indexOfSchemeSeparator(chars, end)) {
+            matcher.region(Math.max(end, i - "https".length()), chars.length());
+            if (matcher.find() == false) {
+                return;
+            }
+            matches.add(new Range(matcher.start(), matcher.end()));
+            end = matcher.end();
+        }
+    }
+    
+    /**
+     * Adds ERROR_PATTERN's matches in 'chars' to 'matches'.
+     * A match is a run of file name characters followed by a colon and a digit, so we only let the matcher try at the start of such a run.
+     * Starting anywhere else in the run would reach the same colon, and fail the same way.
+     */
+    private static void addErrorMatches(Matcher matcher, CharSequence chars, ArrayList<Range> matches) {
+        matcher.reset(chars);
+        int end = 0;
+        for (int i = indexOfLineNumber(chars, 0); i != -1; i = indexOfLineNumber(chars, Math.max(end, i + 1))) {
+            int start = i;
+            while (start > end && isFileNameChar(chars.charAt(start - 1))) {
+                --start;
+            }
+            if (start == i) {
+                continue;
+            }
+            matcher.region(start, chars.length());
+            if (matcher.lookingAt()) {
                 matches.add(new Range(matcher.start(), matcher.end()));
+                end = matcher.end();
+            }
+        }
+    }
+    
+    // Returns the index of the first "://" in 'text' at or after 'fromIndex', or -1.
+    private static int indexOfSchemeSeparator(CharSequence text, int fromIndex) {
+        for (int i = fromIndex; i < text.length() - 2; ++i) {
+            if (text.charAt(i) == ':' && text.charAt(i + 1) == '/' && text.charAt(i + 2) == '/') {
+                return i;
             }
-            if (!matches.isEmpty()) {
-                // FIXME: the toArray is a mistake. We should use List<Range> instead.
-                view.setUrlMatches(i, matches.toArray(new Range[matches.size()]));
+        }
+        return -1;
+    }
+    
+    // Returns the index of the first colon followed by a digit in 'text' at or after 'fromIndex', or -1.
+    private static int indexOfLineNumber(CharSequence text, int fromIndex) {
+        for (int i = fromIndex; i < text.length() - 1; ++i) {
+            if (text.charAt(i) == ':' && isAsciiDigit(text.charAt(i + 1))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    // The characters ERROR_PATTERN allows before the colon.
+    private static boolean isFileNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isAsciiDigit(c) || c == '/' || c == '.' || c == '_' || c == '-';
+    }
+    
+    private static boolean isAsciiDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+    
+    @Test private static void testPrefilters() {
+        Assert.equals(indexOfSchemeSeparator("see http://software.jessies.org", 0), 8);
+        Assert.equals(indexOfSchemeSeparator("see http://software.jessies.org", 9), -1);
+        Assert.equals(indexOfSchemeSeparator("software.jessies.org", 0), -1);
+        Assert.equals(indexOfSchemeSeparator("http:/", 0), -1);
+        Assert.equals(indexOfLineNumber("src/e/util/Range.java:12: error", 0), 21);
+        Assert.equals(indexOfLineNumber("src/e/util/Range.java:", 0), -1);
+        Assert.equals(indexOfLineNumber("warning: unchecked", 0), -1);
+    }
+    
+    @Test private static void testMatchesAsWholeLineFind() {
+        final String[] lines = {
+            "src/terminator/view/TerminalView.java:123: warning: see https://docs.oracle.com/javase/8/docs/api/ for more",
+            "http://a.com/x, https://b.org/y?q=1#z and ftp://c.net then http://d.io.",
+            "(see http://software.jessies.org/terminator/), and mailto:someone",
+            "a/b.c:1:2: b.c:3: x:4 :5: -:6: //:7: http://e.com/f:8: g.h:9",
+            "xhttp://no.boundary, 9http://also, _http://neither http://yes.com",
+            "ftp://nothing.to.see:21/ here:: ::1 :a: file:///tmp/x:12:",
+            "",
+        };
+        for (String line : lines) {
+            final ArrayList<Range> matches = new ArrayList<>();
+            addUrlMatches(PatternUtilities.HYPERLINK_PATTERN.matcher("").useTransparentBounds(true), line, matches);
+            addErrorMatches(PatternUtilities.ERROR_PATTERN.matcher("").useTransparentBounds(true), line, matches);
+            final ArrayList<Range> expected = new ArrayList<>();
+            for (Pattern pattern : new Pattern[] { PatternUtilities.HYPERLINK_PATTERN, PatternUtilities.ERROR_PATTERN }) {
+                final Matcher matcher = pattern.matcher(line);
+                while (matcher.find()) {
+                    expected.add(new Range(matcher.start(), matcher.end()));
+                }
             }
+            Assert.equals(matches.toString(), expected.toString());
         }
     }
 }